@@ -17,11 +17,15 @@ package com.profesorfalken.wmi4java;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -58,16 +62,19 @@ import java.util.logging.Logger;
 public class WMI4Java {
 
 	private static final String NEWLINE_REGEX = "\\r?\\n";
-	private static final String SPACE_REGEX = "\\s+";
 
 	private static final String GENERIC_ERROR_MSG = "Error calling WMI4Java";
 
+	private static final int MAX_SOURCES_PER_CALL = 200;
+
 	private String namespace = "*";
 	private String computerName = ".";
-	private boolean forceVBEngine = false;
+	private WMIEngine engine = WMIEngine.POWERSHELL;
+	private int runspaces = 0;
 
 	List<String> properties = null;
 	List<String> filters = null;
+	int limit = 0;
 
 	// Private constructor. Must be instantiated statically
 	private WMI4Java() {
@@ -115,7 +122,7 @@ public class WMI4Java {
 	 * @return object instance used to chain calls
 	 */
 	public WMI4Java PowerShellEngine() {
-		this.forceVBEngine = false;
+		this.engine = WMIEngine.POWERSHELL;
 		return this;
 	}
 
@@ -125,7 +132,28 @@ public class WMI4Java {
 	 * @return object instance used to chain calls
 	 */
 	public WMI4Java VBSEngine() {
-		this.forceVBEngine = true;
+		this.engine = WMIEngine.VBSCRIPT;
+		return this;
+	}
+
+	/**
+	 * Forces the use of a single PowerShell process running up to the given
+	 * number of commands at the same time in a RunspacePool. <br>
+	 *
+	 * The process is shared by all the connections using the same number of
+	 * runspaces, so they can be used from different threads in parallel
+	 * without a PowerShell process each.
+	 *
+	 * @param runspaces
+	 *            maximum number of commands running at the same time
+	 * @return object instance used to chain calls
+	 */
+	public WMI4Java RunspacePoolEngine(int runspaces) {
+		if (runspaces <= 0) {
+			throw new WMIException("Runspace count must be positive: " + runspaces);
+		}
+		this.engine = WMIEngine.RUNSPACE_POOL;
+		this.runspaces = runspaces;
 		return this;
 	}
 
@@ -153,6 +181,56 @@ public class WMI4Java {
 		return this;
 	}
 
+	/**
+	 * Sets the maximum number of objects returned by a query. <br>
+	 *
+	 * The limit is applied inside the engine, which stops the enumeration as
+	 * soon as enough objects are found. By default (0) there is no limit.
+	 *
+	 * @param limit
+	 *            maximum number of objects to return. 0 means no limit
+	 * @return object instance used to chain calls
+	 */
+	public WMI4Java limit(int limit) {
+		if (limit < 0) {
+			throw new WMIException("Limit cannot be negative: " + limit);
+		}
+		this.limit = limit;
+		return this;
+	}
+
+	/**
+	 * Compiles a query for a class using the current configuration (namespace,
+	 * computer name, properties, filters and limit).<p>
+	 *
+	 * The returned {@link WMIQuery} is immutable: later changes to this instance
+	 * do not affect it and it can be executed from any thread on any
+	 * {@link WMIConnection}.
+	 *
+	 * @param wmiClass
+	 *            Enum that contains the most used classes (root/cimv2)
+	 * @return the compiled query
+	 */
+	public WMIQuery compile(WMIClass wmiClass) {
+		return compile(wmiClass.getName());
+	}
+
+	/**
+	 * Compiles a query for a class using the current configuration (namespace,
+	 * computer name, properties, filters and limit).<p>
+	 *
+	 * The returned {@link WMIQuery} is immutable: later changes to this instance
+	 * do not affect it and it can be executed from any thread on any
+	 * {@link WMIConnection}.
+	 *
+	 * @param wmiClass
+	 *            string with the name of the class to query
+	 * @return the compiled query
+	 */
+	public WMIQuery compile(String wmiClass) {
+		return new WMIQuery(wmiClass, namespace, computerName, properties, filters, limit);
+	}
+
 	/**
 	 * Open a connection to the underlying WMI provider (VBSEngine or PowerShell), with which you can perform
 	 * one or more WMI operations. Be sure to close the connection when done, with a try-with-resources auto-close
@@ -164,6 +242,50 @@ public class WMI4Java {
 		return new WMIConnection();
 	}
 
+	/**
+	 * Selects the grouped and aggregated properties in a query
+	 */
+	static WMIQuery aggregatedQuery(WMIQuery query, WMIAggregation aggregation) {
+		List<String> properties = aggregation.getProperties();
+		if (properties.isEmpty()) {
+			return query;
+		}
+		List<String> selected = properties;
+		if (query.getProperties() != null) {
+			selected = new ArrayList<>(query.getProperties());
+			for (String property : properties) {
+				boolean found = false;
+				for (String queried : query.getProperties()) {
+					found |= queried.equalsIgnoreCase(property);
+				}
+				if (!found) {
+					selected.add(property);
+				}
+			}
+			if (selected.size() == query.getProperties().size()) {
+				return query;
+			}
+		}
+		return new WMIQuery(query.getWMIClass(), query.getNamespace(), query.getComputerName(), selected,
+				query.getFilters(), query.getLimit());
+	}
+
+	/**
+	 * Sorts the listed classes by name with their superclass, leaving out the
+	 * system classes
+	 */
+	static Map<String, String> classHierarchy(WMIResultSet classes) {
+		Map<String, String> wmiClasses = new TreeMap<>();
+		for (WMIRow wmiClass : classes) {
+			String name = wmiClass.get("Name");
+			if (name != null && !name.isEmpty() && !name.startsWith("_")) {
+				String superClass = wmiClass.get("SuperClass");
+				wmiClasses.put(name, superClass == null || superClass.isEmpty() ? null : superClass);
+			}
+		}
+		return wmiClasses;
+	}
+
 	/**
 	 * Single-operation version of {@link WMIConnection#listClasses()}.
 	 * <p/>
@@ -176,6 +298,33 @@ public class WMI4Java {
 		}
 	}
 
+	/**
+	 * Single-operation version of {@link WMIConnection#listClassHierarchy()}.
+	 * <p/>
+	 * When performing more than one operation, for better performance, use {@link #openConnection()}
+	 * to get a {@link WMIConnection}, perform each operation, then call {@link WMIConnection#close()}.
+	 */
+	public Map<String, String> listClassHierarchy() throws WMIException {
+		try (WMIConnection connection = openConnection()) {
+			return connection.listClassHierarchy();
+		}
+	}
+
+	/**
+	 * Single-operation version of {@link WMIConnection#getClassIndex()}. A
+	 * connection is only opened if the index is not built yet.
+	 */
+	public WMIClassIndex getClassIndex() throws WMIException {
+		return WMIClassIndex.get(getEngine(), computerName, namespace, new Callable<WMIClassIndex>() {
+			@Override
+			public WMIClassIndex call() {
+				try (WMIConnection connection = openConnection()) {
+					return new WMIClassIndex(connection.wmiStub.listClassDefinitions(namespace, computerName));
+				}
+			}
+		});
+	}
+
 	/**
 	 * Single-operation version of {@link WMIConnection#listProperties(String)}.
 	 * <p/>
@@ -188,6 +337,44 @@ public class WMI4Java {
 		}
 	}
 
+	/**
+	 * Single-operation version of {@link WMIConnection#getInstance(WMIClass, String, Object)}.
+	 * <p/>
+	 * When performing more than one operation, for better performance, use {@link #openConnection()}
+	 * to get a {@link WMIConnection}, perform each operation, then call {@link WMIConnection#close()}.
+	 */
+	public Map<String, String> getInstance(WMIClass wmiClass, String keyProperty, Object keyValue)
+			throws WMIException {
+		try (WMIConnection connection = openConnection()) {
+			return connection.getInstance(wmiClass, keyProperty, keyValue);
+		}
+	}
+
+	/**
+	 * Single-operation version of {@link WMIConnection#getInstance(String, String, Object)}.
+	 * <p/>
+	 * When performing more than one operation, for better performance, use {@link #openConnection()}
+	 * to get a {@link WMIConnection}, perform each operation, then call {@link WMIConnection#close()}.
+	 */
+	public Map<String, String> getInstance(String wmiClass, String keyProperty, Object keyValue)
+			throws WMIException {
+		try (WMIConnection connection = openConnection()) {
+			return connection.getInstance(wmiClass, keyProperty, keyValue);
+		}
+	}
+
+	/**
+	 * Single-operation version of {@link WMIConnection#getInstance(String, Map)}.
+	 * <p/>
+	 * When performing more than one operation, for better performance, use {@link #openConnection()}
+	 * to get a {@link WMIConnection}, perform each operation, then call {@link WMIConnection#close()}.
+	 */
+	public Map<String, String> getInstance(String wmiClass, Map<String, ?> keys) throws WMIException {
+		try (WMIConnection connection = openConnection()) {
+			return connection.getInstance(wmiClass, keys);
+		}
+	}
+
 	/**
 	 * Single-operation version of {@link WMIConnection#getWMIObject(WMIClass)}.
 	 * <p/>
@@ -236,6 +423,30 @@ public class WMI4Java {
 		}
 	}
 
+	/**
+	 * Single-operation version of {@link WMIConnection#getWMIResultSet(WMIClass)}.
+	 * <p/>
+	 * When performing more than one operation, for better performance, use {@link #openConnection()}
+	 * to get a {@link WMIConnection}, perform each operation, then call {@link WMIConnection#close()}.
+	 */
+	public WMIResultSet getWMIResultSet(WMIClass wmiClass) throws WMIException {
+		try (WMIConnection connection = openConnection()) {
+			return connection.getWMIResultSet(wmiClass);
+		}
+	}
+
+	/**
+	 * Single-operation version of {@link WMIConnection#getWMIResultSet(String)}.
+	 * <p/>
+	 * When performing more than one operation, for better performance, use {@link #openConnection()}
+	 * to get a {@link WMIConnection}, perform each operation, then call {@link WMIConnection#close()}.
+	 */
+	public WMIResultSet getWMIResultSet(String wmiClass) throws WMIException {
+		try (WMIConnection connection = openConnection()) {
+			return connection.getWMIResultSet(wmiClass);
+		}
+	}
+
 	/**
 	 * Single-operation version of {@link WMIConnection#getRawWMIObjectOutput(WMIClass)}.
 	 * <p/>
@@ -260,22 +471,66 @@ public class WMI4Java {
 		}
 	}
 
+	/**
+	 * Single-operation version of {@link WMIConnection#invokeMethod(String, String, Map)}.
+	 * <p/>
+	 * When performing more than one operation, for better performance, use {@link #openConnection()}
+	 * to get a {@link WMIConnection}, perform each operation, then call {@link WMIConnection#close()}.
+	 */
+	public int invokeMethod(String target, String method, Map<String, ?> arguments) throws WMIException {
+		try (WMIConnection connection = openConnection()) {
+			return connection.invokeMethod(target, method, arguments);
+		}
+	}
+
+	/**
+	 * Engine that will be used by the connections opened by this instance
+	 *
+	 * @return the selected engine
+	 */
+	public WMIEngine getEngine() {
+		return engine;
+	}
+
+	String getNamespace() {
+		return namespace;
+	}
+
+	String getComputerName() {
+		return computerName;
+	}
+
 	public class WMIConnection implements AutoCloseable {
 
+		private final WMIEngine engine;
 		private final WMIStub wmiStub;
 
 		private WMIConnection() {
 			// Get the engine used to retrieve WMI data
-			if (forceVBEngine) {
+			engine = WMI4Java.this.getEngine();
+			if (engine == WMIEngine.VBSCRIPT) {
 				wmiStub = WMIVBScript.openSession();
+			} else if (engine == WMIEngine.RUNSPACE_POOL) {
+				wmiStub = WMIRunspacePool.openSession(runspaces);
 			} else {
 				wmiStub = WMIPowerShell.openSession();
 			}
+			WMIEvents.sessionOpened(engine, computerName);
+		}
+
+		/**
+		 * Engine used by this connection
+		 *
+		 * @return the engine
+		 */
+		public WMIEngine getEngine() {
+			return engine;
 		}
 
 		@Override
 		public void close() throws WMIException {
 			wmiStub.close();
+			WMIEvents.sessionClosed(engine, computerName);
 		}
 
 		/**
@@ -287,31 +542,40 @@ public class WMI4Java {
 		 * @return a list with the name of existing classes in the system
 		 */
 		public List<String> listClasses() throws WMIException {
-			List<String> wmiClasses = new ArrayList<>();
-			String rawData;
-			try {
-				rawData = wmiStub.listClasses(namespace, computerName);
-
-				String[] dataStringLines = rawData.split(NEWLINE_REGEX);
-
-				for (String line : dataStringLines) {
-					if (!line.isEmpty() && !line.startsWith("_")) {
-						String[] infos = line.split(SPACE_REGEX);
-						wmiClasses.addAll(Arrays.asList(infos));
-					}
-				}
-
-				// Normalize results: remove duplicates and sort the list
-				Set<String> hs = new HashSet<>(wmiClasses);
-				wmiClasses.clear();
-				wmiClasses.addAll(hs);
+			return new ArrayList<>(listClassHierarchy().keySet());
+		}
 
+		/**
+		 * Query and list the WMI classes with their direct superclass
+		 *
+		 * @return a map sorted by class name, with the name of the superclass or null
+		 *         for root classes
+		 */
+		public Map<String, String> listClassHierarchy() throws WMIException {
+			try {
+				return classHierarchy(wmiStub.listClasses(namespace, computerName));
+			} catch (WMICancelledException | WMITimeoutException ex) {
+				throw ex;
 			} catch (Exception ex) {
 				Logger.getLogger(WMI4Java.class.getName()).log(Level.SEVERE, GENERIC_ERROR_MSG, ex);
 				throw new WMIException(ex);
 			}
+		}
 
-			return wmiClasses;
+		/**
+		 * Returns the index of the classes of the namespace. It is built on
+		 * the first call and then shared until invalidated with
+		 * {@link WMIClassIndex#invalidate(String, String)}
+		 *
+		 * @return the class index
+		 */
+		public WMIClassIndex getClassIndex() throws WMIException {
+			return WMIClassIndex.get(engine, computerName, namespace, new Callable<WMIClassIndex>() {
+				@Override
+				public WMIClassIndex call() {
+					return new WMIClassIndex(wmiStub.listClassDefinitions(namespace, computerName));
+				}
+			});
 		}
 
 		/**
@@ -337,6 +601,8 @@ public class WMI4Java {
 				List<String> notAllowed = Arrays.asList("Equals", "GetHashCode", "GetType", "ToString");
 				foundPropertiesList.removeAll(notAllowed);
 
+			} catch (WMICancelledException | WMITimeoutException ex) {
+				throw ex;
 			} catch (Exception ex) {
 				Logger.getLogger(WMI4Java.class.getName()).log(Level.SEVERE, GENERIC_ERROR_MSG, ex);
 				throw new WMIException(ex);
@@ -344,6 +610,242 @@ public class WMI4Java {
 			return foundPropertiesList;
 		}
 
+		/**
+		 * Gets a single instance from the value of its key property, using its
+		 * object path (for instance <code>Win32_Service.Name="Spooler"</code>)
+		 * instead of enumerating the whole class
+		 *
+		 * @param wmiClass the WMI class
+		 * @param keyProperty the key property
+		 * @param keyValue the value of the key property
+		 * @return the properties of the instance or null if it does not exist
+		 */
+		public Map<String, String> getInstance(WMIClass wmiClass, String keyProperty, Object keyValue)
+				throws WMIException {
+			return getInstance(wmiClass.getName(), keyProperty, keyValue);
+		}
+
+		/**
+		 * Gets a single instance from the value of its key property, using its
+		 * object path
+		 *
+		 * @param wmiClass the name of the WMI class
+		 * @param keyProperty the key property
+		 * @param keyValue the value of the key property
+		 * @return the properties of the instance or null if it does not exist
+		 */
+		public Map<String, String> getInstance(String wmiClass, String keyProperty, Object keyValue)
+				throws WMIException {
+			return getInstance(wmiClass, Collections.singletonMap(keyProperty, keyValue));
+		}
+
+		/**
+		 * Gets a single instance from the values of its key properties, using
+		 * its object path. Numbers and booleans are written as they are in the
+		 * path, other values as strings
+		 *
+		 * @param wmiClass the name of the WMI class
+		 * @param keys values of all the key properties of the class
+		 * @return the properties of the instance or null if it does not exist
+		 */
+		public Map<String, String> getInstance(String wmiClass, Map<String, ?> keys) throws WMIException {
+			WMIQuery query = compile(wmiClass);
+			Object event = WMIEvents.beginQuery();
+			long start = System.nanoTime();
+			WMIResultSet instance = null;
+			RuntimeException error = null;
+			try {
+				instance = wmiStub.getInstance(query, WMIObjectPath.of(wmiClass, keys));
+			} catch (WMICancelledException | WMITimeoutException ex) {
+				error = ex;
+				throw ex;
+			} catch (WMIException ex) {
+				error = ex;
+				Logger.getLogger(WMI4Java.class.getName()).log(Level.SEVERE, GENERIC_ERROR_MSG, ex);
+				throw new WMIException(ex);
+			} finally {
+				endQuery(event, start, query, instance, error);
+			}
+			return instance.isEmpty() ? null : instance.get(0).toMap();
+		}
+
+		/**
+		 * Executes several compiled queries in a single round trip to the
+		 * engine
+		 *
+		 * @param queries the compiled queries
+		 * @return the found objects of each query, in the same order
+		 */
+		public List<WMIResultSet> executeBatch(List<WMIQuery> queries) throws WMIException {
+			if (queries.isEmpty()) {
+				return Collections.emptyList();
+			}
+			// Every query of the batch lasts the whole round trip
+			Object[] events = new Object[queries.size()];
+			for (int i = 0; i < events.length; i++) {
+				events[i] = WMIEvents.beginQuery();
+			}
+			long start = System.nanoTime();
+			List<WMIResultSet> results = null;
+			RuntimeException error = null;
+			try {
+				results = wmiStub.executeBatch(queries);
+				return results;
+			} catch (WMICancelledException | WMITimeoutException ex) {
+				error = ex;
+				throw ex;
+			} catch (WMIException ex) {
+				error = ex;
+				Logger.getLogger(WMI4Java.class.getName()).log(Level.SEVERE, GENERIC_ERROR_MSG, ex);
+				throw new WMIException(ex);
+			} finally {
+				for (int i = 0; i < events.length; i++) {
+					endQuery(events[i], start, queries.get(i), results != null ? results.get(i) : null, error);
+				}
+			}
+		}
+
+		/**
+		 * Invokes a WMI method on an instance, or a static method on a class
+		 *
+		 * @param target class name or instance path built with
+		 *            {@link WMIObjectPath}
+		 * @param method the method name
+		 * @param arguments input parameters by name. It can be null
+		 * @return the return code of the method. The WMI error code (negative)
+		 *         if it could not be invoked
+		 */
+		public int invokeMethod(String target, String method, Map<String, ?> arguments) throws WMIException {
+			return invokeMethods(Collections.singletonList(WMIMethodCall.of(target, method, arguments))).get(0);
+		}
+
+		/**
+		 * Invokes several WMI methods in a single round trip to the engine. A
+		 * failed invocation does not stop the following ones
+		 *
+		 * @param calls the method invocations
+		 * @return the return code of each invocation, in the same order
+		 */
+		public List<Integer> invokeMethods(List<WMIMethodCall> calls) throws WMIException {
+			List<Integer> returnCodes = new ArrayList<>(calls.size());
+			try {
+				// Bounded, so the command or script stays a reasonable size
+				for (int from = 0; from < calls.size(); from += MAX_SOURCES_PER_CALL) {
+					returnCodes.addAll(wmiStub.invokeMethods(namespace, computerName,
+							calls.subList(from, Math.min(calls.size(), from + MAX_SOURCES_PER_CALL))));
+				}
+			} catch (WMICancelledException | WMITimeoutException ex) {
+				throw ex;
+			} catch (WMIException ex) {
+				Logger.getLogger(WMI4Java.class.getName()).log(Level.SEVERE, GENERIC_ERROR_MSG, ex);
+				throw new WMIException(ex);
+			}
+			return returnCodes;
+		}
+
+		/**
+		 * Aggregates the objects of a compiled query while its output is
+		 * parsed, without building the rows. If the query retrieves all the
+		 * properties, only the grouped and aggregated ones are requested. If it
+		 * selects properties, the grouped and aggregated ones are added to them
+		 *
+		 * @param query the compiled query
+		 * @param aggregation the aggregates to compute
+		 * @return the computed aggregates
+		 */
+		public WMIAggregation.Result aggregate(WMIQuery query, WMIAggregation aggregation) throws WMIException {
+			query = aggregatedQuery(query, aggregation);
+			WMIAggregation.Accumulator accumulator = aggregation.newAccumulator();
+			Object event = WMIEvents.beginQuery();
+			long start = System.nanoTime();
+			RuntimeException error = null;
+			try {
+				wmiStub.executeQuery(query, accumulator, null);
+			} catch (WMICancelledException | WMITimeoutException ex) {
+				error = ex;
+				throw ex;
+			} catch (WMIException ex) {
+				error = ex;
+				Logger.getLogger(WMI4Java.class.getName()).log(Level.SEVERE, GENERIC_ERROR_MSG, ex);
+				throw new WMIException(ex);
+			} finally {
+				// The output is folded while it is read, so its size is not known
+				WMIQueryStatistics.of(engine).record(System.nanoTime() - start, error);
+				WMIEvents.endQuery(event, engine, query, accumulator.records(), 0, error);
+			}
+			return accumulator.result();
+		}
+
+		/**
+		 * Runs <code>ASSOCIATORS OF</code> for each source instance, all of
+		 * them in the same round trip to the engine. Selected properties apply
+		 * to the result class. Filters are not applied.
+		 *
+		 * @param objectPaths relative paths of the source instances, built with
+		 *            {@link WMIObjectPath}
+		 * @param resultClass class of the associated objects to return
+		 * @return the associated objects of each source path, in the order of
+		 *         the sources
+		 */
+		public Map<String, WMIResultSet> getAssociators(Collection<String> objectPaths, String resultClass)
+				throws WMIException {
+			return getRelated(objectPaths, resultClass, false);
+		}
+
+		/**
+		 * Runs <code>REFERENCES OF</code> for each source instance, all of them
+		 * in the same round trip to the engine. Selected properties apply to
+		 * the association class. Filters are not applied.
+		 *
+		 * @param objectPaths relative paths of the source instances, built with
+		 *            {@link WMIObjectPath}
+		 * @param associationClass class of the association objects to return
+		 * @return the association objects of each source path, in the order of
+		 *         the sources
+		 */
+		public Map<String, WMIResultSet> getReferences(Collection<String> objectPaths, String associationClass)
+				throws WMIException {
+			return getRelated(objectPaths, associationClass, true);
+		}
+
+		private Map<String, WMIResultSet> getRelated(Collection<String> objectPaths, String resultClass,
+				boolean references) throws WMIException {
+			Map<String, WMIResultSet> related = new LinkedHashMap<>();
+			List<String> sources = new ArrayList<>(new LinkedHashSet<>(objectPaths));
+			WMIQuery query = compile(resultClass);
+			try {
+				// Bounded, so the command or script stays a reasonable size
+				for (int from = 0; from < sources.size(); from += MAX_SOURCES_PER_CALL) {
+					List<String> batch = sources.subList(from, Math.min(sources.size(), from + MAX_SOURCES_PER_CALL));
+					Object event = WMIEvents.beginQuery();
+					long start = System.nanoTime();
+					long rows = 0;
+					long bytes = 0;
+					RuntimeException error = null;
+					try {
+						List<WMIResultSet> results = wmiStub.getRelated(query, batch, references);
+						for (int i = 0; i < batch.size(); i++) {
+							related.put(batch.get(i), results.get(i));
+							rows += results.get(i).size();
+							bytes += results.get(i).outputBytes();
+						}
+					} catch (WMIException ex) {
+						error = ex;
+						throw ex;
+					} finally {
+						WMIQueryStatistics.of(engine).record(System.nanoTime() - start, error);
+						WMIEvents.endQuery(event, engine, query, rows, bytes, error);
+					}
+				}
+			} catch (WMICancelledException | WMITimeoutException ex) {
+				throw ex;
+			} catch (WMIException ex) {
+				Logger.getLogger(WMI4Java.class.getName()).log(Level.SEVERE, GENERIC_ERROR_MSG, ex);
+				throw new WMIException(ex);
+			}
+			return related;
+		}
+
 		/**
 		 * Query all the object data for a specific class <br>
 		 *
@@ -382,31 +884,8 @@ public class WMI4Java {
 		 */
 		public Map<String, String> getWMIObject(String wmiClass) throws WMIException {
 			Map<String, String> foundWMIClassProperties = new HashMap<>();
-			try {
-				String rawData;
-				if (properties != null || filters != null) {
-					rawData = wmiStub.queryObject(wmiClass, properties, filters, namespace, computerName);
-				} else {
-					rawData = wmiStub.listObject(wmiClass, namespace, computerName);
-				}
-
-				String[] dataStringLines = rawData.split(NEWLINE_REGEX);
-
-				for (final String line : dataStringLines) {
-					if (!line.isEmpty()) {
-						int p = line.indexOf(':');
-						if (p > 0) {
-							String property = line.substring(0, p).trim();
-							String value = line.substring(p + 1).trim();
-							if (!property.isEmpty()) {
-								foundWMIClassProperties.put(property, value);
-							}
-						}
-					}
-				}
-			} catch (WMIException ex) {
-				Logger.getLogger(WMI4Java.class.getName()).log(Level.SEVERE, GENERIC_ERROR_MSG, ex);
-				throw new WMIException(ex);
+			for (WMIRow row : getWMIResultSet(wmiClass)) {
+				foundWMIClassProperties.putAll(row.asMap());
 			}
 			return foundWMIClassProperties;
 		}
@@ -442,39 +921,160 @@ public class WMI4Java {
 		 *         object
 		 */
 		public List<Map<String, String>> getWMIObjectList(String wmiClass) throws WMIException {
-			List<Map<String, String>> foundWMIClassProperties = new ArrayList<>();
-			try {
-				String rawData;
-				if (properties != null || filters != null) {
-					rawData = wmiStub.queryObject(wmiClass, properties, filters, namespace, computerName);
-				} else {
-					rawData = wmiStub.listObject(wmiClass, namespace, computerName);
-				}
+			return getWMIResultSet(wmiClass).toMapList();
+		}
 
-				String[] dataStringObjects = rawData.split(NEWLINE_REGEX + NEWLINE_REGEX);
-				for (String dataStringObject : dataStringObjects) {
-					String[] dataStringLines = dataStringObject.split(NEWLINE_REGEX);
-					Map<String, String> objectProperties = new HashMap<>();
-					for (final String line : dataStringLines) {
-						if (!line.isEmpty()) {
-							int p = line.indexOf(':');
-							if (p > 0) {
-								String property = line.substring(0, p).trim();
-								String value = line.substring(p + 1).trim();
-								if (!property.isEmpty()) {
-									objectProperties.put(property, value);
-								}
-							}
-						}
-					}
-					foundWMIClassProperties.add(objectProperties);
-				}
+		/**
+		 * Query a list of object data for a specific class, returning it in its
+		 * compact form <br>
+		 *
+		 * The objects of the result are views over a single buffer and their
+		 * values are only created when read. Prefer this method over
+		 * {@link #getWMIObjectList(String)} when querying classes with many
+		 * instances.
+		 *
+		 * @param wmiClass
+		 *            Enum that contains the most used classes (root/cimv2)
+		 * @return the found objects
+		 */
+		public WMIResultSet getWMIResultSet(WMIClass wmiClass) {
+			return getWMIResultSet(wmiClass.getName());
+		}
+
+		/**
+		 * Query a list of object data for a specific class, returning it in its
+		 * compact form <br>
+		 *
+		 * The objects of the result are views over a single buffer and their
+		 * values are only created when read. Prefer this method over
+		 * {@link #getWMIObjectList(String)} when querying classes with many
+		 * instances.
+		 *
+		 * @param wmiClass
+		 *            string with the name of the class to query
+		 * @return the found objects
+		 */
+		public WMIResultSet getWMIResultSet(String wmiClass) throws WMIException {
+			return getWMIResultSet(compile(wmiClass));
+		}
+
+		/**
+		 * Executes a compiled query <br>
+		 *
+		 * The query keeps its own namespace, computer name, properties and
+		 * filters: the configuration of the {@link WMI4Java} instance that opened
+		 * this connection is ignored.
+		 *
+		 * @param query
+		 *            the compiled query
+		 * @return the found objects
+		 */
+		public WMIResultSet getWMIResultSet(WMIQuery query) throws WMIException {
+			return getWMIResultSet(query, null);
+		}
+
+		/**
+		 * Executes a compiled query that can be cancelled <br>
+		 *
+		 * When the token is cancelled (or the calling thread interrupted) the
+		 * command running in the engine is aborted: the script process is
+		 * killed, or the PowerShell session is replaced by a fresh one, and this
+		 * method throws a {@link WMICancelledException}. The connection can still
+		 * be used afterwards. A query that does not end on time throws a
+		 * {@link WMITimeoutException}.
+		 *
+		 * @param query
+		 *            the compiled query
+		 * @param token
+		 *            token used to cancel the query
+		 * @return the found objects
+		 */
+		public WMIResultSet getWMIResultSet(WMIQuery query, WMICancellationToken token) throws WMIException {
+			Object event = WMIEvents.beginQuery();
+			long start = System.nanoTime();
+			WMIResultSet resultSet = null;
+			RuntimeException error = null;
+			try {
+				resultSet = wmiStub.executeQueryResultSet(query, token);
+				return resultSet;
+			} catch (WMICancelledException | WMITimeoutException ex) {
+				error = ex;
+				throw ex;
 			} catch (WMIException ex) {
+				error = ex;
 				Logger.getLogger(WMI4Java.class.getName()).log(Level.SEVERE, GENERIC_ERROR_MSG, ex);
 				throw new WMIException(ex);
+			} finally {
+				endQuery(event, start, query, resultSet, error);
+			}
+		}
+
+		/**
+		 * Executes a compiled query <br>
+		 *
+		 * @param query
+		 *            the compiled query
+		 * @return List of key/value elements. Each element in the list is a found
+		 *         object
+		 */
+		public List<Map<String, String>> getWMIObjectList(WMIQuery query) throws WMIException {
+			return getWMIResultSet(query).toMapList();
+		}
+
+		/**
+		 * Opens a forward-only cursor over the objects of a class <br>
+		 *
+		 * The enumeration stays alive inside the engine and every
+		 * {@link WMICursor#fetch()} returns the next batch of objects, so classes
+		 * with tens of thousands of instances never need to be loaded at once.
+		 * The cursor must be closed before closing this connection.
+		 *
+		 * @param wmiClass
+		 *            Enum that contains the most used classes (root/cimv2)
+		 * @param batchSize
+		 *            maximum number of objects returned by each fetch
+		 * @return the open cursor
+		 */
+		public WMICursor openCursor(WMIClass wmiClass, int batchSize) throws WMIException {
+			return openCursor(wmiClass.getName(), batchSize);
+		}
+
+		/**
+		 * Opens a forward-only cursor over the objects of a class <br>
+		 *
+		 * The enumeration stays alive inside the engine and every
+		 * {@link WMICursor#fetch()} returns the next batch of objects, so classes
+		 * with tens of thousands of instances never need to be loaded at once.
+		 * The cursor must be closed before closing this connection.
+		 *
+		 * @param wmiClass
+		 *            string with the name of the class to query
+		 * @param batchSize
+		 *            maximum number of objects returned by each fetch
+		 * @return the open cursor
+		 */
+		public WMICursor openCursor(String wmiClass, int batchSize) throws WMIException {
+			return openCursor(compile(wmiClass), batchSize);
+		}
 
+		/**
+		 * Opens a forward-only cursor over the objects of a compiled query
+		 *
+		 * @param query
+		 *            the compiled query
+		 * @param batchSize
+		 *            maximum number of objects returned by each fetch
+		 * @return the open cursor
+		 */
+		public WMICursor openCursor(WMIQuery query, int batchSize) throws WMIException {
+			try {
+				return new RecordedCursor(wmiStub.openCursor(query, batchSize), query);
+			} catch (WMICancelledException | WMITimeoutException ex) {
+				throw ex;
+			} catch (WMIException ex) {
+				Logger.getLogger(WMI4Java.class.getName()).log(Level.SEVERE, GENERIC_ERROR_MSG, ex);
+				throw new WMIException(ex);
 			}
-			return foundWMIClassProperties;
 		}
 
 		/**
@@ -496,18 +1096,102 @@ public class WMI4Java {
 		 * @return string with all the properties of the object
 		 */
 		public String getRawWMIObjectOutput(String wmiClass) throws WMIException {
-			String rawData;
+			return getRawWMIObjectOutput(compile(wmiClass));
+		}
+
+		/**
+		 * Executes a compiled query, returning the raw output of the engine
+		 *
+		 * @param query
+		 *            the compiled query
+		 * @return string with all the properties of the object
+		 */
+		public String getRawWMIObjectOutput(WMIQuery query) throws WMIException {
+			return getRawWMIObjectOutput(query, null);
+		}
+
+		/**
+		 * Executes a compiled query that can be cancelled, returning the raw
+		 * output of the engine
+		 *
+		 * @param query
+		 *            the compiled query
+		 * @param token
+		 *            token used to cancel the query
+		 * @return string with all the properties of the object
+		 * @see #getWMIResultSet(WMIQuery, WMICancellationToken)
+		 */
+		public String getRawWMIObjectOutput(WMIQuery query, WMICancellationToken token) throws WMIException {
+			Object event = WMIEvents.beginQuery();
+			long start = System.nanoTime();
+			String rawData = null;
+			RuntimeException error = null;
 			try {
-				if (properties != null || filters != null) {
-					rawData = wmiStub.queryObject(wmiClass, properties, filters, namespace, computerName);
-				} else {
-					rawData = wmiStub.listObject(wmiClass, namespace, computerName);
-				}
+				rawData = wmiStub.executeQuery(query, token);
+			} catch (WMICancelledException | WMITimeoutException ex) {
+				error = ex;
+				throw ex;
 			} catch (WMIException ex) {
+				error = ex;
 				Logger.getLogger(WMI4Java.class.getName()).log(Level.SEVERE, GENERIC_ERROR_MSG, ex);
 				throw new WMIException(ex);
+			} finally {
+				WMIQueryStatistics.of(engine).record(System.nanoTime() - start, error);
+				WMIEvents.endQuery(event, engine, query, -1, rawData != null ? rawData.length() * 2L : 0, error);
 			}
 			return rawData;
 		}
+
+		/**
+		 * Records the statistics and the flight recorder event of an ended
+		 * query
+		 */
+		private void endQuery(Object event, long start, WMIQuery query, WMIResultSet resultSet,
+				RuntimeException error) {
+			WMIQueryStatistics.of(engine).record(System.nanoTime() - start, error);
+			WMIEvents.endQuery(event, engine, query, resultSet != null ? resultSet.size() : 0,
+					resultSet != null ? resultSet.outputBytes() : 0, error);
+		}
+
+		/**
+		 * Cursor recording each fetch as a query
+		 */
+		private final class RecordedCursor implements WMICursor {
+
+			private final WMICursor cursor;
+			private final WMIQuery query;
+
+			RecordedCursor(WMICursor cursor, WMIQuery query) {
+				this.cursor = cursor;
+				this.query = query;
+			}
+
+			@Override
+			public boolean hasMore() {
+				return cursor.hasMore();
+			}
+
+			@Override
+			public WMIResultSet fetch() throws WMIException {
+				Object event = WMIEvents.beginQuery();
+				long start = System.nanoTime();
+				WMIResultSet batch = null;
+				RuntimeException error = null;
+				try {
+					batch = cursor.fetch();
+					return batch;
+				} catch (WMIException ex) {
+					error = ex;
+					throw ex;
+				} finally {
+					endQuery(event, start, query, batch, error);
+				}
+			}
+
+			@Override
+			public void close() throws WMIException {
+				cursor.close();
+			}
+		}
 	}
 }
@@ -0,0 +1,530 @@
+/*
+ * Copyright 2016 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.wmi4java;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Aggregates computed while the output of a query is parsed.<p>
+ *
+ * Values are folded into primitive accumulators as soon as they are parsed:
+ * no row, map or value string is ever built, so aggregating a class with many
+ * thousands of objects costs a few counters per group. Values and sums that
+ * do not fit in a long, like UInt64 counters, switch to exact arbitrary
+ * precision for their group.
+ *
+ * <pre>
+ * WMIAggregation.Result result = connection.aggregate(
+ *         WMI4Java.get().compile(WMIClass.WIN32_PROCESS),
+ *         new WMIAggregation().groupBy("Name").count().sum("WorkingSetSize"));
+ * for (WMIAggregation.Group group : result.getGroups()) {
+ *     System.out.println(group.getKey() + ": " + group.getCount() + " processes, "
+ *             + group.getSum("WorkingSetSize") + " bytes");
+ * }
+ * </pre>
+ *
+ * Only integer values are aggregated. Other values of an aggregated property
+ * are ignored. Only the requested aggregates can be read from the result.
+ *
+ * @author Javier Garcia Alonso
+ */
+public final class WMIAggregation {
+
+    // Accumulators of each aggregated property: value count, sum, min and max
+    private static final int VALUES = 0;
+    private static final int SUM = 1;
+    private static final int MIN = 2;
+    private static final int MAX = 3;
+    private static final int PROPERTY_STATS = 4;
+
+    // Requested operations of each aggregated property
+    private static final int SUM_OPERATION = 1;
+    private static final int MIN_OPERATION = 2;
+    private static final int MAX_OPERATION = 4;
+
+    private String groupBy = null;
+    private boolean counted = false;
+    private final List<String> properties = new ArrayList<>();
+    private final List<Integer> operations = new ArrayList<>();
+
+    /**
+     * Groups the objects by the value of a property
+     *
+     * @param property the property
+     * @return the aggregation
+     */
+    public WMIAggregation groupBy(String property) {
+        this.groupBy = property;
+        return this;
+    }
+
+    /**
+     * Counts the objects of each group
+     *
+     * @return the aggregation
+     */
+    public WMIAggregation count() {
+        this.counted = true;
+        return this;
+    }
+
+    /**
+     * Sums the values of a property
+     *
+     * @param property the property
+     * @return the aggregation
+     */
+    public WMIAggregation sum(String property) {
+        return aggregate(property, SUM_OPERATION);
+    }
+
+    /**
+     * Computes the minimum value of a property
+     *
+     * @param property the property
+     * @return the aggregation
+     */
+    public WMIAggregation min(String property) {
+        return aggregate(property, MIN_OPERATION);
+    }
+
+    /**
+     * Computes the maximum value of a property
+     *
+     * @param property the property
+     * @return the aggregation
+     */
+    public WMIAggregation max(String property) {
+        return aggregate(property, MAX_OPERATION);
+    }
+
+    // All the accumulators are kept for every aggregated property, they cost the same
+    private WMIAggregation aggregate(String property, int operation) {
+        for (int i = 0; i < properties.size(); i++) {
+            if (properties.get(i).equalsIgnoreCase(property)) {
+                operations.set(i, operations.get(i) | operation);
+                return this;
+            }
+        }
+        properties.add(property);
+        operations.add(operation);
+        return this;
+    }
+
+    /**
+     * Properties the query has to return
+     *
+     * @return the group property and the aggregated ones
+     */
+    List<String> getProperties() {
+        List<String> required = new ArrayList<>(properties);
+        if (groupBy != null && !required.contains(groupBy)) {
+            required.add(0, groupBy);
+        }
+        return required;
+    }
+
+    Accumulator newAccumulator() {
+        int[] requested = new int[operations.size()];
+        for (int i = 0; i < requested.length; i++) {
+            requested[i] = operations.get(i);
+        }
+        return new Accumulator(groupBy, counted, new ArrayList<>(properties), requested);
+    }
+
+    /**
+     * Folds the parsed values of one query execution
+     */
+    static final class Accumulator implements WMIOutputParser.RecordHandler {
+
+        private static final int UNRESOLVED = -3;
+        private static final int GROUP = -2;
+        private static final int IGNORED = -1;
+
+        private final String groupBy;
+        private final boolean counted;
+        private final List<String> properties;
+        private final int[] operations;
+        private final int stride;
+
+        // Role of each property of the parser schema: GROUP, IGNORED or aggregated property number
+        private int[] roles = new int[0];
+        // Interned group values, without creating a String for each object
+        private final WMIObjectSchema groupKeys = new WMIObjectSchema();
+        private int[] slotOfGroup = new int[16];
+        private int missingGroupSlot = -1;
+        private int slots = 0;
+        private long[] stats = new long[0];
+        // Exact sum, min and max of the properties of a group that left the long range. Allocated on the first one
+        private BigInteger[] exact = null;
+
+        // Current record
+        private int recordSlot;
+        private final long[] recordValues;
+        private final BigInteger[] recordExactValues;
+        private final boolean[] recordPresent;
+
+        private Accumulator(String groupBy, boolean counted, List<String> properties, int[] operations) {
+            this.groupBy = groupBy;
+            this.counted = counted;
+            this.properties = properties;
+            this.operations = operations;
+            this.stride = 1 + PROPERTY_STATS * properties.size();
+            this.recordValues = new long[properties.size()];
+            this.recordExactValues = new BigInteger[properties.size()];
+            this.recordPresent = new boolean[properties.size()];
+        }
+
+        @Override
+        public void startRecord() {
+            recordSlot = -1;
+            Arrays.fill(recordPresent, false);
+        }
+
+        @Override
+        public void property(WMIObjectSchema schema, int index, char[] buffer, int start, int end) {
+            int role = roleOf(schema, index);
+            if (role == GROUP) {
+                int known = groupKeys.size();
+                int group = groupKeys.indexOfOrAdd(buffer, start, end);
+                if (group >= known) {
+                    if (group >= slotOfGroup.length) {
+                        slotOfGroup = Arrays.copyOf(slotOfGroup, slotOfGroup.length * 2);
+                    }
+                    slotOfGroup[group] = newSlot();
+                }
+                recordSlot = slotOfGroup[group];
+            } else if (role >= 0) {
+                long value = parseLong(buffer, start, end);
+                if (value != Long.MIN_VALUE) {
+                    recordValues[role] = value;
+                    recordExactValues[role] = null;
+                    recordPresent[role] = true;
+                } else if (isInteger(buffer, start, end)) {
+                    // Only for values of 19 digits or more
+                    BigInteger exactValue = new BigInteger(new String(buffer, start, end - start));
+                    recordPresent[role] = true;
+                    if (exactValue.bitLength() < Long.SIZE) {
+                        recordValues[role] = exactValue.longValue();
+                        recordExactValues[role] = null;
+                    } else {
+                        recordExactValues[role] = exactValue;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void endRecord() {
+            int slot = recordSlot;
+            if (slot < 0) {
+                if (missingGroupSlot < 0) {
+                    missingGroupSlot = newSlot();
+                }
+                slot = missingGroupSlot;
+            }
+            int base = slot * stride;
+            stats[base]++;
+            for (int i = 0; i < recordValues.length; i++) {
+                if (recordPresent[i]) {
+                    int property = base + 1 + i * PROPERTY_STATS;
+                    int exactIndex = (slot * properties.size() + i) * 3;
+                    long value = recordValues[i];
+                    long sum = stats[property + SUM] + value;
+                    if (recordExactValues[i] != null || isExact(exactIndex)
+                            || ((stats[property + SUM] ^ sum) & (value ^ sum)) < 0) {
+                        addExact(property, exactIndex,
+                                recordExactValues[i] != null ? recordExactValues[i] : BigInteger.valueOf(value));
+                    } else {
+                        stats[property + SUM] = sum;
+                        stats[property + MIN] = Math.min(stats[property + MIN], value);
+                        stats[property + MAX] = Math.max(stats[property + MAX], value);
+                    }
+                    stats[property + VALUES]++;
+                }
+            }
+        }
+
+        private boolean isExact(int exactIndex) {
+            return exact != null && exactIndex < exact.length && exact[exactIndex] != null;
+        }
+
+        private void addExact(int property, int exactIndex, BigInteger value) {
+            if (!isExact(exactIndex)) {
+                int needed = slots * properties.size() * 3;
+                if (exact == null) {
+                    exact = new BigInteger[needed];
+                } else if (exact.length < needed) {
+                    exact = Arrays.copyOf(exact, Math.max(needed, exact.length * 2));
+                }
+                boolean any = stats[property + VALUES] > 0;
+                exact[exactIndex] = BigInteger.valueOf(stats[property + SUM]);
+                exact[exactIndex + 1] = any ? BigInteger.valueOf(stats[property + MIN]) : value;
+                exact[exactIndex + 2] = any ? BigInteger.valueOf(stats[property + MAX]) : value;
+            }
+            exact[exactIndex] = exact[exactIndex].add(value);
+            exact[exactIndex + 1] = exact[exactIndex + 1].min(value);
+            exact[exactIndex + 2] = exact[exactIndex + 2].max(value);
+        }
+
+        private int newSlot() {
+            int slot = slots++;
+            if (slots * stride > stats.length) {
+                stats = Arrays.copyOf(stats, Math.max(slots * stride, stats.length * 2));
+            }
+            int base = slot * stride;
+            for (int i = 0; i < properties.size(); i++) {
+                stats[base + 1 + i * PROPERTY_STATS + MIN] = Long.MAX_VALUE;
+                stats[base + 1 + i * PROPERTY_STATS + MAX] = Long.MIN_VALUE;
+            }
+            return slot;
+        }
+
+        private int roleOf(WMIObjectSchema schema, int index) {
+            if (index >= roles.length) {
+                int oldLength = roles.length;
+                roles = Arrays.copyOf(roles, Math.max(index + 1, oldLength * 2));
+                Arrays.fill(roles, oldLength, roles.length, UNRESOLVED);
+            }
+            if (roles[index] == UNRESOLVED) {
+                // Only once per property name
+                String name = schema.getName(index);
+                if (name.equalsIgnoreCase(groupBy)) {
+                    roles[index] = GROUP;
+                } else {
+                    roles[index] = IGNORED;
+                    for (int i = 0; i < properties.size(); i++) {
+                        if (properties.get(i).equalsIgnoreCase(name)) {
+                            roles[index] = i;
+                        }
+                    }
+                }
+            }
+            return roles[index];
+        }
+
+        /**
+         * Parses an integer of up to 18 digits without creating a String
+         *
+         * @return the value or Long.MIN_VALUE if it is not such an integer
+         */
+        static long parseLong(char[] buffer, int start, int end) {
+            boolean negative = start < end && buffer[start] == '-';
+            int i = negative ? start + 1 : start;
+            if (i == end || end - i > 18) {
+                return Long.MIN_VALUE;
+            }
+            long value = 0;
+            for (; i < end; i++) {
+                char c = buffer[i];
+                if (c < '0' || c > '9') {
+                    return Long.MIN_VALUE;
+                }
+                value = value * 10 + (c - '0');
+            }
+            return negative ? -value : value;
+        }
+
+        private static boolean isInteger(char[] buffer, int start, int end) {
+            int i = start < end && buffer[start] == '-' ? start + 1 : start;
+            if (i == end) {
+                return false;
+            }
+            for (; i < end; i++) {
+                if (buffer[i] < '0' || buffer[i] > '9') {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Number of objects folded so far
+         */
+        long records() {
+            long records = 0;
+            for (int slot = 0; slot < slots; slot++) {
+                records += stats[slot * stride];
+            }
+            return records;
+        }
+
+        Result result() {
+            List<Group> groups = new ArrayList<>(slots);
+            for (int group = 0; group < groupKeys.size(); group++) {
+                groups.add(new Group(groupKeys.getName(group), this, slotOfGroup[group]));
+            }
+            if (missingGroupSlot >= 0) {
+                groups.add(new Group(null, this, missingGroupSlot));
+            }
+            return new Result(groups);
+        }
+    }
+
+    /**
+     * Aggregates of the objects with the same value of the group property
+     */
+    public static final class Group {
+
+        private final String key;
+        private final Accumulator accumulator;
+        private final int slot;
+
+        private Group(String key, Accumulator accumulator, int slot) {
+            this.key = key;
+            this.accumulator = accumulator;
+            this.slot = slot;
+        }
+
+        /**
+         * Value of the group property
+         *
+         * @return the value, or null for the objects without the property
+         *         (or all the objects when there is no grouping)
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * Number of objects in the group
+         *
+         * @return the number of objects
+         * @throws WMIException if the objects were not counted
+         */
+        public long getCount() {
+            if (!accumulator.counted) {
+                throw new WMIException("Objects not counted");
+            }
+            return accumulator.stats[slot * accumulator.stride];
+        }
+
+        /**
+         * Number of integer values of a property in the group
+         *
+         * @param property an aggregated property
+         * @return the number of values
+         */
+        public long getCount(String property) {
+            return accumulator.stats[statsOf(indexOf(property)) + VALUES];
+        }
+
+        /**
+         * Sum of the values of a property in the group
+         *
+         * @param property a summed property
+         * @return the sum, 0 if the property had no integer value
+         */
+        public BigInteger getSum(String property) {
+            return aggregate(property, SUM_OPERATION, "summed", SUM, 0);
+        }
+
+        /**
+         * Minimum value of a property in the group
+         *
+         * @param property a property with its minimum computed
+         * @return the minimum or null if the property had no integer value
+         */
+        public BigInteger getMin(String property) {
+            return aggregate(property, MIN_OPERATION, "with its minimum computed", MIN, 1);
+        }
+
+        /**
+         * Maximum value of a property in the group
+         *
+         * @param property a property with its maximum computed
+         * @return the maximum or null if the property had no integer value
+         */
+        public BigInteger getMax(String property) {
+            return aggregate(property, MAX_OPERATION, "with its maximum computed", MAX, 2);
+        }
+
+        private BigInteger aggregate(String property, int operation, String description, int stat, int exactOffset) {
+            int index = indexOf(property);
+            if ((accumulator.operations[index] & operation) == 0) {
+                throw new WMIException("Property not " + description + ": " + property);
+            }
+            int position = statsOf(index);
+            int exactIndex = (slot * accumulator.properties.size() + index) * 3;
+            if (accumulator.isExact(exactIndex)) {
+                return accumulator.exact[exactIndex + exactOffset];
+            }
+            if (stat != SUM && accumulator.stats[position + VALUES] == 0) {
+                return null;
+            }
+            return BigInteger.valueOf(accumulator.stats[position + stat]);
+        }
+
+        private int indexOf(String property) {
+            for (int i = 0; i < accumulator.properties.size(); i++) {
+                if (accumulator.properties.get(i).equalsIgnoreCase(property)) {
+                    return i;
+                }
+            }
+            throw new WMIException("Property not aggregated: " + property);
+        }
+
+        private int statsOf(int index) {
+            return slot * accumulator.stride + 1 + index * PROPERTY_STATS;
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + accumulator.stats[slot * accumulator.stride];
+        }
+    }
+
+    /**
+     * Result of an aggregation
+     */
+    public static final class Result {
+
+        private final List<Group> groups;
+
+        private Result(List<Group> groups) {
+            this.groups = Collections.unmodifiableList(groups);
+        }
+
+        /**
+         * Groups found, in the order they were first seen
+         *
+         * @return the groups. Without grouping, a single group with all the
+         *         objects, or none if there were no objects
+         */
+        public List<Group> getGroups() {
+            return groups;
+        }
+
+        /**
+         * Group with the given value of the group property
+         *
+         * @param key value of the group property
+         * @return the group or null if no object had that value
+         */
+        public Group getGroup(String key) {
+            for (Group group : groups) {
+                if (key == null ? group.getKey() == null : key.equals(group.getKey())) {
+                    return group;
+                }
+            }
+            return null;
+        }
+    }
+}
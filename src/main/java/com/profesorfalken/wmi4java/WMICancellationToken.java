@@ -0,0 +1,110 @@
+/*
+ * Copyright 2016 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.wmi4java;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Token used to cancel running WMI operations.<p>
+ *
+ * The token is passed to an operation and {@link #cancel()} can then be called
+ * from any thread: the command running in the engine is aborted and the
+ * operation ends with a {@link WMICancelledException}. A token can be shared by
+ * several operations; once cancelled it stays cancelled. <p>
+ *
+ * Interrupting the thread that runs an operation has the same effect, so
+ * <code>Future.cancel(true)</code> also aborts a query submitted to an
+ * executor.
+ *
+ * @author Javier Garcia Alonso
+ */
+public final class WMICancellationToken {
+
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+    private volatile boolean cancelled = false;
+
+    /**
+     * Cancels all the operations using this token
+     */
+    public void cancel() {
+        if (cancelled) {
+            return;
+        }
+        cancelled = true;
+        for (Runnable listener : listeners) {
+            runListener(listener);
+        }
+    }
+
+    /**
+     * Checks if the token has been cancelled
+     *
+     * @return true once {@link #cancel()} has been called
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Throws a {@link WMICancelledException} if the token has been cancelled
+     */
+    public void throwIfCancelled() throws WMICancelledException {
+        if (cancelled) {
+            throw new WMICancelledException("WMI operation cancelled");
+        }
+    }
+
+    /**
+     * Registers the action that aborts a running operation. If the token is
+     * already cancelled the action runs immediately.
+     *
+     * @return registration to remove when the operation ends
+     */
+    Registration onCancel(final Runnable listener) {
+        listeners.add(listener);
+        if (cancelled && listeners.remove(listener)) {
+            runListener(listener);
+        }
+        return new Registration() {
+            @Override
+            public void unregister() {
+                listeners.remove(listener);
+            }
+        };
+    }
+
+    private static void runListener(Runnable listener) {
+        try {
+            listener.run();
+        } catch (RuntimeException ex) {
+            Logger.getLogger(WMI4Java.class.getName()).log(Level.WARNING, "Error aborting WMI operation", ex);
+        }
+    }
+
+    /**
+     * Registration of an abort action
+     */
+    interface Registration {
+
+        /**
+         * Removes the action. It no longer runs if the token is cancelled
+         */
+        void unregister();
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2016 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.wmi4java;
+
+/**
+ * Thrown when a WMI operation is aborted by a {@link WMICancellationToken} or
+ * by interrupting the thread running it.
+ *
+ * @author Javier Garcia Alonso
+ */
+public class WMICancelledException extends WMIException {
+
+    private static final long serialVersionUID = 2862104512593478217L;
+
+    public WMICancelledException(String message) {
+        super(message);
+    }
+
+    public WMICancelledException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2016 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.wmi4java;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cost of querying each class in previous crawls, kept in a properties file.
+ * Each entry is <code>class=runs,averageMillis,consecutiveTimeouts,crawlsSkipped</code>.
+ *
+ * @author Javier Garcia Alonso
+ */
+final class WMIClassCostHistory {
+
+    private final Map<String, Cost> costs = new ConcurrentHashMap<>();
+
+    static WMIClassCostHistory load(File file) throws WMIException {
+        WMIClassCostHistory history = new WMIClassCostHistory();
+        if (file == null || !file.isFile()) {
+            return history;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        } catch (IOException ex) {
+            throw new WMIException("Cannot read class cost history " + file, ex);
+        }
+        for (String wmiClass : properties.stringPropertyNames()) {
+            String[] fields = properties.getProperty(wmiClass).split(",");
+            try {
+                Cost cost = new Cost();
+                cost.runs = Integer.parseInt(fields[0]);
+                cost.averageMillis = Long.parseLong(fields[1]);
+                cost.consecutiveTimeouts = Integer.parseInt(fields[2]);
+                cost.crawlsSkipped = Integer.parseInt(fields[3]);
+                history.costs.put(wmiClass, cost);
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+                // Forget corrupt entries: the class is measured again
+            }
+        }
+        return history;
+    }
+
+    void save(File file) throws WMIException {
+        Properties properties = new Properties();
+        for (Map.Entry<String, Cost> entry : costs.entrySet()) {
+            Cost cost = entry.getValue();
+            synchronized (cost) {
+                properties.setProperty(entry.getKey(), cost.runs + "," + cost.averageMillis + ","
+                        + cost.consecutiveTimeouts + "," + cost.crawlsSkipped);
+            }
+        }
+        try (OutputStream out = new FileOutputStream(file)) {
+            properties.store(out, "WMI4Java class cost history");
+        } catch (IOException ex) {
+            throw new WMIException("Cannot write class cost history " + file, ex);
+        }
+    }
+
+    Cost get(String wmiClass) {
+        Cost cost = costs.get(wmiClass);
+        if (cost == null) {
+            Cost created = new Cost();
+            cost = costs.putIfAbsent(wmiClass, created);
+            if (cost == null) {
+                cost = created;
+            }
+        }
+        return cost;
+    }
+
+    /**
+     * Measures of a class. Guarded by its own monitor
+     */
+    static final class Cost {
+
+        int runs;
+        long averageMillis;
+        int consecutiveTimeouts;
+        int crawlsSkipped;
+
+        synchronized void completed(long millis) {
+            // Exponentially weighted, so a class that got faster is trusted again
+            averageMillis = runs == 0 ? millis : (averageMillis * 7 + millis * 3) / 10;
+            runs++;
+            consecutiveTimeouts = 0;
+            crawlsSkipped = 0;
+        }
+
+        synchronized void timedOut(long millis) {
+            averageMillis = Math.max(averageMillis, millis);
+            runs++;
+            consecutiveTimeouts++;
+            crawlsSkipped = 0;
+        }
+
+        synchronized void skipped() {
+            crawlsSkipped++;
+        }
+    }
+}
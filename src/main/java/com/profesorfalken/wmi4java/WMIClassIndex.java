@@ -0,0 +1,239 @@
+/*
+ * Copyright 2016 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.wmi4java;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Sorted index of the classes of a namespace.<p>
+ *
+ * The index is built once per engine, computer and namespace with a single
+ * enumeration of the class definitions, then kept until it is invalidated
+ * (for instance after installing a provider). It is obtained with
+ * {@link WMI4Java#getClassIndex()} or
+ * {@link WMI4Java.WMIConnection#getClassIndex()}:
+ *
+ * <pre>
+ * WMIClassIndex index = WMI4Java.get().getClassIndex();
+ * List&lt;WMIClassInfo&gt; perfClasses = index.findByPrefix("Win32_PerfRawData_");
+ * List&lt;WMIClassInfo&gt; logicalDevices = index.getDescendants("CIM_LogicalDevice");
+ * </pre>
+ *
+ * Lookups are case insensitive, as WMI class names are. An index is immutable
+ * and can be shared between threads.
+ *
+ * @author Javier Garcia Alonso
+ */
+public final class WMIClassIndex {
+
+    private static final ConcurrentMap<String, FutureTask<WMIClassIndex>> INDEXES = new ConcurrentHashMap<>();
+
+    // Keyed by lower case name
+    private final NavigableMap<String, WMIClassInfo> classes = new TreeMap<>();
+    private final Map<String, List<WMIClassInfo>> subclasses = new HashMap<>();
+    private final List<String> names;
+
+    WMIClassIndex(Iterable<WMIRow> definitions) {
+        for (WMIRow definition : definitions) {
+            WMIClassInfo info = WMIClassInfo.of(definition);
+            if (info.getName() != null && !info.getName().startsWith("__")) {
+                classes.put(info.getName().toLowerCase(Locale.ROOT), info);
+            }
+        }
+        List<String> sortedNames = new ArrayList<>(classes.size());
+        for (WMIClassInfo info : classes.values()) {
+            sortedNames.add(info.getName());
+            if (info.getSuperClass() != null) {
+                String parent = info.getSuperClass().toLowerCase(Locale.ROOT);
+                List<WMIClassInfo> children = subclasses.get(parent);
+                if (children == null) {
+                    children = new ArrayList<>();
+                    subclasses.put(parent, children);
+                }
+                children.add(info);
+            }
+        }
+        this.names = Collections.unmodifiableList(sortedNames);
+    }
+
+    static WMIClassIndex get(WMIEngine engine, String computerName, String namespace,
+            Callable<WMIClassIndex> builder) throws WMIException {
+        String key = key(engine, computerName, namespace);
+        FutureTask<WMIClassIndex> task = INDEXES.get(key);
+        if (task == null) {
+            FutureTask<WMIClassIndex> created = new FutureTask<>(builder);
+            task = INDEXES.putIfAbsent(key, created);
+            if (task == null) {
+                task = created;
+                task.run();
+            }
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new WMICancelledException("WMI operation interrupted", ex);
+        } catch (ExecutionException ex) {
+            // Not cached, so the next call tries again
+            INDEXES.remove(key, task);
+            if (ex.getCause() instanceof WMIException) {
+                throw (WMIException) ex.getCause();
+            }
+            throw new WMIException(ex.getCause());
+        }
+    }
+
+    private static String key(WMIEngine engine, String computerName, String namespace) {
+        String host = computerName == null || computerName.isEmpty() ? "." : computerName;
+        String path = namespace == null || "*".equals(namespace) ? "root/cimv2" : namespace.replace('\\', '/');
+        return engine + "|" + host.toLowerCase(Locale.ROOT) + "|" + path.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Discards the cached index of a namespace, so the next lookup enumerates
+     * the classes again
+     *
+     * @param computerName the computer name
+     * @param namespace the namespace
+     */
+    public static void invalidate(String computerName, String namespace) {
+        for (WMIEngine engine : WMIEngine.values()) {
+            INDEXES.remove(key(engine, computerName, namespace));
+        }
+    }
+
+    /**
+     * Discards all the cached indexes
+     */
+    public static void invalidateAll() {
+        INDEXES.clear();
+    }
+
+    /**
+     * Names of all the classes
+     *
+     * @return sorted unmodifiable list of class names
+     */
+    public List<String> getClassNames() {
+        return names;
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    /**
+     * Definition of a class
+     *
+     * @param wmiClass the class name
+     * @return the class or null if it does not exist
+     */
+    public WMIClassInfo get(String wmiClass) {
+        return classes.get(wmiClass.toLowerCase(Locale.ROOT));
+    }
+
+    public boolean contains(String wmiClass) {
+        return classes.containsKey(wmiClass.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Classes whose name starts with the given prefix
+     *
+     * @param prefix the prefix
+     * @return the classes sorted by name
+     */
+    public List<WMIClassInfo> findByPrefix(String prefix) {
+        String from = prefix.toLowerCase(Locale.ROOT);
+        return new ArrayList<>(classes.subMap(from, true, from + Character.MAX_VALUE, false).values());
+    }
+
+    /**
+     * Classes whose name contains the given text
+     *
+     * @param text the text
+     * @return the classes sorted by name
+     */
+    public List<WMIClassInfo> findBySubstring(String text) {
+        String lowerText = text.toLowerCase(Locale.ROOT);
+        List<WMIClassInfo> found = new ArrayList<>();
+        for (Map.Entry<String, WMIClassInfo> entry : classes.entrySet()) {
+            if (entry.getKey().contains(lowerText)) {
+                found.add(entry.getValue());
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Direct subclasses of a class
+     *
+     * @param wmiClass the class name
+     * @return the subclasses sorted by name
+     */
+    public List<WMIClassInfo> getSubclasses(String wmiClass) {
+        List<WMIClassInfo> children = subclasses.get(wmiClass.toLowerCase(Locale.ROOT));
+        return children != null ? Collections.unmodifiableList(children) : Collections.<WMIClassInfo>emptyList();
+    }
+
+    /**
+     * All the classes derived from a class, directly or not
+     *
+     * @param wmiClass the class name
+     * @return the derived classes, each one before its own subclasses
+     */
+    public List<WMIClassInfo> getDescendants(String wmiClass) {
+        List<WMIClassInfo> descendants = new ArrayList<>();
+        addDescendants(wmiClass, descendants);
+        return descendants;
+    }
+
+    private void addDescendants(String wmiClass, List<WMIClassInfo> descendants) {
+        for (WMIClassInfo child : getSubclasses(wmiClass)) {
+            descendants.add(child);
+            addDescendants(child.getName(), descendants);
+        }
+    }
+
+    /**
+     * Superclasses of a class, from the direct one to the root
+     *
+     * @param wmiClass the class name
+     * @return the superclasses
+     */
+    public List<WMIClassInfo> getSuperClasses(String wmiClass) {
+        List<WMIClassInfo> ancestors = new ArrayList<>();
+        WMIClassInfo info = get(wmiClass);
+        while (info != null && info.getSuperClass() != null && ancestors.size() < classes.size()) {
+            info = get(info.getSuperClass());
+            if (info != null) {
+                ancestors.add(info);
+            }
+        }
+        return ancestors;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.wmi4java;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Definition of a WMI class, as found in a {@link WMIClassIndex}
+ *
+ * @author Javier Garcia Alonso
+ */
+public final class WMIClassInfo {
+
+    private final String name;
+    private final String superClass;
+    private final List<String> keyProperties;
+    private final List<String> propertyNames;
+
+    WMIClassInfo(String name, String superClass, List<String> keyProperties, List<String> propertyNames) {
+        this.name = name;
+        this.superClass = superClass;
+        this.keyProperties = Collections.unmodifiableList(new ArrayList<>(keyProperties));
+        this.propertyNames = Collections.unmodifiableList(new ArrayList<>(propertyNames));
+    }
+
+    static WMIClassInfo of(WMIRow definition) {
+        String superClass = definition.get("SuperClass");
+        return new WMIClassInfo(definition.get("Name"),
+                superClass == null || superClass.isEmpty() ? null : superClass,
+                split(definition.get("Keys")), split(definition.get("Properties")));
+    }
+
+    private static List<String> split(String value) {
+        if (value == null || value.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return Arrays.asList(value.split(","));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Direct superclass
+     *
+     * @return the superclass name or null for root classes
+     */
+    public String getSuperClass() {
+        return superClass;
+    }
+
+    /**
+     * Properties that identify the instances of the class
+     *
+     * @return unmodifiable list of key properties
+     */
+    public List<String> getKeyProperties() {
+        return keyProperties;
+    }
+
+    /**
+     * Properties of the class, including the inherited ones
+     *
+     * @return unmodifiable list of property names
+     */
+    public List<String> getPropertyNames() {
+        return propertyNames;
+    }
+
+    @Override
+    public String toString() {
+        return name + (superClass != null ? " : " + superClass : "");
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2016 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.wmi4java;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the blocks written by {@link WMIColumnarWriter}, one at a time.
+ *
+ * <pre>
+ * try (WMIColumnarReader reader = new WMIColumnarReader(new FileInputStream("fleet.wmic"))) {
+ *     WMIColumnarReader.Block block;
+ *     while ((block = reader.next()) != null) {
+ *         System.out.println(block.getHost() + " " + block.getWMIClass() + ": " + block.getResultSet().size());
+ *     }
+ * }
+ * </pre>
+ *
+ * @author Javier Garcia Alonso
+ */
+public final class WMIColumnarReader implements AutoCloseable {
+
+    private final CountingInputStream counter;
+    private final DataInputStream in;
+    private final long length;
+    private boolean ended = false;
+
+    public WMIColumnarReader(InputStream in) throws WMIException {
+        this(in, Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates a reader for an inventory of known size. Lengths and counts
+     * read from it are checked against the bytes left, so corrupt data fails
+     * before anything is allocated for it
+     *
+     * @param in the inventory
+     * @param length size of the inventory in bytes
+     */
+    WMIColumnarReader(InputStream in, long length) throws WMIException {
+        this.counter = new CountingInputStream(new BufferedInputStream(in, 65536));
+        this.in = new DataInputStream(counter);
+        this.length = length;
+        try {
+            if (this.in.readInt() != WMIColumnarWriter.MAGIC) {
+                throw new WMIException("Not a columnar WMI inventory");
+            }
+            int version = this.in.readInt();
+            if (version != WMIColumnarWriter.VERSION) {
+                throw new WMIException("Unsupported columnar version: " + version);
+            }
+        } catch (IOException ex) {
+            throw new WMIException("Cannot read columnar header", ex);
+        }
+    }
+
+    /**
+     * Reads the next block
+     *
+     * @return the block or null at the end of the inventory
+     */
+    public Block next() throws WMIException {
+        if (ended) {
+            return null;
+        }
+        try {
+            int tag = in.read();
+            if (tag == WMIColumnarWriter.END) {
+                ended = true;
+                return null;
+            }
+            if (tag != WMIColumnarWriter.BLOCK) {
+                throw new WMIException(tag < 0 ? "Truncated columnar inventory" : "Corrupt columnar block: " + tag);
+            }
+            String host = readString();
+            String wmiClass = readString();
+            int rows = readInt();
+            int columnCount = readInt();
+            // Every column has at least its encoding byte and a presence bit per row
+            checkAvailable(columnCount * (1 + ((rows + 7L) >>> 3)));
+            if (2L * columnCount * rows > Integer.MAX_VALUE) {
+                throw new WMIException("Columnar block too large: " + rows + " rows, " + columnCount + " columns");
+            }
+
+            WMIObjectSchema schema = new WMIObjectSchema();
+            for (int column = 0; column < columnCount; column++) {
+                schema.add(readString());
+            }
+            String[][] columns = new String[columnCount][];
+            // Dictionary values are expanded once per row, so the values can be far larger than the block
+            long length = 0;
+            for (int column = 0; column < columnCount; column++) {
+                columns[column] = readColumn(rows);
+                for (String value : columns[column]) {
+                    length += value != null ? value.length() : 0;
+                }
+            }
+            if (length > Integer.MAX_VALUE) {
+                throw new WMIException("Columnar block too large: " + length + " characters of values");
+            }
+
+            // Back to the row layout of a result set
+            char[] buffer = new char[(int) length];
+            int[] offsets = new int[2 * columnCount * rows];
+            int position = 0;
+            for (int row = 0; row < rows; row++) {
+                for (int column = 0; column < columnCount; column++) {
+                    int offset = (row * columnCount + column) * 2;
+                    String value = columns[column][row];
+                    if (value == null) {
+                        offsets[offset] = -1;
+                        offsets[offset + 1] = -1;
+                        continue;
+                    }
+                    value.getChars(0, value.length(), buffer, position);
+                    offsets[offset] = position;
+                    position += value.length();
+                    offsets[offset + 1] = position;
+                }
+            }
+            return new Block(host, wmiClass, new WMIResultSet(buffer, schema, offsets, columnCount, rows));
+        } catch (EOFException ex) {
+            throw new WMIException("Truncated columnar inventory", ex);
+        } catch (IOException ex) {
+            throw new WMIException("Cannot read columnar block", ex);
+        }
+    }
+
+    private String[] readColumn(int rows) throws IOException {
+        int encoding = in.readUnsignedByte();
+        byte[] present = new byte[(rows + 7) >>> 3];
+        in.readFully(present);
+
+        String[] values = new String[rows];
+        if (encoding == WMIColumnarWriter.ENCODING_VARINT) {
+            for (int row = 0; row < rows; row++) {
+                if ((present[row >>> 3] & (1 << (row & 7))) != 0) {
+                    long zigzag = readVarint();
+                    values[row] = Long.toString((zigzag >>> 1) ^ -(zigzag & 1));
+                }
+            }
+        } else if (encoding == WMIColumnarWriter.ENCODING_DICTIONARY) {
+            int entries = readInt();
+            checkAvailable(entries);
+            String[] dictionary = new String[entries];
+            for (int i = 0; i < dictionary.length; i++) {
+                dictionary[i] = readString();
+            }
+            for (int row = 0; row < rows; row++) {
+                if ((present[row >>> 3] & (1 << (row & 7))) != 0) {
+                    int index = readInt();
+                    if (index >= dictionary.length) {
+                        throw new WMIException("Corrupt columnar dictionary index: " + index);
+                    }
+                    values[row] = dictionary[index];
+                }
+            }
+        } else {
+            throw new WMIException("Unknown column encoding: " + encoding);
+        }
+        return values;
+    }
+
+    private String readString() throws IOException {
+        int size = readInt();
+        checkAvailable(size);
+        byte[] bytes = new byte[size];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void checkAvailable(long bytes) {
+        if (bytes > length - counter.count) {
+            throw new WMIException("Truncated columnar inventory: " + bytes + " bytes expected");
+        }
+    }
+
+    private int readInt() throws IOException {
+        long value = readVarint();
+        if (value > Integer.MAX_VALUE) {
+            throw new WMIException("Corrupt columnar length: " + value);
+        }
+        return (int) value;
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new WMIException("Corrupt columnar varint");
+    }
+
+    @Override
+    public void close() throws WMIException {
+        try {
+            in.close();
+        } catch (IOException ex) {
+            throw new WMIException("Cannot close columnar reader", ex);
+        }
+    }
+
+    /**
+     * Counts the bytes consumed from the inventory
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+
+        private long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int read = super.read(bytes, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    /**
+     * Objects of one class on one host
+     */
+    public static final class Block {
+
+        private final String host;
+        private final String wmiClass;
+        private final WMIResultSet resultSet;
+
+        private Block(String host, String wmiClass, WMIResultSet resultSet) {
+            this.host = host;
+            this.wmiClass = wmiClass;
+            this.resultSet = resultSet;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public String getWMIClass() {
+            return wmiClass;
+        }
+
+        public WMIResultSet getResultSet() {
+            return resultSet;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2016 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.wmi4java;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes WMI inventories in a compact columnar binary format.<p>
+ *
+ * Each call to <code>write</code> appends a block with the objects of one
+ * class on one host and is written straight to the stream, so a fleet
+ * inventory never needs to be fully in memory. Very large classes can be
+ * written batch by batch from a {@link WMICursor}. <p>
+ *
+ * Inside a block every property is stored as a column: numeric columns are
+ * packed as variable length integers and the rest are dictionary encoded, so
+ * repeated values are only written once. The blocks are read back with
+ * {@link WMIColumnarReader}.
+ *
+ * <pre>
+ * try (WMIColumnarWriter writer = new WMIColumnarWriter(new FileOutputStream("fleet.wmic"))) {
+ *     for (String host : hosts) {
+ *         writer.write(host, "Win32_Service", connection.getWMIObjectList("Win32_Service"));
+ *     }
+ * }
+ * </pre>
+ *
+ * @author Javier Garcia Alonso
+ */
+public final class WMIColumnarWriter implements AutoCloseable {
+
+    static final int MAGIC = 0x574D4943; // WMIC
+    static final int VERSION = 1;
+
+    static final int BLOCK = 1;
+    static final int END = 0;
+
+    static final int ENCODING_DICTIONARY = 0;
+    static final int ENCODING_VARINT = 1;
+
+    private final OutputStream out;
+    private boolean closed = false;
+
+    public WMIColumnarWriter(OutputStream out) throws WMIException {
+        this.out = new BufferedOutputStream(out, 65536);
+        try {
+            writeFixedInt(MAGIC);
+            writeFixedInt(VERSION);
+        } catch (IOException ex) {
+            throw new WMIException("Cannot write columnar header", ex);
+        }
+    }
+
+    /**
+     * Writes the objects of a class as a block
+     *
+     * @param host computer the objects come from
+     * @param wmiClass class of the objects
+     * @param result the objects
+     */
+    public void write(String host, String wmiClass, WMIResultSet result) throws WMIException {
+        List<String> names = result.getSchema().getNames();
+        String[][] columns = new String[names.size()][result.size()];
+        for (int row = 0; row < result.size(); row++) {
+            for (int column = 0; column < names.size(); column++) {
+                columns[column][row] = result.value(row, column);
+            }
+        }
+        writeBlock(host, wmiClass, names, columns, result.size());
+    }
+
+    /**
+     * Writes the objects of a class as a block
+     *
+     * @param host computer the objects come from
+     * @param wmiClass class of the objects
+     * @param objects the objects, as returned by getWMIObjectList
+     */
+    public void write(String host, String wmiClass, List<Map<String, String>> objects) throws WMIException {
+        Set<String> nameSet = new LinkedHashSet<>();
+        for (Map<String, String> object : objects) {
+            nameSet.addAll(object.keySet());
+        }
+        List<String> names = new ArrayList<>(nameSet);
+        String[][] columns = new String[names.size()][objects.size()];
+        for (int row = 0; row < objects.size(); row++) {
+            Map<String, String> object = objects.get(row);
+            for (int column = 0; column < names.size(); column++) {
+                columns[column][row] = object.get(names.get(column));
+            }
+        }
+        writeBlock(host, wmiClass, names, columns, objects.size());
+    }
+
+    private void writeBlock(String host, String wmiClass, List<String> names, String[][] columns, int rows) {
+        if (closed) {
+            throw new WMIException("Columnar writer is closed");
+        }
+        try {
+            out.write(BLOCK);
+            writeString(host);
+            writeString(wmiClass);
+            writeVarint(rows);
+            writeVarint(names.size());
+            for (String name : names) {
+                writeString(name);
+            }
+            for (String[] column : columns) {
+                writeColumn(column);
+            }
+        } catch (IOException ex) {
+            throw new WMIException("Cannot write columnar block", ex);
+        }
+    }
+
+    private void writeColumn(String[] values) throws IOException {
+        // Presence bitmap, one bit per row
+        byte[] present = new byte[(values.length + 7) >>> 3];
+        boolean numeric = true;
+        for (int row = 0; row < values.length; row++) {
+            if (values[row] != null) {
+                present[row >>> 3] |= 1 << (row & 7);
+                numeric = numeric && isCanonicalLong(values[row]);
+            }
+        }
+
+        out.write(numeric ? ENCODING_VARINT : ENCODING_DICTIONARY);
+        out.write(present);
+        if (numeric) {
+            for (String value : values) {
+                if (value != null) {
+                    long number = Long.parseLong(value);
+                    writeVarint((number << 1) ^ (number >> 63));
+                }
+            }
+            return;
+        }
+
+        Map<String, Integer> dictionary = new HashMap<>();
+        List<String> entries = new ArrayList<>();
+        int[] indexes = new int[values.length];
+        for (int row = 0; row < values.length; row++) {
+            if (values[row] != null) {
+                Integer index = dictionary.get(values[row]);
+                if (index == null) {
+                    index = entries.size();
+                    dictionary.put(values[row], index);
+                    entries.add(values[row]);
+                }
+                indexes[row] = index;
+            }
+        }
+        writeVarint(entries.size());
+        for (String entry : entries) {
+            writeString(entry);
+        }
+        for (int row = 0; row < values.length; row++) {
+            if (values[row] != null) {
+                writeVarint(indexes[row]);
+            }
+        }
+    }
+
+    // Only values that print back exactly the same are packed as numbers
+    private static boolean isCanonicalLong(String value) {
+        int length = value.length();
+        int start = value.startsWith("-") ? 1 : 0;
+        if (length == start || length - start > 18) {
+            return false;
+        }
+        if (value.charAt(start) == '0' && (length - start > 1 || start == 1)) {
+            return false;
+        }
+        for (int i = start; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void writeString(String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(bytes.length);
+        out.write(bytes);
+    }
+
+    private void writeVarint(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private void writeFixedInt(int value) throws IOException {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    public void flush() throws WMIException {
+        try {
+            out.flush();
+        } catch (IOException ex) {
+            throw new WMIException("Cannot flush columnar writer", ex);
+        }
+    }
+
+    /**
+     * Writes the end marker and closes the stream
+     */
+    @Override
+    public void close() throws WMIException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            out.write(END);
+            out.close();
+        } catch (IOException ex) {
+            throw new WMIException("Cannot close columnar writer", ex);
+        }
+    }
+}
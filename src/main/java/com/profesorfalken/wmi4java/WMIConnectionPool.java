@@ -0,0 +1,518 @@
+/*
+ * Copyright 2016 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.wmi4java;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.ObjectName;
+
+/**
+ * Thread-safe facade that runs the requests of many threads on a fixed set of
+ * engine sessions.<p>
+ *
+ * An engine session (a PowerShell process) runs one command at a time, so a
+ * {@link WMI4Java.WMIConnection} cannot be shared between threads, while
+ * opening one per thread multiplies the processes. The pool owns a fixed
+ * number of connections, each one used by a single worker thread, and
+ * requests wait in a bounded queue until a session is free. <p>
+ *
+ * Requests with higher priority run first. Requests with the same priority
+ * run in arrival order, so with the default priority the queue is fair. When
+ * the queue is full, callers wait for room. <p>
+ *
+ * The number of sessions can be changed while the pool is used, and its
+ * sessions can be reopened or its queue drained, for instance from the
+ * MBean published by {@link WMIManagement#register(WMIConnectionPool, String)}.
+ *
+ * <pre>
+ * try (WMIConnectionPool pool = new WMIConnectionPool(WMI4Java.get(), 2, 100)) {
+ *     // From any thread
+ *     WMIResultSet processes = pool.getWMIResultSet(query);
+ *     WMIResultSet urgent = pool.getWMIResultSet(otherQuery, WMIConnectionPool.HIGH_PRIORITY);
+ * }
+ * </pre>
+ *
+ * @author Javier Garcia Alonso
+ */
+public final class WMIConnectionPool implements AutoCloseable {
+
+    public static final int DEFAULT_PRIORITY = 0;
+    public static final int HIGH_PRIORITY = 10;
+
+    private static final ThreadFactory WORKERS = WMIProcessSupervisor.daemonThreadFactory("wmi4java-connection-pool");
+
+    // Sorted after any request: wakes a worker up to stop it once the pool is closed
+    private static final Request<Void> STOP = new Request<>(null, Integer.MIN_VALUE, Long.MAX_VALUE);
+    // Sorted before any request: stops the first free worker when the pool shrinks
+    private static final Request<Void> RETIRE = new Request<>(null, Integer.MAX_VALUE, Long.MIN_VALUE);
+
+    private final WMI4Java wmi4java;
+    private volatile int sessions;
+    private final int queueCapacity;
+    private final PriorityBlockingQueue<Request<?>> queue = new PriorityBlockingQueue<>();
+    private final Semaphore queueSlots;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicInteger open = new AtomicInteger();
+    // Sessions of the workers waiting for a request. Taken back by their worker before being used
+    private final Set<WMI4Java.WMIConnection> idle = ConcurrentHashMap.newKeySet();
+    // Beans published for this pool, unregistered when it is closed
+    private final List<ObjectName> objectNames = new ArrayList<>();
+    // Incremented to make the workers reopen their sessions
+    private final AtomicInteger generation = new AtomicInteger();
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a pool. Sessions are opened when their worker runs its first
+     * request
+     *
+     * @param wmi4java instance that selects the engine and opens the sessions
+     * @param sessions number of engine sessions
+     * @param queueCapacity maximum number of requests waiting for a session
+     */
+    public WMIConnectionPool(WMI4Java wmi4java, int sessions, int queueCapacity) {
+        if (sessions <= 0) {
+            throw new WMIException("Session count must be positive: " + sessions);
+        }
+        if (queueCapacity <= 0) {
+            throw new WMIException("Queue capacity must be positive: " + queueCapacity);
+        }
+        this.wmi4java = wmi4java;
+        this.sessions = sessions;
+        this.queueCapacity = queueCapacity;
+        this.queueSlots = new Semaphore(queueCapacity, true);
+        startWorkers(sessions);
+    }
+
+    private void startWorkers(int count) {
+        for (int i = 0; i < count; i++) {
+            Thread worker = WORKERS.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            });
+            worker.start();
+        }
+    }
+
+    /**
+     * Operation run on one of the sessions of the pool
+     *
+     * @param <T> the result type
+     */
+    public interface Operation<T> {
+
+        /**
+         * Runs the operation
+         *
+         * @param connection connection of the session, only used by this
+         *            operation while it runs
+         * @param token cancelled when the caller is interrupted. Pass it to
+         *            the connection so the running command is aborted
+         * @return the result
+         */
+        T run(WMI4Java.WMIConnection connection, WMICancellationToken token) throws WMIException;
+    }
+
+    /**
+     * Executes a compiled query with the default priority
+     *
+     * @param query the compiled query
+     * @return the found objects
+     */
+    public WMIResultSet getWMIResultSet(WMIQuery query) throws WMIException {
+        return getWMIResultSet(query, DEFAULT_PRIORITY);
+    }
+
+    /**
+     * Executes a compiled query
+     *
+     * @param query the compiled query
+     * @param priority requests with higher priority run first
+     * @return the found objects
+     */
+    public WMIResultSet getWMIResultSet(final WMIQuery query, int priority) throws WMIException {
+        return execute(priority, new Operation<WMIResultSet>() {
+            @Override
+            public WMIResultSet run(WMI4Java.WMIConnection connection, WMICancellationToken token) {
+                return connection.getWMIResultSet(query, token);
+            }
+        });
+    }
+
+    /**
+     * Runs an operation with the default priority
+     *
+     * @param operation the operation
+     * @return its result
+     */
+    public <T> T execute(Operation<T> operation) throws WMIException {
+        return execute(DEFAULT_PRIORITY, operation);
+    }
+
+    /**
+     * Runs an operation on the first free session, waiting for room in the
+     * queue if it is full. If the calling thread is interrupted, the request
+     * is dropped or, if it is already running, cancelled
+     *
+     * @param priority requests with higher priority run first
+     * @param operation the operation
+     * @return its result
+     */
+    public <T> T execute(int priority, Operation<T> operation) throws WMIException {
+        if (priority == Integer.MIN_VALUE || priority == Integer.MAX_VALUE) {
+            throw new WMIException("Priority out of range: " + priority);
+        }
+        Request<T> request = new Request<>(operation, priority, sequence.getAndIncrement());
+        try {
+            queueSlots.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new WMICancelledException("WMI operation interrupted", ex);
+        }
+        // Under the lock of close, so no request is queued after the queue was failed
+        synchronized (this) {
+            if (closed) {
+                queueSlots.release();
+                throw new WMIException("Connection pool is closed");
+            }
+            queue.add(request);
+        }
+
+        try {
+            return request.result.get();
+        } catch (InterruptedException ex) {
+            if (queue.remove(request)) {
+                queueSlots.release();
+            } else {
+                request.token.cancel();
+            }
+            Thread.currentThread().interrupt();
+            throw new WMICancelledException("WMI operation interrupted", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof WMIException) {
+                throw (WMIException) ex.getCause();
+            }
+            throw new WMIException(ex.getCause());
+        }
+    }
+
+    private void work() {
+        WMI4Java.WMIConnection connection = null;
+        int connectionGeneration = 0;
+        try {
+            while (true) {
+                if (connection != null) {
+                    idle.add(connection);
+                }
+                Request<?> request;
+                try {
+                    request = queue.take();
+                } finally {
+                    // Already closed if the sessions were reset while waiting
+                    if (connection != null && !idle.remove(connection)) {
+                        connection = null;
+                    }
+                }
+                if (request == STOP || request == RETIRE) {
+                    return;
+                }
+                queueSlots.release();
+                if (request.token.isCancelled()) {
+                    request.result.completeExceptionally(new WMICancelledException("WMI operation cancelled"));
+                    continue;
+                }
+                if (connection != null && connectionGeneration != generation.get()) {
+                    closeSession(connection);
+                    connection = null;
+                }
+                if (connection == null) {
+                    try {
+                        connectionGeneration = generation.get();
+                        connection = wmi4java.openConnection();
+                        open.incrementAndGet();
+                    } catch (Throwable ex) {
+                        failed.incrementAndGet();
+                        request.result.completeExceptionally(ex);
+                        continue;
+                    }
+                } else {
+                    WMIEvents.sessionReused(connection.getEngine(), wmi4java.getComputerName());
+                }
+                if (!run(request, connection)) {
+                    closeSession(connection);
+                    connection = null;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (connection != null) {
+                closeSession(connection);
+            }
+        }
+    }
+
+    private void closeSession(WMI4Java.WMIConnection connection) {
+        open.decrementAndGet();
+        try {
+            connection.close();
+        } catch (RuntimeException ex) {
+            Logger.getLogger(WMI4Java.class.getName()).log(Level.WARNING, "Error closing pooled session", ex);
+        }
+    }
+
+    /**
+     * Runs a request, always completing it
+     *
+     * @return false if it failed unexpectedly, leaving the session in an
+     *         unknown state
+     */
+    private <T> boolean run(Request<T> request, WMI4Java.WMIConnection connection) {
+        active.incrementAndGet();
+        try {
+            request.result.complete(request.operation.run(connection, request.token));
+            completed.incrementAndGet();
+            return true;
+        } catch (WMIException ex) {
+            failed.incrementAndGet();
+            request.result.completeExceptionally(ex);
+            return true;
+        } catch (Throwable ex) {
+            failed.incrementAndGet();
+            request.result.completeExceptionally(ex);
+            Logger.getLogger(WMI4Java.class.getName()).log(Level.SEVERE, "Pooled session replaced after an error", ex);
+            return false;
+        } finally {
+            active.decrementAndGet();
+        }
+    }
+
+    /**
+     * Number of engine sessions of the pool
+     *
+     * @return the session count
+     */
+    public int getSessionCount() {
+        return sessions;
+    }
+
+    /**
+     * Changes the number of sessions. New sessions are opened when their
+     * worker runs its first request. When the pool shrinks, the sessions
+     * that are free first are closed; running requests end normally
+     *
+     * @param sessions the new session count
+     */
+    public synchronized void setSessionCount(int sessions) {
+        if (sessions <= 0) {
+            throw new WMIException("Session count must be positive: " + sessions);
+        }
+        if (closed) {
+            throw new WMIException("Connection pool is closed");
+        }
+        int current = this.sessions;
+        this.sessions = sessions;
+        if (sessions > current) {
+            startWorkers(sessions - current);
+        } else {
+            for (int i = sessions; i < current; i++) {
+                queue.add(RETIRE);
+            }
+        }
+    }
+
+    /**
+     * Makes every session be closed and reopened before its next request,
+     * for instance after the engine or the remote host was restarted.
+     * Running requests end normally on their current session. Idle
+     * sessions are closed right away
+     */
+    public void resetSessions() {
+        generation.incrementAndGet();
+        for (WMI4Java.WMIConnection connection : idle) {
+            // Fails if its worker took it back for a request
+            if (idle.remove(connection)) {
+                closeSession(connection);
+            }
+        }
+    }
+
+    /**
+     * Fails all the requests waiting for a session. The pool stays open
+     *
+     * @return the number of requests dropped
+     */
+    public synchronized int drain() {
+        return failQueued("Request drained from the connection pool");
+    }
+
+    // Fails the queued requests. Pending RETIRE markers are kept
+    private int failQueued(String message) {
+        List<Request<?>> retired = new ArrayList<>();
+        int dropped = 0;
+        Request<?> request;
+        while ((request = queue.poll()) != null) {
+            if (request == RETIRE) {
+                retired.add(request);
+            } else if (request != STOP) {
+                queueSlots.release();
+                request.result.completeExceptionally(new WMIException(message));
+                dropped++;
+            }
+        }
+        queue.addAll(retired);
+        return dropped;
+    }
+
+    /**
+     * Maximum number of requests waiting for a session
+     *
+     * @return the queue capacity
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Number of requests waiting for a session
+     *
+     * @return queued request count
+     */
+    public int getQueuedCount() {
+        return queueCapacity - queueSlots.availablePermits();
+    }
+
+    /**
+     * Number of engine sessions opened right now. Sessions are opened when
+     * their worker runs its first request
+     *
+     * @return open session count
+     */
+    public int getOpenSessionCount() {
+        return open.get();
+    }
+
+    /**
+     * Number of open sessions waiting for a request
+     *
+     * @return idle session count
+     */
+    public int getIdleSessionCount() {
+        return idle.size();
+    }
+
+    /**
+     * Number of requests running right now
+     *
+     * @return running request count
+     */
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    /**
+     * Number of requests that ended successfully
+     *
+     * @return completed request count
+     */
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    /**
+     * Number of requests that ended in error
+     *
+     * @return failed request count
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * Keeps the name of a bean published for this pool. If the pool is
+     * already closed the bean is removed right away
+     */
+    synchronized void registered(ObjectName objectName) {
+        if (closed) {
+            WMIManagement.unregister(objectName);
+        } else {
+            objectNames.add(objectName);
+        }
+    }
+
+    /**
+     * Closes the pool. Queued requests fail, running ones end normally and
+     * then the sessions are closed. The beans published for the pool are
+     * removed
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (ObjectName objectName : objectNames) {
+            WMIManagement.unregister(objectName);
+        }
+        objectNames.clear();
+        failQueued("Connection pool is closed");
+        // Workers still to be retired are stopped by their RETIRE marker
+        for (int i = 0; i < sessions; i++) {
+            queue.add(STOP);
+        }
+    }
+
+    /**
+     * Queued operation. Sorted by priority, then by arrival
+     */
+    private static final class Request<T> implements Comparable<Request<?>> {
+
+        private final Operation<T> operation;
+        private final int priority;
+        private final long sequence;
+        private final WMICancellationToken token = new WMICancellationToken();
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+
+        Request(Operation<T> operation, int priority, long sequence) {
+            this.operation = operation;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Request<?> other) {
+            if (priority != other.priority) {
+                return priority > other.priority ? -1 : 1;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,502 @@
+/*
+ * Copyright 2016 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.wmi4java;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Queries all the classes of a namespace in parallel.<p>
+ *
+ * The classes are queried through a pool of connections. The number of
+ * queries running at the same time adapts to the provider: it grows by one
+ * after a round of fast queries and is halved when a query is slow or times
+ * out. <p>
+ *
+ * The cost of each class can be kept between crawls in a history file. Based
+ * on it, slow classes are deferred to the end of the crawl, classes that
+ * timed out are only sampled and classes that keep timing out are skipped
+ * (and sampled again from time to time), so no list of classes to avoid has to
+ * be maintained by hand:
+ *
+ * <pre>
+ * WMICrawler.Summary summary = new WMICrawler(WMI4Java.get().namespace("root/cimv2"))
+ *         .maxConcurrency(4)
+ *         .costHistory(new File("crawl-costs.properties"))
+ *         .crawl(listener);
+ * </pre>
+ *
+ * @author Javier Garcia Alonso
+ */
+public final class WMICrawler {
+
+    private static final ScheduledExecutorService TIMEOUTS = Executors.newSingleThreadScheduledExecutor(
+            WMIProcessSupervisor.daemonThreadFactory("wmi4java-crawler-timeout"));
+
+    private final WMI4Java wmi4java;
+    private int maxConcurrency = 4;
+    private long classTimeout = TimeUnit.SECONDS.toMillis(60);
+    private long slowThreshold = TimeUnit.SECONDS.toMillis(10);
+    private int sampleSize = 100;
+    private int skipAfterTimeouts = 3;
+    private int retrySkippedEvery = 10;
+    private File costHistory = null;
+    private final Set<String> excluded = new HashSet<>();
+    private ClassQuery classQuery = new ClassQuery() {
+        @Override
+        public WMIResultSet run(WMI4Java.WMIConnection connection, WMIQuery query, WMICancellationToken token) {
+            return connection.getWMIResultSet(query, token);
+        }
+    };
+
+    /**
+     * How a class is queried in a crawl
+     */
+    public enum Decision {
+        /**
+         * Queried normally
+         */
+        RUN,
+        /**
+         * Slow class, queried after the others
+         */
+        DEFER,
+        /**
+         * Class that timed out, only its first objects are queried, at the end
+         */
+        SAMPLE,
+        /**
+         * Class that keeps timing out, not queried
+         */
+        SKIP
+    }
+
+    /**
+     * Receives the crawled classes. It is called from several threads at the
+     * same time
+     */
+    public interface Listener {
+
+        void onClass(String wmiClass, Decision decision, WMIResultSet objects);
+
+        void onFailure(String wmiClass, Decision decision, WMIException error);
+
+        void onSkipped(String wmiClass);
+    }
+
+    /**
+     * Queries one class on a connection
+     */
+    interface ClassQuery {
+
+        WMIResultSet run(WMI4Java.WMIConnection connection, WMIQuery query, WMICancellationToken token)
+                throws WMIException;
+    }
+
+    /**
+     * Creates a crawler
+     *
+     * @param wmi4java instance selecting the engine, namespace and computer
+     */
+    public WMICrawler(WMI4Java wmi4java) {
+        this.wmi4java = wmi4java;
+    }
+
+    /**
+     * Sets the maximum number of classes queried at the same time, which is
+     * also the size of the connection pool
+     *
+     * @param maxConcurrency the maximum. 4 by default
+     * @return the crawler
+     */
+    public WMICrawler maxConcurrency(int maxConcurrency) {
+        if (maxConcurrency <= 0) {
+            throw new WMIException("Concurrency must be positive: " + maxConcurrency);
+        }
+        this.maxConcurrency = maxConcurrency;
+        return this;
+    }
+
+    /**
+     * Sets the time after which the query of a class is cancelled
+     *
+     * @param timeout the timeout. 60 seconds by default
+     * @param unit unit of the timeout
+     * @return the crawler
+     */
+    public WMICrawler classTimeout(long timeout, TimeUnit unit) {
+        this.classTimeout = unit.toMillis(timeout);
+        return this;
+    }
+
+    /**
+     * Sets the duration from which a class is considered slow
+     *
+     * @param threshold the duration. 10 seconds by default
+     * @param unit unit of the duration
+     * @return the crawler
+     */
+    public WMICrawler slowThreshold(long threshold, TimeUnit unit) {
+        this.slowThreshold = unit.toMillis(threshold);
+        return this;
+    }
+
+    /**
+     * Sets the number of objects queried from sampled classes
+     *
+     * @param sampleSize the number of objects. 100 by default
+     * @return the crawler
+     */
+    public WMICrawler sampleSize(int sampleSize) {
+        if (sampleSize <= 0) {
+            throw new WMIException("Sample size must be positive: " + sampleSize);
+        }
+        this.sampleSize = sampleSize;
+        return this;
+    }
+
+    /**
+     * Sets how many consecutive timeouts make a class skipped, and every how
+     * many crawls a skipped class is sampled again
+     *
+     * @param timeouts consecutive timeouts. 3 by default
+     * @param retryEvery crawls between retries. 10 by default
+     * @return the crawler
+     */
+    public WMICrawler skipAfterTimeouts(int timeouts, int retryEvery) {
+        if (timeouts <= 0) {
+            throw new WMIException("Timeouts before skipping must be positive: " + timeouts);
+        }
+        if (retryEvery <= 0) {
+            throw new WMIException("Crawls between retries must be positive: " + retryEvery);
+        }
+        this.skipAfterTimeouts = timeouts;
+        this.retrySkippedEvery = retryEvery;
+        return this;
+    }
+
+    /**
+     * Sets the file keeping the cost of each class between crawls
+     *
+     * @param costHistory the file. Without it every crawl starts from scratch
+     * @return the crawler
+     */
+    public WMICrawler costHistory(File costHistory) {
+        this.costHistory = costHistory;
+        return this;
+    }
+
+    WMICrawler classQuery(ClassQuery classQuery) {
+        this.classQuery = classQuery;
+        return this;
+    }
+
+    /**
+     * Excludes classes from the crawl
+     *
+     * @param wmiClasses names of the classes
+     * @return the crawler
+     */
+    public WMICrawler exclude(String... wmiClasses) {
+        for (String wmiClass : wmiClasses) {
+            excluded.add(wmiClass.toLowerCase(Locale.ROOT));
+        }
+        return this;
+    }
+
+    /**
+     * Lists the classes of the namespace and queries all of them
+     *
+     * @param listener receives the objects of each class
+     * @return what was crawled
+     */
+    public Summary crawl(Listener listener) throws WMIException {
+        List<String> wmiClasses;
+        try (WMI4Java.WMIConnection connection = wmi4java.openConnection()) {
+            wmiClasses = connection.listClasses();
+        }
+        return crawl(wmiClasses, listener);
+    }
+
+    /**
+     * Queries the given classes
+     *
+     * @param wmiClasses names of the classes
+     * @param listener receives the objects of each class
+     * @return what was crawled
+     */
+    public Summary crawl(List<String> wmiClasses, final Listener listener) throws WMIException {
+        final WMIClassCostHistory history = WMIClassCostHistory.load(costHistory);
+        final Summary summary = new Summary();
+
+        List<String> run = new ArrayList<>();
+        List<String> deferred = new ArrayList<>();
+        List<String> sampled = new ArrayList<>();
+        for (String wmiClass : wmiClasses) {
+            if (excluded.contains(wmiClass.toLowerCase(Locale.ROOT))) {
+                continue;
+            }
+            switch (decide(history.get(wmiClass))) {
+                case RUN:
+                    run.add(wmiClass);
+                    break;
+                case DEFER:
+                    deferred.add(wmiClass);
+                    break;
+                case SAMPLE:
+                    sampled.add(wmiClass);
+                    break;
+                default:
+                    history.get(wmiClass).skipped();
+                    summary.skipped.incrementAndGet();
+                    listener.onSkipped(wmiClass);
+            }
+        }
+
+        final Limiter limiter = new Limiter(maxConcurrency);
+        final ConcurrentLinkedQueue<WMI4Java.WMIConnection> idle = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean stopping = new AtomicBoolean();
+        ExecutorService workers = Executors.newFixedThreadPool(maxConcurrency,
+                WMIProcessSupervisor.daemonThreadFactory("wmi4java-crawler"));
+        try {
+            for (List<String> group : Arrays.asList(run, deferred, sampled)) {
+                final Decision decision = group == run ? Decision.RUN
+                        : group == deferred ? Decision.DEFER : Decision.SAMPLE;
+                for (final String wmiClass : group) {
+                    workers.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            WMIQuery query = new WMIQuery(wmiClass, wmi4java.getNamespace(),
+                                    wmi4java.getComputerName(), null, null,
+                                    decision == Decision.SAMPLE ? sampleSize : 0);
+                            crawlClass(query, decision, history.get(wmiClass), limiter, idle, stopping, listener,
+                                    summary);
+                        }
+                    });
+                }
+            }
+            workers.shutdown();
+            while (!workers.awaitTermination(1, TimeUnit.SECONDS)) {
+                // Keep waiting for the classes in progress
+            }
+        } catch (InterruptedException ex) {
+            workers.shutdownNow();
+            // The queries in progress are cancelled, at the latest by their timeout
+            try {
+                workers.awaitTermination(classTimeout + TimeUnit.SECONDS.toMillis(1), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException again) {
+                // Still interrupted, the workers close their connections themselves
+            }
+            Thread.currentThread().interrupt();
+            throw new WMICancelledException("Crawl interrupted", ex);
+        } finally {
+            // A worker still running closes its connection when it sees the flag
+            stopping.set(true);
+            closeIdle(idle);
+            if (costHistory != null) {
+                history.save(costHistory);
+            }
+        }
+        return summary;
+    }
+
+    Decision decide(WMIClassCostHistory.Cost cost) {
+        synchronized (cost) {
+            if (cost.consecutiveTimeouts >= skipAfterTimeouts) {
+                return cost.crawlsSkipped + 1 >= retrySkippedEvery ? Decision.SAMPLE : Decision.SKIP;
+            }
+            if (cost.consecutiveTimeouts > 0) {
+                return Decision.SAMPLE;
+            }
+            if (cost.runs > 0 && cost.averageMillis >= slowThreshold) {
+                return Decision.DEFER;
+            }
+            return Decision.RUN;
+        }
+    }
+
+    private static void closeIdle(ConcurrentLinkedQueue<WMI4Java.WMIConnection> idle) {
+        WMI4Java.WMIConnection connection;
+        while ((connection = idle.poll()) != null) {
+            connection.close();
+        }
+    }
+
+    private static void closeQuietly(WMI4Java.WMIConnection connection) {
+        try {
+            connection.close();
+        } catch (RuntimeException ex) {
+            Logger.getLogger(WMI4Java.class.getName()).log(Level.WARNING, "Error closing crawler session", ex);
+        }
+    }
+
+    private void crawlClass(WMIQuery query, Decision decision, WMIClassCostHistory.Cost cost, Limiter limiter,
+            ConcurrentLinkedQueue<WMI4Java.WMIConnection> idle, AtomicBoolean stopping, Listener listener,
+            Summary summary) {
+        try {
+            limiter.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        boolean congested = false;
+        WMI4Java.WMIConnection connection = idle.poll();
+        final WMICancellationToken token = new WMICancellationToken();
+        ScheduledFuture<?> timeout = TIMEOUTS.schedule(new Runnable() {
+            @Override
+            public void run() {
+                token.cancel();
+            }
+        }, classTimeout, TimeUnit.MILLISECONDS);
+        long start = System.nanoTime();
+        try {
+            if (connection == null) {
+                connection = wmi4java.openConnection();
+            }
+            WMIResultSet objects = classQuery.run(connection, query, token);
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            cost.completed(millis);
+            congested = millis >= slowThreshold;
+            (decision == Decision.SAMPLE ? summary.sampled : summary.queried).incrementAndGet();
+            listener.onClass(query.getWMIClass(), decision, objects);
+        } catch (WMICancelledException ex) {
+            if (!token.isCancelled()) {
+                // The crawl itself was interrupted
+                Thread.currentThread().interrupt();
+                return;
+            }
+            cost.timedOut(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            congested = true;
+            summary.timedOut.incrementAndGet();
+            listener.onFailure(query.getWMIClass(), decision, ex);
+        } catch (WMITimeoutException ex) {
+            // The engine gave up before the class timeout. Its session may still be running the query
+            cost.timedOut(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            congested = true;
+            summary.timedOut.incrementAndGet();
+            if (connection != null) {
+                closeQuietly(connection);
+                connection = null;
+            }
+            listener.onFailure(query.getWMIClass(), decision, ex);
+        } catch (WMIException ex) {
+            summary.failed.incrementAndGet();
+            listener.onFailure(query.getWMIClass(), decision, ex);
+        } finally {
+            timeout.cancel(false);
+            if (connection != null) {
+                idle.add(connection);
+                if (stopping.get()) {
+                    closeIdle(idle);
+                }
+            }
+            limiter.release(congested);
+        }
+    }
+
+    /**
+     * Additive increase, multiplicative decrease limit of running queries
+     */
+    static final class Limiter {
+
+        private final int maxConcurrency;
+        private int limit;
+        private int running = 0;
+        private int successes = 0;
+
+        Limiter(int maxConcurrency) {
+            this.maxConcurrency = maxConcurrency;
+            this.limit = Math.max(1, maxConcurrency / 2);
+        }
+
+        synchronized int getLimit() {
+            return limit;
+        }
+
+        synchronized void acquire() throws InterruptedException {
+            while (running >= limit) {
+                wait();
+            }
+            running++;
+        }
+
+        synchronized void release(boolean congested) {
+            running--;
+            if (congested) {
+                limit = Math.max(1, limit / 2);
+                successes = 0;
+            } else if (++successes >= limit && limit < maxConcurrency) {
+                limit++;
+                successes = 0;
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Number of classes by outcome
+     */
+    public static final class Summary {
+
+        private final AtomicInteger queried = new AtomicInteger();
+        private final AtomicInteger sampled = new AtomicInteger();
+        private final AtomicInteger skipped = new AtomicInteger();
+        private final AtomicInteger timedOut = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+
+        public int getQueried() {
+            return queried.get();
+        }
+
+        public int getSampled() {
+            return sampled.get();
+        }
+
+        public int getSkipped() {
+            return skipped.get();
+        }
+
+        public int getTimedOut() {
+            return timedOut.get();
+        }
+
+        public int getFailed() {
+            return failed.get();
+        }
+
+        @Override
+        public String toString() {
+            return "queried=" + queried + ", sampled=" + sampled + ", skipped=" + skipped
+                    + ", timedOut=" + timedOut + ", failed=" + failed;
+        }
+    }
+}
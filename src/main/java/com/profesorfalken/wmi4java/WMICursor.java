@@ -0,0 +1,62 @@
+/*
+ * Copyright 2016 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.wmi4java;
+
+/**
+ * Forward-only cursor over the objects of a WMI query.<p>
+ *
+ * The enumeration is kept alive inside the engine (the PowerShell session or
+ * the running script) and each call to {@link #fetch()} returns the next batch
+ * of objects, so very large classes never need to be fully loaded in memory.
+ * <p>
+ *
+ * The cursor can be closed before reaching the end, releasing the enumerator
+ * in the engine:
+ *
+ * <pre>
+ * try (WMICursor cursor = connection.openCursor(WMIClass.WIN32_PROCESS, 500)) {
+ *     while (cursor.hasMore()) {
+ *         WMIResultSet batch = cursor.fetch();
+ *         ...
+ *     }
+ * }
+ * </pre>
+ *
+ * @author Javier Garcia Alonso
+ */
+public interface WMICursor extends AutoCloseable {
+
+    /**
+     * Checks if the enumeration may still return objects
+     *
+     * @return false once the last batch was returned
+     */
+    boolean hasMore();
+
+    /**
+     * Returns the next batch of objects
+     *
+     * @return up to batch size objects. Empty if the enumeration is over
+     * @throws WMIException if the engine fails
+     */
+    WMIResultSet fetch() throws WMIException;
+
+    /**
+     * Releases the enumerator in the engine
+     */
+    @Override
+    void close() throws WMIException;
+}
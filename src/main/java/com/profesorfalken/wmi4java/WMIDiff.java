@@ -0,0 +1,502 @@
+/*
+ * Copyright 2016 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.wmi4java;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Compares two snapshots of a class and reports the added, removed and
+ * changed objects.<p>
+ *
+ * Objects are matched by the key properties of their class using a hash join:
+ * the older snapshot is loaded in a hash table and the newer one is streamed
+ * against it. When the older snapshot has more objects than the configured
+ * limit, both snapshots are split by key hash into partitions spilled to
+ * temporary files, and each pair of partitions is then compared on its own.
+ * A partition still larger than the limit is split again with the next bits
+ * of the hash, so memory stays bounded even for classes like Win32_Product.
+ * Only objects with the same key hash, which cannot be split further, may
+ * exceed the limit. <p>
+ *
+ * Classes without known key properties are matched by all their properties,
+ * so a change shows as a removed and an added object.
+ *
+ * <pre>
+ * WMIDiff.Counts counts = new WMIDiff()
+ *         .keys("Win32_Product", "IdentifyingNumber", "Name", "Version")
+ *         .compare("Win32_Product", yesterday, today, listener);
+ * </pre>
+ *
+ * @author Javier Garcia Alonso
+ */
+public final class WMIDiff {
+
+    private static final int PARTITION_BITS = 4;
+    private static final int PARTITIONS = 1 << PARTITION_BITS;
+    private static final int MAX_DEPTH = Integer.SIZE / PARTITION_BITS;
+    private static final int SPILL_BATCH = 1024;
+
+    private static final Map<String, List<String>> DEFAULT_KEYS = new HashMap<>();
+
+    static {
+        DEFAULT_KEYS.put("win32_product", Arrays.asList("IdentifyingNumber", "Name", "Version"));
+        DEFAULT_KEYS.put("win32_quickfixengineering", Arrays.asList("HotFixID"));
+        DEFAULT_KEYS.put("win32_service", Arrays.asList("Name"));
+        DEFAULT_KEYS.put("win32_process", Arrays.asList("ProcessId"));
+        DEFAULT_KEYS.put("win32_logicaldisk", Arrays.asList("DeviceID"));
+        DEFAULT_KEYS.put("win32_diskdrive", Arrays.asList("DeviceID"));
+        DEFAULT_KEYS.put("win32_processor", Arrays.asList("DeviceID"));
+        DEFAULT_KEYS.put("win32_networkadapter", Arrays.asList("DeviceID"));
+        DEFAULT_KEYS.put("win32_useraccount", Arrays.asList("Domain", "Name"));
+        DEFAULT_KEYS.put("win32_group", Arrays.asList("Domain", "Name"));
+        DEFAULT_KEYS.put("win32_share", Arrays.asList("Name"));
+        DEFAULT_KEYS.put("win32_environment", Arrays.asList("Name", "UserName"));
+    }
+
+    private final Map<String, List<String>> keys = new HashMap<>(DEFAULT_KEYS);
+    private int maxRowsInMemory = 200000;
+    private File tempDirectory = null;
+
+    /**
+     * Receives the differences found
+     */
+    public interface Listener {
+
+        void added(String wmiClass, WMIRow object);
+
+        void removed(String wmiClass, WMIRow object);
+
+        /**
+         * An object is in both snapshots with different values
+         *
+         * @param wmiClass the class
+         * @param before the object in the older snapshot
+         * @param after the object in the newer snapshot
+         * @param properties the properties with different values
+         */
+        void changed(String wmiClass, WMIRow before, WMIRow after, List<String> properties);
+    }
+
+    /**
+     * Sets the properties that identify the objects of a class
+     *
+     * @param wmiClass the class name
+     * @param properties the key properties
+     * @return the diff
+     */
+    public WMIDiff keys(String wmiClass, String... properties) {
+        keys.put(wmiClass.toLowerCase(Locale.ROOT), Collections.unmodifiableList(new ArrayList<>(Arrays.asList(properties))));
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of objects of the older snapshot held in memory
+     * before spilling to disk
+     *
+     * @param maxRowsInMemory the limit
+     * @return the diff
+     */
+    public WMIDiff maxRowsInMemory(int maxRowsInMemory) {
+        if (maxRowsInMemory <= 0) {
+            throw new WMIException("Row limit must be positive: " + maxRowsInMemory);
+        }
+        this.maxRowsInMemory = maxRowsInMemory;
+        return this;
+    }
+
+    /**
+     * Sets where the spilled partitions are written
+     *
+     * @param tempDirectory the directory. null for the system one
+     * @return the diff
+     */
+    public WMIDiff tempDirectory(File tempDirectory) {
+        this.tempDirectory = tempDirectory;
+        return this;
+    }
+
+    /**
+     * Compares two snapshots of a class
+     *
+     * @param wmiClass the class
+     * @param before the older snapshot
+     * @param after the newer snapshot
+     * @param listener receives the differences
+     * @return number of differences found
+     */
+    public Counts compare(String wmiClass, WMIResultSet before, WMIResultSet after, Listener listener)
+            throws WMIException {
+        return compare(wmiClass, Collections.singletonList(before), Collections.singletonList(after), listener);
+    }
+
+    /**
+     * Compares two snapshots of a class read in batches, for instance from
+     * cursors or columnar files
+     *
+     * @param wmiClass the class
+     * @param before the batches of the older snapshot
+     * @param after the batches of the newer snapshot
+     * @param listener receives the differences
+     * @return number of differences found
+     */
+    public Counts compare(String wmiClass, Iterable<WMIResultSet> before, Iterable<WMIResultSet> after,
+            Listener listener) throws WMIException {
+        List<String> keyProperties = keys.get(wmiClass.toLowerCase(Locale.ROOT));
+        Counts counts = new Counts();
+        join(wmiClass, before, after, keyProperties, listener, counts, 0);
+        return counts;
+    }
+
+    // Hash join, splitting both sides by the hash bits of this depth while the older one does not fit
+    private void join(String wmiClass, Iterable<WMIResultSet> before, Iterable<WMIResultSet> after,
+            List<String> keyProperties, Listener listener, Counts counts, int depth) {
+        Map<String, Object> table = new HashMap<>();
+        int buffered = 0;
+        Iterator<WMIResultSet> beforeBatches = before.iterator();
+        while ((buffered <= maxRowsInMemory || depth == MAX_DEPTH) && beforeBatches.hasNext()) {
+            for (WMIRow row : beforeBatches.next()) {
+                build(table, key(row, keyProperties), row);
+                buffered++;
+            }
+        }
+        if (!beforeBatches.hasNext() && (buffered <= maxRowsInMemory || depth == MAX_DEPTH)) {
+            probe(wmiClass, table, after, keyProperties, listener, counts);
+            return;
+        }
+
+        Spill spill = new Spill(wmiClass, depth);
+        try {
+            for (Object rows : table.values()) {
+                for (WMIRow row : rowsOf(rows)) {
+                    spill.add(spill.before, row, key(row, keyProperties));
+                }
+            }
+            table = null;
+            while (beforeBatches.hasNext()) {
+                for (WMIRow row : beforeBatches.next()) {
+                    spill.add(spill.before, row, key(row, keyProperties));
+                }
+            }
+            for (WMIResultSet batch : after) {
+                for (WMIRow row : batch) {
+                    spill.add(spill.after, row, key(row, keyProperties));
+                }
+            }
+            spill.finish();
+
+            for (int partition = 0; partition < PARTITIONS; partition++) {
+                join(wmiClass, spill.read(spill.beforeFiles[partition]), spill.read(spill.afterFiles[partition]),
+                        keyProperties, listener, counts, depth + 1);
+            }
+        } finally {
+            spill.delete();
+        }
+    }
+
+    private static String key(WMIRow row, List<String> keyProperties) {
+        StringBuilder key = new StringBuilder();
+        if (keyProperties != null) {
+            for (String property : keyProperties) {
+                appendKeyValue(key, row.get(property));
+            }
+            return key.toString();
+        }
+        // No known key: the whole object, independent of property order
+        List<String> names = new ArrayList<>(row.getSchema().getNames());
+        Collections.sort(names);
+        for (String name : names) {
+            if (row.contains(name)) {
+                key.append(name).append('=');
+                appendKeyValue(key, row.get(name));
+            }
+        }
+        return key.toString();
+    }
+
+    private static void appendKeyValue(StringBuilder key, String value) {
+        key.append(value != null ? value : "\u0001").append('\u0000');
+    }
+
+    // The table holds a row, or a list of rows for duplicated keys
+    @SuppressWarnings("unchecked")
+    private static void build(Map<String, Object> table, String key, WMIRow row) {
+        Object previous = table.put(key, row);
+        if (previous instanceof WMIRow) {
+            List<WMIRow> rows = new ArrayList<>(2);
+            rows.add((WMIRow) previous);
+            rows.add(row);
+            table.put(key, rows);
+        } else if (previous != null) {
+            ((List<WMIRow>) previous).add(row);
+            table.put(key, previous);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<WMIRow> rowsOf(Object rows) {
+        return rows instanceof WMIRow ? Collections.singletonList((WMIRow) rows) : (List<WMIRow>) rows;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void probe(String wmiClass, Map<String, Object> table, Iterable<WMIResultSet> after,
+            List<String> keyProperties, Listener listener, Counts counts) {
+        for (WMIResultSet batch : after) {
+            for (WMIRow row : batch) {
+                String key = key(row, keyProperties);
+                Object match = table.get(key);
+                WMIRow before;
+                if (match == null) {
+                    counts.added++;
+                    listener.added(wmiClass, row);
+                    continue;
+                } else if (match instanceof WMIRow) {
+                    before = (WMIRow) match;
+                    table.remove(key);
+                } else {
+                    List<WMIRow> rows = (List<WMIRow>) match;
+                    before = rows.remove(0);
+                    if (rows.isEmpty()) {
+                        table.remove(key);
+                    }
+                }
+                List<String> changed = changedProperties(before, row);
+                if (!changed.isEmpty()) {
+                    counts.changed++;
+                    listener.changed(wmiClass, before, row, changed);
+                }
+            }
+        }
+        for (Object rows : table.values()) {
+            for (WMIRow row : rowsOf(rows)) {
+                counts.removed++;
+                listener.removed(wmiClass, row);
+            }
+        }
+    }
+
+    private static List<String> changedProperties(WMIRow before, WMIRow after) {
+        List<String> changed = new ArrayList<>();
+        for (String name : before.getSchema().getNames()) {
+            if (!equal(before.get(name), after.get(name))) {
+                changed.add(name);
+            }
+        }
+        for (String name : after.getSchema().getNames()) {
+            if (before.getSchema().indexOf(name) < 0 && after.get(name) != null) {
+                changed.add(name);
+            }
+        }
+        return changed;
+    }
+
+    private static boolean equal(String first, String second) {
+        return first == null ? second == null : first.equals(second);
+    }
+
+    /**
+     * Number of differences found by a comparison
+     */
+    public static final class Counts {
+
+        private long added;
+        private long removed;
+        private long changed;
+
+        public long getAdded() {
+            return added;
+        }
+
+        public long getRemoved() {
+            return removed;
+        }
+
+        public long getChanged() {
+            return changed;
+        }
+
+        @Override
+        public String toString() {
+            return "added=" + added + ", removed=" + removed + ", changed=" + changed;
+        }
+    }
+
+    /**
+     * Both snapshots split by some bits of the key hash into columnar
+     * temporary files
+     */
+    private final class Spill {
+
+        private final String wmiClass;
+        private final int shift;
+        private final Partition[] before = new Partition[PARTITIONS];
+        private final Partition[] after = new Partition[PARTITIONS];
+        private final File[] beforeFiles = new File[PARTITIONS];
+        private final File[] afterFiles = new File[PARTITIONS];
+        // Readers of the partitions, closed with the spill even if the listener failed while reading
+        private final List<WMIColumnarReader> readers = new ArrayList<>();
+
+        private Spill(String wmiClass, int depth) {
+            this.wmiClass = wmiClass;
+            this.shift = depth * PARTITION_BITS;
+            try {
+                for (int i = 0; i < PARTITIONS; i++) {
+                    beforeFiles[i] = File.createTempFile("wmi4java-diff", ".wmic", tempDirectory);
+                    before[i] = new Partition(beforeFiles[i]);
+                    afterFiles[i] = File.createTempFile("wmi4java-diff", ".wmic", tempDirectory);
+                    after[i] = new Partition(afterFiles[i]);
+                }
+            } catch (IOException ex) {
+                delete();
+                throw new WMIException("Cannot create diff partition", ex);
+            }
+        }
+
+        private void add(Partition[] side, WMIRow row, String key) {
+            int hash = key.hashCode() * 0x9E3779B9;
+            side[(hash >>> shift) & (PARTITIONS - 1)].add(row);
+        }
+
+        private void finish() {
+            for (int i = 0; i < PARTITIONS; i++) {
+                before[i].close();
+                after[i].close();
+            }
+        }
+
+        // Blocks are read one at a time, so a partition is never fully in memory
+        private Iterable<WMIResultSet> read(final File file) {
+            return new Iterable<WMIResultSet>() {
+                @Override
+                public Iterator<WMIResultSet> iterator() {
+                    final WMIColumnarReader reader;
+                    try {
+                        reader = new WMIColumnarReader(new FileInputStream(file));
+                    } catch (IOException ex) {
+                        throw new WMIException("Cannot read diff partition", ex);
+                    }
+                    readers.add(reader);
+                    return new Iterator<WMIResultSet>() {
+                        private WMIColumnarReader.Block next = advance();
+
+                        private WMIColumnarReader.Block advance() {
+                            WMIColumnarReader.Block block = reader.next();
+                            if (block == null) {
+                                reader.close();
+                            }
+                            return block;
+                        }
+
+                        @Override
+                        public boolean hasNext() {
+                            return next != null;
+                        }
+
+                        @Override
+                        public WMIResultSet next() {
+                            if (next == null) {
+                                throw new NoSuchElementException();
+                            }
+                            WMIResultSet batch = next.getResultSet();
+                            next = advance();
+                            return batch;
+                        }
+                    };
+                }
+            };
+        }
+
+        private void delete() {
+            for (WMIColumnarReader reader : readers) {
+                try {
+                    reader.close();
+                } catch (WMIException ex) {
+                    // Only releasing the file
+                }
+            }
+            readers.clear();
+            for (int i = 0; i < PARTITIONS; i++) {
+                closeQuietly(before[i]);
+                closeQuietly(after[i]);
+                deleteQuietly(beforeFiles[i]);
+                deleteQuietly(afterFiles[i]);
+            }
+        }
+
+        private void closeQuietly(Partition partition) {
+            if (partition != null) {
+                try {
+                    partition.close();
+                } catch (WMIException ex) {
+                    // Only releasing the file
+                }
+            }
+        }
+
+        private void deleteQuietly(File file) {
+            if (file != null && file.exists() && !file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+
+        private final class Partition {
+
+            private final WMIColumnarWriter writer;
+            private final List<Map<String, String>> pending = new ArrayList<>(SPILL_BATCH);
+            private boolean closed = false;
+
+            private Partition(File file) throws IOException {
+                this.writer = new WMIColumnarWriter(new FileOutputStream(file));
+            }
+
+            private void add(WMIRow row) {
+                pending.add(row.asMap());
+                if (pending.size() == SPILL_BATCH) {
+                    flush();
+                }
+            }
+
+            private void flush() {
+                if (!pending.isEmpty()) {
+                    writer.write("", wmiClass, pending);
+                    pending.clear();
+                }
+            }
+
+            private void close() {
+                if (!closed) {
+                    closed = true;
+                    try {
+                        flush();
+                    } finally {
+                        writer.close();
+                    }
+                }
+            }
+        }
+    }
+}
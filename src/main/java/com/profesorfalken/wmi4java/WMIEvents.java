@@ -0,0 +1,118 @@
+/*
+ * Copyright 2016 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.wmi4java;
+
+/**
+ * Reports queries, sessions and processes as Java Flight Recorder events.<p>
+ *
+ * The events are defined in <code>WMIFlightRecorder</code>, which is only
+ * built with JDK 11 or later (src/main/java11) and only loaded if the running
+ * JVM provides JFR (jdk.jfr). Otherwise every report is a no-op. When JFR is available but an event is not enabled in the running
+ * recordings, a report only costs the check of its state.
+ *
+ * @author Javier Garcia Alonso
+ */
+final class WMIEvents {
+
+    private static final Recorder RECORDER = loadRecorder();
+
+    private WMIEvents() {
+    }
+
+    /**
+     * Receives the reports. Implemented by <code>WMIFlightRecorder</code>
+     */
+    interface Recorder {
+
+        Object beginQuery();
+
+        void endQuery(Object event, WMIEngine engine, WMIQuery query, long rows, long bytes, Throwable error);
+
+        void sessionOpened(WMIEngine engine, String host);
+
+        void sessionClosed(WMIEngine engine, String host);
+
+        void sessionReused(WMIEngine engine, String host);
+
+        void processSpawned(String executable);
+
+        void processTimedOut(String executable, long timeoutMillis);
+    }
+
+    private static Recorder loadRecorder() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            // Loaded by name, so its references to jdk.jfr are never resolved on a JVM without JFR
+            return (Recorder) Class.forName(WMIEvents.class.getPackage().getName() + ".WMIFlightRecorder")
+                    .getDeclaredConstructor().newInstance();
+        } catch (Exception | LinkageError ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Starts timing a query
+     *
+     * @return the event to end, or null if query events are not recorded
+     */
+    static Object beginQuery() {
+        return RECORDER != null ? RECORDER.beginQuery() : null;
+    }
+
+    /**
+     * Ends the event of a query
+     *
+     * @param event event returned by {@link #beginQuery()}. It can be null
+     * @param rows objects returned, or -1 if the output was not parsed
+     * @param bytes size of the output of the engine
+     * @param error error of the query. It can be null
+     */
+    static void endQuery(Object event, WMIEngine engine, WMIQuery query, long rows, long bytes, Throwable error) {
+        if (event != null) {
+            RECORDER.endQuery(event, engine, query, rows, bytes, error);
+        }
+    }
+
+    static void sessionOpened(WMIEngine engine, String host) {
+        if (RECORDER != null) {
+            RECORDER.sessionOpened(engine, host);
+        }
+    }
+
+    static void sessionClosed(WMIEngine engine, String host) {
+        if (RECORDER != null) {
+            RECORDER.sessionClosed(engine, host);
+        }
+    }
+
+    static void sessionReused(WMIEngine engine, String host) {
+        if (RECORDER != null) {
+            RECORDER.sessionReused(engine, host);
+        }
+    }
+
+    static void processSpawned(String executable) {
+        if (RECORDER != null) {
+            RECORDER.processSpawned(executable);
+        }
+    }
+
+    static void processTimedOut(String executable, long timeoutMillis) {
+        if (RECORDER != null) {
+            RECORDER.processTimedOut(executable, timeoutMillis);
+        }
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright 2016 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.wmi4java;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Inner join of the objects of several classes.<p>
+ *
+ * Each class gets an alias and is joined to one of the previous ones on a key.
+ * Every join builds a hash index on its smaller side and streams the larger
+ * side through it, so no nested loop over the objects is needed. All the
+ * queries are sent to the engine in a single round trip:
+ *
+ * <pre>
+ * List&lt;WMIJoin.Row&gt; rows = new WMIJoin()
+ *         .from("process", wmi4java.compile(WMIClass.WIN32_PROCESS))
+ *         .join("service", wmi4java.compile(WMIClass.WIN32_SERVICE), "process", "ProcessId", "ProcessId")
+ *         .execute(connection);
+ * for (WMIJoin.Row row : rows) {
+ *     System.out.println(row.get("service", "Name") + " runs in " + row.get("process", "CommandLine"));
+ * }
+ * </pre>
+ *
+ * Associations are joined with {@link #reference(String)}, that takes the key
+ * out of the object path held by a reference property:
+ *
+ * <pre>
+ * new WMIJoin()
+ *         .from("disk", wmi4java.compile("Win32_DiskDrive"))
+ *         .join("link", wmi4java.compile("Win32_DiskDriveToDiskPartition"),
+ *                 "disk", WMIJoin.property("DeviceID"), WMIJoin.reference("Antecedent"))
+ *         .join("partition", wmi4java.compile("Win32_DiskPartition"),
+ *                 "link", WMIJoin.reference("Dependent"), WMIJoin.property("DeviceID"));
+ * </pre>
+ *
+ * @author Javier Garcia Alonso
+ */
+public final class WMIJoin {
+
+    private final List<String> aliases = new ArrayList<>();
+    private final List<WMIQuery> queries = new ArrayList<>();
+    // For each joined class (all but the first one)
+    private final List<Integer> leftIndexes = new ArrayList<>();
+    private final List<Key> leftKeys = new ArrayList<>();
+    private final List<Key> rightKeys = new ArrayList<>();
+
+    /**
+     * Extracts the join key of an object
+     */
+    public interface Key {
+
+        /**
+         * @param row the object
+         * @return the key or null if the object never matches
+         */
+        String of(WMIRow row);
+    }
+
+    /**
+     * Key made of the value of a property
+     *
+     * @param property the property
+     * @return the key
+     */
+    public static Key property(final String property) {
+        return new Key() {
+            @Override
+            public String of(WMIRow row) {
+                return row.get(property);
+            }
+        };
+    }
+
+    /**
+     * Key made of the key value in the object path held by a reference
+     * property. For <code>\\HOST\root\cimv2:Win32_DiskDrive.DeviceID="\\\\.\\PHYSICALDRIVE0"</code>
+     * the key is <code>\\.\PHYSICALDRIVE0</code>. With several key properties,
+     * the key is everything after the class name.
+     *
+     * @param property the reference property
+     * @return the key
+     */
+    public static Key reference(final String property) {
+        return new Key() {
+            @Override
+            public String of(WMIRow row) {
+                return referencedKey(row.get(property));
+            }
+        };
+    }
+
+    static String referencedKey(String objectPath) {
+        if (objectPath == null) {
+            return null;
+        }
+        int equals = objectPath.indexOf('=');
+        int dot = equals < 0 ? -1 : objectPath.lastIndexOf('.', equals);
+        if (dot < 0) {
+            return null;
+        }
+        String keys = objectPath.substring(dot + 1);
+        String value = objectPath.substring(equals + 1);
+        if (!value.startsWith("\"")) {
+            return value.indexOf(',') < 0 ? value : keys;
+        }
+        StringBuilder unescaped = new StringBuilder(value.length());
+        int i = 1;
+        for (; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                unescaped.append(value.charAt(++i));
+            } else if (c == '"') {
+                break;
+            } else {
+                unescaped.append(c);
+            }
+        }
+        // Another key property follows the closing quote
+        return i < value.length() - 1 ? keys : unescaped.toString();
+    }
+
+    /**
+     * Sets the first class of the join
+     *
+     * @param alias name of the class in the joined rows
+     * @param query the compiled query of the class
+     * @return the join
+     */
+    public WMIJoin from(String alias, WMIQuery query) {
+        if (!aliases.isEmpty()) {
+            throw new WMIException("The first class of the join is already set");
+        }
+        aliases.add(alias);
+        queries.add(query);
+        return this;
+    }
+
+    /**
+     * Joins a class on the value of a property
+     *
+     * @param alias name of the class in the joined rows
+     * @param query the compiled query of the class
+     * @param leftAlias alias of a previous class
+     * @param leftProperty property of the previous class
+     * @param rightProperty property of the new class
+     * @return the join
+     */
+    public WMIJoin join(String alias, WMIQuery query, String leftAlias, String leftProperty,
+            String rightProperty) {
+        return join(alias, query, leftAlias, property(leftProperty), property(rightProperty));
+    }
+
+    /**
+     * Joins a class on the given keys
+     *
+     * @param alias name of the class in the joined rows
+     * @param query the compiled query of the class
+     * @param leftAlias alias of a previous class
+     * @param leftKey key of the previous class
+     * @param rightKey key of the new class
+     * @return the join
+     */
+    public WMIJoin join(String alias, WMIQuery query, String leftAlias, Key leftKey, Key rightKey) {
+        if (aliases.isEmpty()) {
+            throw new WMIException("The first class of the join must be set with from()");
+        }
+        if (aliases.contains(alias)) {
+            throw new WMIException("Duplicated join alias: " + alias);
+        }
+        int leftIndex = aliases.indexOf(leftAlias);
+        if (leftIndex < 0) {
+            throw new WMIException("Unknown join alias: " + leftAlias);
+        }
+        aliases.add(alias);
+        queries.add(query);
+        leftIndexes.add(leftIndex);
+        leftKeys.add(leftKey);
+        rightKeys.add(rightKey);
+        return this;
+    }
+
+    /**
+     * Queries all the classes in one round trip and joins them
+     *
+     * @param connection the connection
+     * @return the joined rows
+     */
+    public List<Row> execute(WMI4Java.WMIConnection connection) throws WMIException {
+        return join(connection.executeBatch(queries));
+    }
+
+    /**
+     * Joins objects already queried
+     *
+     * @param results the objects of each class by alias
+     * @return the joined rows
+     */
+    public List<Row> apply(Map<String, WMIResultSet> results) throws WMIException {
+        List<WMIResultSet> ordered = new ArrayList<>(aliases.size());
+        for (String alias : aliases) {
+            WMIResultSet result = results.get(alias);
+            if (result == null) {
+                throw new WMIException("No objects for join alias: " + alias);
+            }
+            ordered.add(result);
+        }
+        return join(ordered);
+    }
+
+    private List<Row> join(List<WMIResultSet> results) {
+        if (aliases.isEmpty()) {
+            throw new WMIException("The join has no class");
+        }
+        Map<String, Integer> positions = new LinkedHashMap<>();
+        for (int i = 0; i < aliases.size(); i++) {
+            positions.put(aliases.get(i), i);
+        }
+
+        List<WMIRow[]> tuples = new ArrayList<>(results.get(0).size());
+        for (WMIRow row : results.get(0)) {
+            WMIRow[] tuple = new WMIRow[aliases.size()];
+            tuple[0] = row;
+            tuples.add(tuple);
+        }
+        for (int step = 1; step < aliases.size(); step++) {
+            tuples = joinStep(tuples, results.get(step), step, leftIndexes.get(step - 1),
+                    leftKeys.get(step - 1), rightKeys.get(step - 1));
+        }
+
+        List<Row> rows = new ArrayList<>(tuples.size());
+        for (WMIRow[] tuple : tuples) {
+            rows.add(new Row(positions, tuple));
+        }
+        return rows;
+    }
+
+    private static List<WMIRow[]> joinStep(List<WMIRow[]> tuples, WMIResultSet right, int position,
+            int leftIndex, Key leftKey, Key rightKey) {
+        List<WMIRow[]> joined = new ArrayList<>();
+        if (right.size() <= tuples.size()) {
+            Map<String, List<WMIRow>> index = new HashMap<>();
+            for (WMIRow row : right) {
+                addToIndex(index, rightKey.of(row), row);
+            }
+            for (WMIRow[] tuple : tuples) {
+                List<WMIRow> matches = index.get(leftKey.of(tuple[leftIndex]));
+                if (matches != null) {
+                    for (WMIRow match : matches) {
+                        WMIRow[] extended = tuple.clone();
+                        extended[position] = match;
+                        joined.add(extended);
+                    }
+                }
+            }
+        } else {
+            Map<String, List<WMIRow[]>> index = new HashMap<>();
+            for (WMIRow[] tuple : tuples) {
+                addToIndex(index, leftKey.of(tuple[leftIndex]), tuple);
+            }
+            for (WMIRow row : right) {
+                List<WMIRow[]> matches = index.get(rightKey.of(row));
+                if (matches != null) {
+                    for (WMIRow[] match : matches) {
+                        WMIRow[] extended = match.clone();
+                        extended[position] = row;
+                        joined.add(extended);
+                    }
+                }
+            }
+        }
+        return joined;
+    }
+
+    private static <T> void addToIndex(Map<String, List<T>> index, String key, T value) {
+        if (key == null) {
+            return;
+        }
+        List<T> values = index.get(key);
+        if (values == null) {
+            values = new ArrayList<>(1);
+            index.put(key, values);
+        }
+        values.add(value);
+    }
+
+    /**
+     * One object of each joined class
+     */
+    public static final class Row {
+
+        private final Map<String, Integer> positions;
+        private final WMIRow[] objects;
+
+        private Row(Map<String, Integer> positions, WMIRow[] objects) {
+            this.positions = positions;
+            this.objects = objects;
+        }
+
+        /**
+         * Object of a class
+         *
+         * @param alias alias of the class
+         * @return the object
+         */
+        public WMIRow get(String alias) {
+            Integer position = positions.get(alias);
+            if (position == null) {
+                throw new WMIException("Unknown join alias: " + alias);
+            }
+            return objects[position];
+        }
+
+        /**
+         * Property of the object of a class
+         *
+         * @param alias alias of the class
+         * @param property the property
+         * @return the value or null if the property is missing
+         */
+        public String get(String alias, String property) {
+            return get(alias).get(property);
+        }
+
+        /**
+         * Copies all the properties, named <code>alias.property</code>
+         *
+         * @return a new map
+         */
+        public Map<String, String> toMap() {
+            Map<String, String> map = new LinkedHashMap<>();
+            for (Map.Entry<String, Integer> alias : positions.entrySet()) {
+                for (Map.Entry<String, String> property : objects[alias.getValue()].asMap().entrySet()) {
+                    map.put(alias.getKey() + "." + property.getKey(), property.getValue());
+                }
+            }
+            return Collections.unmodifiableMap(map);
+        }
+    }
+}
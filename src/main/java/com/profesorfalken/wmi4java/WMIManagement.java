@@ -0,0 +1,518 @@
+/*
+ * Copyright 2016 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.wmi4java;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Publishes the state of the library as JMX MBeans, so it can be watched
+ * and tuned from any JMX console while the application runs.<p>
+ *
+ * {@link #register()} publishes the library-wide beans: the engine processes
+ * and the queries of each engine. Connection pools, result caches and
+ * single-flight groups are published one by one, with a name chosen by the
+ * application:
+ *
+ * <pre>
+ * WMIManagement.register();
+ * WMIConnectionPool pool = new WMIConnectionPool(WMI4Java.get(), 2, 100);
+ * WMIManagement.register(pool, "inventory");
+ * </pre>
+ *
+ * Beans are registered in the platform MBean server under the domain
+ * {@value #DOMAIN}, for instance
+ * {@code com.profesorfalken.wmi4java:type=ConnectionPool,name=inventory}.
+ * The bean of a pool is removed when the pool is closed. Published objects
+ * are only weakly referenced by their beans: a bean whose object was
+ * garbage collected removes itself the next time it is used.
+ *
+ * @author Javier Garcia Alonso
+ */
+public final class WMIManagement {
+
+    public static final String DOMAIN = "com.profesorfalken.wmi4java";
+
+    private WMIManagement() {
+    }
+
+    /**
+     * Child processes launched by the engines
+     */
+    public interface ProcessesMXBean {
+
+        int getLiveProcessCount();
+
+        long getSpawnedProcessCount();
+
+        long getTimedOutProcessCount();
+
+        /**
+         * @return number of open jPowerShell sessions, each one running a
+         *         powershell.exe process not counted as a live process
+         */
+        int getPowerShellSessionCount();
+    }
+
+    /**
+     * Queries run by the connections of one engine. Latencies are in
+     * milliseconds
+     */
+    public interface EngineMXBean {
+
+        long getQueryCount();
+
+        long getFailedCount();
+
+        long getTimedOutCount();
+
+        long getCancelledCount();
+
+        /**
+         * @return average number of queries per second over the last minute
+         */
+        double getQueriesPerSecond();
+
+        double getLatencyP50();
+
+        double getLatencyP90();
+
+        double getLatencyP99();
+
+        double getMaxLatency();
+
+        void resetStatistics();
+    }
+
+    /**
+     * Sessions and queue of a {@link WMIConnectionPool}
+     */
+    public interface ConnectionPoolMXBean {
+
+        int getSessionCount();
+
+        void setSessionCount(int sessions);
+
+        int getActiveSessionCount();
+
+        int getOpenSessionCount();
+
+        int getIdleSessionCount();
+
+        int getQueueDepth();
+
+        int getQueueCapacity();
+
+        long getCompletedCount();
+
+        long getFailedCount();
+
+        /**
+         * @return the number of queued requests dropped
+         */
+        int drain();
+
+        void resetSessions();
+    }
+
+    /**
+     * Entries and counters of a {@link WMIResultCache}
+     */
+    public interface ResultCacheMXBean {
+
+        int getSize();
+
+        long getWeight();
+
+        long getMaxWeight();
+
+        long getHitCount();
+
+        long getStaleHitCount();
+
+        long getMissCount();
+
+        long getEvictionCount();
+
+        long getRefreshFailureCount();
+
+        void invalidateAll();
+    }
+
+    /**
+     * Queries shared by a {@link WMISingleFlight}
+     */
+    public interface SingleFlightMXBean {
+
+        int getInFlightCount();
+
+        long getExecutedCount();
+
+        long getSharedCount();
+    }
+
+    /**
+     * Publishes the beans of the engine processes and of the queries of each
+     * engine. Does nothing if they are already published
+     */
+    public static synchronized void register() {
+        if (ManagementFactory.getPlatformMBeanServer().isRegistered(name("Processes", null))) {
+            return;
+        }
+        register(name("Processes", null), new StandardMBean(new Processes(), ProcessesMXBean.class, true));
+        for (WMIEngine engine : WMIEngine.values()) {
+            register(name("Engine", engine.name()), new StandardMBean(
+                    new Engine(WMIQueryStatistics.of(engine)), EngineMXBean.class, true));
+        }
+    }
+
+    /**
+     * Publishes the bean of a connection pool
+     *
+     * @param pool the pool
+     * @param name name of the bean, unique among the pools
+     * @return the name the bean is registered with
+     * @throws WMIException if the name is not valid or already used
+     */
+    public static ObjectName register(WMIConnectionPool pool, String name) {
+        ObjectName objectName = name("ConnectionPool", name);
+        register(objectName, new StandardMBean(new ConnectionPool(pool, objectName), ConnectionPoolMXBean.class,
+                true));
+        pool.registered(objectName);
+        return objectName;
+    }
+
+    /**
+     * Publishes the bean of a result cache
+     *
+     * @param cache the cache
+     * @param name name of the bean, unique among the caches
+     * @return the name the bean is registered with
+     * @throws WMIException if the name is not valid or already used
+     */
+    public static ObjectName register(WMIResultCache cache, String name) {
+        ObjectName objectName = name("ResultCache", name);
+        register(objectName, new StandardMBean(new ResultCache(cache, objectName), ResultCacheMXBean.class, true));
+        return objectName;
+    }
+
+    /**
+     * Publishes the bean of a single-flight group
+     *
+     * @param singleFlight the single-flight group
+     * @param name name of the bean, unique among the single-flight groups
+     * @return the name the bean is registered with
+     * @throws WMIException if the name is not valid or already used
+     */
+    public static ObjectName register(WMISingleFlight singleFlight, String name) {
+        ObjectName objectName = name("SingleFlight", name);
+        register(objectName, new StandardMBean(new SingleFlight(singleFlight, objectName),
+                SingleFlightMXBean.class, true));
+        return objectName;
+    }
+
+    /**
+     * Removes a published bean. Does nothing if it is not published
+     *
+     * @param objectName name returned when the bean was registered
+     */
+    public static void unregister(ObjectName objectName) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException ex) {
+            throw new WMIException(ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Removes all the beans published by the library
+     */
+    public static synchronized void unregisterAll() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            for (ObjectName objectName : server.queryNames(new ObjectName(DOMAIN + ":*"), null)) {
+                unregister(objectName);
+            }
+        } catch (JMException ex) {
+            throw new WMIException(ex.getMessage(), ex);
+        }
+    }
+
+    static ObjectName name(String type, String name) {
+        try {
+            return new ObjectName(DOMAIN + ":type=" + type + (name != null ? ",name=" + name : ""));
+        } catch (JMException ex) {
+            throw new WMIException(ex.getMessage(), ex);
+        }
+    }
+
+    private static void register(ObjectName objectName, StandardMBean bean) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(bean, objectName);
+        } catch (JMException ex) {
+            throw new WMIException(ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Bean of an object created by the application. The object is only
+     * weakly referenced, so publishing it does not keep it alive
+     */
+    private abstract static class Published<T> {
+
+        private final WeakReference<T> target;
+        private final ObjectName objectName;
+
+        Published(T target, ObjectName objectName) {
+            this.target = new WeakReference<>(target);
+            this.objectName = objectName;
+        }
+
+        T target() {
+            T current = target.get();
+            if (current == null) {
+                unregister(objectName);
+                throw new IllegalStateException(objectName + " is not used anymore");
+            }
+            return current;
+        }
+    }
+
+    private static final class Processes implements ProcessesMXBean {
+
+        @Override
+        public int getLiveProcessCount() {
+            return WMIProcessSupervisor.getLiveProcessCount();
+        }
+
+        @Override
+        public long getSpawnedProcessCount() {
+            return WMIProcessSupervisor.getSpawnedProcessCount();
+        }
+
+        @Override
+        public long getTimedOutProcessCount() {
+            return WMIProcessSupervisor.getTimedOutProcessCount();
+        }
+
+        @Override
+        public int getPowerShellSessionCount() {
+            return WMIPowerShell.getOpenSessionCount();
+        }
+    }
+
+    private static final class Engine implements EngineMXBean {
+
+        private final WMIQueryStatistics statistics;
+
+        Engine(WMIQueryStatistics statistics) {
+            this.statistics = statistics;
+        }
+
+        @Override
+        public long getQueryCount() {
+            return statistics.getQueryCount();
+        }
+
+        @Override
+        public long getFailedCount() {
+            return statistics.getFailedCount();
+        }
+
+        @Override
+        public long getTimedOutCount() {
+            return statistics.getTimedOutCount();
+        }
+
+        @Override
+        public long getCancelledCount() {
+            return statistics.getCancelledCount();
+        }
+
+        @Override
+        public double getQueriesPerSecond() {
+            return statistics.getQueriesPerSecond();
+        }
+
+        @Override
+        public double getLatencyP50() {
+            return statistics.getLatencyPercentile(50);
+        }
+
+        @Override
+        public double getLatencyP90() {
+            return statistics.getLatencyPercentile(90);
+        }
+
+        @Override
+        public double getLatencyP99() {
+            return statistics.getLatencyPercentile(99);
+        }
+
+        @Override
+        public double getMaxLatency() {
+            return statistics.getMaxLatency();
+        }
+
+        @Override
+        public void resetStatistics() {
+            statistics.reset();
+        }
+    }
+
+    private static final class ConnectionPool extends Published<WMIConnectionPool> implements ConnectionPoolMXBean {
+
+        ConnectionPool(WMIConnectionPool pool, ObjectName objectName) {
+            super(pool, objectName);
+        }
+
+        @Override
+        public int getSessionCount() {
+            return target().getSessionCount();
+        }
+
+        @Override
+        public void setSessionCount(int sessions) {
+            target().setSessionCount(sessions);
+        }
+
+        @Override
+        public int getActiveSessionCount() {
+            return target().getActiveCount();
+        }
+
+        @Override
+        public int getOpenSessionCount() {
+            return target().getOpenSessionCount();
+        }
+
+        @Override
+        public int getIdleSessionCount() {
+            return target().getIdleSessionCount();
+        }
+
+        @Override
+        public int getQueueDepth() {
+            return target().getQueuedCount();
+        }
+
+        @Override
+        public int getQueueCapacity() {
+            return target().getQueueCapacity();
+        }
+
+        @Override
+        public long getCompletedCount() {
+            return target().getCompletedCount();
+        }
+
+        @Override
+        public long getFailedCount() {
+            return target().getFailedCount();
+        }
+
+        @Override
+        public int drain() {
+            return target().drain();
+        }
+
+        @Override
+        public void resetSessions() {
+            target().resetSessions();
+        }
+    }
+
+    private static final class ResultCache extends Published<WMIResultCache> implements ResultCacheMXBean {
+
+        ResultCache(WMIResultCache cache, ObjectName objectName) {
+            super(cache, objectName);
+        }
+
+        @Override
+        public int getSize() {
+            return target().size();
+        }
+
+        @Override
+        public long getWeight() {
+            return target().getWeight();
+        }
+
+        @Override
+        public long getMaxWeight() {
+            return target().getMaxWeight();
+        }
+
+        @Override
+        public long getHitCount() {
+            return target().getHitCount();
+        }
+
+        @Override
+        public long getStaleHitCount() {
+            return target().getStaleHitCount();
+        }
+
+        @Override
+        public long getMissCount() {
+            return target().getMissCount();
+        }
+
+        @Override
+        public long getEvictionCount() {
+            return target().getEvictionCount();
+        }
+
+        @Override
+        public long getRefreshFailureCount() {
+            return target().getRefreshFailureCount();
+        }
+
+        @Override
+        public void invalidateAll() {
+            target().invalidateAll();
+        }
+    }
+
+    private static final class SingleFlight extends Published<WMISingleFlight> implements SingleFlightMXBean {
+
+        SingleFlight(WMISingleFlight singleFlight, ObjectName objectName) {
+            super(singleFlight, objectName);
+        }
+
+        @Override
+        public int getInFlightCount() {
+            return target().getInFlightCount();
+        }
+
+        @Override
+        public long getExecutedCount() {
+            return target().getExecutedCount();
+        }
+
+        @Override
+        public long getSharedCount() {
+            return target().getSharedCount();
+        }
+    }
+}
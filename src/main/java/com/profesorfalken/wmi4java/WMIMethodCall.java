@@ -0,0 +1,145 @@
+/*
+ * Copyright 2016 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.wmi4java;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Invocation of a WMI method, like <code>StartService</code> on
+ * <code>Win32_Service.Name="Spooler"</code> or the static
+ * <code>Create</code> of <code>Win32_Process</code>.<p>
+ *
+ * The target is a class name for static methods or an instance path built
+ * with {@link WMIObjectPath}. Numbers and booleans are passed as they are,
+ * any other value as a string.
+ *
+ * @author Javier Garcia Alonso
+ */
+public final class WMIMethodCall {
+
+    // Written by the engines for methods that completed without return value
+    static final String VOID_PROPERTY = "Void";
+    static final String VOID_MARKER = "True";
+
+    private final String target;
+    private final String method;
+    private final Map<String, Object> arguments;
+
+    private WMIMethodCall(String target, String method, Map<String, ?> arguments) {
+        if (target == null || target.isEmpty()) {
+            throw new WMIException("Target class or instance path is required");
+        }
+        if (method == null || method.isEmpty()) {
+            throw new WMIException("Method name is required");
+        }
+        this.target = target;
+        this.method = method;
+        Map<String, Object> copy = new LinkedHashMap<>();
+        if (arguments != null) {
+            for (Map.Entry<String, ?> argument : arguments.entrySet()) {
+                if (argument.getValue() == null) {
+                    throw new WMIException("Argument values cannot be null: " + argument.getKey());
+                }
+                copy.put(argument.getKey(), argument.getValue());
+            }
+        }
+        this.arguments = Collections.unmodifiableMap(copy);
+    }
+
+    /**
+     * Invocation of a method without arguments
+     *
+     * @param target class name or instance path
+     * @param method the method name
+     * @return the invocation
+     */
+    public static WMIMethodCall of(String target, String method) {
+        return new WMIMethodCall(target, method, null);
+    }
+
+    /**
+     * Invocation of a method
+     *
+     * @param target class name or instance path
+     * @param method the method name
+     * @param arguments input parameters by name
+     * @return the invocation
+     */
+    public static WMIMethodCall of(String target, String method, Map<String, ?> arguments) {
+        return new WMIMethodCall(target, method, arguments);
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    /**
+     * Checks if the target is a class, for static methods
+     *
+     * @return true for a class name, false for an instance path
+     */
+    public boolean isStatic() {
+        return target.indexOf('=') < 0;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * Input parameters of the method
+     *
+     * @return unmodifiable map of arguments by name, in the given order
+     */
+    public Map<String, Object> getArguments() {
+        return arguments;
+    }
+
+    /**
+     * Reads the return code written in the output section of each invocation.
+     * Methods without return value write a void marker instead, and give 0.
+     * A section without any of them means the invocation did not complete
+     */
+    static List<Integer> returnCodes(List<WMIMethodCall> calls, List<WMIResultSet> sections) {
+        List<Integer> codes = new ArrayList<>(sections.size());
+        for (int i = 0; i < sections.size(); i++) {
+            WMIRow output = sections.get(i).isEmpty() ? null : sections.get(i).get(0);
+            if (output != null && VOID_MARKER.equalsIgnoreCase(output.get(VOID_PROPERTY))) {
+                codes.add(0);
+                continue;
+            }
+            String code = output == null ? null : output.get("ReturnValue");
+            if (code == null || code.isEmpty()) {
+                throw new WMIException("No return value for method " + calls.get(i));
+            }
+            try {
+                codes.add(Integer.valueOf(code));
+            } catch (NumberFormatException ex) {
+                throw new WMIException("Unexpected method return value: " + code, ex);
+            }
+        }
+        return codes;
+    }
+
+    @Override
+    public String toString() {
+        return target + "." + method + arguments;
+    }
+}
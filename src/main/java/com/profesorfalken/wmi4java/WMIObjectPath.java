@@ -0,0 +1,92 @@
+/*
+ * Copyright 2016 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.wmi4java;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Builds relative WMI object paths, like
+ * <code>Win32_Service.Name="Spooler"</code>, used to locate instances and to
+ * traverse their associations
+ *
+ * @author Javier Garcia Alonso
+ */
+public final class WMIObjectPath {
+
+    private WMIObjectPath() {
+    }
+
+    /**
+     * Renders the path of an instance of a class with a single key property
+     *
+     * @param wmiClass the class name
+     * @param keyProperty the key property
+     * @param keyValue value of the key property
+     * @return the relative object path
+     */
+    public static String of(String wmiClass, String keyProperty, Object keyValue) {
+        return of(wmiClass, Collections.singletonMap(keyProperty, keyValue));
+    }
+
+    /**
+     * Renders the path of an instance
+     *
+     * @param wmiClass the class name
+     * @param keys values of the key properties. Numbers and booleans are
+     *            written as they are, any other value as a quoted string
+     * @return the relative object path
+     */
+    public static String of(String wmiClass, Map<String, ?> keys) {
+        if (wmiClass == null || wmiClass.isEmpty()) {
+            throw new WMIException("WMI class name is required");
+        }
+        if (keys == null || keys.isEmpty()) {
+            throw new WMIException("Key properties are required to locate an instance of " + wmiClass);
+        }
+        StringBuilder path = new StringBuilder(wmiClass).append('.');
+        boolean first = true;
+        for (Map.Entry<String, ?> key : keys.entrySet()) {
+            if (!first) {
+                path.append(',');
+            }
+            first = false;
+            path.append(key.getKey()).append('=');
+            appendValue(path, key.getValue());
+        }
+        return path.toString();
+    }
+
+    private static void appendValue(StringBuilder path, Object value) {
+        if (value == null) {
+            throw new WMIException("Key values cannot be null");
+        }
+        if (value instanceof Number || value instanceof Boolean) {
+            path.append(value);
+            return;
+        }
+        String text = value.toString();
+        path.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                path.append('\\');
+            }
+            path.append(c);
+        }
+        path.append('"');
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2016 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.wmi4java;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Ordered set of property names shared by all the rows of a
+ * {@link WMIResultSet}.<p>
+ *
+ * Every property name is materialized only once per result, whatever the
+ * number of returned objects. Lookups can be done with a String or directly
+ * with a range of characters so the parser does not need to create a key for
+ * each parsed line.
+ *
+ * @author Javier Garcia Alonso
+ */
+public final class WMIObjectSchema {
+
+    private final List<String> names = new ArrayList<>();
+    private int[] table = new int[16];
+
+    WMIObjectSchema() {
+    }
+
+    /**
+     * Number of different properties found in the result
+     *
+     * @return number of properties
+     */
+    public int size() {
+        return names.size();
+    }
+
+    /**
+     * Name of the property at the given position
+     *
+     * @param index position of the property
+     * @return property name
+     */
+    public String getName(int index) {
+        return names.get(index);
+    }
+
+    /**
+     * All the property names, in the order they were found
+     *
+     * @return unmodifiable list of property names
+     */
+    public List<String> getNames() {
+        return Collections.unmodifiableList(names);
+    }
+
+    /**
+     * Position of a property in this schema
+     *
+     * @param name property name
+     * @return its position or -1 if the property is unknown
+     */
+    public int indexOf(String name) {
+        if (name == null) {
+            return -1;
+        }
+        int mask = table.length - 1;
+        for (int slot = hash(name) & mask;; slot = (slot + 1) & mask) {
+            int entry = table[slot];
+            if (entry == 0) {
+                return -1;
+            }
+            if (names.get(entry - 1).equals(name)) {
+                return entry - 1;
+            }
+        }
+    }
+
+    int indexOf(char[] buffer, int start, int end) {
+        int mask = table.length - 1;
+        for (int slot = hash(buffer, start, end) & mask;; slot = (slot + 1) & mask) {
+            int entry = table[slot];
+            if (entry == 0) {
+                return -1;
+            }
+            if (matches(names.get(entry - 1), buffer, start, end)) {
+                return entry - 1;
+            }
+        }
+    }
+
+    /**
+     * Returns the position of the property stored in the given range, adding
+     * it to the schema if it was not there yet.
+     */
+    int indexOfOrAdd(char[] buffer, int start, int end) {
+        int index = indexOf(buffer, start, end);
+        if (index < 0) {
+            index = add(new String(buffer, start, end - start));
+        }
+        return index;
+    }
+
+    int add(String name) {
+        int index = indexOf(name);
+        if (index >= 0) {
+            return index;
+        }
+        names.add(name);
+        if (names.size() * 2 > table.length) {
+            rehash(table.length * 2);
+        } else {
+            insert(table, names.size());
+        }
+        return names.size() - 1;
+    }
+
+    private void rehash(int capacity) {
+        int[] newTable = new int[capacity];
+        for (int i = 1; i <= names.size(); i++) {
+            insert(newTable, i);
+        }
+        table = newTable;
+    }
+
+    private void insert(int[] target, int entry) {
+        int mask = target.length - 1;
+        int slot = hash(names.get(entry - 1)) & mask;
+        while (target[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        target[slot] = entry;
+    }
+
+    private static boolean matches(String name, char[] buffer, int start, int end) {
+        if (name.length() != end - start) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != buffer[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Same function as String.hashCode() so both lookups end in the same slot
+    private static int hash(String name) {
+        return spread(name.hashCode());
+    }
+
+    private static int hash(char[] buffer, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + buffer[i];
+        }
+        return spread(h);
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    @Override
+    public String toString() {
+        return names.toString();
+    }
+}
@@ -0,0 +1,458 @@
+/*
+ * Copyright 2016 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.wmi4java;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Parses the output of the engines into a {@link WMIResultSet}.<p>
+ *
+ * Queries write framed records, one line per frame:
+ * <pre>
+ * #R&lt;field count&gt;
+ * #F&lt;name length&gt;,&lt;value length&gt;:&lt;name&gt;&lt;value&gt;
+ * #E
+ * </pre>
+ * Backslashes and line breaks in values are escaped as \\, \r and \n, so a
+ * value never spans lines and the lengths delimit name and value exactly.
+ * <p>
+ *
+ * Any other output uses the "Property : Value" format: objects are separated
+ * by an empty line and, for each line, the property is the text before the
+ * first ':' and the value the text after it, both trimmed.<p>
+ *
+ * No String is created while parsing apart from the property names, that are
+ * created only once.<p>
+ *
+ * The output can also be consumed from a {@link Reader}: lines are parsed as
+ * soon as they arrive, so parsing overlaps with the engine still writing.
+ *
+ * @author Javier Garcia Alonso
+ */
+final class WMIOutputParser {
+
+    // Starts the output of each query when several run in one round trip
+    static final String SECTION_MARKER = "WMI4JAVA_SECTION";
+
+    private static final int INITIAL_STRIDE = 8;
+    // Far above the properties of any class, it bounds the row allocated for a record frame
+    static final int MAX_FRAME_FIELDS = 4096;
+    private static final int READ_CHUNK = 8192;
+
+    private final WMIObjectSchema schema = new WMIObjectSchema();
+    // When set, values are handed to it instead of being kept
+    private final RecordHandler handler;
+    private char[] buffer;
+    private int[] offsets = new int[0];
+    private int stride = 0;
+    private int rows = 0;
+    private boolean inRecord = false;
+    // Fields still announced by the header of the current framed record, or -1
+    private int pendingFields = -1;
+
+    private WMIOutputParser(char[] buffer) {
+        this(buffer, null);
+    }
+
+    private WMIOutputParser(char[] buffer, RecordHandler handler) {
+        this.buffer = buffer;
+        this.handler = handler;
+    }
+
+    /**
+     * Receives the parsed values as they are found, without building any row
+     */
+    interface RecordHandler {
+
+        void startRecord();
+
+        /**
+         * A value of the current record. The characters are only valid during
+         * the call
+         *
+         * @param schema names of the properties found so far
+         * @param index index of the property in the schema
+         * @param buffer the characters of the output
+         * @param start start of the value
+         * @param end end of the value (exclusive)
+         */
+        void property(WMIObjectSchema schema, int index, char[] buffer, int start, int end);
+
+        void endRecord();
+    }
+
+    /**
+     * Parses the raw output of an engine
+     *
+     * @param rawData output of the engine
+     * @return the parsed objects
+     */
+    static WMIResultSet parse(String rawData) {
+        WMIOutputParser parser = new WMIOutputParser(rawData.toCharArray());
+        parser.parseLines(0, parser.buffer.length);
+        return parser.build();
+    }
+
+    /**
+     * Parses the raw output of an engine, handing each value to the handler
+     *
+     * @param rawData output of the engine
+     * @param handler receives the values
+     */
+    static void parse(String rawData, RecordHandler handler) {
+        WMIOutputParser parser = new WMIOutputParser(rawData.toCharArray(), handler);
+        parser.parseLines(0, parser.buffer.length);
+        parser.endInput();
+    }
+
+    /**
+     * Parses the output of an engine while it is being read, handing each
+     * value to the handler. Only the line being read is kept in memory
+     *
+     * @param output stream with the output of the engine
+     * @param handler receives the values
+     * @throws IOException if the output cannot be read
+     */
+    static void parse(Reader output, RecordHandler handler) throws IOException {
+        WMIOutputParser parser = new WMIOutputParser(new char[READ_CHUNK * 2], handler);
+        int length = 0;
+        int read;
+        while (true) {
+            if (parser.buffer.length - length < READ_CHUNK) {
+                parser.buffer = Arrays.copyOf(parser.buffer, parser.buffer.length * 2);
+            }
+            read = output.read(parser.buffer, length, parser.buffer.length - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+            int lineStart = parser.parseCompleteLines(0, length);
+            // Parsed lines are not needed anymore: keep only the partial one
+            System.arraycopy(parser.buffer, lineStart, parser.buffer, 0, length - lineStart);
+            length -= lineStart;
+        }
+        parser.parseLines(0, length);
+        parser.endInput();
+    }
+
+    private void endInput() {
+        endRecord();
+    }
+
+    /**
+     * Parses the output of several queries run in one round trip. The output
+     * of each query starts with a line holding the marker followed by the
+     * index of the query
+     *
+     * @param rawData output of the engine
+     * @param marker text starting the marker lines
+     * @param sections number of queries
+     * @return the parsed objects of each query. Empty for queries without
+     *         output
+     */
+    static List<WMIResultSet> parseSections(String rawData, String marker, int sections) {
+        int[] starts = new int[sections];
+        int[] ends = new int[sections];
+        int current = -1;
+        int lineStart = 0;
+        while (lineStart <= rawData.length()) {
+            int lineEnd = rawData.indexOf('\n', lineStart);
+            if (lineEnd < 0) {
+                lineEnd = rawData.length();
+            }
+            String line = rawData.substring(lineStart, lineEnd).trim();
+            if (line.startsWith(marker)) {
+                int section = Integer.parseInt(line.substring(marker.length()).trim());
+                if (current >= 0) {
+                    ends[current] = lineStart;
+                }
+                current = section;
+                starts[current] = lineEnd;
+                ends[current] = lineEnd;
+            } else if (current >= 0) {
+                ends[current] = lineEnd;
+            }
+            lineStart = lineEnd + 1;
+        }
+
+        List<WMIResultSet> results = new ArrayList<>(sections);
+        for (int i = 0; i < sections; i++) {
+            results.add(parse(rawData.substring(starts[i], ends[i])));
+        }
+        return results;
+    }
+
+    /**
+     * Parses the output of an engine while it is being read
+     *
+     * @param output stream with the output of the engine
+     * @return the parsed objects
+     * @throws IOException if the output cannot be read
+     */
+    static WMIResultSet parse(Reader output) throws IOException {
+        WMIOutputParser parser = new WMIOutputParser(new char[READ_CHUNK * 2]);
+        int length = 0;
+        int lineStart = 0;
+        int read;
+        while (true) {
+            if (parser.buffer.length - length < READ_CHUNK) {
+                parser.buffer = Arrays.copyOf(parser.buffer, parser.buffer.length * 2);
+            }
+            read = output.read(parser.buffer, length, parser.buffer.length - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+            lineStart = parser.parseCompleteLines(lineStart, length);
+        }
+        parser.parseLines(lineStart, length);
+        // Give back the spare capacity when it is significant
+        if (parser.buffer.length - length > length / 4) {
+            parser.buffer = Arrays.copyOf(parser.buffer, length);
+        }
+        return parser.build();
+    }
+
+    private void parseLines(int from, int to) {
+        int lineStart = parseCompleteLines(from, to);
+        if (lineStart < to) {
+            parseLine(lineStart, to);
+        }
+    }
+
+    /**
+     * Parses all the lines ended in the given range
+     *
+     * @return the start of the first line not ended yet
+     */
+    private int parseCompleteLines(int from, int to) {
+        int lineStart = from;
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == '\n') {
+                parseLine(lineStart, i);
+                lineStart = i + 1;
+            }
+        }
+        return lineStart;
+    }
+
+    private void parseLine(int start, int end) {
+        if (end > start && buffer[end - 1] == '\r') {
+            end--;
+        }
+        if (start == end) {
+            endRecord();
+            return;
+        }
+        if (end - start >= 2 && buffer[start] == '#') {
+            if (buffer[start + 1] == 'R') {
+                parseRecordFrame(start + 2, end);
+                return;
+            }
+            if (buffer[start + 1] == 'F') {
+                parseFieldFrame(start + 2, end);
+                return;
+            }
+            if (buffer[start + 1] == 'E' && end - start == 2) {
+                if (pendingFields > 0) {
+                    throw new WMIException("Framed record ended with " + pendingFields + " missing fields");
+                }
+                endRecord();
+                return;
+            }
+        }
+        if (!inRecord) {
+            startRecord();
+        }
+
+        int separator = -1;
+        for (int i = start; i < end; i++) {
+            if (buffer[i] == ':') {
+                separator = i;
+                break;
+            }
+        }
+        if (separator <= start) {
+            return;
+        }
+
+        int propertyStart = skipBlanks(start, separator);
+        int propertyEnd = trimBlanks(propertyStart, separator);
+        if (propertyStart == propertyEnd) {
+            return;
+        }
+        int valueStart = skipBlanks(separator + 1, end);
+        int valueEnd = trimBlanks(valueStart, end);
+
+        storeValue(propertyStart, propertyEnd, valueStart, valueEnd);
+    }
+
+    private void parseRecordFrame(int start, int end) {
+        endRecord();
+        int fields = parseLength(start, end);
+        if (fields > MAX_FRAME_FIELDS) {
+            throw new WMIException("Framed record with " + fields + " fields, the maximum is " + MAX_FRAME_FIELDS);
+        }
+        startRecord();
+        if (handler == null && fields > stride) {
+            // Known in advance, so the row is sized once
+            restride(fields);
+        }
+        pendingFields = fields;
+    }
+
+    private void parseFieldFrame(int start, int end) {
+        int comma = indexOf(',', start, end);
+        int colon = indexOf(':', comma + 1, end);
+        if (comma < 0 || colon < 0) {
+            throw new WMIException("Malformed field frame: " + new String(buffer, start - 2, end - start + 2));
+        }
+        int propertyStart = colon + 1;
+        int propertyEnd = propertyStart + parseLength(start, comma);
+        int valueEnd = propertyEnd + parseLength(comma + 1, colon);
+        if (propertyEnd == propertyStart || valueEnd != end) {
+            throw new WMIException("Malformed field frame: " + new String(buffer, start - 2, end - start + 2));
+        }
+        if (!inRecord) {
+            startRecord();
+        }
+        if (pendingFields > 0) {
+            pendingFields--;
+        }
+        storeValue(propertyStart, propertyEnd, propertyEnd, unescape(propertyEnd, valueEnd));
+    }
+
+    private int indexOf(char c, int from, int to) {
+        for (int i = Math.max(from, 0); i < to; i++) {
+            if (buffer[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int parseLength(int from, int to) {
+        if (from >= to) {
+            throw new WMIException("Missing length in frame");
+        }
+        int length = 0;
+        for (int i = from; i < to; i++) {
+            char c = buffer[i];
+            if (c < '0' || c > '9' || length > (Integer.MAX_VALUE - 9) / 10) {
+                throw new WMIException("Invalid length in frame: " + new String(buffer, from, to - from));
+            }
+            length = length * 10 + (c - '0');
+        }
+        return length;
+    }
+
+    /**
+     * Unescapes a framed value in place
+     *
+     * @return the new end of the value
+     */
+    private int unescape(int from, int to) {
+        int target = from;
+        for (int i = from; i < to; i++) {
+            char c = buffer[i];
+            if (c == '\\' && i + 1 < to) {
+                char escaped = buffer[++i];
+                c = escaped == 'r' ? '\r' : escaped == 'n' ? '\n' : escaped;
+            }
+            buffer[target++] = c;
+        }
+        return target;
+    }
+
+    private void storeValue(int propertyStart, int propertyEnd, int valueStart, int valueEnd) {
+        int index = schema.indexOfOrAdd(buffer, propertyStart, propertyEnd);
+        if (handler != null) {
+            handler.property(schema, index, buffer, valueStart, valueEnd);
+            return;
+        }
+        if (index >= stride) {
+            restride(Math.max(INITIAL_STRIDE, Math.max(index + 1, stride * 2)));
+        }
+        int position = ((rows - 1) * stride + index) * 2;
+        offsets[position] = valueStart;
+        offsets[position + 1] = valueEnd;
+    }
+
+    private void endRecord() {
+        if (inRecord && handler != null) {
+            handler.endRecord();
+        }
+        inRecord = false;
+        pendingFields = -1;
+    }
+
+    private void startRecord() {
+        inRecord = true;
+        if (handler != null) {
+            handler.startRecord();
+            return;
+        }
+        rows++;
+        int required = rows * stride * 2;
+        if (required > offsets.length) {
+            offsets = Arrays.copyOf(offsets, Math.max(required, offsets.length * 2));
+        }
+        Arrays.fill(offsets, (rows - 1) * stride * 2, required, -1);
+    }
+
+    private void restride(int newStride) {
+        int[] newOffsets = new int[Math.max(rows * newStride * 2, offsets.length)];
+        Arrays.fill(newOffsets, -1);
+        for (int row = 0; row < rows; row++) {
+            System.arraycopy(offsets, row * stride * 2, newOffsets, row * newStride * 2, stride * 2);
+        }
+        offsets = newOffsets;
+        stride = newStride;
+    }
+
+    private WMIResultSet build() {
+        // Most of the times the schema is complete after the first object, so drop the spare slots
+        if (stride != schema.size()) {
+            int exact = schema.size();
+            int[] compacted = new int[rows * exact * 2];
+            for (int row = 0; row < rows; row++) {
+                System.arraycopy(offsets, row * stride * 2, compacted, row * exact * 2, exact * 2);
+            }
+            offsets = compacted;
+            stride = exact;
+        }
+        return new WMIResultSet(buffer, schema, offsets, stride, rows);
+    }
+
+    // Same notion of blank as String.trim()
+    private int skipBlanks(int from, int to) {
+        while (from < to && buffer[from] <= ' ') {
+            from++;
+        }
+        return from;
+    }
+
+    private int trimBlanks(int from, int to) {
+        while (to > from && buffer[to - 1] <= ' ') {
+            to--;
+        }
+        return to;
+    }
+}
@@ -15,10 +15,21 @@
  */
 package com.profesorfalken.wmi4java;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.profesorfalken.jpowershell.PowerShell;
 import com.profesorfalken.jpowershell.PowerShellNotAvailableException;
@@ -34,13 +45,77 @@ class WMIPowerShell implements WMIStub {
     private static final String NAMESPACE_PARAM = "-Namespace ";
     private static final String COMPUTERNAME_PARAM = "-ComputerName ";
     private static final String GETWMIOBJECT_COMMAND = "Get-WMIObject ";
+    private static final String CURSOR_END = "WMI4JAVA_CURSOR_END";
+    private static final long LIST_MAX_WAIT = 120000;
+    // Maximum time jPowerShell waits for the output of a command
+    private static final long MAX_WAIT = 20000;
 
-    private final PowerShell powerShell;
+    // Writes each object of the pipeline as framed records (see WMIOutputParser). Defined once per session
+    static final String FRAME_FUNCTION = "Write-Wmi4JavaFrame";
+    static final String FRAME_FUNCTION_BODY = "process { "
+            + "$fields = @($_.PSObject.Properties); '#R' + $fields.Count; "
+            + "foreach ($field in $fields) { $value = $field.Value; "
+            + "if ($value -is [array]) { $value = $value -join '|' }; "
+            + "$value = ([string]$value).Replace('\\', '\\\\').Replace(\"`r\", '\\r').Replace(\"`n\", '\\n'); "
+            + "'#F' + $field.Name.Length + ',' + $value.Length + ':' + $field.Name + $value }; '#E' }";
+    private static final String FRAME_FUNCTION_DEFINITION = "function " + FRAME_FUNCTION + " { " + FRAME_FUNCTION_BODY
+            + " }";
+
+    private static final AtomicInteger CURSOR_IDS = new AtomicInteger();
+    // jPowerShell sessions open right now. Their processes are not started through WMIProcessSupervisor
+    private static final AtomicInteger OPEN_SESSIONS = new AtomicInteger();
+
+    // Commands run in these threads so the calling thread can be interrupted while waiting
+    private static final ExecutorService COMMAND_RUNNERS = Executors.newCachedThreadPool(
+            WMIProcessSupervisor.daemonThreadFactory("wmi4java-powershell-command"));
+
+    // Replaced by a new session when a running command is aborted
+    private PowerShell powerShell;
 
     private WMIPowerShell() {
+        powerShell = openPowerShell();
+    }
+
+    /**
+     * For engines that run the rendered commands in another kind of session,
+     * overriding {@link #executeCommand(String, WMICancellationToken)}
+     */
+    WMIPowerShell(PowerShell powerShell) {
+        this.powerShell = powerShell;
+    }
+
+    private static PowerShell openPowerShell() {
         Map<String, String> config = new HashMap<>();
-        config.put("maxWait", "20000");
-        powerShell = PowerShell.openSession().configuration(config);
+        config.put("maxWait", String.valueOf(MAX_WAIT));
+        PowerShell session = PowerShell.openSession().configuration(config);
+        WMIEvents.processSpawned("powershell.exe");
+        try {
+            PowerShellResponse response = session.executeCommand(FRAME_FUNCTION_DEFINITION);
+            checkFrameFunctionDefinition(response.isError(), response.isTimeout(), response.getCommandOutput());
+        } catch (RuntimeException ex) {
+            session.close();
+            throw ex;
+        }
+        OPEN_SESSIONS.incrementAndGet();
+        return session;
+    }
+
+    static int getOpenSessionCount() {
+        return OPEN_SESSIONS.get();
+    }
+
+    /**
+     * A definition writes nothing, any output is the error that prevented it.
+     * Without the function every query of the session would fail
+     */
+    static void checkFrameFunctionDefinition(boolean error, boolean timeout, String output) throws WMIException {
+        if (timeout) {
+            throw new WMIException("Cannot define " + FRAME_FUNCTION + " in the PowerShell session: timed out");
+        }
+        String message = output == null ? "" : output.trim();
+        if (error || !message.isEmpty()) {
+            throw new WMIException("Cannot define " + FRAME_FUNCTION + " in the PowerShell session: " + message);
+        }
     }
 
     static WMIStub openSession() {
@@ -52,14 +127,92 @@ class WMIPowerShell implements WMIStub {
     }
 
     @Override
-    public void close() {
-        powerShell.close();
+    public synchronized void close() {
+        if (powerShell != null) {
+            closeSession(powerShell);
+            powerShell = null;
+        }
+    }
+
+    private synchronized PowerShell session() {
+        if (powerShell == null) {
+            powerShell = newSession();
+        }
+        return powerShell;
+    }
+
+    /**
+     * Opens a session replacing a dropped one. Overridden by tests
+     */
+    PowerShell newSession() {
+        return openPowerShell();
+    }
+
+    /**
+     * Runs a command in a session. Overridden by tests
+     */
+    PowerShellResponse execute(PowerShell session, String command) {
+        return session.executeCommand(command);
+    }
+
+    void closeSession(PowerShell session) {
+        OPEN_SESSIONS.decrementAndGet();
+        session.close();
     }
 
     private String executeCommand(String command) throws WMIException {
+        return executeCommand(command, null);
+    }
+
+    /**
+     * Executes a command in the session. If the token is cancelled or the
+     * calling thread is interrupted, the session running the command is
+     * killed and a fresh one is opened for the next command.
+     */
+    String executeCommand(final String command, WMICancellationToken token) throws WMIException {
+        if (token != null) {
+            token.throwIfCancelled();
+        }
         try {
-            PowerShellResponse psResponse = powerShell.executeCommand(command);
+            final PowerShell session = session();
+            final Future<PowerShellResponse> response = COMMAND_RUNNERS.submit(new Callable<PowerShellResponse>() {
+                @Override
+                public PowerShellResponse call() {
+                    return execute(session, command);
+                }
+            });
+            Runnable abort = new Runnable() {
+                @Override
+                public void run() {
+                    abort(session, response);
+                }
+            };
 
+            PowerShellResponse psResponse;
+            WMICancellationToken.Registration registration = token != null ? token.onCancel(abort) : null;
+            try {
+                psResponse = response.get();
+            } catch (InterruptedException ex) {
+                abort.run();
+                Thread.currentThread().interrupt();
+                throw new WMICancelledException("WMI operation interrupted", ex);
+            } catch (CancellationException ex) {
+                throw new WMICancelledException("WMI operation cancelled", ex);
+            } catch (ExecutionException ex) {
+                throw new WMIException(ex.getCause().getMessage(), ex.getCause());
+            } finally {
+                if (registration != null) {
+                    registration.unregister();
+                }
+            }
+
+            if (psResponse.isTimeout()) {
+                // jPowerShell only stops waiting: the command still runs and its output would be read by the next one
+                discard(session);
+                WMIEvents.processTimedOut("powershell.exe", MAX_WAIT);
+                throw new WMITimeoutException("WMI operation timed out: "
+                        + psResponse.getCommandOutput());
+            }
             if (psResponse.isError()) {
                 throw new WMIException("WMI operation finished in error: "
                         + psResponse.getCommandOutput());
@@ -71,14 +224,83 @@ class WMIPowerShell implements WMIStub {
         }
     }
 
-    public String listClasses(String namespace, String computerName) throws WMIException {
-        String namespaceString = "";
-        if (!"*".equals(namespace)) {
-            namespaceString += NAMESPACE_PARAM + namespace;
+    /**
+     * jPowerShell cannot stop a running pipeline, so the session is dropped
+     * and killed in background. The waiting caller returns immediately.
+     */
+    private void abort(PowerShell session, Future<PowerShellResponse> response) {
+        if (response.isDone()) {
+            return;
+        }
+        response.cancel(false);
+        discard(session);
+    }
+
+    /**
+     * Drops a session that may still be running a command. The next command
+     * opens a fresh one
+     */
+    private void discard(final PowerShell session) {
+        synchronized (this) {
+            if (powerShell == session) {
+                powerShell = null;
+            }
         }
+        COMMAND_RUNNERS.submit(new Runnable() {
+            @Override
+            public void run() {
+                closeSession(session);
+            }
+        });
+    }
+
+    public WMIResultSet listClasses(String namespace, String computerName) throws WMIException {
+        return streamCommand(renderListClasses(namespace, computerName));
+    }
+
+    static String renderListClasses(String namespace, String computerName) {
+        return initCommand("", namespace, computerName) + "-List | ForEach-Object { "
+                + "\"Name : \" + $_.Name; "
+                + "\"SuperClass : \" + $_.__SUPERCLASS; "
+                + "\"\" }";
+    }
+
+    public WMIResultSet listClassDefinitions(String namespace, String computerName) throws WMIException {
+        String command = initCommand("", namespace, computerName) + "-List | ForEach-Object { "
+                + "\"Name : \" + $_.Name; "
+                + "\"SuperClass : \" + $_.__SUPERCLASS; "
+                + "\"Keys : \" + (($_.Properties | Where-Object { $_.Qualifiers | Where-Object { $_.Name -eq 'key' } }"
+                + " | ForEach-Object { $_.Name }) -join ','); "
+                + "\"Properties : \" + (($_.Properties | ForEach-Object { $_.Name }) -join ','); "
+                + "\"\" }";
+        return streamCommand(command);
+    }
+
+    /**
+     * Runs a command in its own PowerShell process and parses its output while
+     * the classes are still being enumerated. jPowerShell only returns the
+     * output of a command once it has finished
+     */
+    private static WMIResultSet streamCommand(String command) throws WMIException {
+        return streamOutput(renderStreamingProcess(command));
+    }
 
-        return executeCommand(GETWMIOBJECT_COMMAND
-                + namespaceString + " -List | Sort Name");
+    // Any error stops the command, so the process exits in error instead of leaving a partial list
+    static String[] renderStreamingProcess(String command) {
+        String script = "$ErrorActionPreference = 'Stop'; " + command;
+        return new String[]{"powershell.exe", "-NoLogo", "-NoProfile", "-NonInteractive",
+                "-ExecutionPolicy", "Bypass", "-EncodedCommand",
+                Base64.getEncoder().encodeToString(script.getBytes(StandardCharsets.UTF_16LE))};
+    }
+
+    static WMIResultSet streamOutput(String[] processCommand) throws WMIException {
+        return WMIProcessSupervisor.run(processCommand, LIST_MAX_WAIT,
+                new WMIProcessSupervisor.OutputConsumer<WMIResultSet>() {
+                    @Override
+                    public WMIResultSet consume(Reader output) throws IOException {
+                        return WMIOutputParser.parse(output);
+                    }
+                });
     }
 
     public String listProperties(String wmiClass, String namespace, String computerName) throws WMIException {
@@ -93,44 +315,214 @@ class WMIPowerShell implements WMIStub {
         return executeCommand(command);
     }
 
-    public String listObject(String wmiClass, String namespace, String computerName) throws WMIException {
-    	String command = initCommand(wmiClass, namespace, computerName);
+    public String executeQuery(WMIQuery query, WMICancellationToken token) throws WMIException {
+        return executeCommand(query.getPowerShellCommand(), token);
+    }
 
-        command += " | ";
+    public WMIResultSet executeQueryResultSet(WMIQuery query, WMICancellationToken token) throws WMIException {
+        return WMIOutputParser.parse(executeCommand(query.getPowerShellFramedCommand(), token));
+    }
 
-        command += "Select-Object * -excludeproperty \"_*\" | ";
+    public WMIResultSet getInstance(WMIQuery query, String objectPath) throws WMIException {
+        return WMIOutputParser.parse(executeCommand(renderGetInstance(query, objectPath)));
+    }
 
-        command += "Format-List *";
+    /**
+     * Renders the command fetching an instance with the [wmi] accelerator. A
+     * missing instance gives no output. Any other error is rethrown
+     */
+    static String renderGetInstance(WMIQuery query, String objectPath) {
+        String path = (scopePath(query) + ":" + objectPath).replace("'", "''");
+        return "try { $wmi4javaInstance = [wmi]'" + path + "' } "
+                + "catch { $wmi4javaInstance = $null; $wmi4javaError = $_.Exception; "
+                + "while ($wmi4javaError -and -not ($wmi4javaError -is [System.Management.ManagementException])) "
+                + "{ $wmi4javaError = $wmi4javaError.InnerException }; "
+                + "if (-not $wmi4javaError -or $wmi4javaError.ErrorCode -ne 'NotFound') { throw } }; "
+                + "if ($wmi4javaInstance) { $wmi4javaInstance | " + renderSelect(query) + " }";
+    }
 
-        return executeCommand(command);
+    public List<WMIResultSet> getRelated(WMIQuery query, List<String> objectPaths, boolean references)
+            throws WMIException {
+        String output = executeCommand(renderRelated(query, objectPaths, references));
+        return WMIOutputParser.parseSections(output, WMIOutputParser.SECTION_MARKER, objectPaths.size());
     }
 
-    public String queryObject(String wmiClass, List<String> wmiProperties, List<String> conditions, String namespace, String computerName) throws WMIException {
-        String command = initCommand(wmiClass, namespace, computerName);
-        		
-        List<String> usedWMIProperties;
-        if (wmiProperties == null || wmiProperties.isEmpty()) {
-            usedWMIProperties = Collections.singletonList("*");
-        } else {
-            usedWMIProperties = wmiProperties;
+    /**
+     * Renders a loop running ASSOCIATORS OF or REFERENCES OF for each source
+     * instance, each output preceded by a section marker
+     */
+    static String renderRelated(WMIQuery query, List<String> objectPaths, boolean references) {
+        StringBuilder command = new StringBuilder("$wmi4javaSources = @(");
+        for (int i = 0; i < objectPaths.size(); i++) {
+            command.append(i > 0 ? ", '" : "'").append(objectPaths.get(i).replace("'", "''")).append('\'');
         }
+        command.append("); for ($wmi4javaIndex = 0; $wmi4javaIndex -lt $wmi4javaSources.Count; $wmi4javaIndex++) { ")
+                .append("'").append(WMIOutputParser.SECTION_MARKER).append(" ' + $wmi4javaIndex; ")
+                .append(initCommand("", query.getNamespace(), query.getComputerName()))
+                .append("-Query ('").append(references ? "REFERENCES" : "ASSOCIATORS")
+                .append(" OF {' + $wmi4javaSources[$wmi4javaIndex] + '} WHERE ResultClass = ")
+                .append(query.getWMIClass()).append("') | ")
+                .append(renderSelect(query)).append(" }");
+        return command.toString();
+    }
 
-        command += " | ";
+    public List<WMIResultSet> executeBatch(List<WMIQuery> queries) throws WMIException {
+        String output = executeCommand(renderBatch(queries));
+        return WMIOutputParser.parseSections(output, WMIOutputParser.SECTION_MARKER, queries.size());
+    }
+
+    /**
+     * Renders the commands of several queries, each output preceded by a
+     * section marker
+     */
+    static String renderBatch(List<WMIQuery> queries) {
+        StringBuilder command = new StringBuilder();
+        for (int i = 0; i < queries.size(); i++) {
+            command.append("'").append(WMIOutputParser.SECTION_MARKER).append(' ').append(i).append("'; ")
+                    .append(queries.get(i).getPowerShellFramedCommand()).append("; ");
+        }
+        return command.toString();
+    }
+
+    public List<Integer> invokeMethods(String namespace, String computerName, List<WMIMethodCall> calls)
+            throws WMIException {
+        String output = executeCommand(renderInvokeMethods(namespace, computerName, calls));
+        return WMIMethodCall.returnCodes(calls,
+                WMIOutputParser.parseSections(output, WMIOutputParser.SECTION_MARKER, calls.size()));
+    }
+
+    /**
+     * Renders the invocations of several methods, each output preceded by a
+     * section marker. Instances are bound with [wmi] and classes with
+     * [wmiclass]; a failed invocation writes its WMI error code as return
+     * value and a method without return value writes the void marker
+     */
+    static String renderInvokeMethods(String namespace, String computerName, List<WMIMethodCall> calls) {
+        String scope = scopePath(namespace, computerName).replace("'", "''");
+        StringBuilder command = new StringBuilder();
+        for (int i = 0; i < calls.size(); i++) {
+            WMIMethodCall call = calls.get(i);
+            String method = call.getMethod().replace("'", "''");
+            command.append("'").append(WMIOutputParser.SECTION_MARKER).append(' ').append(i).append("'; ")
+                    .append("try { $wmi4javaTarget = ").append(call.isStatic() ? "[wmiclass]'" : "[wmi]'")
+                    .append(scope).append(':').append(call.getTarget().replace("'", "''")).append("'; ");
+            if (call.getArguments().isEmpty()) {
+                command.append("$wmi4javaParams = $null; ");
+            } else {
+                command.append("$wmi4javaParams = $wmi4javaTarget.GetMethodParameters('").append(method).append("'); ");
+                for (Map.Entry<String, Object> argument : call.getArguments().entrySet()) {
+                    command.append("$wmi4javaParams['").append(argument.getKey().replace("'", "''")).append("'] = ")
+                            .append(renderValue(argument.getValue())).append("; ");
+                }
+            }
+            command.append("$wmi4javaOut = $wmi4javaTarget.InvokeMethod('").append(method)
+                    .append("', $wmi4javaParams, $null); ")
+                    .append("$wmi4javaReturn = @(if ($wmi4javaOut) { $wmi4javaOut.Properties | ")
+                    .append("Where-Object { $_.Name -eq 'ReturnValue' } }); ")
+                    .append("if ($wmi4javaReturn.Count -eq 0) { '").append(WMIMethodCall.VOID_PROPERTY)
+                    .append(" : ").append(WMIMethodCall.VOID_MARKER).append("' } ")
+                    .append("elseif ($wmi4javaReturn[0].Value -ne $null) { ")
+                    .append("'ReturnValue : ' + [int]$wmi4javaReturn[0].Value } } ")
+                    .append("catch { $wmi4javaError = $_.Exception; ")
+                    .append("while ($wmi4javaError -and -not ($wmi4javaError -is [System.Management.ManagementException])) ")
+                    .append("{ $wmi4javaError = $wmi4javaError.InnerException }; ")
+                    .append("if ($wmi4javaError) { 'ReturnValue : ' + [int]$wmi4javaError.ErrorCode } ")
+                    .append("else { 'ReturnValue : ' + $_.Exception.HResult } }; ");
+        }
+        return command.toString();
+    }
+
+    private static String renderValue(Object value) {
+        if (value instanceof Boolean) {
+            return (Boolean) value ? "$true" : "$false";
+        }
+        if (value instanceof Number) {
+            return value.toString();
+        }
+        return "'" + value.toString().replace("'", "''") + "'";
+    }
 
+    public void executeQuery(WMIQuery query, WMIOutputParser.RecordHandler handler, WMICancellationToken token)
+            throws WMIException {
+        WMIOutputParser.parse(executeCommand(query.getPowerShellFramedCommand(), token), handler);
+    }
+
+    public WMICursor openCursor(WMIQuery query, int batchSize) throws WMIException {
+        return new PowerShellCursor(query, batchSize);
+    }
+
+    /**
+     * Renders the PowerShell command for a query
+     *
+     * @param query the compiled query
+     * @return the command to execute
+     */
+    static String renderQuery(WMIQuery query) {
+        return renderEnumeration(query) + renderProjection(query) + " | Format-List *";
+    }
+
+    /**
+     * Renders the PowerShell command for a query whose output is parsed,
+     * writing framed records
+     *
+     * @param query the compiled query
+     * @return the command to execute
+     */
+    static String renderFramedQuery(WMIQuery query) {
+        return renderEnumeration(query) + renderSelect(query);
+    }
+
+    private static String renderEnumeration(WMIQuery query) {
+        String command = initCommand(query.getWMIClass(), query.getNamespace(), query.getComputerName())
+                + " | " + renderFilters(query);
+        if (query.getLimit() > 0) {
+            // Select-Object -First stops the upstream enumeration once it has enough objects
+            command += "Select-Object -First " + query.getLimit() + " | ";
+        }
+        return command;
+    }
+
+    private static String renderFilters(WMIQuery query) {
+        StringBuilder command = new StringBuilder();
+        List<String> conditions = query.getFilters();
         if (conditions != null && !conditions.isEmpty()) {
             for (String condition : conditions) {
-                command += "Where-Object -FilterScript {" + condition + "} | ";
+                command.append("Where-Object -FilterScript {").append(condition).append("} | ");
             }
         }
+        return command.toString();
+    }
 
-        command += "Select-Object " + WMI4JavaUtil.join(", ", usedWMIProperties) + " -excludeproperty \"_*\" | ";
+    private static String renderSelect(WMIQuery query) {
+        return renderProjection(query) + " | " + FRAME_FUNCTION;
+    }
 
-        command += "Format-List *";
+    private static String renderProjection(WMIQuery query) {
+        List<String> wmiProperties = query.getProperties();
+        List<String> usedWMIProperties;
+        if (wmiProperties == null || wmiProperties.isEmpty()) {
+            usedWMIProperties = Collections.singletonList("*");
+        } else {
+            usedWMIProperties = wmiProperties;
+        }
 
-        return executeCommand(command);
+        return "Select-Object " + WMI4JavaUtil.join(", ", usedWMIProperties) + " -excludeproperty \"_*\"";
+    }
+
+    /**
+     * WMI scope path (\\computer\namespace) used by the .NET management classes
+     */
+    private static String scopePath(WMIQuery query) {
+        return scopePath(query.getNamespace(), query.getComputerName());
     }
-    
-    private String initCommand (String wmiClass, String namespace, String computerName) {
+
+    private static String scopePath(String namespace, String computerName) {
+        computerName = computerName.isEmpty() ? "." : computerName;
+        namespace = "*".equals(namespace) ? "root/cimv2" : namespace;
+        return "\\\\" + computerName + "\\" + namespace.replace('/', '\\');
+    }
+
+    private static String initCommand (String wmiClass, String namespace, String computerName) {
     	String command = GETWMIOBJECT_COMMAND + wmiClass + " ";
 
         if (!"*".equals(namespace)) {
@@ -142,4 +534,87 @@ class WMIPowerShell implements WMIStub {
         
         return command;
     }
+
+    /**
+     * Cursor whose enumerator lives in a variable of the PowerShell session.
+     * The searcher is forward-only and returns immediately, so the provider
+     * sends the objects as they are requested.
+     */
+    private final class PowerShellCursor implements WMICursor {
+
+        private final String searcher;
+        private final String enumerator;
+        // Fetch command is split around the number of objects to request
+        private final String fetchCommandHead;
+        private final String fetchCommandTail;
+        private final int batchSize;
+        // Objects still allowed by the limit of the query, or -1 if there is no limit
+        private int remaining;
+        private boolean more = true;
+        private boolean closed = false;
+
+        PowerShellCursor(WMIQuery query, int batchSize) throws WMIException {
+            if (batchSize <= 0) {
+                throw new WMIException("Batch size must be positive: " + batchSize);
+            }
+            this.batchSize = batchSize;
+            this.remaining = query.getLimit() > 0 ? query.getLimit() : -1;
+            int id = CURSOR_IDS.incrementAndGet();
+            searcher = "$wmi4javaSearcher" + id;
+            enumerator = "$wmi4javaCursor" + id;
+
+            executeCommand(searcher + " = New-Object System.Management.ManagementObjectSearcher('"
+                    + scopePath(query) + "', 'SELECT * FROM " + query.getWMIClass() + "'); "
+                    + searcher + ".Options.Rewindable = $false; "
+                    + searcher + ".Options.ReturnImmediately = $true; "
+                    + searcher + ".Options.BlockSize = " + batchSize + "; "
+                    + enumerator + " = " + searcher + ".Get().GetEnumerator()");
+
+            fetchCommandHead = "$wmi4javaBatch = New-Object System.Collections.ArrayList; $wmi4javaEnd = $false; "
+                    + "while ($wmi4javaBatch.Count -lt ";
+            fetchCommandTail = ") { "
+                    + "if (-not " + enumerator + ".MoveNext()) { $wmi4javaEnd = $true; break }; "
+                    + enumerator + ".Current | " + renderFilters(query)
+                    + "ForEach-Object { [void]$wmi4javaBatch.Add($_) } }; "
+                    + "$wmi4javaBatch | " + renderSelect(query) + "; "
+                    + "if ($wmi4javaEnd) { '" + CURSOR_END + "' }";
+        }
+
+        @Override
+        public boolean hasMore() {
+            return more;
+        }
+
+        @Override
+        public WMIResultSet fetch() throws WMIException {
+            if (!more) {
+                return WMIOutputParser.parse("");
+            }
+            int requested = remaining < 0 ? batchSize : Math.min(batchSize, remaining);
+            String output = executeCommand(fetchCommandHead + requested + fetchCommandTail);
+            boolean ended = output.endsWith(CURSOR_END);
+            if (ended) {
+                output = output.substring(0, output.length() - CURSOR_END.length());
+            }
+            WMIResultSet batch = WMIOutputParser.parse(output);
+            if (remaining > 0) {
+                remaining -= batch.size();
+            }
+            if (ended || remaining == 0) {
+                close();
+            }
+            return batch;
+        }
+
+        @Override
+        public void close() throws WMIException {
+            more = false;
+            if (!closed) {
+                closed = true;
+                executeCommand(enumerator + ".Dispose(); " + searcher + ".Dispose(); "
+                        + "Remove-Variable -Name " + enumerator.substring(1) + ", " + searcher.substring(1)
+                        + " -ErrorAction SilentlyContinue");
+            }
+        }
+    }
 }
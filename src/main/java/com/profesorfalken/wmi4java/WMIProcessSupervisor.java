@@ -0,0 +1,417 @@
+/*
+ * Copyright 2016 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.wmi4java;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Supervises the child processes launched by the engines.<p>
+ *
+ * For every process it drains the standard output and the error output at
+ * the same time in background threads, so a process writing a lot of errors
+ * can never block on a full pipe. The calling thread only waits for the
+ * result until the deadline: then the process is killed, even if some
+ * descendant process keeps the pipes open. Processes are always reaped before
+ * returning, so no orphan process is left behind.
+ *
+ * @author Javier Garcia Alonso
+ */
+final class WMIProcessSupervisor {
+
+    // Error output kept to build the error message. The rest is drained and discarded
+    private static final int MAX_ERROR_OUTPUT = 64 * 1024;
+    private static final long REAP_WAIT_MILLIS = 5000;
+
+    private static final AtomicInteger LIVE_PROCESSES = new AtomicInteger();
+    private static final AtomicLong SPAWNED_PROCESSES = new AtomicLong();
+    private static final AtomicLong TIMED_OUT_PROCESSES = new AtomicLong();
+
+    private static final ExecutorService DRAINERS = Executors.newCachedThreadPool(
+            daemonThreadFactory("wmi4java-output-drainer"));
+
+    private WMIProcessSupervisor() {
+    }
+
+    /**
+     * Consumes the standard output of the supervised process
+     */
+    interface OutputConsumer<T> {
+
+        T consume(Reader output) throws IOException;
+    }
+
+    /**
+     * Runs a process and waits for it to finish
+     *
+     * @param command the command line to launch
+     * @param timeoutMillis maximum time the process is allowed to run
+     * @param outputConsumer consumer of the standard output of the process
+     * @return the result produced by the consumer
+     * @throws WMIException if the process cannot be launched, times out or
+     *         finishes in error
+     */
+    static <T> T run(String[] command, long timeoutMillis, OutputConsumer<T> outputConsumer) throws WMIException {
+        return run(command, timeoutMillis, outputConsumer, null);
+    }
+
+    /**
+     * Runs a process and waits for it to finish. The process is killed if the
+     * token is cancelled
+     *
+     * @param command the command line to launch
+     * @param timeoutMillis maximum time the process is allowed to run
+     * @param outputConsumer consumer of the standard output of the process
+     * @param token cancellation token of the operation. It can be null
+     * @return the result produced by the consumer
+     * @throws WMIException if the process cannot be launched, times out or
+     *         finishes in error
+     * @throws WMICancelledException if the operation is cancelled
+     */
+    static <T> T run(String[] command, long timeoutMillis, final OutputConsumer<T> outputConsumer,
+            WMICancellationToken token) throws WMIException {
+        if (token != null) {
+            token.throwIfCancelled();
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try (final SupervisedProcess process = start(command)) {
+            WMICancellationToken.Registration registration = onCancel(token, process);
+            try {
+                T result = process.call(new Callable<T>() {
+                    @Override
+                    public T call() throws IOException {
+                        return outputConsumer.consume(process.getOutput());
+                    }
+                }, timeoutMillis);
+                process.waitFor(TimeUnit.NANOSECONDS.toMillis(Math.max(remaining(deadline), 0)));
+                return result;
+            } finally {
+                if (registration != null) {
+                    registration.unregister();
+                }
+            }
+        }
+    }
+
+    private static WMICancellationToken.Registration onCancel(WMICancellationToken token,
+            final SupervisedProcess process) {
+        if (token == null) {
+            return null;
+        }
+        return token.onCancel(new Runnable() {
+            @Override
+            public void run() {
+                process.cancel();
+            }
+        });
+    }
+
+    /**
+     * Launches a long-lived process. The caller talks with it through its
+     * standard input and output; the error output is drained in background.
+     * The process must be closed in order to kill and reap it.
+     *
+     * @param command the command line to launch
+     * @return the supervised process
+     * @throws WMIException if the process cannot be launched
+     */
+    static SupervisedProcess start(String[] command) throws WMIException {
+        try {
+            SupervisedProcess process = new SupervisedProcess(command[0], new ProcessBuilder(command).start());
+            WMIEvents.processSpawned(command[0]);
+            return process;
+        } catch (IOException ex) {
+            throw new WMIException(ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Child process under supervision
+     */
+    static final class SupervisedProcess implements AutoCloseable {
+
+        private final String executable;
+        private final Process process;
+        private final Reader output;
+        private final Writer input;
+        private final Future<String> errorOutput;
+        private volatile boolean cancelled = false;
+        private volatile Future<?> currentStep;
+        private boolean closed = false;
+
+        private SupervisedProcess(String executable, final Process process) {
+            this.executable = executable;
+            this.process = process;
+            this.output = new InputStreamReader(process.getInputStream());
+            this.input = new OutputStreamWriter(process.getOutputStream());
+            LIVE_PROCESSES.incrementAndGet();
+            SPAWNED_PROCESSES.incrementAndGet();
+            this.errorOutput = DRAINERS.submit(new Callable<String>() {
+                @Override
+                public String call() throws IOException {
+                    return drain(new InputStreamReader(process.getErrorStream()));
+                }
+            });
+        }
+
+        Reader getOutput() {
+            return output;
+        }
+
+        Writer getInput() {
+            return input;
+        }
+
+        /**
+         * Runs a step of the conversation with the process (usually reading
+         * its output) in a background thread, waiting at most the given time.
+         * If the step does not finish on time the process is killed.
+         */
+        <T> T call(Callable<T> step, long timeoutMillis) throws WMIException {
+            Future<T> result = DRAINERS.submit(step);
+            currentStep = result;
+            if (cancelled) {
+                result.cancel(true);
+            }
+            try {
+                T value = result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+                checkCancelled();
+                return value;
+            } catch (TimeoutException ex) {
+                TIMED_OUT_PROCESSES.incrementAndGet();
+                WMIEvents.processTimedOut(executable, timeoutMillis);
+                kill();
+                throw new WMITimeoutException("WMI operation timed out after " + timeoutMillis + " ms", ex);
+            } catch (InterruptedException ex) {
+                kill();
+                Thread.currentThread().interrupt();
+                throw new WMICancelledException("WMI operation interrupted", ex);
+            } catch (CancellationException ex) {
+                throw new WMICancelledException("WMI operation cancelled", ex);
+            } catch (ExecutionException ex) {
+                checkCancelled();
+                checkErrors();
+                throw new WMIException(ex.getCause().getMessage(), ex.getCause());
+            } finally {
+                currentStep = null;
+                result.cancel(true);
+            }
+        }
+
+        /**
+         * Waits for the process to end by itself and checks its exit code
+         *
+         * @throws WMIException if the process does not end on time or it ends
+         *         in error
+         */
+        void waitFor(long timeoutMillis) throws WMIException {
+            try {
+                if (!process.waitFor(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                    TIMED_OUT_PROCESSES.incrementAndGet();
+                    WMIEvents.processTimedOut(executable, timeoutMillis);
+                    kill();
+                    throw new WMITimeoutException("WMI operation timed out waiting for the process to end");
+                }
+            } catch (InterruptedException ex) {
+                kill();
+                Thread.currentThread().interrupt();
+                throw new WMICancelledException("WMI operation interrupted", ex);
+            }
+            checkCancelled();
+            checkErrors();
+        }
+
+        /**
+         * Waits for the process to end by itself, without killing it
+         *
+         * @return false if it is still running after the timeout
+         */
+        boolean awaitExit(long timeoutMillis) {
+            try {
+                return process.waitFor(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        private void checkCancelled() throws WMICancelledException {
+            if (cancelled) {
+                throw new WMICancelledException("WMI operation cancelled");
+            }
+        }
+
+        /**
+         * Throws if the process already ended with a non-zero exit code. The
+         * message contains its error output, if any
+         */
+        void checkErrors() throws WMIException {
+            if (process.isAlive() || process.exitValue() == 0) {
+                return;
+            }
+            int exitCode = process.exitValue();
+            String errors;
+            try {
+                errors = errorOutput.get(REAP_WAIT_MILLIS, TimeUnit.MILLISECONDS).trim();
+            } catch (TimeoutException ex) {
+                // The process has ended: a descendant process still holds its error output
+                throw new WMIException("WMI operation finished with exit code " + exitCode
+                        + ". Its error output could not be read within " + REAP_WAIT_MILLIS + " ms", ex);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new WMICancelledException("WMI operation interrupted", ex);
+            } catch (ExecutionException | CancellationException ex) {
+                errors = "";
+            }
+            if (errors.isEmpty()) {
+                throw new WMIException("WMI operation finished with exit code " + exitCode);
+            }
+            throw new WMIException("WMI operation finished in error: " + errors);
+        }
+
+        boolean isAlive() {
+            return process.isAlive();
+        }
+
+        /**
+         * Kills the process immediately. It can be called from any thread
+         */
+        void kill() {
+            process.destroyForcibly();
+        }
+
+        /**
+         * Kills the process because its operation was cancelled. The thread
+         * waiting for it gets a {@link WMICancelledException}
+         */
+        void cancel() {
+            cancelled = true;
+            kill();
+            // Do not wait for the output to be closed: a descendant process may still hold it
+            Future<?> step = currentStep;
+            if (step != null) {
+                step.cancel(true);
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            process.destroyForcibly();
+            errorOutput.cancel(true);
+            closeQuietly(process.getInputStream());
+            closeQuietly(process.getErrorStream());
+            closeQuietly(process.getOutputStream());
+            try {
+                if (!process.waitFor(REAP_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    Logger.getLogger(WMI4Java.class.getName()).log(Level.WARNING, "Child process could not be reaped");
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } finally {
+                LIVE_PROCESSES.decrementAndGet();
+            }
+        }
+    }
+
+    private static long remaining(long deadline) {
+        return deadline - System.nanoTime();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ioe) {
+            Logger.getLogger(WMI4Java.class.getName()).log(Level.FINE, "Exception closing process stream", ioe);
+        }
+    }
+
+    private static String drain(Reader reader) throws IOException {
+        StringBuilder kept = new StringBuilder();
+        char[] chunk = new char[1024];
+        try {
+            int read;
+            while ((read = reader.read(chunk)) >= 0) {
+                int keep = Math.min(read, MAX_ERROR_OUTPUT - kept.length());
+                if (keep > 0) {
+                    kept.append(chunk, 0, keep);
+                }
+            }
+        } finally {
+            closeQuietly(reader);
+        }
+        return kept.toString();
+    }
+
+    static ThreadFactory daemonThreadFactory(final String name) {
+        final AtomicInteger counter = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Number of child processes currently running
+     *
+     * @return live process count
+     */
+    static int getLiveProcessCount() {
+        return LIVE_PROCESSES.get();
+    }
+
+    /**
+     * Total number of processes launched since the library was loaded
+     *
+     * @return spawned process count
+     */
+    static long getSpawnedProcessCount() {
+        return SPAWNED_PROCESSES.get();
+    }
+
+    /**
+     * Number of processes killed because they exceeded their deadline
+     *
+     * @return timed out process count
+     */
+    static long getTimedOutProcessCount() {
+        return TIMED_OUT_PROCESSES.get();
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2016 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.wmi4java;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compiled WMI object query.<p>
+ *
+ * It is obtained from a configured {@link WMI4Java} instance:
+ * <code>WMIQuery query = WMI4Java.get().namespace("root/cimv2").properties(props).compile("Win32_Process");</code>
+ * <p>
+ *
+ * A query is immutable and can be shared between threads. The PowerShell
+ * command and the VB script are rendered once when the query is compiled (in
+ * the readable format of the raw output and in the framed one that is
+ * parsed), so executing it with
+ * {@link WMI4Java.WMIConnection#getWMIResultSet(WMIQuery)} only costs the
+ * round trip to the engine.
+ *
+ * @author Javier Garcia Alonso
+ */
+public final class WMIQuery {
+
+    private final String wmiClass;
+    private final String namespace;
+    private final String computerName;
+    private final List<String> properties;
+    private final List<String> filters;
+    private final int limit;
+
+    private final String powerShellCommand;
+    private final String vbScript;
+    // Same queries writing framed records, used when the output is parsed
+    private final String powerShellFramedCommand;
+    private final String framedVBScript;
+
+    WMIQuery(String wmiClass, String namespace, String computerName, List<String> properties, List<String> filters,
+            int limit) {
+        if (wmiClass == null || wmiClass.isEmpty()) {
+            throw new WMIException("WMI class name is required");
+        }
+        this.wmiClass = wmiClass;
+        this.namespace = namespace;
+        this.computerName = computerName;
+        this.properties = copyOf(properties);
+        this.filters = copyOf(filters);
+        this.limit = limit;
+
+        this.powerShellCommand = WMIPowerShell.renderQuery(this);
+        this.vbScript = WMIVBScript.renderQuery(this);
+        this.powerShellFramedCommand = WMIPowerShell.renderFramedQuery(this);
+        this.framedVBScript = WMIVBScript.renderFramedQuery(this);
+    }
+
+    private static List<String> copyOf(List<String> list) {
+        if (list == null) {
+            return null;
+        }
+        return Collections.unmodifiableList(new ArrayList<>(list));
+    }
+
+    public String getWMIClass() {
+        return wmiClass;
+    }
+
+    public String getNamespace() {
+        return namespace;
+    }
+
+    public String getComputerName() {
+        return computerName;
+    }
+
+    /**
+     * Properties to retrieve
+     *
+     * @return unmodifiable list of properties or null if all of them are
+     *         retrieved
+     */
+    public List<String> getProperties() {
+        return properties;
+    }
+
+    /**
+     * Filters applied to the query
+     *
+     * @return unmodifiable list of filters or null if no filter is applied
+     */
+    public List<String> getFilters() {
+        return filters;
+    }
+
+    /**
+     * Maximum number of objects returned by the query
+     *
+     * @return the limit or 0 if there is no limit
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Copy of this query returning at most the given number of objects
+     *
+     * @param limit maximum number of objects to return. 0 means no limit
+     * @return the new compiled query
+     */
+    public WMIQuery withLimit(int limit) {
+        if (limit < 0) {
+            throw new WMIException("Limit cannot be negative: " + limit);
+        }
+        if (limit == this.limit) {
+            return this;
+        }
+        return new WMIQuery(wmiClass, namespace, computerName, properties, filters, limit);
+    }
+
+    String getPowerShellCommand() {
+        return powerShellCommand;
+    }
+
+    String getVBScript() {
+        return vbScript;
+    }
+
+    String getPowerShellFramedCommand() {
+        return powerShellFramedCommand;
+    }
+
+    String getFramedVBScript() {
+        return framedVBScript;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof WMIQuery)) {
+            return false;
+        }
+        WMIQuery other = (WMIQuery) obj;
+        return wmiClass.equals(other.wmiClass)
+                && equal(namespace, other.namespace)
+                && equal(computerName, other.computerName)
+                && equal(properties, other.properties)
+                && equal(filters, other.filters)
+                && limit == other.limit;
+    }
+
+    private static boolean equal(Object first, Object second) {
+        return first == null ? second == null : first.equals(second);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = wmiClass.hashCode();
+        result = 31 * result + (namespace != null ? namespace.hashCode() : 0);
+        result = 31 * result + (computerName != null ? computerName.hashCode() : 0);
+        result = 31 * result + (properties != null ? properties.hashCode() : 0);
+        result = 31 * result + (filters != null ? filters.hashCode() : 0);
+        result = 31 * result + limit;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "WMIQuery{" + computerName + "/" + namespace + ":" + wmiClass
+                + ", properties=" + properties + ", filters=" + filters
+                + (limit > 0 ? ", limit=" + limit : "") + "}";
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2016 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.wmi4java;
+
+/**
+ * Full shape of a query execution: the engine plus the compiled query (host,
+ * namespace, class, properties, filters and limit). Two executions with equal
+ * keys return the same objects.
+ *
+ * @author Javier Garcia Alonso
+ */
+final class WMIQueryKey {
+
+    private final WMIEngine engine;
+    private final WMIQuery query;
+    private final int hash;
+
+    WMIQueryKey(WMIEngine engine, WMIQuery query) {
+        this.engine = engine;
+        this.query = query;
+        this.hash = 31 * engine.hashCode() + query.hashCode();
+    }
+
+    WMIEngine getEngine() {
+        return engine;
+    }
+
+    WMIQuery getQuery() {
+        return query;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof WMIQueryKey)) {
+            return false;
+        }
+        WMIQueryKey other = (WMIQueryKey) obj;
+        return hash == other.hash && engine == other.engine && query.equals(other.query);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return engine + " " + query;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2016 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.wmi4java;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Query counters and latencies of one engine, published through
+ * {@link WMIManagement}.<p>
+ *
+ * Latencies are counted in a histogram with four buckets per power of two
+ * (microseconds), so a percentile is known within 19% with a fixed footprint
+ * whatever the number of queries. The query rate is the number of queries
+ * ended in the last minute, counted in one-second slots.
+ *
+ * @author Javier Garcia Alonso
+ */
+final class WMIQueryStatistics {
+
+    private static final int BUCKETS_PER_POWER_OF_TWO = 4;
+    // Up to 2^40 microseconds, about 12 days
+    private static final int BUCKETS = 40 * BUCKETS_PER_POWER_OF_TWO + 1;
+    private static final int WINDOW_SECONDS = 60;
+
+    private static final Map<WMIEngine, WMIQueryStatistics> BY_ENGINE = new EnumMap<>(WMIEngine.class);
+
+    static {
+        for (WMIEngine engine : WMIEngine.values()) {
+            BY_ENGINE.put(engine, new WMIQueryStatistics());
+        }
+    }
+
+    private long queries;
+    private long failures;
+    private long timeouts;
+    private long cancellations;
+    private long maxMicros;
+    private final long[] latencies = new long[BUCKETS];
+    // Queries ended in each second of the last minute, and the second each slot belongs to
+    private final long[] windowCounts = new long[WINDOW_SECONDS];
+    private final long[] windowSeconds = new long[WINDOW_SECONDS];
+
+    static WMIQueryStatistics of(WMIEngine engine) {
+        return BY_ENGINE.get(engine);
+    }
+
+    /**
+     * Counts an ended query
+     *
+     * @param nanos time the query took
+     * @param error error of the query. It can be null
+     */
+    synchronized void record(long nanos, Throwable error) {
+        queries++;
+        if (error instanceof WMITimeoutException) {
+            timeouts++;
+        } else if (error instanceof WMICancelledException) {
+            cancellations++;
+        } else if (error != null) {
+            failures++;
+        }
+
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        maxMicros = Math.max(maxMicros, micros);
+        latencies[bucketOf(micros)]++;
+
+        long second = currentSecond();
+        int slot = (int) Math.floorMod(second, (long) WINDOW_SECONDS);
+        if (windowSeconds[slot] != second) {
+            windowSeconds[slot] = second;
+            windowCounts[slot] = 0;
+        }
+        windowCounts[slot]++;
+    }
+
+    static int bucketOf(long micros) {
+        if (micros <= 1) {
+            return 0;
+        }
+        int bucket = (int) Math.ceil(Math.log(micros) / Math.log(2) * BUCKETS_PER_POWER_OF_TWO);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    private static long currentSecond() {
+        return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+    }
+
+    synchronized long getQueryCount() {
+        return queries;
+    }
+
+    synchronized long getFailedCount() {
+        return failures;
+    }
+
+    synchronized long getTimedOutCount() {
+        return timeouts;
+    }
+
+    synchronized long getCancelledCount() {
+        return cancellations;
+    }
+
+    /**
+     * Average number of queries per second over the last minute
+     *
+     * @return the query rate
+     */
+    synchronized double getQueriesPerSecond() {
+        long now = currentSecond();
+        long count = 0;
+        for (int slot = 0; slot < WINDOW_SECONDS; slot++) {
+            if (now - windowSeconds[slot] < WINDOW_SECONDS) {
+                count += windowCounts[slot];
+            }
+        }
+        return (double) count / WINDOW_SECONDS;
+    }
+
+    /**
+     * Latency under which a percentage of the queries ended
+     *
+     * @param percentile the percentage, from 0 to 100
+     * @return the upper bound of the latency in milliseconds, or 0 if no
+     *         query was recorded
+     */
+    synchronized double getLatencyPercentile(double percentile) {
+        long rank = (long) Math.ceil(queries * percentile / 100);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS && queries > 0; bucket++) {
+            seen += latencies[bucket];
+            if (seen >= Math.max(rank, 1)) {
+                double upperMicros = Math.pow(2, (double) bucket / BUCKETS_PER_POWER_OF_TWO);
+                return Math.min(upperMicros, maxMicros) / 1000;
+            }
+        }
+        return 0;
+    }
+
+    synchronized double getMaxLatency() {
+        return maxMicros / 1000.0;
+    }
+
+    synchronized void reset() {
+        queries = 0;
+        failures = 0;
+        timeouts = 0;
+        cancellations = 0;
+        maxMicros = 0;
+        Arrays.fill(latencies, 0);
+        Arrays.fill(windowCounts, 0);
+    }
+}
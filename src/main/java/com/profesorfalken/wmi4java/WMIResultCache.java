@@ -0,0 +1,350 @@
+/*
+ * Copyright 2016 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.wmi4java;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded cache of query results for classes that rarely change.<p>
+ *
+ * Results are cached by the full query shape (engine, computer, namespace,
+ * class, properties, filters and limit) during the time to live configured for
+ * their class. Only classes with a time to live are cached: other queries are
+ * always executed. <p>
+ *
+ * Once expired, an entry is still returned immediately while a refresh runs in
+ * background, so the callers of a cached class only wait on the engine for the
+ * very first query. When the total size of the cached results exceeds the
+ * limit, the least recently used entries are evicted first. <p>
+ *
+ * <pre>
+ * WMIResultCache cache = new WMIResultCache(16 * 1024 * 1024)
+ *         .ttl(WMIClass.WIN32_BIOS, 1, TimeUnit.DAYS)
+ *         .ttl(WMIClass.WIN32_OPERATINGSYSTEM, 10, TimeUnit.MINUTES);
+ * ...
+ * WMIResultSet bios = cache.get(WMI4Java.get(), WMI4Java.get().compile(WMIClass.WIN32_BIOS));
+ * </pre>
+ *
+ * @author Javier Garcia Alonso
+ */
+public final class WMIResultCache {
+
+    private static final ExecutorService REFRESHERS = Executors.newCachedThreadPool(
+            WMIProcessSupervisor.daemonThreadFactory("wmi4java-cache-refresh"));
+
+    private final long maxWeight;
+    private final Map<String, Long> ttls = new ConcurrentHashMap<>();
+    private volatile long defaultTtl = 0;
+    private final WMISingleFlight singleFlight = new WMISingleFlight();
+
+    // Access ordered: the first entry is the least recently used one
+    private final LinkedHashMap<WMIQueryKey, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong refreshFailures = new AtomicLong();
+
+    /**
+     * Creates a cache
+     *
+     * @param maxWeight maximum memory used by the cached results, in bytes
+     */
+    public WMIResultCache(long maxWeight) {
+        if (maxWeight <= 0) {
+            throw new WMIException("Cache size must be positive: " + maxWeight);
+        }
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * Sets the time to live of the results of a class
+     *
+     * @param wmiClass the class
+     * @param ttl time to live. 0 disables caching for the class
+     * @param unit unit of the time to live
+     * @return the cache
+     */
+    public WMIResultCache ttl(WMIClass wmiClass, long ttl, TimeUnit unit) {
+        return ttl(wmiClass.getName(), ttl, unit);
+    }
+
+    /**
+     * Sets the time to live of the results of a class
+     *
+     * @param wmiClass the class name
+     * @param ttl time to live. 0 disables caching for the class
+     * @param unit unit of the time to live
+     * @return the cache
+     */
+    public WMIResultCache ttl(String wmiClass, long ttl, TimeUnit unit) {
+        if (ttl < 0) {
+            throw new WMIException("Time to live cannot be negative: " + ttl);
+        }
+        ttls.put(wmiClass.toLowerCase(Locale.ROOT), unit.toNanos(ttl));
+        return this;
+    }
+
+    /**
+     * Sets the time to live of the classes without a specific one
+     *
+     * @param ttl time to live. 0 (the default) disables caching
+     * @param unit unit of the time to live
+     * @return the cache
+     */
+    public WMIResultCache defaultTtl(long ttl, TimeUnit unit) {
+        if (ttl < 0) {
+            throw new WMIException("Time to live cannot be negative: " + ttl);
+        }
+        this.defaultTtl = unit.toNanos(ttl);
+        return this;
+    }
+
+    /**
+     * Returns the result of a query, from the cache when possible. Expired
+     * results are returned as they are and refreshed in background.
+     *
+     * @param wmi4java instance that selects the engine and opens the
+     *            connections
+     * @param query the compiled query
+     * @return the found objects
+     */
+    public WMIResultSet get(final WMI4Java wmi4java, final WMIQuery query) throws WMIException {
+        final WMIQueryKey key = new WMIQueryKey(wmi4java.getEngine(), query);
+        return get(key, new WMISingleFlight.Execution() {
+            @Override
+            public WMIResultSet run() {
+                return singleFlight.execute(wmi4java, query);
+            }
+        });
+    }
+
+    WMIResultSet get(final WMIQueryKey key, final WMISingleFlight.Execution execution) throws WMIException {
+        long ttl = ttlOf(key.getQuery().getWMIClass());
+        if (ttl == 0) {
+            return execution.run();
+        }
+
+        final Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            WMIResultSet result = execution.run();
+            store(key, new Entry(result, System.nanoTime() + ttl));
+            return result;
+        }
+
+        if (System.nanoTime() - entry.expiresAt < 0) {
+            hits.incrementAndGet();
+        } else {
+            staleHits.incrementAndGet();
+            if (entry.refreshing.compareAndSet(false, true)) {
+                REFRESHERS.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        refresh(key, entry, execution);
+                    }
+                });
+            }
+        }
+        return entry.result;
+    }
+
+    /**
+     * Executes a query through the cache in background, without waiting for it
+     */
+    void getInBackground(final WMI4Java wmi4java, final WMIQuery query) {
+        REFRESHERS.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    get(wmi4java, query);
+                } catch (RuntimeException ex) {
+                    refreshFailures.incrementAndGet();
+                    Logger.getLogger(WMI4Java.class.getName()).log(Level.WARNING, "Error loading " + query, ex);
+                }
+            }
+        });
+    }
+
+    private void refresh(WMIQueryKey key, Entry stale, WMISingleFlight.Execution execution) {
+        try {
+            WMIResultSet result = execution.run();
+            Entry fresh = new Entry(result, System.nanoTime() + ttlOf(key.getQuery().getWMIClass()));
+            synchronized (this) {
+                // Do not resurrect an entry invalidated or evicted meanwhile
+                if (entries.get(key) != stale) {
+                    return;
+                }
+            }
+            store(key, fresh);
+        } catch (RuntimeException ex) {
+            refreshFailures.incrementAndGet();
+            Logger.getLogger(WMI4Java.class.getName()).log(Level.WARNING, "Error refreshing cached " + key, ex);
+        } finally {
+            // Even after an Error, so a later hit can try again
+            stale.refreshing.set(false);
+        }
+    }
+
+    private long ttlOf(String wmiClass) {
+        Long ttl = ttls.get(wmiClass.toLowerCase(Locale.ROOT));
+        return ttl != null ? ttl : defaultTtl;
+    }
+
+    private synchronized void store(WMIQueryKey key, Entry entry) {
+        if (entry.weight > maxWeight) {
+            return;
+        }
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            weight -= previous.weight;
+        }
+        weight += entry.weight;
+
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (weight > maxWeight && eldest.hasNext()) {
+            weight -= eldest.next().weight;
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Puts a result in the cache, as if it was just returned by the engine
+     *
+     * @param wmi4java instance that would execute the query
+     * @param query the compiled query
+     * @param result the objects returned by the query
+     */
+    public void put(WMI4Java wmi4java, WMIQuery query, WMIResultSet result) {
+        put(new WMIQueryKey(wmi4java.getEngine(), query), result, System.nanoTime());
+    }
+
+    void put(WMIQueryKey key, WMIResultSet result, long loadedAt) {
+        long ttl = ttlOf(key.getQuery().getWMIClass());
+        if (ttl > 0) {
+            store(key, new Entry(result, loadedAt + ttl));
+        }
+    }
+
+    /**
+     * Cached result of a query, expired or not, without refreshing it
+     */
+    synchronized WMIResultSet peek(WMIQueryKey key) {
+        Entry entry = entries.get(key);
+        return entry != null ? entry.result : null;
+    }
+
+    long ttlOf(WMIQuery query) {
+        return ttlOf(query.getWMIClass());
+    }
+
+    /**
+     * Removes the cached results of all the queries on a class
+     *
+     * @param wmiClass the class name
+     */
+    public synchronized void invalidate(String wmiClass) {
+        Iterator<Map.Entry<WMIQueryKey, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<WMIQueryKey, Entry> cached = iterator.next();
+            if (cached.getKey().getQuery().getWMIClass().equalsIgnoreCase(wmiClass)) {
+                weight -= cached.getValue().weight;
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes all the cached results
+     */
+    public synchronized void invalidateAll() {
+        entries.clear();
+        weight = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Memory used by the cached results
+     *
+     * @return approximate size in bytes
+     */
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Number of expired results returned while being refreshed
+     *
+     * @return stale hit count
+     */
+    public long getStaleHitCount() {
+        return staleHits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public long getRefreshFailureCount() {
+        return refreshFailures.get();
+    }
+
+    private static final class Entry {
+
+        private final WMIResultSet result;
+        private final long expiresAt;
+        private final long weight;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        private Entry(WMIResultSet result, long expiresAt) {
+            this.result = result;
+            this.expiresAt = expiresAt;
+            this.weight = result.weight();
+        }
+    }
+}
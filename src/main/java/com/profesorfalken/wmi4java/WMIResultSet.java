@@ -0,0 +1,202 @@
+/*
+ * Copyright 2016 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.wmi4java;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Compact result of a WMI query.<p>
+ *
+ * All the returned objects share a single character buffer holding the engine
+ * output and a single {@link WMIObjectSchema}. Each object only costs a few
+ * offsets into that buffer, so querying classes with thousands of instances
+ * does not create thousands of maps. <p>
+ *
+ * A result set is immutable once returned and can be shared between threads.
+ *
+ * @author Javier Garcia Alonso
+ */
+public final class WMIResultSet implements Iterable<WMIRow> {
+
+    private final char[] buffer;
+    private final WMIObjectSchema schema;
+    // For each row, stride pairs of (start, end) offsets. Start is -1 when the property is missing
+    private final int[] offsets;
+    private final int stride;
+    private final int size;
+
+    WMIResultSet(char[] buffer, WMIObjectSchema schema, int[] offsets, int stride, int size) {
+        this.buffer = buffer;
+        this.schema = schema;
+        this.offsets = offsets;
+        this.stride = stride;
+        this.size = size;
+    }
+
+    /**
+     * Schema shared by all the rows
+     *
+     * @return the schema of the result
+     */
+    public WMIObjectSchema getSchema() {
+        return schema;
+    }
+
+    /**
+     * Number of returned objects
+     *
+     * @return number of rows
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns the object at the given position
+     *
+     * @param row position of the object
+     * @return a view over the object
+     */
+    public WMIRow get(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row: " + row + ", size: " + size);
+        }
+        return new WMIRow(this, row);
+    }
+
+    @Override
+    public Iterator<WMIRow> iterator() {
+        return new Iterator<WMIRow>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public WMIRow next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return new WMIRow(WMIResultSet.this, next++);
+            }
+        };
+    }
+
+    /**
+     * Read-only list adapter where each object is seen as a map
+     *
+     * @return list of map views backed by this result
+     */
+    public List<Map<String, String>> asMapList() {
+        return new AbstractList<Map<String, String>>() {
+            @Override
+            public Map<String, String> get(int index) {
+                return WMIResultSet.this.get(index).asMap();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Copies every object into a new modifiable map
+     *
+     * @return list of key/value elements. Each element in the list is a found
+     *         object
+     */
+    public List<Map<String, String>> toMapList() {
+        List<Map<String, String>> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(new WMIRow(this, i).toMap());
+        }
+        return list;
+    }
+
+    /**
+     * Objects in the given range, sharing the buffer of this result set
+     */
+    WMIResultSet slice(int from, int to) {
+        return new WMIResultSet(buffer, schema, Arrays.copyOfRange(offsets, from * stride * 2, to * stride * 2),
+                stride, to - from);
+    }
+
+    char[] buffer() {
+        return buffer;
+    }
+
+    int[] offsets() {
+        return offsets;
+    }
+
+    int stride() {
+        return stride;
+    }
+
+    /**
+     * Size of the engine output holding the values, in bytes. Unlike the
+     * buffer length, spare capacity left by the parser is not counted
+     */
+    long outputBytes() {
+        int length = 0;
+        for (int i = 1; i < size * stride * 2; i += 2) {
+            length = Math.max(length, offsets[i]);
+        }
+        return 2L * length;
+    }
+
+    /**
+     * Approximate memory used by the result, in bytes
+     */
+    long weight() {
+        return 2L * buffer.length + 4L * offsets.length;
+    }
+
+    boolean isPresent(int row, int index) {
+        return index < stride && offsets[(row * stride + index) * 2] >= 0;
+    }
+
+    String value(int row, int index) {
+        if (index < 0 || index >= stride) {
+            return null;
+        }
+        int position = (row * stride + index) * 2;
+        int start = offsets[position];
+        if (start < 0) {
+            return null;
+        }
+        return new String(buffer, start, offsets[position + 1] - start);
+    }
+
+    @Override
+    public String toString() {
+        return asMapList().toString();
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2016 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.wmi4java;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * One WMI object of a {@link WMIResultSet}.<p>
+ *
+ * A row is only a lightweight view over the buffer of its result set: property
+ * values are created as Strings only when they are read.
+ *
+ * @author Javier Garcia Alonso
+ */
+public final class WMIRow {
+
+    private final WMIResultSet resultSet;
+    private final int row;
+
+    WMIRow(WMIResultSet resultSet, int row) {
+        this.resultSet = resultSet;
+        this.row = row;
+    }
+
+    /**
+     * Schema shared by all the rows of the result
+     *
+     * @return the schema of this row
+     */
+    public WMIObjectSchema getSchema() {
+        return resultSet.getSchema();
+    }
+
+    /**
+     * Value of a property
+     *
+     * @param property name of the property
+     * @return the value or null if this object does not have the property
+     */
+    public String get(String property) {
+        int index = resultSet.getSchema().indexOf(property);
+        return index < 0 ? null : get(index);
+    }
+
+    /**
+     * Value of the property at the given schema position
+     *
+     * @param index position of the property in the schema
+     * @return the value or null if this object does not have the property
+     */
+    public String get(int index) {
+        return resultSet.value(row, index);
+    }
+
+    /**
+     * Checks if the object has a value for a property
+     *
+     * @param property name of the property
+     * @return true if the property was returned for this object
+     */
+    public boolean contains(String property) {
+        int index = resultSet.getSchema().indexOf(property);
+        return index >= 0 && resultSet.isPresent(row, index);
+    }
+
+    /**
+     * Read-only map view of this row. Values are still materialized on
+     * access.
+     *
+     * @return map adapter backed by the row
+     */
+    public Map<String, String> asMap() {
+        return new RowMap();
+    }
+
+    /**
+     * Copies all the properties of the object into a new modifiable map
+     *
+     * @return map with the key and the value of all the properties
+     */
+    public Map<String, String> toMap() {
+        WMIObjectSchema schema = resultSet.getSchema();
+        Map<String, String> map = new HashMap<>(Math.max(16, schema.size() * 4 / 3 + 1));
+        for (int i = 0; i < schema.size(); i++) {
+            if (resultSet.isPresent(row, i)) {
+                map.put(schema.getName(i), resultSet.value(row, i));
+            }
+        }
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return asMap().toString();
+    }
+
+    private final class RowMap extends AbstractMap<String, String> {
+
+        @Override
+        public String get(Object key) {
+            return key instanceof String ? WMIRow.this.get((String) key) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof String && WMIRow.this.contains((String) key);
+        }
+
+        @Override
+        public Set<Map.Entry<String, String>> entrySet() {
+            return new AbstractSet<Map.Entry<String, String>>() {
+                @Override
+                public Iterator<Map.Entry<String, String>> iterator() {
+                    return new Iterator<Map.Entry<String, String>>() {
+                        private int next = advance(0);
+
+                        private int advance(int from) {
+                            int size = resultSet.getSchema().size();
+                            while (from < size && !resultSet.isPresent(row, from)) {
+                                from++;
+                            }
+                            return from;
+                        }
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < resultSet.getSchema().size();
+                        }
+
+                        @Override
+                        public Map.Entry<String, String> next() {
+                            if (!hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            int index = next;
+                            next = advance(index + 1);
+                            return new SimpleImmutableEntry<>(
+                                    resultSet.getSchema().getName(index), resultSet.value(row, index));
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    int count = 0;
+                    for (int i = 0; i < resultSet.getSchema().size(); i++) {
+                        if (resultSet.isPresent(row, i)) {
+                            count++;
+                        }
+                    }
+                    return count;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright 2016 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.wmi4java;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Single PowerShell process running many commands at the same time in a
+ * RunspacePool.<p>
+ *
+ * The host script reads requests from its standard input, one per line:
+ * <code>RUN &lt;id&gt; &lt;command&gt;</code> or <code>STOP &lt;id&gt;</code>,
+ * commands encoded in Base64 (UTF-8). Each command runs in a free runspace of
+ * the pool and its output is written back when it ends, tagged with the id of
+ * the request: <code>#WMI4JAVA &lt;id&gt; OK|ERROR &lt;output&gt;</code>, the
+ * output also in Base64. Responses come in completion order, not in request
+ * order.<p>
+ *
+ * One host is shared by all the connections using the same number of
+ * runspaces. It is started by the first command and restarted if it dies. It
+ * ends with the JVM, when its standard input is closed.
+ *
+ * @author Javier Garcia Alonso
+ */
+final class WMIRunspacePool {
+
+    private static final String RESPONSE_PREFIX = "#WMI4JAVA ";
+
+    // Maximum time a command is allowed to run before being stopped
+    private static final long MAX_WAIT = 120000;
+    // Time given to an ended host to exit before checking its exit code
+    private static final long EXIT_WAIT = 1000;
+
+    private static final Map<Integer, WMIRunspacePool> HOSTS = new HashMap<>();
+
+    private final String executable;
+    private final WMIProcessSupervisor.SupervisedProcess process;
+    private final Writer input;
+    private final ConcurrentMap<Long, CompletableFuture<String>> pending = new ConcurrentHashMap<>();
+    private final AtomicLong requestIds = new AtomicLong();
+    private volatile boolean ended = false;
+
+    private WMIRunspacePool(int runspaces) throws WMIException {
+        this(new String[]{"powershell.exe", "-NoLogo", "-NoProfile", "-NonInteractive",
+                "-ExecutionPolicy", "Bypass", "-EncodedCommand",
+                Base64.getEncoder().encodeToString(renderHostScript(runspaces).getBytes(StandardCharsets.UTF_16LE))});
+    }
+
+    /**
+     * Starts a host speaking the request protocol with the given command
+     */
+    WMIRunspacePool(String[] hostCommand) throws WMIException {
+        executable = hostCommand[0];
+        process = WMIProcessSupervisor.start(hostCommand);
+        input = process.getInput();
+        WMIProcessSupervisor.daemonThreadFactory("wmi4java-runspace-pool-reader").newThread(new Runnable() {
+            @Override
+            public void run() {
+                readResponses();
+            }
+        }).start();
+    }
+
+    /**
+     * Opens a connection session whose commands run in the shared host
+     *
+     * @param runspaces maximum number of commands running at the same time
+     * @return the session
+     */
+    static WMIStub openSession(int runspaces) {
+        if (runspaces <= 0) {
+            throw new WMIException("Runspace count must be positive: " + runspaces);
+        }
+        return new Session(runspaces);
+    }
+
+    private static synchronized WMIRunspacePool host(int runspaces) throws WMIException {
+        WMIRunspacePool host = HOSTS.get(runspaces);
+        if (host == null || host.ended) {
+            host = new WMIRunspacePool(runspaces);
+            HOSTS.put(runspaces, host);
+        }
+        return host;
+    }
+
+    /**
+     * Renders the host script. The frame function is added to the initial
+     * state of the pool, so it is defined once in each runspace
+     */
+    static String renderHostScript(int runspaces) {
+        return "$state = [System.Management.Automation.Runspaces.InitialSessionState]::CreateDefault()\n"
+                + "$state.Commands.Add((New-Object System.Management.Automation.Runspaces.SessionStateFunctionEntry '"
+                + WMIPowerShell.FRAME_FUNCTION + "', '" + WMIPowerShell.FRAME_FUNCTION_BODY.replace("'", "''") + "'))\n"
+                + "$pool = [RunspaceFactory]::CreateRunspacePool($state)\n"
+                + "[void]$pool.SetMaxRunspaces(" + runspaces + ")\n"
+                + "$pool.Open()\n"
+                + "$utf8 = New-Object System.Text.UTF8Encoding $false\n"
+                + "$pending = @{}\n"
+                + "$reading = [Console]::In.ReadLineAsync()\n"
+                // Task implements AsyncWaitHandle explicitly, so it is read through the interface
+                + "$waitHandle = [System.IAsyncResult].GetProperty('AsyncWaitHandle')\n"
+                + "while ($true) {\n"
+                // Sleeps until a request arrives or a command ends. WaitAny takes at most 64 handles
+                + "  $handles = @($waitHandle.GetValue($reading, $null))\n"
+                + "  foreach ($request in @($pending.Values)) {\n"
+                + "    if ($handles.Count -lt 64) { $handles += $waitHandle.GetValue($request.Handle, $null) }\n"
+                + "  }\n"
+                + "  $timeout = -1\n"
+                + "  if ($pending.Count -ge 64) { $timeout = 10 }\n"
+                + "  [void][System.Threading.WaitHandle]::WaitAny([System.Threading.WaitHandle[]]$handles, $timeout)\n"
+                + "  if ($reading.IsCompleted) {\n"
+                + "    $line = $reading.Result\n"
+                + "    if ($line -eq $null) { break }\n"
+                + "    $parts = $line.Split(' ')\n"
+                + "    if ($parts[0] -eq 'RUN') {\n"
+                + "      $shell = [PowerShell]::Create()\n"
+                + "      $shell.RunspacePool = $pool\n"
+                + "      [void]$shell.AddScript($utf8.GetString([Convert]::FromBase64String($parts[2])))\n"
+                + "      $pending[$parts[1]] = @{ Shell = $shell; Handle = $shell.BeginInvoke() }\n"
+                + "    } elseif ($parts[0] -eq 'STOP' -and $pending.ContainsKey($parts[1])) {\n"
+                + "      [void]$pending[$parts[1]].Shell.BeginStop($null, $null)\n"
+                + "    }\n"
+                + "    $reading = [Console]::In.ReadLineAsync()\n"
+                + "  }\n"
+                + "  foreach ($id in @($pending.Keys)) {\n"
+                + "    $request = $pending[$id]\n"
+                + "    if ($request.Handle.IsCompleted) {\n"
+                + "      $pending.Remove($id)\n"
+                + "      try {\n"
+                + "        $output = $request.Shell.EndInvoke($request.Handle) | Out-String -Width 4096\n"
+                + "        $status = 'OK'\n"
+                + "        if ($request.Shell.Streams.Error.Count -gt 0) {\n"
+                + "          $status = 'ERROR'; $output = $request.Shell.Streams.Error | Out-String -Width 4096\n"
+                + "        }\n"
+                + "      } catch { $status = 'ERROR'; $output = $_.Exception.Message }\n"
+                + "      $request.Shell.Dispose()\n"
+                + "      [Console]::Out.WriteLine('" + RESPONSE_PREFIX + "' + $id + ' ' + $status + ' '"
+                + " + [Convert]::ToBase64String($utf8.GetBytes([string]$output)))\n"
+                + "      [Console]::Out.Flush()\n"
+                + "    }\n"
+                + "  }\n"
+                + "}\n"
+                + "$pool.Close()\n";
+    }
+
+    /**
+     * Runs a command in a free runspace and waits for its output. If the
+     * token is cancelled or the calling thread is interrupted, the command is
+     * stopped in the host
+     */
+    String execute(String command, WMICancellationToken token) throws WMIException {
+        if (token != null) {
+            token.throwIfCancelled();
+        }
+        final long id = requestIds.incrementAndGet();
+        final CompletableFuture<String> response = new CompletableFuture<>();
+        pending.put(id, response);
+        try {
+            send("RUN " + id + " " + Base64.getEncoder().encodeToString(command.getBytes(StandardCharsets.UTF_8)));
+            Runnable stop = new Runnable() {
+                @Override
+                public void run() {
+                    stop(id, response);
+                }
+            };
+            WMICancellationToken.Registration registration = token != null ? token.onCancel(stop) : null;
+            try {
+                return response.get(MAX_WAIT, TimeUnit.MILLISECONDS).trim();
+            } catch (InterruptedException ex) {
+                stop.run();
+                Thread.currentThread().interrupt();
+                throw new WMICancelledException("WMI operation interrupted", ex);
+            } catch (CancellationException ex) {
+                throw new WMICancelledException("WMI operation cancelled", ex);
+            } catch (TimeoutException ex) {
+                stop.run();
+                WMIEvents.processTimedOut(executable, MAX_WAIT);
+                throw new WMITimeoutException("WMI operation timed out after " + MAX_WAIT + " ms", ex);
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof WMIException) {
+                    throw (WMIException) ex.getCause();
+                }
+                throw new WMIException(ex.getCause().getMessage(), ex.getCause());
+            } finally {
+                if (registration != null) {
+                    registration.unregister();
+                }
+            }
+        } finally {
+            pending.remove(id);
+        }
+    }
+
+    private void stop(long id, CompletableFuture<String> response) {
+        if (response.cancel(false)) {
+            try {
+                send("STOP " + id);
+            } catch (WMIException ex) {
+                Logger.getLogger(WMI4Java.class.getName()).log(Level.WARNING, "Error stopping runspace command", ex);
+            }
+        }
+    }
+
+    private void send(String request) throws WMIException {
+        if (ended) {
+            throw new WMIException("PowerShell runspace pool host has ended");
+        }
+        try {
+            synchronized (input) {
+                input.write(request);
+                input.write('\n');
+                input.flush();
+            }
+        } catch (IOException ex) {
+            end();
+            throw new WMIException(ex.getMessage(), ex);
+        }
+    }
+
+    private void readResponses() {
+        try {
+            BufferedReader output = new BufferedReader(process.getOutput());
+            String line;
+            while ((line = output.readLine()) != null) {
+                if (line.startsWith(RESPONSE_PREFIX)) {
+                    dispatch(line);
+                }
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(WMI4Java.class.getName()).log(Level.WARNING, "Error reading runspace pool host", ex);
+        } finally {
+            end();
+        }
+    }
+
+    private void dispatch(String line) {
+        String[] parts = line.split(" ", 4);
+        if (parts.length < 3) {
+            return;
+        }
+        CompletableFuture<String> response;
+        try {
+            response = pending.get(Long.valueOf(parts[1]));
+        } catch (NumberFormatException ex) {
+            // Written by a command itself, the requests are still answered
+            Logger.getLogger(WMI4Java.class.getName()).log(Level.WARNING, "Malformed runspace pool response: {0}",
+                    line);
+            return;
+        }
+        if (response == null) {
+            // Already stopped or timed out
+            return;
+        }
+        String output;
+        try {
+            output = parts.length < 4 ? "" : new String(Base64.getDecoder().decode(parts[3]), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException ex) {
+            response.completeExceptionally(new WMIException("Malformed runspace pool response: " + line, ex));
+            return;
+        }
+        if ("OK".equals(parts[2])) {
+            response.complete(output);
+        } else {
+            response.completeExceptionally(new WMIException("WMI operation finished in error: " + output.trim()));
+        }
+    }
+
+    /**
+     * Marks the host as ended and fails the requests still waiting for it,
+     * with its error output if it exited in error
+     */
+    private void end() {
+        if (ended) {
+            return;
+        }
+        ended = true;
+        // The output closes right before the process exits: its exit code is needed to report its errors
+        process.awaitExit(EXIT_WAIT);
+        String errors;
+        try {
+            process.checkErrors();
+            errors = "PowerShell runspace pool host has ended";
+        } catch (WMIException ex) {
+            errors = ex.getMessage();
+        }
+        for (CompletableFuture<String> response : pending.values()) {
+            response.completeExceptionally(new WMIException(errors));
+        }
+        process.close();
+    }
+
+    /**
+     * Connection session rendering the same commands as the PowerShell
+     * engine, run in the shared host
+     */
+    private static final class Session extends WMIPowerShell {
+
+        private final int runspaces;
+
+        Session(int runspaces) {
+            super(null);
+            this.runspaces = runspaces;
+        }
+
+        @Override
+        String executeCommand(String command, WMICancellationToken token) throws WMIException {
+            return host(runspaces).execute(command, token);
+        }
+
+        @Override
+        public void close() {
+            // The host is shared. Nothing to close.
+        }
+
+        /**
+         * Successive commands may run in different runspaces, so no
+         * enumerator can be kept between fetches: the query runs once and
+         * the batches are taken from its result
+         */
+        @Override
+        public WMICursor openCursor(WMIQuery query, final int batchSize) throws WMIException {
+            if (batchSize <= 0) {
+                throw new WMIException("Batch size must be positive: " + batchSize);
+            }
+            final WMIResultSet result = executeQueryResultSet(query, null);
+            return new WMICursor() {
+                private int position = 0;
+
+                @Override
+                public boolean hasMore() {
+                    return position < result.size();
+                }
+
+                @Override
+                public WMIResultSet fetch() {
+                    int end = Math.min(result.size(), position + batchSize);
+                    WMIResultSet batch = result.slice(position, end);
+                    position = end;
+                    return batch;
+                }
+
+                @Override
+                public void close() {
+                    position = result.size();
+                }
+            };
+        }
+    }
+}
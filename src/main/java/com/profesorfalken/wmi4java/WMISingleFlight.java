@@ -0,0 +1,164 @@
+/*
+ * Copyright 2016 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.wmi4java;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deduplicates identical queries running at the same time.<p>
+ *
+ * When several threads execute the same query (same engine, computer,
+ * namespace, class, properties, filters and limit) through the same
+ * WMISingleFlight, only the first one runs it. The others wait for it and get
+ * the same {@link WMIResultSet}, which is immutable and safe to share. Results
+ * are not kept once the query ends. If the caller running the query is
+ * cancelled, the others run it again instead of getting its cancellation. <p>
+ *
+ * Usage is opt-in, sharing one instance through the application:
+ *
+ * <pre>
+ * WMISingleFlight singleFlight = new WMISingleFlight();
+ * ...
+ * WMIResultSet processes = singleFlight.execute(WMI4Java.get(), query);
+ * </pre>
+ *
+ * @author Javier Garcia Alonso
+ */
+public final class WMISingleFlight {
+
+    private final ConcurrentMap<WMIQueryKey, CompletableFuture<WMIResultSet>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong shared = new AtomicLong();
+
+    /**
+     * Executes a query unless the same query is already running. A
+     * connection is only opened if this caller has to run the query.
+     *
+     * @param wmi4java instance that selects the engine and opens the connection
+     * @param query the compiled query
+     * @return the found objects
+     */
+    public WMIResultSet execute(final WMI4Java wmi4java, final WMIQuery query) throws WMIException {
+        return execute(new WMIQueryKey(wmi4java.getEngine(), query), new Execution() {
+            @Override
+            public WMIResultSet run() {
+                try (WMI4Java.WMIConnection connection = wmi4java.openConnection()) {
+                    return connection.getWMIResultSet(query);
+                }
+            }
+        });
+    }
+
+    /**
+     * Executes a query in the given connection unless the same query is
+     * already running
+     *
+     * @param connection connection used if this caller has to run the query
+     * @param query the compiled query
+     * @return the found objects
+     */
+    public WMIResultSet execute(final WMI4Java.WMIConnection connection, final WMIQuery query) throws WMIException {
+        return execute(new WMIQueryKey(connection.getEngine(), query), new Execution() {
+            @Override
+            public WMIResultSet run() {
+                return connection.getWMIResultSet(query);
+            }
+        });
+    }
+
+    WMIResultSet execute(WMIQueryKey key, Execution execution) throws WMIException {
+        while (true) {
+            CompletableFuture<WMIResultSet> flight = new CompletableFuture<>();
+            CompletableFuture<WMIResultSet> running = inFlight.putIfAbsent(key, flight);
+            if (running == null) {
+                return lead(key, flight, execution);
+            }
+            shared.incrementAndGet();
+            try {
+                return running.get();
+            } catch (InterruptedException ex) {
+                // Only this waiter gives up. The query keeps running for the others
+                Thread.currentThread().interrupt();
+                throw new WMICancelledException("WMI operation interrupted", ex);
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof WMICancelledException) {
+                    // The leader was cancelled, not this caller: run the query again
+                    shared.decrementAndGet();
+                    continue;
+                }
+                if (ex.getCause() instanceof WMIException) {
+                    throw (WMIException) ex.getCause();
+                }
+                throw new WMIException(ex.getCause());
+            }
+        }
+    }
+
+    private WMIResultSet lead(WMIQueryKey key, CompletableFuture<WMIResultSet> flight, Execution execution) {
+        executed.incrementAndGet();
+        WMIResultSet result;
+        try {
+            result = execution.run();
+        } catch (Throwable ex) {
+            // Errors too, or the waiters would block forever. Removed first, so a retry starts a new flight
+            inFlight.remove(key, flight);
+            flight.completeExceptionally(ex);
+            throw ex;
+        }
+        inFlight.remove(key, flight);
+        flight.complete(result);
+        return result;
+    }
+
+    /**
+     * Number of queries running right now
+     *
+     * @return in-flight query count
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * Number of queries actually sent to an engine
+     *
+     * @return executed query count
+     */
+    public long getExecutedCount() {
+        return executed.get();
+    }
+
+    /**
+     * Number of calls that got the result of a query run by another caller
+     *
+     * @return deduplicated call count
+     */
+    public long getSharedCount() {
+        return shared.get();
+    }
+
+    /**
+     * Query execution run by the first caller
+     */
+    interface Execution {
+
+        WMIResultSet run() throws WMIException;
+    }
+}
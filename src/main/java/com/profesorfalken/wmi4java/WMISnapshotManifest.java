@@ -0,0 +1,100 @@
+/*
+ * Copyright 2016 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.wmi4java;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Queries kept in a {@link WMISnapshotStore}.<p>
+ *
+ * A manifest can be built from compiled queries or read from a text file with
+ * one class per line, optionally followed by the properties to retrieve:
+ *
+ * <pre>
+ * # Hardware inventory
+ * Win32_BIOS
+ * Win32_Processor Name, NumberOfCores, MaxClockSpeed
+ * Win32_OperatingSystem
+ * </pre>
+ *
+ * Namespace, computer name and filters are taken from the WMI4Java instance
+ * given when reading the file.
+ *
+ * @author Javier Garcia Alonso
+ */
+public final class WMISnapshotManifest {
+
+    private final List<WMIQuery> queries = new ArrayList<>();
+
+    /**
+     * Adds a query to the manifest
+     *
+     * @param query the compiled query
+     * @return the manifest
+     */
+    public WMISnapshotManifest add(WMIQuery query) {
+        queries.add(query);
+        return this;
+    }
+
+    /**
+     * Reads a manifest
+     *
+     * @param wmi4java instance used to compile the queries
+     * @param reader manifest text
+     * @return the manifest
+     */
+    public static WMISnapshotManifest read(WMI4Java wmi4java, Reader reader) throws WMIException {
+        WMISnapshotManifest manifest = new WMISnapshotManifest();
+        try {
+            BufferedReader lines = new BufferedReader(reader);
+            String line;
+            while ((line = lines.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split("\\s+", 2);
+                WMIQuery query = wmi4java.compile(parts[0]);
+                if (parts.length > 1) {
+                    List<String> properties = new ArrayList<>(Arrays.asList(parts[1].split("\\s*,\\s*")));
+                    properties.removeAll(Collections.singleton(""));
+                    query = new WMIQuery(query.getWMIClass(), query.getNamespace(), query.getComputerName(),
+                            properties, query.getFilters(), query.getLimit());
+                }
+                manifest.add(query);
+            }
+        } catch (IOException ex) {
+            throw new WMIException("Cannot read snapshot manifest", ex);
+        }
+        return manifest;
+    }
+
+    /**
+     * Queries of the manifest
+     *
+     * @return unmodifiable list of queries
+     */
+    public List<WMIQuery> getQueries() {
+        return Collections.unmodifiableList(queries);
+    }
+}
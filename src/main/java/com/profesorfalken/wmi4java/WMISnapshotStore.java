@@ -0,0 +1,287 @@
+/*
+ * Copyright 2016 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.wmi4java;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Snapshot of query results kept on disk between restarts.<p>
+ *
+ * The results of the queries of a {@link WMISnapshotManifest} are saved to a
+ * compact binary file, each result in the columnar format of
+ * {@link WMIColumnarWriter}. On startup its results are put in a
+ * {@link WMIResultCache} as already expired, so they are returned at once
+ * while fresh results are queried in background:
+ *
+ * <pre>
+ * WMISnapshotStore store = new WMISnapshotStore(new File("inventory.snapshot"), cache);
+ * store.preload(wmi4java, manifest);
+ * ...
+ * store.save(wmi4java, manifest);
+ * </pre>
+ *
+ * Only classes with a time to live in the cache are kept.
+ *
+ * @author Javier Garcia Alonso
+ */
+public final class WMISnapshotStore {
+
+    private static final int MAGIC = 0x574D4953; // WMIS
+    // 2: results stored as columnar blocks
+    private static final int VERSION = 2;
+
+    private final File file;
+    private final WMIResultCache cache;
+
+    public WMISnapshotStore(File file, WMIResultCache cache) {
+        this.file = file;
+        this.cache = cache;
+    }
+
+    /**
+     * Loads the snapshot into the cache and refreshes all the queries of the
+     * manifest in background. Errors reading the snapshot are logged and
+     * ignored: the queries are then just executed.
+     *
+     * @param wmi4java instance that executes the queries
+     * @param manifest queries to preload
+     * @return number of results loaded from the snapshot
+     */
+    public int preload(WMI4Java wmi4java, WMISnapshotManifest manifest) {
+        int loaded = 0;
+        try {
+            loaded = load();
+        } catch (WMIException ex) {
+            Logger.getLogger(WMI4Java.class.getName()).log(Level.WARNING, "Cannot load WMI snapshot " + file, ex);
+        }
+        for (WMIQuery query : manifest.getQueries()) {
+            cache.getInBackground(wmi4java, query);
+        }
+        return loaded;
+    }
+
+    /**
+     * Puts the results of the snapshot in the cache, already expired
+     *
+     * @return number of loaded results. 0 if there is no snapshot
+     * @throws WMIException if the snapshot cannot be read
+     */
+    public int load() throws WMIException {
+        if (!file.isFile()) {
+            return 0;
+        }
+        try {
+            // Read on the heap: a mapping would keep the file locked on Windows until collected
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            if (in.remaining() < 12 || in.getInt() != MAGIC) {
+                throw new WMIException("Not a WMI snapshot");
+            }
+            int version = in.getInt();
+            if (version != VERSION) {
+                throw new WMIException("Unsupported WMI snapshot version: " + version);
+            }
+            int count = readCount(in);
+            long now = System.nanoTime();
+            int loaded = 0;
+            for (int i = 0; i < count; i++) {
+                int engine = in.get();
+                if (engine < 0 || engine >= WMIEngine.values().length) {
+                    throw new WMIException("Unknown engine: " + engine);
+                }
+                WMIQuery query = readQuery(in);
+                WMIResultSet result = readResultSet(in);
+                long ttl = cache.ttlOf(query);
+                if (ttl > 0) {
+                    cache.put(new WMIQueryKey(WMIEngine.values()[engine], query), result, now - ttl);
+                    loaded++;
+                }
+            }
+            return loaded;
+        } catch (IOException | RuntimeException ex) {
+            throw new WMIException("Cannot read WMI snapshot " + file, ex);
+        }
+    }
+
+    /**
+     * Saves the cached results of the manifest queries, replacing the previous
+     * snapshot
+     *
+     * @param wmi4java instance that executes the queries
+     * @param manifest queries to save
+     * @return number of saved results
+     * @throws WMIException if the snapshot cannot be written
+     */
+    public int save(WMI4Java wmi4java, WMISnapshotManifest manifest) throws WMIException {
+        List<WMIQueryKey> keys = new ArrayList<>();
+        List<WMIResultSet> results = new ArrayList<>();
+        for (WMIQuery query : manifest.getQueries()) {
+            WMIQueryKey key = new WMIQueryKey(wmi4java.getEngine(), query);
+            WMIResultSet result = cache.peek(key);
+            if (result != null) {
+                keys.add(key);
+                results.add(result);
+            }
+        }
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        File tempFile = null;
+        try {
+            tempFile = File.createTempFile(file.getName(), ".tmp", parent);
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(keys.size());
+                for (int i = 0; i < keys.size(); i++) {
+                    out.writeByte(keys.get(i).getEngine().ordinal());
+                    writeQuery(out, keys.get(i).getQuery());
+                    writeResultSet(out, keys.get(i).getQuery(), results.get(i));
+                }
+            }
+            try {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            return keys.size();
+        } catch (IOException ex) {
+            throw new WMIException("Cannot write WMI snapshot " + file, ex);
+        } finally {
+            if (tempFile != null && tempFile.exists() && !tempFile.delete()) {
+                tempFile.deleteOnExit();
+            }
+        }
+    }
+
+    private static void writeQuery(DataOutputStream out, WMIQuery query) throws IOException {
+        writeString(out, query.getWMIClass());
+        writeString(out, query.getNamespace());
+        writeString(out, query.getComputerName());
+        writeStrings(out, query.getProperties());
+        writeStrings(out, query.getFilters());
+        out.writeInt(query.getLimit());
+    }
+
+    private static WMIQuery readQuery(ByteBuffer in) {
+        String wmiClass = readString(in);
+        String namespace = readString(in);
+        String computerName = readString(in);
+        List<String> properties = readStrings(in);
+        List<String> filters = readStrings(in);
+        int limit = in.getInt();
+        return new WMIQuery(wmiClass, namespace, computerName, properties, filters, limit);
+    }
+
+    private static void writeResultSet(DataOutputStream out, WMIQuery query, WMIResultSet result)
+            throws IOException {
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        try (WMIColumnarWriter writer = new WMIColumnarWriter(block)) {
+            writer.write(query.getComputerName(), query.getWMIClass(), result);
+        }
+        out.writeInt(block.size());
+        block.writeTo(out);
+    }
+
+    private static WMIResultSet readResultSet(ByteBuffer in) {
+        int length = readCount(in);
+        WMIColumnarReader reader = new WMIColumnarReader(
+                new ByteArrayInputStream(in.array(), in.position(), length), length);
+        WMIColumnarReader.Block block = reader.next();
+        if (block == null) {
+            throw new WMIException("Missing result block");
+        }
+        in.position(in.position() + length);
+        return block.getResultSet();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length == -1) {
+            return null;
+        }
+        checkAvailable(in, length);
+        String value = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    private static void writeStrings(DataOutputStream out, List<String> values) throws IOException {
+        if (values == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(values.size());
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    private static List<String> readStrings(ByteBuffer in) {
+        int count = in.getInt();
+        if (count == -1) {
+            return null;
+        }
+        // Each string takes at least its length
+        checkAvailable(in, 4L * count);
+        List<String> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(readString(in));
+        }
+        return values;
+    }
+
+    /**
+     * Reads a count or length that must fit in the rest of the snapshot
+     */
+    private static int readCount(ByteBuffer in) {
+        int count = in.getInt();
+        checkAvailable(in, count);
+        return count;
+    }
+
+    private static void checkAvailable(ByteBuffer in, long bytes) {
+        if (bytes < 0 || bytes > in.remaining()) {
+            throw new WMIException("Corrupt WMI snapshot: " + bytes + " bytes expected at " + in.position()
+                    + ", " + in.remaining() + " left");
+        }
+    }
+}
@@ -29,38 +29,121 @@ interface WMIStub extends AutoCloseable {
     abstract void close() throws WMIException;
 
     /**
-     * List all the WMI classes for the required namespace/computername
+     * List all the WMI classes for the required namespace/computername. Each
+     * class is returned once as an object with the properties Name and
+     * SuperClass
      * 
      * @param namespace the namespace 
      * @param computerName the computer name
-     * @return String with all the raw information returned after the query
+     * @return the found classes
      * @throws WMIException 
      */
-    String listClasses(String namespace, String computerName) throws WMIException;
+    WMIResultSet listClasses(String namespace, String computerName) throws WMIException;
 
     /**
-     * List all elements of the selected WMI class for the required namespace/computername
-     * 
-     * @param wmiClass the name of the queried wmi class
-     * @param namespace the namespace 
-     * @param computerName the computer name     
+     * Describes all the WMI classes for the required namespace/computername.
+     * Each class is returned as an object with the properties Name,
+     * SuperClass, Keys and Properties, the last two separated by commas
+     *
+     * @param namespace the namespace
+     * @param computerName the computer name
+     * @return the class definitions
+     * @throws WMIException
+     */
+    WMIResultSet listClassDefinitions(String namespace, String computerName) throws WMIException;
+
+    /**
+     * Executes a compiled query, using the command or script already rendered
+     * for this engine
+     *
+     * @param query the compiled query
+     * @param token token that aborts the running command when cancelled. It can be null
      * @return String with all the raw information returned after the query
-     * @throws WMIException 
+     * @throws WMIException
      */
-    String listObject(String wmiClass, String namespace, String computerName) throws WMIException;
+    String executeQuery(WMIQuery query, WMICancellationToken token) throws WMIException;
 
     /**
-     * Queries a WMI class getting specific properties and applying filters
+     * Executes a compiled query and parses its output. Engines that can read
+     * their output progressively parse it while it is produced
+     *
+     * @param query the compiled query
+     * @param token token that aborts the running command when cancelled. It can be null
+     * @return the found objects
+     * @throws WMIException
+     */
+    WMIResultSet executeQueryResultSet(WMIQuery query, WMICancellationToken token) throws WMIException;
+
+    /**
+     * Gets a single instance from its object path, without enumerating its
+     * class. Namespace, computer name and properties are taken from the query
+     *
+     * @param query the compiled query
+     * @param objectPath relative path of the instance
+     * @return the instance or an empty result if it does not exist
+     * @throws WMIException
+     */
+    WMIResultSet getInstance(WMIQuery query, String objectPath) throws WMIException;
+
+    /**
+     * Runs ASSOCIATORS OF or REFERENCES OF for several source instances in a
+     * single round trip. The class of the query is the result class;
+     * namespace, computer name and properties are also taken from it
+     *
+     * @param query the compiled query on the result class
+     * @param objectPaths relative paths of the source instances
+     * @param references true for REFERENCES OF, false for ASSOCIATORS OF
+     * @return the related objects of each source, in the same order
+     * @throws WMIException
+     */
+    List<WMIResultSet> getRelated(WMIQuery query, List<String> objectPaths, boolean references)
+            throws WMIException;
+
+    /**
+     * Executes several compiled queries in a single round trip
+     *
+     * @param queries the compiled queries
+     * @return the found objects of each query, in the same order
+     * @throws WMIException
+     */
+    List<WMIResultSet> executeBatch(List<WMIQuery> queries) throws WMIException;
+
+    /**
+     * Invokes several WMI methods in a single round trip. A failed invocation
+     * does not stop the following ones
      *
-     * @param wmiClass the name of the queried wmi class
-     * @param wmiProperties properties to return
-     * @param conditions conditions to meet
      * @param namespace the namespace
-     * @param computerName the computer name     
-     * @return String with all the raw information returned after the query
+     * @param computerName the computer name
+     * @param calls the method invocations
+     * @return the return code of each invocation, in the same order. The WMI
+     *         error code (negative) for invocations that could not run
+     * @throws WMIException
+     */
+    List<Integer> invokeMethods(String namespace, String computerName, List<WMIMethodCall> calls)
+            throws WMIException;
+
+    /**
+     * Executes a compiled query handing each parsed value to a handler, with
+     * no result set built
+     *
+     * @param query the compiled query
+     * @param handler receives the values
+     * @param token token that aborts the running command when cancelled. It can be null
+     * @throws WMIException
+     */
+    void executeQuery(WMIQuery query, WMIOutputParser.RecordHandler handler, WMICancellationToken token)
+            throws WMIException;
+
+    /**
+     * Opens a forward-only cursor over the objects of a query. The enumerator
+     * is kept alive inside the engine between fetches
+     *
+     * @param query the compiled query
+     * @param batchSize maximum number of objects returned by each fetch
+     * @return the open cursor
      * @throws WMIException
      */
-    String queryObject(String wmiClass, List<String> wmiProperties, List<String> conditions, String namespace, String computerName) throws WMIException;
+    WMICursor openCursor(WMIQuery query, int batchSize) throws WMIException;
 
     /**
      * List all properties of the selected WMI class for the required namespace/computername
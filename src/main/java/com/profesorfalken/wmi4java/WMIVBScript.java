@@ -19,9 +19,12 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -37,6 +40,27 @@ class WMIVBScript implements WMIStub {
 
     private static final String CRLF = "\r\n";
 
+    // Maximum time a script is allowed to run before being killed
+    private static final long MAX_WAIT = 120000;
+
+    private static final String CURSOR_NEXT = "NEXT";
+    private static final String CURSOR_BATCH_END = "WMI4JAVA_BATCH_END";
+    private static final String CURSOR_END = "WMI4JAVA_CURSOR_END";
+
+    // Writes a field as a framed record (see WMIOutputParser). Appended once to every script
+    private static final String FRAME_SUB = "Sub Wmi4JavaWriteField(name, value)" + CRLF
+            + "Dim text" + CRLF
+            + "If IsArray(value) Then" + CRLF
+            + "text = Join(value, \"|\")" + CRLF
+            + "ElseIf IsNull(value) Then" + CRLF
+            + "text = \"\"" + CRLF
+            + "Else" + CRLF
+            + "text = CStr(value)" + CRLF
+            + "End If" + CRLF
+            + "text = Replace(Replace(Replace(text, \"\\\", \"\\\\\"), vbCr, \"\\r\"), vbLf, \"\\n\")" + CRLF
+            + "Wscript.Echo \"#F\" & Len(name) & \",\" & Len(text) & \":\" & name & text" + CRLF
+            + "End Sub" + CRLF;
+
     private WMIVBScript() {}
 
     static WMIStub openSession() {
@@ -49,44 +73,54 @@ class WMIVBScript implements WMIStub {
     }
 
     private static String executeScript(String scriptCode) throws WMIException {
-        String scriptResponse = "";
+        return executeScript(scriptCode, null);
+    }
+
+    private static String executeScript(String scriptCode, WMICancellationToken token) throws WMIException {
+        return executeScript(scriptCode, new ScriptOutputReader<String>() {
+            @Override
+            public String read(Reader output) throws IOException {
+                StringBuilder scriptResponse = new StringBuilder();
+                BufferedReader processOutput = new BufferedReader(output);
+                String line;
+                while ((line = processOutput.readLine()) != null) {
+                    if (!line.isEmpty()) {
+                        scriptResponse.append(line).append(CRLF);
+                    }
+                }
+                return scriptResponse.toString().trim();
+            }
+        }, token);
+    }
+
+    /**
+     * Runs a script handing its standard output to the given reader while the
+     * process is still writing it
+     */
+    private static <T> T executeScript(String scriptCode, final ScriptOutputReader<T> outputReader,
+            WMICancellationToken token) throws WMIException {
         File tmpFile = null;
         FileWriter writer = null;
-        BufferedReader errorOutput = null;
 
         try {
             tmpFile = File.createTempFile("wmi4java" + new Date().getTime(), ".vbs");
             writer = new FileWriter(tmpFile);
             writer.write(scriptCode);
+            writer.write(FRAME_SUB);
             writer.flush();
             writer.close();
 
-            Process process = Runtime.getRuntime().exec(
-                    new String[]{"cmd.exe", "/C", "cscript.exe", "/NoLogo", tmpFile.getAbsolutePath()});
-            BufferedReader processOutput
-                    = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            String line;
-            while ((line = processOutput.readLine()) != null) {
-                if (!line.isEmpty()) {
-                    scriptResponse += line + CRLF;
-                }
-            }
-
-            if (scriptResponse.isEmpty()) {
-                errorOutput
-                        = new BufferedReader(new InputStreamReader(process.getInputStream()));
-                String errorResponse = "";
-                while ((line = errorOutput.readLine()) != null) {
-                    if (!line.isEmpty()) {
-                        errorResponse += line + CRLF;
-                    }
-                }
-                if (!errorResponse.isEmpty()) {
-                    throw new WMIException("WMI operation finished in error: "
-                            + errorResponse);
-                }
-            }
-
+            // cscript is launched directly (not through cmd.exe) so killing it on timeout really stops the script
+            return WMIProcessSupervisor.run(
+                    new String[]{"cscript.exe", "/NoLogo", tmpFile.getAbsolutePath()}, MAX_WAIT,
+                    new WMIProcessSupervisor.OutputConsumer<T>() {
+                        @Override
+                        public T consume(Reader output) throws IOException {
+                            return outputReader.read(output);
+                        }
+                    }, token);
+        } catch (WMIException ex) {
+            throw ex;
         } catch (Exception ex) {
             throw new WMIException(ex.getMessage(), ex);
         } finally {
@@ -97,41 +131,123 @@ class WMIVBScript implements WMIStub {
                 if (tmpFile != null) {
                     tmpFile.delete();
                 }
-                if (errorOutput != null) {
-                    errorOutput.close();
-                }
             } catch (IOException ioe) {
                 Logger.getLogger(WMI4Java.class.getName()).log(Level.SEVERE, "Exception closing in finally", ioe);
             }
         }
-        return scriptResponse.trim();
     }
 
-    public String listClasses(String namespace, String computerName) throws WMIException {
+    /**
+     * Consumes the standard output of the script process
+     */
+    private interface ScriptOutputReader<T> {
 
-        try {
-            StringBuilder scriptCode = new StringBuilder(200);
+        T read(Reader output) throws IOException;
+    }
 
-            String namespaceCommand = ROOT_CIMV2;
-            if (!"*".equals(namespace)) {
-                namespaceCommand = namespace;
+    private static final ScriptOutputReader<String> TEXT_READER = new ScriptOutputReader<String>() {
+        @Override
+        public String read(Reader output) throws IOException {
+            StringBuilder text = new StringBuilder();
+            char[] chunk = new char[8192];
+            int read;
+            while ((read = output.read(chunk)) >= 0) {
+                text.append(chunk, 0, read);
             }
+            return text.toString();
+        }
+    };
 
-            scriptCode.append(IMPERSONATION_VARIABLE)
-                    .append(computerName).append("/").append(namespaceCommand).append("\")").append(CRLF);
+    // Script output is parsed while cscript is still enumerating the objects
+    private static final ScriptOutputReader<WMIResultSet> RESULT_SET_READER = new ScriptOutputReader<WMIResultSet>() {
+        @Override
+        public WMIResultSet read(Reader output) throws IOException {
+            return WMIOutputParser.parse(output);
+        }
+    };
 
-            scriptCode.append("Set colClasses = objWMIService.SubclassesOf()").append(CRLF);
+    public WMIResultSet listClasses(String namespace, String computerName) throws WMIException {
+        return executeScript(renderListClasses(namespace, computerName), RESULT_SET_READER, null);
+    }
 
-            scriptCode.append("For Each objClass in colClasses").append(CRLF);
-            scriptCode.append("For Each objClassQualifier In objClass.Qualifiers_").append(CRLF);
-            scriptCode.append("WScript.Echo objClass.Path_.Class").append(CRLF);
-            scriptCode.append("Next").append(CRLF);
-            scriptCode.append("Next").append(CRLF);
+    static String renderListClasses(String namespace, String computerName) {
+        StringBuilder scriptCode = new StringBuilder(512);
+        appendClassEnumeration(scriptCode, namespace, computerName);
 
-            return executeScript(scriptCode.toString());
-        } catch (Exception ex) {
-            throw new WMIException(ex.getMessage(), ex);
+        scriptCode.append("superClass = objClass.SystemProperties_(\"__SUPERCLASS\").Value").append(CRLF);
+        scriptCode.append("If IsNull(superClass) Then superClass = \"\"").append(CRLF);
+        scriptCode.append("className = objClass.Path_.Class").append(CRLF);
+        appendErrorCheck(scriptCode);
+        scriptCode.append("Wscript.Echo \"Name: \" & className").append(CRLF);
+        scriptCode.append("Wscript.Echo \"SuperClass: \" & superClass").append(CRLF);
+        scriptCode.append("Wscript.Echo").append(CRLF);
+        appendClassEnumerationEnd(scriptCode);
+
+        return scriptCode.toString();
+    }
+
+    /**
+     * Starts a script looping over all the classes of the namespace. The
+     * enumeration is forward-only and returns immediately, so classes are
+     * echoed while the provider is still sending them. Errors are resumed
+     * only to be reported: the script exits in error instead of echoing a
+     * partial list
+     */
+    private static void appendClassEnumeration(StringBuilder scriptCode, String namespace, String computerName) {
+        String namespaceCommand = ROOT_CIMV2;
+        if (!"*".equals(namespace)) {
+            namespaceCommand = namespace;
         }
+
+        scriptCode.append("On Error Resume Next").append(CRLF);
+        scriptCode.append(IMPERSONATION_VARIABLE)
+                .append(computerName).append("/").append(namespaceCommand).append("\")").append(CRLF);
+        appendErrorCheck(scriptCode);
+        scriptCode.append("Set colClasses = objWMIService.SubclassesOf(\"\", 48)").append(CRLF);
+        appendErrorCheck(scriptCode);
+        scriptCode.append("For Each objClass In colClasses").append(CRLF);
+        // A failed enumeration step resumes inside the loop
+        appendErrorCheck(scriptCode);
+    }
+
+    private static void appendClassEnumerationEnd(StringBuilder scriptCode) {
+        scriptCode.append("Next").append(CRLF);
+        appendErrorCheck(scriptCode);
+    }
+
+    private static void appendErrorCheck(StringBuilder scriptCode) {
+        scriptCode.append("If Err.Number <> 0 Then").append(CRLF)
+                .append("WScript.StdErr.WriteLine Err.Description").append(CRLF)
+                .append("WScript.Quit 1").append(CRLF)
+                .append("End If").append(CRLF);
+    }
+
+    public WMIResultSet listClassDefinitions(String namespace, String computerName) throws WMIException {
+        StringBuilder scriptCode = new StringBuilder(1024);
+        appendClassEnumeration(scriptCode, namespace, computerName);
+
+        scriptCode.append("classKeys = \"\"").append(CRLF);
+        scriptCode.append("classProperties = \"\"").append(CRLF);
+        scriptCode.append("For Each objClassProperty In objClass.Properties_").append(CRLF);
+        scriptCode.append("classProperties = classProperties & \",\" & objClassProperty.Name").append(CRLF);
+        // Looking the key qualifier up fails when the property does not have it
+        scriptCode.append("Err.Clear").append(CRLF);
+        scriptCode.append("isKey = objClassProperty.Qualifiers_(\"key\").Value").append(CRLF);
+        scriptCode.append("If Err.Number = 0 Then classKeys = classKeys & \",\" & objClassProperty.Name").append(CRLF);
+        scriptCode.append("Err.Clear").append(CRLF);
+        scriptCode.append("Next").append(CRLF);
+        scriptCode.append("superClass = objClass.SystemProperties_(\"__SUPERCLASS\").Value").append(CRLF);
+        scriptCode.append("If IsNull(superClass) Then superClass = \"\"").append(CRLF);
+        scriptCode.append("className = objClass.Path_.Class").append(CRLF);
+        appendErrorCheck(scriptCode);
+        scriptCode.append("Wscript.Echo \"Name: \" & className").append(CRLF);
+        scriptCode.append("Wscript.Echo \"SuperClass: \" & superClass").append(CRLF);
+        scriptCode.append("Wscript.Echo \"Keys: \" & Mid(classKeys, 2)").append(CRLF);
+        scriptCode.append("Wscript.Echo \"Properties: \" & Mid(classProperties, 2)").append(CRLF);
+        scriptCode.append("Wscript.Echo").append(CRLF);
+        appendClassEnumerationEnd(scriptCode);
+
+        return executeScript(scriptCode.toString(), RESULT_SET_READER, null);
     }
 
     public String listProperties(String wmiClass, String namespace, String computerName) throws WMIException {
@@ -158,53 +274,427 @@ class WMIVBScript implements WMIStub {
         }
     }
 
-    public String listObject(String wmiClass, String namespace, String computerName) throws WMIException {
-        return queryObject(wmiClass, null, null, namespace, computerName);
+    public String executeQuery(WMIQuery query, WMICancellationToken token) throws WMIException {
+        return executeScript(query.getVBScript(), token);
+    }
+
+    public WMIResultSet executeQueryResultSet(WMIQuery query, WMICancellationToken token) throws WMIException {
+        return executeScript(query.getFramedVBScript(), RESULT_SET_READER, token);
+    }
+
+    public WMIResultSet getInstance(WMIQuery query, String objectPath) throws WMIException {
+        return executeScript(renderGetInstance(query, objectPath), RESULT_SET_READER, null);
+    }
+
+    /**
+     * Renders the script fetching an instance with GetObject. A missing
+     * instance (wbemErrNotFound) gives no output
+     */
+    static String renderGetInstance(WMIQuery query, String objectPath) {
+        String namespaceCommand = ROOT_CIMV2;
+        if (!"*".equals(query.getNamespace())) {
+            namespaceCommand = query.getNamespace();
+        }
+
+        StringBuilder scriptCode = new StringBuilder(512);
+        scriptCode.append("On Error Resume Next").append(CRLF);
+        scriptCode.append("Set element = GetObject(\"winmgmts:{impersonationLevel=impersonate}!\\\\")
+                .append(query.getComputerName()).append("/").append(namespaceCommand).append(":")
+                .append(objectPath.replace("\"", "\"\"")).append("\")").append(CRLF);
+        scriptCode.append("If Err.Number = &H80041002 Then WScript.Quit 0").append(CRLF);
+        scriptCode.append("If Err.Number <> 0 Then").append(CRLF)
+                .append("WScript.StdErr.WriteLine Err.Description").append(CRLF)
+                .append("WScript.Quit 1").append(CRLF)
+                .append("End If").append(CRLF);
+        scriptCode.append("On Error GoTo 0").append(CRLF);
+        appendFrameProperties(scriptCode, query);
+        return scriptCode.toString();
+    }
+
+    public List<WMIResultSet> getRelated(WMIQuery query, List<String> objectPaths, boolean references)
+            throws WMIException {
+        String output = executeScript(renderRelated(query, objectPaths, references), TEXT_READER, null);
+        return WMIOutputParser.parseSections(output, WMIOutputParser.SECTION_MARKER, objectPaths.size());
+    }
+
+    /**
+     * Renders a loop running ASSOCIATORS OF or REFERENCES OF for each source
+     * instance, each output preceded by a section marker
+     */
+    static String renderRelated(WMIQuery query, List<String> objectPaths, boolean references) {
+        String namespaceCommand = ROOT_CIMV2;
+        if (!"*".equals(query.getNamespace())) {
+            namespaceCommand = query.getNamespace();
+        }
+
+        StringBuilder scriptCode = new StringBuilder(512 + objectPaths.size() * 64);
+        scriptCode.append(IMPERSONATION_VARIABLE)
+                .append(query.getComputerName()).append("/").append(namespaceCommand).append("\")").append(CRLF);
+        scriptCode.append("Dim sources(").append(objectPaths.size() - 1).append(")").append(CRLF);
+        for (int i = 0; i < objectPaths.size(); i++) {
+            scriptCode.append("sources(").append(i).append(") = \"")
+                    .append(objectPaths.get(i).replace("\"", "\"\"")).append("\"").append(CRLF);
+        }
+        scriptCode.append("For sourceIndex = 0 To UBound(sources)").append(CRLF);
+        scriptCode.append("Wscript.Echo \"").append(WMIOutputParser.SECTION_MARKER).append(" \" & sourceIndex")
+                .append(CRLF);
+        scriptCode.append("Set wmiQueryData = objWMIService.ExecQuery(\"")
+                .append(references ? "REFERENCES" : "ASSOCIATORS")
+                .append(" OF {\" & sources(sourceIndex) & \"} WHERE ResultClass = ").append(query.getWMIClass())
+                .append("\", \"WQL\", 48)").append(CRLF);
+        scriptCode.append("For Each element In wmiQueryData").append(CRLF);
+        appendFrameProperties(scriptCode, query);
+        scriptCode.append("Next").append(CRLF);
+        scriptCode.append("Next").append(CRLF);
+        return scriptCode.toString();
+    }
+
+    public List<WMIResultSet> executeBatch(List<WMIQuery> queries) throws WMIException {
+        return WMIOutputParser.parseSections(executeScript(renderBatch(queries), TEXT_READER, null),
+                WMIOutputParser.SECTION_MARKER, queries.size());
+    }
+
+    /**
+     * Renders the scripts of several queries one after the other, each output
+     * preceded by a section marker
+     */
+    static String renderBatch(List<WMIQuery> queries) {
+        StringBuilder scriptCode = new StringBuilder(queries.size() * 512);
+        for (int i = 0; i < queries.size(); i++) {
+            scriptCode.append("Wscript.Echo \"").append(WMIOutputParser.SECTION_MARKER).append(' ').append(i)
+                    .append("\"").append(CRLF);
+            scriptCode.append(queries.get(i).getFramedVBScript());
+        }
+        return scriptCode.toString();
+    }
+
+    public List<Integer> invokeMethods(String namespace, String computerName, List<WMIMethodCall> calls)
+            throws WMIException {
+        String output = executeScript(renderInvokeMethods(namespace, computerName, calls), TEXT_READER, null);
+        return WMIMethodCall.returnCodes(calls,
+                WMIOutputParser.parseSections(output, WMIOutputParser.SECTION_MARKER, calls.size()));
+    }
+
+    /**
+     * Renders the invocations of several methods with ExecMethod_, each
+     * output preceded by a section marker. A failed invocation writes its
+     * error number as return value and a method without return value writes
+     * the void marker. A section left empty is reported as a failure
+     */
+    static String renderInvokeMethods(String namespace, String computerName, List<WMIMethodCall> calls) {
+        String namespaceCommand = ROOT_CIMV2;
+        if (!"*".equals(namespace)) {
+            namespaceCommand = namespace;
+        }
+
+        String voidMarker = "Wscript.Echo \"" + WMIMethodCall.VOID_PROPERTY + ": " + WMIMethodCall.VOID_MARKER + "\"";
+        StringBuilder scriptCode = new StringBuilder(256 + calls.size() * 512);
+        scriptCode.append("On Error Resume Next").append(CRLF);
+        scriptCode.append(IMPERSONATION_VARIABLE)
+                .append(computerName).append("/").append(namespaceCommand).append("\")").append(CRLF);
+        scriptCode.append("If Err.Number <> 0 Then").append(CRLF)
+                .append("WScript.StdErr.WriteLine Err.Description").append(CRLF)
+                .append("WScript.Quit 1").append(CRLF)
+                .append("End If").append(CRLF);
+        for (int i = 0; i < calls.size(); i++) {
+            WMIMethodCall call = calls.get(i);
+            String method = call.getMethod().replace("\"", "\"\"");
+            scriptCode.append("Wscript.Echo \"").append(WMIOutputParser.SECTION_MARKER).append(' ').append(i)
+                    .append("\"").append(CRLF);
+            scriptCode.append("Err.Clear").append(CRLF);
+            scriptCode.append("Set outParams = Nothing").append(CRLF);
+            scriptCode.append("Set element = objWMIService.Get(\"")
+                    .append(call.getTarget().replace("\"", "\"\"")).append("\")").append(CRLF);
+            scriptCode.append("Set inParams = Nothing").append(CRLF);
+            if (!call.getArguments().isEmpty()) {
+                // Skipped when the target is not found, so its error is the one reported
+                scriptCode.append("If Err.Number = 0 Then").append(CRLF);
+                scriptCode.append("Set inParams = element.Methods_(\"").append(method)
+                        .append("\").InParameters.SpawnInstance_").append(CRLF);
+                for (Map.Entry<String, Object> argument : call.getArguments().entrySet()) {
+                    scriptCode.append("inParams.Properties_.Item(\"")
+                            .append(argument.getKey().replace("\"", "\"\"")).append("\") = ")
+                            .append(renderValue(argument.getValue())).append(CRLF);
+                }
+                scriptCode.append("End If").append(CRLF);
+            }
+            scriptCode.append("If Err.Number = 0 Then Set outParams = element.ExecMethod_(\"").append(method)
+                    .append("\", inParams)").append(CRLF);
+            scriptCode.append("If Err.Number <> 0 Then").append(CRLF)
+                    .append("Wscript.Echo \"ReturnValue: \" & Err.Number").append(CRLF)
+                    .append("ElseIf outParams Is Nothing Then").append(CRLF)
+                    .append(voidMarker).append(CRLF)
+                    .append("Else").append(CRLF)
+                    // Looking the property up fails when the method has no return value
+                    .append("returnValue = outParams.Properties_.Item(\"ReturnValue\").Value").append(CRLF)
+                    .append("If Err.Number <> 0 Then").append(CRLF)
+                    .append(voidMarker).append(CRLF)
+                    .append("ElseIf Not IsNull(returnValue) Then").append(CRLF)
+                    .append("Wscript.Echo \"ReturnValue: \" & returnValue").append(CRLF)
+                    .append("End If").append(CRLF)
+                    .append("End If").append(CRLF);
+        }
+        return scriptCode.toString();
+    }
+
+    private static String renderValue(Object value) {
+        if (value instanceof Boolean) {
+            return (Boolean) value ? "True" : "False";
+        }
+        if (value instanceof Number) {
+            return value.toString();
+        }
+        return "\"" + value.toString().replace("\"", "\"\"") + "\"";
+    }
+
+    public void executeQuery(WMIQuery query, final WMIOutputParser.RecordHandler handler,
+            WMICancellationToken token) throws WMIException {
+        executeScript(query.getFramedVBScript(), new ScriptOutputReader<Void>() {
+            @Override
+            public Void read(Reader output) throws IOException {
+                WMIOutputParser.parse(output, handler);
+                return null;
+            }
+        }, token);
     }
 
-    public String queryObject(String wmiClass, List<String> wmiProperties, List<String> conditions, String namespace, String computerName) throws WMIException {
-        List<String> usedWMIProperties;
+    public WMICursor openCursor(WMIQuery query, int batchSize) throws WMIException {
+        return new VBScriptCursor(query, batchSize);
+    }
+
+    /**
+     * Renders the VB script for a query.<p>
+     *
+     * When no properties are required, the script iterates over the properties
+     * of each object instead of asking first for the list of properties of the
+     * class.
+     *
+     * @param query the compiled query
+     * @return the script code
+     */
+    static String renderQuery(WMIQuery query) {
+        return renderQuery(query, false);
+    }
+
+    /**
+     * Renders the VB script for a query whose output is parsed, writing
+     * framed records
+     *
+     * @param query the compiled query
+     * @return the script code
+     */
+    static String renderFramedQuery(WMIQuery query) {
+        return renderQuery(query, true);
+    }
+
+    private static String renderQuery(WMIQuery query, boolean framed) {
+        StringBuilder scriptCode = new StringBuilder(200);
+
+        // Forward-only and semisynchronous (48) so objects are sent while they are enumerated
+        appendExecQuery(scriptCode, query, ", \"WQL\", 48");
+        scriptCode.append("elementCount = 0").append(CRLF);
+        scriptCode.append("For Each element In wmiQueryData").append(CRLF);
+        if (framed) {
+            appendFrameProperties(scriptCode, query);
+        } else {
+            appendEchoProperties(scriptCode, query);
+        }
+        appendLimitCheck(scriptCode, query);
+        scriptCode.append("Next").append(CRLF);
+
+        return scriptCode.toString();
+    }
+
+    /**
+     * Renders the script of a cursor. The script waits for a NEXT line in its
+     * standard input before sending each batch of objects.
+     */
+    static String renderCursorScript(WMIQuery query, int batchSize) {
+        StringBuilder scriptCode = new StringBuilder(200);
+
+        // Forward-only and semisynchronous (48) so objects are enumerated while they are requested
+        appendExecQuery(scriptCode, query, ", \"WQL\", 48");
+        scriptCode.append("elementCount = 0").append(CRLF);
+        scriptCode.append("batchCount = 0").append(CRLF);
+        scriptCode.append("If WScript.StdIn.ReadLine <> \"").append(CURSOR_NEXT).append("\" Then WScript.Quit").append(CRLF);
+        scriptCode.append("For Each element In wmiQueryData").append(CRLF);
+        appendFrameProperties(scriptCode, query);
+        appendLimitCheck(scriptCode, query);
+        scriptCode.append("batchCount = batchCount + 1").append(CRLF);
+        scriptCode.append("If batchCount = ").append(batchSize).append(" Then").append(CRLF);
+        scriptCode.append("batchCount = 0").append(CRLF);
+        scriptCode.append("Wscript.Echo \"").append(CURSOR_BATCH_END).append("\"").append(CRLF);
+        scriptCode.append("If WScript.StdIn.ReadLine <> \"").append(CURSOR_NEXT).append("\" Then WScript.Quit").append(CRLF);
+        scriptCode.append("End If").append(CRLF);
+        scriptCode.append("Next").append(CRLF);
+        scriptCode.append("Wscript.Echo \"").append(CURSOR_END).append("\"").append(CRLF);
+
+        return scriptCode.toString();
+    }
+
+    /**
+     * Stops the enumeration once the limit of the query is reached
+     */
+    private static void appendLimitCheck(StringBuilder scriptCode, WMIQuery query) {
+        if (query.getLimit() > 0) {
+            scriptCode.append("elementCount = elementCount + 1").append(CRLF);
+            scriptCode.append("If elementCount >= ").append(query.getLimit()).append(" Then Exit For").append(CRLF);
+        }
+    }
+
+    private static void appendExecQuery(StringBuilder scriptCode, WMIQuery query, String extraArguments) {
+        String namespaceCommand = ROOT_CIMV2;
+        if (!"*".equals(query.getNamespace())) {
+            namespaceCommand = query.getNamespace();
+        }
+
+        scriptCode.append(IMPERSONATION_VARIABLE)
+                .append(query.getComputerName()).append("/").append(namespaceCommand).append("\")").append(CRLF);
+
+        scriptCode.append("Set wmiQueryData = objWMIService.ExecQuery(\"Select ").append("*").append(" from ")
+                .append(query.getWMIClass());
+        List<String> conditions = query.getFilters();
+        if (conditions != null && !conditions.isEmpty()) {
+            scriptCode.append(" where ").append(WMI4JavaUtil.join(" AND ", conditions));
+        }
+        scriptCode.append("\"").append(extraArguments).append(")").append(CRLF);
+    }
+
+    /**
+     * Echoes the properties of the current element followed by an empty line
+     */
+    private static void appendEchoProperties(StringBuilder scriptCode, WMIQuery query) {
+        List<String> wmiProperties = query.getProperties();
         if (wmiProperties == null || wmiProperties.isEmpty()) {
-            usedWMIProperties = WMI4Java.get().VBSEngine().computerName(computerName).namespace(namespace).listProperties(wmiClass);
+            scriptCode.append("For Each elementProperty In element.Properties_").append(CRLF);
+            scriptCode.append("If IsArray(elementProperty.Value) Then").append(CRLF);
+            scriptCode.append("Wscript.Echo elementProperty.Name & \": \" & Join(elementProperty.Value, \"|\")").append(CRLF);
+            scriptCode.append("Else").append(CRLF);
+            scriptCode.append("Wscript.Echo elementProperty.Name & \": \" & elementProperty.Value").append(CRLF);
+            scriptCode.append("End If").append(CRLF);
+            scriptCode.append("Next").append(CRLF);
         } else {
-            usedWMIProperties = wmiProperties;
+            for (final String wmiProperty : wmiProperties) {
+                if (!wmiProperty.equals("ConfigOptions")) {
+                    scriptCode.append("Wscript.Echo \"").append(wmiProperty)
+                            .append(": \" & ").append("element.").append(wmiProperty).append(CRLF);
+                } else {
+                    //Fix for ConfigOptions that is a Variant Array
+                    scriptCode.append("Wscript.Echo \"").append(wmiProperty)
+                            .append(": \" & ").append("Join(element.").append(wmiProperty).append(", \"|\")").append(CRLF);
+                }
+            }
         }
-        try {
-            StringBuilder scriptCode = new StringBuilder(200);
+    }
 
-            String namespaceCommand = ROOT_CIMV2;
-            if (!"*".equals(namespace)) {
-                namespaceCommand = namespace;
+    /**
+     * Writes the properties of the current element as a framed record. Values
+     * are written by the shared Wmi4JavaWriteField Sub
+     */
+    private static void appendFrameProperties(StringBuilder scriptCode, WMIQuery query) {
+        List<String> wmiProperties = query.getProperties();
+        if (wmiProperties == null || wmiProperties.isEmpty()) {
+            scriptCode.append("Wscript.Echo \"#R\" & element.Properties_.Count").append(CRLF);
+            scriptCode.append("For Each elementProperty In element.Properties_").append(CRLF);
+            scriptCode.append("Wmi4JavaWriteField elementProperty.Name, elementProperty.Value").append(CRLF);
+            scriptCode.append("Next").append(CRLF);
+        } else {
+            scriptCode.append("Wscript.Echo \"#R").append(wmiProperties.size()).append("\"").append(CRLF);
+            for (final String wmiProperty : wmiProperties) {
+                scriptCode.append("Wmi4JavaWriteField \"").append(wmiProperty).append("\", element.")
+                        .append(wmiProperty).append(CRLF);
             }
+        }
+        scriptCode.append("Wscript.Echo \"#E\"").append(CRLF);
+    }
 
-            scriptCode.append(IMPERSONATION_VARIABLE)
-                    .append(computerName).append("/").append(namespaceCommand).append("\")").append(CRLF);
+    /**
+     * Cursor backed by a running cscript process that sends a batch of objects
+     * each time it is asked to
+     */
+    static final class VBScriptCursor implements WMICursor {
+
+        private final File scriptFile;
+        private final WMIProcessSupervisor.SupervisedProcess process;
+        private final BufferedReader output;
+        private boolean more = true;
+
+        VBScriptCursor(WMIQuery query, int batchSize) throws WMIException {
+            this(writeCursorScript(query, batchSize), "cscript.exe", "/NoLogo");
+        }
 
-            scriptCode.append("Set colClasses = objWMIService.SubclassesOf()").append(CRLF);
+        /**
+         * Runs an already written script with the given interpreter. The
+         * script is deleted when the cursor is closed
+         */
+        VBScriptCursor(File scriptFile, String... interpreter) throws WMIException {
+            this.scriptFile = scriptFile;
+            String[] command = Arrays.copyOf(interpreter, interpreter.length + 1);
+            command[interpreter.length] = scriptFile.getAbsolutePath();
+            process = WMIProcessSupervisor.start(command);
+            output = new BufferedReader(process.getOutput());
+        }
 
-            scriptCode.append("Set wmiQueryData = objWMIService.ExecQuery(\"Select ").append("*").append(" from ")
-                    .append(wmiClass);
-            if (conditions != null && !conditions.isEmpty()) {
-                scriptCode.append(" where ").append(WMI4JavaUtil.join(" AND ", conditions));
+        private static File writeCursorScript(WMIQuery query, int batchSize) throws WMIException {
+            if (batchSize <= 0) {
+                throw new WMIException("Batch size must be positive: " + batchSize);
             }
-            scriptCode.append("\")").append(CRLF);
-            scriptCode.append("For Each element In wmiQueryData").append(CRLF);
-            for (final String wmiProperty : usedWMIProperties) {
-            	if (!wmiProperty.equals("ConfigOptions")) {
-	                scriptCode.append("Wscript.Echo \"").append(wmiProperty)
-	                        .append(": \" & ").append("element.").append(wmiProperty).append(CRLF);
-            	} else {
-            		//Fix for ConfigOptions that is a Variant Array
-            		scriptCode.append("Wscript.Echo \"").append(wmiProperty)
-                    .append(": \" & ").append("Join(element.").append(wmiProperty).append(", \"|\")").append(CRLF);
-            	}
+            try {
+                File scriptFile = File.createTempFile("wmi4java" + new Date().getTime(), ".vbs");
+                try (FileWriter writer = new FileWriter(scriptFile)) {
+                    writer.write(renderCursorScript(query, batchSize));
+                    writer.write(FRAME_SUB);
+                }
+                return scriptFile;
+            } catch (IOException ex) {
+                throw new WMIException(ex.getMessage(), ex);
             }
-            scriptCode.append("Next").append(CRLF);
+        }
 
-            return executeScript(scriptCode.toString());
-        } catch (Exception ex) {
-            throw new WMIException(ex.getMessage(), ex);
+        @Override
+        public boolean hasMore() {
+            return more;
         }
-    }
 
+        @Override
+        public WMIResultSet fetch() throws WMIException {
+            if (!more) {
+                return WMIOutputParser.parse("");
+            }
+            String batch = process.call(new Callable<String>() {
+                @Override
+                public String call() throws IOException {
+                    process.getInput().write(CURSOR_NEXT + CRLF);
+                    process.getInput().flush();
+
+                    StringBuilder batch = new StringBuilder();
+                    String line;
+                    while ((line = output.readLine()) != null) {
+                        if (CURSOR_BATCH_END.equals(line)) {
+                            return batch.toString();
+                        }
+                        if (CURSOR_END.equals(line)) {
+                            more = false;
+                            return batch.toString();
+                        }
+                        batch.append(line).append(CRLF);
+                    }
+                    more = false;
+                    return batch.toString();
+                }
+            }, MAX_WAIT);
+            if (!more) {
+                process.checkErrors();
+                close();
+            }
+            return WMIOutputParser.parse(batch);
+        }
+
+        @Override
+        public void close() throws WMIException {
+            more = false;
+            process.close();
+            scriptFile.delete();
+        }
+    }
 }
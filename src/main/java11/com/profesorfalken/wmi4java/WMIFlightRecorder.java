@@ -0,0 +1,200 @@
+/*
+ * Copyright 2016 Javier Garcia Alonso.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.profesorfalken.wmi4java;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events of WMI4Java, all of them in the "WMI4Java"
+ * category. Only loaded through {@link WMIEvents} when JFR is available.
+ *
+ * @author Javier Garcia Alonso
+ */
+final class WMIFlightRecorder implements WMIEvents.Recorder {
+
+    private static final String CATEGORY = "WMI4Java";
+
+    @Name("wmi4java.Query")
+    @Label("WMI Query")
+    @Category(CATEGORY)
+    @Description("Execution of a WMI query, from the request to the parsed output")
+    static final class QueryEvent extends Event {
+
+        @Label("Class")
+        String wmiClass;
+
+        @Label("Namespace")
+        String namespace;
+
+        @Label("Host")
+        String host;
+
+        @Label("Engine")
+        String engine;
+
+        @Label("Rows")
+        @Description("Objects returned, or -1 when the raw output is returned")
+        long rows;
+
+        @Label("Output Size")
+        @DataAmount
+        long bytes;
+
+        @Label("Error")
+        String error;
+    }
+
+    @Name("wmi4java.SessionOpened")
+    @Label("WMI Session Opened")
+    @Category(CATEGORY)
+    static final class SessionOpenedEvent extends Event {
+
+        @Label("Engine")
+        String engine;
+
+        @Label("Host")
+        String host;
+    }
+
+    @Name("wmi4java.SessionClosed")
+    @Label("WMI Session Closed")
+    @Category(CATEGORY)
+    static final class SessionClosedEvent extends Event {
+
+        @Label("Engine")
+        String engine;
+
+        @Label("Host")
+        String host;
+    }
+
+    @Name("wmi4java.SessionReused")
+    @Label("WMI Session Reused")
+    @Category(CATEGORY)
+    @Description("A pooled session runs another request")
+    static final class SessionReusedEvent extends Event {
+
+        @Label("Engine")
+        String engine;
+
+        @Label("Host")
+        String host;
+    }
+
+    @Name("wmi4java.ProcessSpawned")
+    @Label("WMI Process Spawned")
+    @Category(CATEGORY)
+    static final class ProcessSpawnedEvent extends Event {
+
+        @Label("Executable")
+        String executable;
+    }
+
+    @Name("wmi4java.ProcessTimedOut")
+    @Label("WMI Process Timed Out")
+    @Category(CATEGORY)
+    @Description("A process was killed because it did not finish on time")
+    static final class ProcessTimedOutEvent extends Event {
+
+        @Label("Executable")
+        String executable;
+
+        @Label("Timeout")
+        @Timespan(Timespan.MILLISECONDS)
+        long timeout;
+    }
+
+    @Override
+    public Object beginQuery() {
+        QueryEvent event = new QueryEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endQuery(Object started, WMIEngine engine, WMIQuery query, long rows, long bytes, Throwable error) {
+        QueryEvent event = (QueryEvent) started;
+        event.end();
+        if (event.shouldCommit()) {
+            event.wmiClass = query.getWMIClass();
+            event.namespace = query.getNamespace();
+            event.host = query.getComputerName();
+            event.engine = engine.name();
+            event.rows = rows;
+            event.bytes = bytes;
+            event.error = error != null ? error.getMessage() : null;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void sessionOpened(WMIEngine engine, String host) {
+        SessionOpenedEvent event = new SessionOpenedEvent();
+        if (event.shouldCommit()) {
+            event.engine = engine.name();
+            event.host = host;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void sessionClosed(WMIEngine engine, String host) {
+        SessionClosedEvent event = new SessionClosedEvent();
+        if (event.shouldCommit()) {
+            event.engine = engine.name();
+            event.host = host;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void sessionReused(WMIEngine engine, String host) {
+        SessionReusedEvent event = new SessionReusedEvent();
+        if (event.shouldCommit()) {
+            event.engine = engine.name();
+            event.host = host;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void processSpawned(String executable) {
+        ProcessSpawnedEvent event = new ProcessSpawnedEvent();
+        if (event.shouldCommit()) {
+            event.executable = executable;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void processTimedOut(String executable, long timeoutMillis) {
+        ProcessTimedOutEvent event = new ProcessTimedOutEvent();
+        if (event.shouldCommit()) {
+            event.executable = executable;
+            event.timeout = timeoutMillis;
+            event.commit();
+        }
+    }
+}
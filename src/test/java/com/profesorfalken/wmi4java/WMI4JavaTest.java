@@ -9,7 +9,9 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -227,4 +229,93 @@ public class WMI4JavaTest {
                     .equals(queryResultVBSLines[queryResultVBSLines.length - 1].replaceAll("\\s+","")));*/
         }
     }
+
+    /**
+     * Test that a connection runs on the engine selected in its WMI4Java
+     */
+    @Test
+    public void testConnectionUsesConfiguredEngine() {
+        // The VBS engine opens no process until a script is run
+        try (WMI4Java.WMIConnection connection = WMI4Java.get().VBSEngine().openConnection()) {
+            assertEquals(WMIEngine.VBSCRIPT, connection.getEngine());
+        }
+        if (OSDetector.isWindows()) {
+            try (WMI4Java.WMIConnection connection = WMI4Java.get().openConnection()) {
+                assertEquals(WMIEngine.POWERSHELL, connection.getEngine());
+            }
+        }
+    }
+
+    /**
+     * Test that the listed classes are sorted with their superclass, as
+     * written by both engines
+     */
+    @Test
+    public void testClassHierarchyIsParsed() {
+        WMIResultSet vbsClasses = WMIOutputParser.parse("Name: Win32_Process\r\nSuperClass: CIM_Process\r\n\r\n"
+                + "Name: __SystemClass\r\nSuperClass: \r\n\r\n"
+                + "Name: CIM_Process\r\nSuperClass: CIM_LogicalElement\r\n\r\n"
+                + "Name: CIM_ManagedSystemElement\r\nSuperClass: \r\n\r\n");
+        WMIResultSet psClasses = WMIOutputParser.parse("Name : Win32_Process\nSuperClass : CIM_Process\n\n"
+                + "Name : __SystemClass\nSuperClass : \n\n"
+                + "Name : CIM_Process\nSuperClass : CIM_LogicalElement\n\n"
+                + "Name : CIM_ManagedSystemElement\nSuperClass : \n\n");
+
+        for (WMIResultSet classes : Arrays.asList(vbsClasses, psClasses)) {
+            Map<String, String> hierarchy = WMI4Java.classHierarchy(classes);
+            assertEquals(Arrays.asList("CIM_ManagedSystemElement", "CIM_Process", "Win32_Process"),
+                    Arrays.asList(hierarchy.keySet().toArray()));
+            assertEquals("CIM_Process", hierarchy.get("Win32_Process"));
+            assertTrue(hierarchy.containsKey("CIM_ManagedSystemElement"));
+            assertNull(hierarchy.get("CIM_ManagedSystemElement"));
+        }
+    }
+
+    /**
+     * Test that a failure while listing classes is reported instead of
+     * giving a partial list
+     */
+    @Test
+    public void testClassListingErrorsAreReported() {
+        String script = WMIVBScript.renderListClasses("root/cimv2", ".");
+        int loop = script.indexOf("For Each objClass In colClasses");
+        int echo = script.indexOf("Wscript.Echo", loop);
+        int end = script.indexOf("Next", echo);
+        assertTrue(script.indexOf("If Err.Number <> 0 Then", loop) < echo);
+        assertTrue(script.indexOf("WScript.Quit 1", end) > end);
+
+        String[] process = WMIPowerShell.renderStreamingProcess(WMIPowerShell.renderListClasses("root/cimv2", ""));
+        String command = new String(Base64.getDecoder().decode(process[process.length - 1]),
+                StandardCharsets.UTF_16LE);
+        assertTrue(command.startsWith("$ErrorActionPreference = 'Stop'; Get-WMIObject "));
+        assertTrue(command.contains("-List"));
+
+        if (OSDetector.isUnix()) {
+            try {
+                WMIPowerShell.streamOutput(new String[]{"sh", "-c",
+                        "printf 'Name : Win32_Process\\nSuperClass : CIM_Process\\n\\n'; "
+                        + "echo 'Access denied' >&2; exit 1"});
+                fail("A listing ending in error should fail");
+            } catch (WMIException ex) {
+                assertTrue(ex.getMessage(), ex.getMessage().contains("Access denied"));
+            }
+        }
+    }
+
+    /**
+     * Test that the PowerShell class listing is parsed from the output of its
+     * own process
+     */
+    @Test
+    public void testPowerShellClassListingIsStreamed() {
+        if (OSDetector.isUnix()) {
+            WMIResultSet classes = WMIPowerShell.streamOutput(new String[]{"sh", "-c",
+                    "i=0; while [ $i -lt 1000 ]; do printf 'Name : Class%d\\nSuperClass : \\n\\n' $i; "
+                    + "i=$((i+1)); done"});
+            assertEquals(1000, classes.size());
+            Map<String, String> hierarchy = WMI4Java.classHierarchy(classes);
+            assertEquals(1000, hierarchy.size());
+            assertTrue(hierarchy.containsKey("Class999"));
+        }
+    }
 }
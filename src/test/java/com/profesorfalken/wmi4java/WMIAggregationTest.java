@@ -0,0 +1,157 @@
+package com.profesorfalken.wmi4java;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for WMIAggregation
+ *
+ * @author Javier Garcia Alonso
+ */
+public class WMIAggregationTest {
+
+    private static final String RAW_OUTPUT = "Name           : svchost.exe\r\n"
+            + "WorkingSetSize : 1000\r\n"
+            + "ThreadCount    : 4\r\n"
+            + "\r\n"
+            + "Name           : explorer.exe\r\n"
+            + "WorkingSetSize : 5000\r\n"
+            + "ThreadCount    : 30\r\n"
+            + "\r\n"
+            + "Name           : svchost.exe\r\n"
+            + "WorkingSetSize : 3000\r\n"
+            + "ThreadCount    : n/a\r\n"
+            + "\r\n"
+            + "WorkingSetSize : -200\r\n"
+            + "ThreadCount    : 1";
+
+    @Test
+    public void testGroupedAggregates() {
+        WMIAggregation aggregation = new WMIAggregation().groupBy("Name").count()
+                .sum("WorkingSetSize").max("WorkingSetSize").min("ThreadCount");
+        assertEquals(Arrays.asList("Name", "WorkingSetSize", "ThreadCount"), aggregation.getProperties());
+
+        WMIAggregation.Accumulator accumulator = aggregation.newAccumulator();
+        WMIOutputParser.parse(RAW_OUTPUT, accumulator);
+        WMIAggregation.Result result = accumulator.result();
+
+        assertEquals(3, result.getGroups().size());
+        WMIAggregation.Group svchost = result.getGroups().get(0);
+        assertEquals("svchost.exe", svchost.getKey());
+        assertEquals(2, svchost.getCount());
+        assertEquals(BigInteger.valueOf(4000), svchost.getSum("WorkingSetSize"));
+        assertEquals(BigInteger.valueOf(3000), svchost.getMax("WorkingSetSize"));
+        assertEquals(1, svchost.getCount("ThreadCount"));
+        assertEquals(BigInteger.valueOf(4), svchost.getMin("ThreadCount"));
+
+        WMIAggregation.Group withoutName = result.getGroup(null);
+        assertEquals(1, withoutName.getCount());
+        assertEquals(BigInteger.valueOf(-200), withoutName.getSum("WorkingSetSize"));
+        assertEquals(BigInteger.valueOf(30), result.getGroup("explorer.exe").getMin("ThreadCount"));
+        assertNull(result.getGroup("System"));
+    }
+
+    @Test
+    public void testAggregatesWhileReading() throws IOException {
+        StringBuilder output = new StringBuilder();
+        for (int i = 1; i <= 20000; i++) {
+            output.append("ProcessId : ").append(i).append("\r\nName : p").append(i % 3).append("\r\n\r\n");
+        }
+        WMIAggregation.Accumulator accumulator = new WMIAggregation()
+                .count().sum("ProcessId").min("ProcessId").max("ProcessId").newAccumulator();
+        WMIOutputParser.parse(new StringReader(output.toString()), accumulator);
+        WMIAggregation.Result result = accumulator.result();
+
+        assertEquals(1, result.getGroups().size());
+        WMIAggregation.Group all = result.getGroups().get(0);
+        assertNull(all.getKey());
+        assertEquals(20000, all.getCount());
+        assertEquals(BigInteger.valueOf(20000L * 20001 / 2), all.getSum("ProcessId"));
+        assertEquals(BigInteger.ONE, all.getMin("ProcessId"));
+        assertEquals(BigInteger.valueOf(20000), all.getMax("ProcessId"));
+    }
+
+    @Test(expected = WMIException.class)
+    public void testNotAggregatedProperty() {
+        WMIAggregation.Accumulator accumulator = new WMIAggregation().count().newAccumulator();
+        WMIOutputParser.parse(RAW_OUTPUT, accumulator);
+        assertEquals(4, accumulator.result().getGroups().get(0).getCount());
+        accumulator.result().getGroups().get(0).getSum("WorkingSetSize");
+    }
+
+    @Test
+    public void testOnlyRequestedAggregatesCanBeRead() {
+        WMIAggregation.Accumulator accumulator = new WMIAggregation().groupBy("Name")
+                .sum("WorkingSetSize").newAccumulator();
+        WMIOutputParser.parse(RAW_OUTPUT, accumulator);
+        WMIAggregation.Group svchost = accumulator.result().getGroup("svchost.exe");
+
+        assertEquals(BigInteger.valueOf(4000), svchost.getSum("WorkingSetSize"));
+        assertEquals(2, svchost.getCount("WorkingSetSize"));
+        try {
+            svchost.getMax("WorkingSetSize");
+            fail("The maximum was not requested");
+        } catch (WMIException ex) {
+            assertTrue(ex.getMessage().contains("WorkingSetSize"));
+        }
+        try {
+            svchost.getCount();
+            fail("The objects were not counted");
+        } catch (WMIException ex) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testUnsignedLongValuesAreExact() {
+        String output = "Id : 1\r\nCapacity : 18446744073709551615\r\n\r\n"
+                + "Id : 1\r\nCapacity : 18446744073709551614\r\n\r\n"
+                + "Id : 2\r\nCapacity : 9000000000000000000\r\n\r\n"
+                + "Id : 2\r\nCapacity : 9000000000000000000\r\n\r\n"
+                + "Id : 3\r\nCapacity : -5\r\n\r\n"
+                + "Id : 3\r\nCapacity : 99999999999999999999999\r\n\r\n";
+        WMIAggregation.Accumulator accumulator = new WMIAggregation().groupBy("Id")
+                .sum("Capacity").min("Capacity").max("Capacity").newAccumulator();
+        WMIOutputParser.parse(output, accumulator);
+        WMIAggregation.Result result = accumulator.result();
+
+        WMIAggregation.Group unsigned = result.getGroup("1");
+        assertEquals(new BigInteger("36893488147419103229"), unsigned.getSum("Capacity"));
+        assertEquals(new BigInteger("18446744073709551614"), unsigned.getMin("Capacity"));
+        assertEquals(new BigInteger("18446744073709551615"), unsigned.getMax("Capacity"));
+
+        // Each value fits in a long, their sum does not
+        WMIAggregation.Group overflow = result.getGroup("2");
+        assertEquals(new BigInteger("18000000000000000000"), overflow.getSum("Capacity"));
+        assertEquals(new BigInteger("9000000000000000000"), overflow.getMin("Capacity"));
+
+        WMIAggregation.Group mixed = result.getGroup("3");
+        assertEquals(new BigInteger("99999999999999999999994"), mixed.getSum("Capacity"));
+        assertEquals(BigInteger.valueOf(-5), mixed.getMin("Capacity"));
+        assertEquals(new BigInteger("99999999999999999999999"), mixed.getMax("Capacity"));
+        assertEquals(2, mixed.getCount("Capacity"));
+    }
+
+    @Test
+    public void testQuerySelectsAggregatedProperties() {
+        WMIAggregation aggregation = new WMIAggregation().groupBy("Name").sum("WorkingSetSize");
+
+        WMIQuery all = WMI4Java.get().compile("Win32_Process");
+        assertEquals(Arrays.asList("Name", "WorkingSetSize"),
+                WMI4Java.aggregatedQuery(all, aggregation).getProperties());
+
+        WMIQuery selected = WMI4Java.get().properties(Arrays.asList("name", "ProcessId")).compile("Win32_Process");
+        assertEquals(Arrays.asList("name", "ProcessId", "WorkingSetSize"),
+                WMI4Java.aggregatedQuery(selected, aggregation).getProperties());
+
+        WMIQuery complete = WMI4Java.get().properties(Arrays.asList("Name", "WorkingSetSize"))
+                .compile("Win32_Process");
+        assertSame(complete, WMI4Java.aggregatedQuery(complete, aggregation));
+    }
+}
@@ -0,0 +1,85 @@
+package com.profesorfalken.wmi4java;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for WMIClassIndex
+ *
+ * @author Javier Garcia Alonso
+ */
+public class WMIClassIndexTest {
+
+    private static WMIClassIndex index() {
+        return new WMIClassIndex(WMIOutputParser.parse(
+                "Name : __SystemClass\nSuperClass : \nKeys : \nProperties : \n\n"
+                + "Name : CIM_ManagedSystemElement\nSuperClass : \nKeys : \nProperties : Caption,Name\n\n"
+                + "Name : CIM_LogicalDevice\nSuperClass : CIM_ManagedSystemElement\nKeys : DeviceID\n"
+                + "Properties : Caption,DeviceID,Name\n\n"
+                + "Name : Win32_PerfRawData_Tcpip_TCPv4\nSuperClass : Win32_PerfRawData\nKeys : \n"
+                + "Properties : Caption\n\n"
+                + "Name : Win32_PerfRawData\nSuperClass : \nKeys : \nProperties : Caption\n\n"
+                + "Name : Win32_Processor\nSuperClass : CIM_Processor\nKeys : DeviceID\n"
+                + "Properties : DeviceID,Name,NumberOfCores\n\n"
+                + "Name : CIM_Processor\nSuperClass : CIM_LogicalDevice\nKeys : DeviceID\n"
+                + "Properties : DeviceID,Name\n"));
+    }
+
+    private static List<String> names(List<WMIClassInfo> classes) {
+        List<String> names = new ArrayList<>();
+        for (WMIClassInfo info : classes) {
+            names.add(info.getName());
+        }
+        return names;
+    }
+
+    @Test
+    public void testClassesAreSortedAndSearchable() {
+        WMIClassIndex index = index();
+
+        assertEquals(Arrays.asList("CIM_LogicalDevice", "CIM_ManagedSystemElement", "CIM_Processor",
+                "Win32_PerfRawData", "Win32_PerfRawData_Tcpip_TCPv4", "Win32_Processor"), index.getClassNames());
+        assertEquals(Arrays.asList("Win32_PerfRawData_Tcpip_TCPv4"), names(index.findByPrefix("win32_perfrawdata_")));
+        assertEquals(Arrays.asList("CIM_Processor", "Win32_Processor"), names(index.findBySubstring("PROCESSOR")));
+        assertEquals(Arrays.asList("DeviceID"), index.get("win32_processor").getKeyProperties());
+        assertNull(index.get("__SystemClass"));
+    }
+
+    @Test
+    public void testHierarchy() {
+        WMIClassIndex index = index();
+
+        assertEquals(Arrays.asList("CIM_LogicalDevice", "CIM_Processor", "Win32_Processor"),
+                names(index.getDescendants("CIM_ManagedSystemElement")));
+        assertEquals(Arrays.asList("CIM_Processor", "CIM_LogicalDevice", "CIM_ManagedSystemElement"),
+                names(index.getSuperClasses("Win32_Processor")));
+        assertNull(index.get("CIM_ManagedSystemElement").getSuperClass());
+    }
+
+    @Test
+    public void testIndexIsBuiltOnceUntilInvalidated() {
+        final AtomicInteger builds = new AtomicInteger();
+        Callable<WMIClassIndex> builder = new Callable<WMIClassIndex>() {
+            @Override
+            public WMIClassIndex call() {
+                builds.incrementAndGet();
+                return index();
+            }
+        };
+
+        WMIClassIndex first = WMIClassIndex.get(WMIEngine.POWERSHELL, "test-host", "root/cimv2", builder);
+        assertSame(first, WMIClassIndex.get(WMIEngine.POWERSHELL, "TEST-HOST", "root\\CIMV2", builder));
+        assertEquals(1, builds.get());
+
+        WMIClassIndex.invalidate("test-host", "root/cimv2");
+        assertNotSame(first, WMIClassIndex.get(WMIEngine.POWERSHELL, "test-host", "root/cimv2", builder));
+        assertEquals(2, builds.get());
+    }
+}
@@ -0,0 +1,69 @@
+package com.profesorfalken.wmi4java;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for WMIColumnarWriter and WMIColumnarReader
+ *
+ * @author Javier Garcia Alonso
+ */
+public class WMIColumnarTest {
+
+    @Test
+    public void testRoundTrip() {
+        WMIResultSet processes = WMIOutputParser.parse("Name : svchost.exe\nProcessId : 812\n\n"
+                + "Name : svchost.exe\nProcessId : -4\nCommandLine : C:\\Windows\\system32\\svchost.exe -k\n\n"
+                + "Name : java.exe\nProcessId : 0012\n");
+        List<Map<String, String>> services = new ArrayList<>();
+        Map<String, String> service = new HashMap<>();
+        service.put("Name", "Spooler");
+        service.put("State", "Running");
+        services.add(service);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (WMIColumnarWriter writer = new WMIColumnarWriter(bytes)) {
+            writer.write("host1", "Win32_Process", processes);
+            writer.write("host2", "Win32_Service", services);
+        }
+
+        try (WMIColumnarReader reader = new WMIColumnarReader(new ByteArrayInputStream(bytes.toByteArray()))) {
+            WMIColumnarReader.Block block = reader.next();
+            assertEquals("host1", block.getHost());
+            assertEquals("Win32_Process", block.getWMIClass());
+            assertEquals(processes.toMapList(), block.getResultSet().toMapList());
+            assertNull(block.getResultSet().get(0).get("CommandLine"));
+
+            block = reader.next();
+            assertEquals("Win32_Service", block.getWMIClass());
+            assertEquals(services, block.getResultSet().toMapList());
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    public void testRepeatedValuesAreWrittenOnce() {
+        List<Map<String, String>> objects = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            Map<String, String> object = new HashMap<>();
+            object.put("Manufacturer", "Intel Corporation with a rather long manufacturer name");
+            object.put("Index", Integer.toString(i));
+            objects.add(object);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (WMIColumnarWriter writer = new WMIColumnarWriter(bytes)) {
+            writer.write(".", "Win32_Processor", objects);
+        }
+
+        assertTrue(bytes.size() < 4000);
+    }
+}
@@ -0,0 +1,246 @@
+package com.profesorfalken.wmi4java;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for WMIConnectionPool
+ *
+ * @author Javier Garcia Alonso
+ */
+public class WMIConnectionPoolTest {
+
+    // The VBS engine opens no process until a script is run
+    private static final WMI4Java ENGINE = WMI4Java.get().VBSEngine();
+
+    private static WMIConnectionPool.Operation<String> record(final List<String> order, final String name) {
+        return new WMIConnectionPool.Operation<String>() {
+            @Override
+            public String run(WMI4Java.WMIConnection connection, WMICancellationToken token) {
+                order.add(name);
+                return name;
+            }
+        };
+    }
+
+    private static WMIConnectionPool.Operation<String> block(final CountDownLatch running,
+            final CountDownLatch release) {
+        return new WMIConnectionPool.Operation<String>() {
+            @Override
+            public String run(WMI4Java.WMIConnection connection, WMICancellationToken token) {
+                running.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    throw new WMICancelledException("interrupted", ex);
+                }
+                return "blocker";
+            }
+        };
+    }
+
+    private static void awaitQueued(WMIConnectionPool pool, int queued) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.getQueuedCount() < queued && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(queued, pool.getQueuedCount());
+    }
+
+    @Test
+    public void testPriorityThenArrivalOrder() throws Exception {
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        ExecutorService callers = Executors.newCachedThreadPool();
+        try (final WMIConnectionPool pool = new WMIConnectionPool(ENGINE, 1, 10)) {
+            CountDownLatch running = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            Future<String> blocker = submit(callers, pool, WMIConnectionPool.DEFAULT_PRIORITY, block(running, release));
+            assertTrue(running.await(5, TimeUnit.SECONDS));
+
+            List<Future<String>> results = new ArrayList<>();
+            String[] names = {"low-1", "high", "low-2", "normal"};
+            int[] priorities = {-1, WMIConnectionPool.HIGH_PRIORITY, -1, WMIConnectionPool.DEFAULT_PRIORITY};
+            for (int i = 0; i < names.length; i++) {
+                results.add(submit(callers, pool, priorities[i], record(order, names[i])));
+                awaitQueued(pool, i + 1);
+            }
+            assertEquals(1, pool.getActiveCount());
+
+            release.countDown();
+            assertEquals("blocker", blocker.get(5, TimeUnit.SECONDS));
+            for (int i = 0; i < names.length; i++) {
+                assertEquals(names[i], results.get(i).get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(java.util.Arrays.asList("high", "normal", "low-1", "low-2"), order);
+            assertEquals(5, pool.getCompletedCount());
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testQueueIsBounded() throws Exception {
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        ExecutorService callers = Executors.newCachedThreadPool();
+        try (final WMIConnectionPool pool = new WMIConnectionPool(ENGINE, 1, 1)) {
+            CountDownLatch running = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            Future<String> blocker = submit(callers, pool, 0, block(running, release));
+            assertTrue(running.await(5, TimeUnit.SECONDS));
+
+            Future<String> queued = submit(callers, pool, 0, record(order, "queued"));
+            awaitQueued(pool, 1);
+            Future<String> waiting = submit(callers, pool, 0, record(order, "waiting"));
+            try {
+                waiting.get(200, TimeUnit.MILLISECONDS);
+                fail("The caller should wait for room in the queue");
+            } catch (TimeoutException ex) {
+                assertEquals(1, pool.getQueuedCount());
+            }
+
+            release.countDown();
+            blocker.get(5, TimeUnit.SECONDS);
+            assertEquals("queued", queued.get(5, TimeUnit.SECONDS));
+            assertEquals("waiting", waiting.get(5, TimeUnit.SECONDS));
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testClosedPoolRejectsRequests() {
+        WMIConnectionPool pool = new WMIConnectionPool(ENGINE, 2, 4);
+        assertEquals("ok", pool.execute(record(new ArrayList<String>(), "ok")));
+        pool.close();
+        try {
+            pool.execute(record(new ArrayList<String>(), "late"));
+            fail("A closed pool should reject requests");
+        } catch (WMIException ex) {
+            assertEquals("Connection pool is closed", ex.getMessage());
+        }
+    }
+
+    @Test
+    public void testDrainResizeAndResetSessions() throws Exception {
+        ExecutorService callers = Executors.newCachedThreadPool();
+        try (final WMIConnectionPool pool = new WMIConnectionPool(ENGINE, 1, 4)) {
+            CountDownLatch running = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            Future<String> blocker = submit(callers, pool, 0, block(running, release));
+            assertTrue(running.await(5, TimeUnit.SECONDS));
+            Future<String> queued = submit(callers, pool, 0, record(new ArrayList<String>(), "queued"));
+            awaitQueued(pool, 1);
+
+            assertEquals(1, pool.drain());
+            try {
+                queued.get(5, TimeUnit.SECONDS);
+                fail("A drained request should fail");
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof WMIException);
+            }
+            assertEquals(0, pool.getQueuedCount());
+
+            // A new session runs requests while the first one is still busy
+            pool.setSessionCount(2);
+            assertEquals(2, pool.getSessionCount());
+            assertEquals("second", submit(callers, pool, 0, record(new ArrayList<String>(), "second"))
+                    .get(5, TimeUnit.SECONDS));
+            release.countDown();
+            blocker.get(5, TimeUnit.SECONDS);
+
+            // Back to a single session, which is reopened after a reset
+            pool.setSessionCount(1);
+            WMIConnectionPool.Operation<WMI4Java.WMIConnection> connection =
+                    new WMIConnectionPool.Operation<WMI4Java.WMIConnection>() {
+                        @Override
+                        public WMI4Java.WMIConnection run(WMI4Java.WMIConnection connection,
+                                WMICancellationToken token) {
+                            return connection;
+                        }
+                    };
+            WMI4Java.WMIConnection first = pool.execute(connection);
+            assertSame(first, pool.execute(connection));
+            pool.resetSessions();
+            assertNotSame(first, pool.execute(connection));
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testUnexpectedErrorReplacesTheSession() {
+        final List<WMI4Java.WMIConnection> connections = new ArrayList<>();
+        try (WMIConnectionPool pool = new WMIConnectionPool(ENGINE, 1, 10)) {
+            try {
+                pool.execute(new WMIConnectionPool.Operation<Void>() {
+                    @Override
+                    public Void run(WMI4Java.WMIConnection connection, WMICancellationToken token) {
+                        connections.add(connection);
+                        throw new AssertionError("broken session");
+                    }
+                });
+                fail("The error should reach the caller");
+            } catch (WMIException ex) {
+                assertTrue(ex.getCause() instanceof AssertionError);
+            }
+            pool.execute(new WMIConnectionPool.Operation<Void>() {
+                @Override
+                public Void run(WMI4Java.WMIConnection connection, WMICancellationToken token) {
+                    connections.add(connection);
+                    return null;
+                }
+            });
+            assertEquals(2, connections.size());
+            assertNotSame(connections.get(0), connections.get(1));
+            assertEquals(1, pool.getFailedCount());
+        }
+    }
+
+    @Test
+    public void testNoRequestIsLeftBehindByClose() throws Exception {
+        ExecutorService callers = Executors.newCachedThreadPool();
+        try {
+            for (int round = 0; round < 50; round++) {
+                WMIConnectionPool pool = new WMIConnectionPool(ENGINE, 1, 100);
+                List<Future<String>> results = new ArrayList<>();
+                for (int i = 0; i < 8; i++) {
+                    results.add(submit(callers, pool, WMIConnectionPool.DEFAULT_PRIORITY,
+                            record(Collections.synchronizedList(new ArrayList<String>()), "request")));
+                }
+                pool.close();
+                // Every request runs or fails, none waits forever in a closed queue
+                for (Future<String> result : results) {
+                    try {
+                        assertEquals("request", result.get(5, TimeUnit.SECONDS));
+                    } catch (ExecutionException ex) {
+                        assertTrue(ex.getCause() instanceof WMIException);
+                    }
+                }
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    private static <T> Future<T> submit(ExecutorService callers, final WMIConnectionPool pool, final int priority,
+            final WMIConnectionPool.Operation<T> operation) {
+        return callers.submit(new java.util.concurrent.Callable<T>() {
+            @Override
+            public T call() {
+                return pool.execute(priority, operation);
+            }
+        });
+    }
+}
@@ -0,0 +1,276 @@
+package com.profesorfalken.wmi4java;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for WMICrawler
+ *
+ * @author Javier Garcia Alonso
+ */
+public class WMICrawlerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testDecisionFollowsCostHistory() {
+        WMICrawler crawler = new WMICrawler(WMI4Java.get())
+                .slowThreshold(5, TimeUnit.SECONDS)
+                .skipAfterTimeouts(2, 3);
+        WMIClassCostHistory history = new WMIClassCostHistory();
+
+        assertEquals(WMICrawler.Decision.RUN, crawler.decide(history.get("Win32_BIOS")));
+
+        history.get("Win32_Product").completed(8000);
+        assertEquals(WMICrawler.Decision.DEFER, crawler.decide(history.get("Win32_Product")));
+
+        WMIClassCostHistory.Cost property = history.get("Win32_Property");
+        property.timedOut(60000);
+        assertEquals(WMICrawler.Decision.SAMPLE, crawler.decide(property));
+        property.timedOut(60000);
+        assertEquals(WMICrawler.Decision.SKIP, crawler.decide(property));
+        property.skipped();
+        assertEquals(WMICrawler.Decision.SKIP, crawler.decide(property));
+        property.skipped();
+        assertEquals(WMICrawler.Decision.SAMPLE, crawler.decide(property));
+
+        // Answering again ends the sampling, but it is still known to be slow
+        property.completed(100);
+        assertEquals(WMICrawler.Decision.DEFER, crawler.decide(property));
+    }
+
+    @Test
+    public void testCostHistoryIsPersisted() throws Exception {
+        File file = new File(folder.getRoot(), "costs.properties");
+        WMIClassCostHistory history = new WMIClassCostHistory();
+        history.get("Win32_Product").completed(8000);
+        history.get("Win32_COMClass").timedOut(60000);
+        history.save(file);
+
+        WMIClassCostHistory loaded = WMIClassCostHistory.load(file);
+        assertEquals(8000, loaded.get("Win32_Product").averageMillis);
+        assertEquals(1, loaded.get("Win32_COMClass").consecutiveTimeouts);
+        assertEquals(0, loaded.get("Win32_BIOS").runs);
+    }
+
+    @Test
+    public void testLimiterGrowsAdditivelyAndHalvesOnCongestion() throws Exception {
+        WMICrawler.Limiter limiter = new WMICrawler.Limiter(8);
+        assertEquals(4, limiter.getLimit());
+
+        // A round of fast queries as large as the limit adds one
+        for (int i = 0; i < 4; i++) {
+            limiter.acquire();
+            limiter.release(false);
+        }
+        assertEquals(5, limiter.getLimit());
+
+        limiter.acquire();
+        limiter.release(true);
+        assertEquals(2, limiter.getLimit());
+        limiter.acquire();
+        limiter.release(true);
+        limiter.acquire();
+        limiter.release(true);
+        assertEquals(1, limiter.getLimit());
+
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire();
+            limiter.release(false);
+        }
+        assertEquals(8, limiter.getLimit());
+    }
+
+    @Test
+    public void testInvalidSkipSettingsAreRejected() {
+        WMICrawler crawler = new WMICrawler(WMI4Java.get());
+        try {
+            crawler.skipAfterTimeouts(0, 10);
+            fail("No timeouts before skipping should be rejected");
+        } catch (WMIException ex) {
+            // Expected
+        }
+        try {
+            crawler.skipAfterTimeouts(3, 0);
+            fail("No crawls between retries should be rejected");
+        } catch (WMIException ex) {
+            // Expected
+        }
+    }
+
+    private static final class Recorder implements WMICrawler.Listener {
+
+        private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void onClass(String wmiClass, WMICrawler.Decision decision, WMIResultSet objects) {
+            events.add(wmiClass + " " + decision + " " + objects.size());
+        }
+
+        @Override
+        public void onFailure(String wmiClass, WMICrawler.Decision decision, WMIException error) {
+            events.add(wmiClass + " " + decision + " failed");
+        }
+
+        @Override
+        public void onSkipped(String wmiClass) {
+            events.add(wmiClass + " skipped");
+        }
+    }
+
+    @Test
+    public void testCrawlSamplesThenSkipsClassesThatTimeOut() {
+        File history = new File(folder.getRoot(), "costs.properties");
+        // The VBS engine opens no process until a script is run
+        WMICrawler crawler = new WMICrawler(WMI4Java.get().VBSEngine())
+                .maxConcurrency(2)
+                .classTimeout(100, TimeUnit.MILLISECONDS)
+                .sampleSize(1)
+                .skipAfterTimeouts(2, 10)
+                .costHistory(history)
+                .exclude("win32_excluded")
+                .classQuery(new WMICrawler.ClassQuery() {
+                    @Override
+                    public WMIResultSet run(WMI4Java.WMIConnection connection, WMIQuery query,
+                            WMICancellationToken token) {
+                        if (query.getWMIClass().equals("Win32_Hang")) {
+                            while (true) {
+                                token.throwIfCancelled();
+                                try {
+                                    Thread.sleep(5);
+                                } catch (InterruptedException ex) {
+                                    throw new WMICancelledException("interrupted", ex);
+                                }
+                            }
+                        }
+                        if (query.getWMIClass().equals("Win32_Broken")) {
+                            throw new WMIException("Invalid class");
+                        }
+                        return WMIOutputParser.parse("Name : " + query.getWMIClass() + "\n");
+                    }
+                });
+        List<String> classes = Arrays.asList("Win32_BIOS", "Win32_Hang", "Win32_Broken", "Win32_Excluded");
+
+        Recorder first = new Recorder();
+        WMICrawler.Summary summary = crawler.crawl(classes, first);
+        assertEquals(1, summary.getQueried());
+        assertEquals(1, summary.getTimedOut());
+        assertEquals(1, summary.getFailed());
+        assertTrue(first.events.containsAll(Arrays.asList(
+                "Win32_BIOS RUN 1", "Win32_Hang RUN failed", "Win32_Broken RUN failed")));
+        assertEquals(3, first.events.size());
+
+        Recorder second = new Recorder();
+        summary = crawler.crawl(classes, second);
+        assertTrue(second.events.contains("Win32_Hang SAMPLE failed"));
+        assertEquals(1, summary.getTimedOut());
+
+        Recorder third = new Recorder();
+        summary = crawler.crawl(classes, third);
+        assertTrue(third.events.contains("Win32_Hang skipped"));
+        assertEquals(1, summary.getSkipped());
+        assertEquals(0, summary.getTimedOut());
+    }
+
+    @Test
+    public void testEngineTimeoutCountsAsTimeout() {
+        final List<WMI4Java.WMIConnection> connections = Collections.synchronizedList(
+                new ArrayList<WMI4Java.WMIConnection>());
+        WMICrawler crawler = new WMICrawler(WMI4Java.get().VBSEngine())
+                .maxConcurrency(1)
+                .skipAfterTimeouts(1, 10)
+                .costHistory(new File(folder.getRoot(), "costs.properties"))
+                .classQuery(new WMICrawler.ClassQuery() {
+                    @Override
+                    public WMIResultSet run(WMI4Java.WMIConnection connection, WMIQuery query,
+                            WMICancellationToken token) {
+                        connections.add(connection);
+                        if (query.getWMIClass().equals("Win32_Slow")) {
+                            throw new WMITimeoutException("WMI operation timed out");
+                        }
+                        return WMIOutputParser.parse("Name : " + query.getWMIClass() + "\n");
+                    }
+                });
+        List<String> classes = Arrays.asList("Win32_Slow", "Win32_BIOS");
+
+        Recorder first = new Recorder();
+        WMICrawler.Summary summary = crawler.crawl(classes, first);
+        assertEquals(1, summary.getTimedOut());
+        assertEquals(0, summary.getFailed());
+        assertEquals(1, summary.getQueried());
+        // The session of the timed-out query is not reused
+        assertEquals(2, connections.size());
+        assertNotSame(connections.get(0), connections.get(1));
+
+        Recorder second = new Recorder();
+        summary = crawler.crawl(classes, second);
+        assertTrue(second.events.contains("Win32_Slow skipped"));
+        assertEquals(1, summary.getSkipped());
+    }
+
+    @Test
+    public void testInterruptedCrawlWaitsForRunningQueries() throws Exception {
+        final CountDownLatch running = new CountDownLatch(1);
+        final AtomicBoolean finished = new AtomicBoolean();
+        final WMICrawler crawler = new WMICrawler(WMI4Java.get().VBSEngine())
+                .maxConcurrency(1)
+                .classQuery(new WMICrawler.ClassQuery() {
+                    @Override
+                    public WMIResultSet run(WMI4Java.WMIConnection connection, WMIQuery query,
+                            WMICancellationToken token) {
+                        running.countDown();
+                        try {
+                            // Ignores the interruption for a while, like a query being cancelled
+                            long deadline = System.currentTimeMillis() + 300;
+                            while (System.currentTimeMillis() < deadline) {
+                                try {
+                                    Thread.sleep(deadline - System.currentTimeMillis());
+                                } catch (InterruptedException ex) {
+                                    // Keep going
+                                }
+                            }
+                            throw new WMICancelledException("interrupted");
+                        } finally {
+                            finished.set(true);
+                        }
+                    }
+                });
+
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread crawl = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    crawler.crawl(Arrays.asList("Win32_BIOS", "Win32_Process"), new Recorder());
+                } catch (Throwable ex) {
+                    error.set(ex);
+                    // Checked as soon as the crawl gives up
+                    if (!finished.get()) {
+                        error.set(new AssertionError("The crawl returned with a query running"));
+                    }
+                }
+            }
+        });
+        crawl.start();
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        crawl.interrupt();
+        crawl.join(5000);
+
+        assertFalse(crawl.isAlive());
+        assertTrue(String.valueOf(error.get()), error.get() instanceof WMICancelledException);
+    }
+}
@@ -0,0 +1,172 @@
+package com.profesorfalken.wmi4java;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for WMICursor
+ *
+ * @author Javier Garcia Alonso
+ */
+public class WMICursorTest {
+
+    /**
+     * PowerShell stub answering the commands with canned outputs
+     */
+    private static final class ScriptedPowerShell extends WMIPowerShell {
+
+        private final List<String> commands = new ArrayList<>();
+        private final Queue<String> outputs;
+
+        ScriptedPowerShell(String... outputs) {
+            super(null);
+            this.outputs = new LinkedList<>(Arrays.asList(outputs));
+        }
+
+        @Override
+        String executeCommand(String command, WMICancellationToken token) {
+            commands.add(command);
+            return outputs.isEmpty() ? "" : outputs.remove();
+        }
+    }
+
+    private static String record(String name) {
+        return "#R1\r\n#F4," + name.length() + ":Name" + name + "\r\n#E\r\n";
+    }
+
+    @Test
+    public void testPowerShellCursorFetchesBatches() {
+        WMIQuery query = WMI4Java.get().properties(Arrays.asList("Name")).compile(WMIClass.WIN32_PROCESS);
+        ScriptedPowerShell powerShell = new ScriptedPowerShell("",
+                record("a") + record("b"),
+                record("c") + "WMI4JAVA_CURSOR_END");
+
+        WMICursor cursor = powerShell.openCursor(query, 2);
+        String open = powerShell.commands.get(0);
+        assertTrue(open.contains("New-Object System.Management.ManagementObjectSearcher("
+                + "'\\\\.\\root\\cimv2', 'SELECT * FROM Win32_Process')"));
+        assertTrue(open.contains(".Options.BlockSize = 2; "));
+
+        WMIResultSet first = cursor.fetch();
+        assertEquals(2, first.size());
+        assertEquals("b", first.get(1).get("Name"));
+        assertTrue(cursor.hasMore());
+        assertTrue(powerShell.commands.get(1).contains("while ($wmi4javaBatch.Count -lt 2) { "));
+        assertTrue(powerShell.commands.get(1).contains("Select-Object Name -excludeproperty \"_*\" | Write-Wmi4JavaFrame"));
+
+        WMIResultSet last = cursor.fetch();
+        assertEquals(1, last.size());
+        assertEquals("c", last.get(0).get("Name"));
+        assertFalse(cursor.hasMore());
+        // The enumerator is released once the end is reached, and only once
+        assertTrue(powerShell.commands.get(3).contains(".Dispose(); "));
+        cursor.close();
+        assertEquals(4, powerShell.commands.size());
+        assertEquals(0, cursor.fetch().size());
+    }
+
+    @Test
+    public void testPowerShellCursorHonoursLimit() {
+        WMIQuery query = WMI4Java.get().limit(3).compile(WMIClass.WIN32_PROCESS);
+        ScriptedPowerShell powerShell = new ScriptedPowerShell("", record("a") + record("b"), record("c"));
+
+        WMICursor cursor = powerShell.openCursor(query, 2);
+        cursor.fetch();
+        assertEquals(1, cursor.fetch().size());
+        // Only the object still allowed by the limit is requested
+        assertTrue(powerShell.commands.get(2).contains("while ($wmi4javaBatch.Count -lt 1) { "));
+        assertFalse(cursor.hasMore());
+        assertTrue(powerShell.commands.get(3).contains("Remove-Variable -Name wmi4javaCursor"));
+    }
+
+    @Test
+    public void testPowerShellCursorClosedEarly() {
+        ScriptedPowerShell powerShell = new ScriptedPowerShell();
+        WMICursor cursor = powerShell.openCursor(WMI4Java.get().compile(WMIClass.WIN32_PROCESS), 10);
+        cursor.close();
+        assertFalse(cursor.hasMore());
+        assertEquals(2, powerShell.commands.size());
+        assertTrue(powerShell.commands.get(1).contains(".Dispose(); "));
+
+        try {
+            powerShell.openCursor(WMI4Java.get().compile(WMIClass.WIN32_PROCESS), 0);
+            fail("Batch size must be positive");
+        } catch (WMIException ex) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testVBScriptCursorScript() {
+        WMIQuery query = WMI4Java.get().properties(Arrays.asList("Name")).limit(5).compile(WMIClass.WIN32_PROCESS);
+        String script = WMIVBScript.renderCursorScript(query, 100);
+
+        assertTrue(script.contains("ExecQuery(\"Select * from Win32_Process\", \"WQL\", 48)"));
+        assertTrue(script.startsWith("Set objWMIService"));
+        assertTrue(script.contains("If WScript.StdIn.ReadLine <> \"NEXT\" Then WScript.Quit\r\nFor Each element"));
+        assertTrue(script.contains("Wmi4JavaWriteField \"Name\", element.Name"));
+        assertTrue(script.contains("If elementCount >= 5 Then Exit For"));
+        assertTrue(script.contains("If batchCount = 100 Then\r\nbatchCount = 0\r\nWscript.Echo \"WMI4JAVA_BATCH_END\""));
+        assertTrue(script.endsWith("Next\r\nWscript.Echo \"WMI4JAVA_CURSOR_END\"\r\n"));
+    }
+
+    // Shell script speaking the protocol of the cursor script: a batch for each NEXT line
+    private static File cursorScript(String... batches) throws IOException {
+        File script = File.createTempFile("wmi4java-cursor", ".sh");
+        try (FileWriter writer = new FileWriter(script)) {
+            for (int i = 0; i < batches.length; i++) {
+                // The cursor ends its lines with CRLF
+                writer.write("read line; case \"$line\" in NEXT*) ;; *) exit 0 ;; esac\n");
+                writer.write("printf '" + batches[i].replace("\r\n", "\\n") + "'\n");
+                writer.write(i < batches.length - 1 ? "echo WMI4JAVA_BATCH_END\n" : "echo WMI4JAVA_CURSOR_END\n");
+            }
+        }
+        return script;
+    }
+
+    @Test
+    public void testVBScriptCursorFetchesBatches() throws Exception {
+        if (OSDetector.isUnix()) {
+            File script = cursorScript(record("a") + record("b"), record("c"));
+            WMICursor cursor = new WMIVBScript.VBScriptCursor(script, "sh");
+
+            WMIResultSet first = cursor.fetch();
+            assertEquals(2, first.size());
+            assertEquals("a", first.get(0).get("Name"));
+            assertTrue(cursor.hasMore());
+
+            WMIResultSet last = cursor.fetch();
+            assertEquals(1, last.size());
+            assertEquals("c", last.get(0).get("Name"));
+            assertFalse(cursor.hasMore());
+            assertEquals(0, cursor.fetch().size());
+            assertFalse(script.exists());
+            assertEquals(0, WMIProcessSupervisor.getLiveProcessCount());
+        }
+    }
+
+    @Test
+    public void testVBScriptCursorClosedEarly() throws Exception {
+        if (OSDetector.isUnix()) {
+            File script = cursorScript(record("a"), record("b"), record("c"));
+            WMICursor cursor = new WMIVBScript.VBScriptCursor(script, "sh");
+            assertEquals(1, cursor.fetch().size());
+            assertEquals(1, WMIProcessSupervisor.getLiveProcessCount());
+
+            cursor.close();
+            assertFalse(cursor.hasMore());
+            assertFalse(script.exists());
+            assertEquals(0, WMIProcessSupervisor.getLiveProcessCount());
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.profesorfalken.wmi4java;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for WMIDiff
+ *
+ * @author Javier Garcia Alonso
+ */
+public class WMIDiffTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final class Recorder implements WMIDiff.Listener {
+
+        private final List<String> events = new ArrayList<>();
+
+        @Override
+        public void added(String wmiClass, WMIRow object) {
+            events.add("added " + object.get("HotFixID"));
+        }
+
+        @Override
+        public void removed(String wmiClass, WMIRow object) {
+            events.add("removed " + object.get("HotFixID"));
+        }
+
+        @Override
+        public void changed(String wmiClass, WMIRow before, WMIRow after, List<String> properties) {
+            events.add("changed " + after.get("HotFixID") + " " + properties);
+        }
+    }
+
+    private static WMIResultSet hotFixes(int from, int to, String installedBy) {
+        StringBuilder output = new StringBuilder();
+        for (int i = from; i < to; i++) {
+            output.append("HotFixID : KB").append(i).append('\n')
+                    .append("InstalledBy : ").append(i == 5 ? installedBy : "SYSTEM").append("\n\n");
+        }
+        return WMIOutputParser.parse(output.toString());
+    }
+
+    @Test
+    public void testDifferencesAreReported() {
+        Recorder recorder = new Recorder();
+        WMIDiff.Counts counts = new WMIDiff().compare("Win32_QuickFixEngineering",
+                hotFixes(0, 8, "SYSTEM"), hotFixes(2, 10, "admin"), recorder);
+
+        assertEquals(2, counts.getAdded());
+        assertEquals(2, counts.getRemoved());
+        assertEquals(1, counts.getChanged());
+        assertTrue(recorder.events.contains("changed KB5 [InstalledBy]"));
+        assertTrue(recorder.events.contains("added KB9"));
+        assertTrue(recorder.events.contains("removed KB0"));
+    }
+
+    @Test
+    public void testSpilledComparisonGivesSameResult() {
+        Recorder inMemory = new Recorder();
+        new WMIDiff().compare("Win32_QuickFixEngineering", hotFixes(0, 500, "SYSTEM"),
+                hotFixes(5, 505, "admin"), inMemory);
+
+        Recorder spilled = new Recorder();
+        WMIDiff.Counts counts = new WMIDiff().maxRowsInMemory(50).tempDirectory(folder.getRoot())
+                .compare("Win32_QuickFixEngineering",
+                        Arrays.asList(hotFixes(0, 250, "SYSTEM"), hotFixes(250, 500, "SYSTEM")),
+                        Arrays.asList(hotFixes(5, 505, "admin")), spilled);
+
+        assertEquals(5, counts.getAdded());
+        assertEquals(5, counts.getRemoved());
+        assertEquals(1, counts.getChanged());
+        assertEquals(new HashSet<>(inMemory.events), new HashSet<>(spilled.events));
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void testLargePartitionsAreSplitAgain() {
+        Recorder inMemory = new Recorder();
+        new WMIDiff().compare("win32_quickfixengineering", hotFixes(0, 2000, "SYSTEM"),
+                hotFixes(10, 2010, "admin"), inMemory);
+
+        // 2000 objects in 16 partitions of 3 need at least two levels of partitions
+        Recorder spilled = new Recorder();
+        WMIDiff.Counts counts = new WMIDiff().maxRowsInMemory(3).tempDirectory(folder.getRoot())
+                .compare("Win32_QuickFixEngineering", hotFixes(0, 2000, "SYSTEM"),
+                        hotFixes(10, 2010, "admin"), spilled);
+
+        assertEquals(10, counts.getAdded());
+        assertEquals(10, counts.getRemoved());
+        assertEquals(0, counts.getChanged());
+        assertEquals(new HashSet<>(inMemory.events), new HashSet<>(spilled.events));
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void testFailingListenerReleasesPartitions() {
+        WMIDiff.Listener failing = new WMIDiff.Listener() {
+            @Override
+            public void added(String wmiClass, WMIRow object) {
+                throw new IllegalStateException("listener failed");
+            }
+
+            @Override
+            public void removed(String wmiClass, WMIRow object) {
+            }
+
+            @Override
+            public void changed(String wmiClass, WMIRow before, WMIRow after, List<String> properties) {
+            }
+        };
+        try {
+            new WMIDiff().maxRowsInMemory(50).tempDirectory(folder.getRoot())
+                    .compare("Win32_QuickFixEngineering", hotFixes(0, 500, "SYSTEM"), hotFixes(5, 505, "SYSTEM"),
+                            failing);
+            fail("The listener error should be thrown");
+        } catch (IllegalStateException ex) {
+            assertEquals("listener failed", ex.getMessage());
+        }
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void testClassWithoutKeysIsMatchedByAllProperties() {
+        final List<String> events = new ArrayList<>();
+        WMIDiff.Counts counts = new WMIDiff().compare("Win32_Unknown",
+                WMIOutputParser.parse("A : 1\nB : 2\n"), WMIOutputParser.parse("B : 2\nA : 1\n"),
+                new WMIDiff.Listener() {
+                    @Override
+                    public void added(String wmiClass, WMIRow object) {
+                        events.add("added");
+                    }
+
+                    @Override
+                    public void removed(String wmiClass, WMIRow object) {
+                        events.add("removed");
+                    }
+
+                    @Override
+                    public void changed(String wmiClass, WMIRow before, WMIRow after, List<String> properties) {
+                        events.add("changed");
+                    }
+                });
+
+        assertTrue(events.isEmpty());
+        assertEquals(0, counts.getAdded() + counts.getRemoved() + counts.getChanged());
+    }
+}
@@ -0,0 +1,20 @@
+package com.profesorfalken.wmi4java;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for WMIEvents
+ *
+ * @author Javier Garcia Alonso
+ */
+public class WMIEventsTest {
+
+    @Test
+    public void testQueryEventsAreNotCreatedWhenDisabled() {
+        assertNull(WMIEvents.beginQuery());
+        // Ending a disabled event is a no-op
+        WMIEvents.endQuery(null, WMIEngine.POWERSHELL, WMI4Java.get().compile(WMIClass.WIN32_BIOS), 1, 1, null);
+    }
+}
@@ -0,0 +1,92 @@
+package com.profesorfalken.wmi4java;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for WMIJoin
+ *
+ * @author Javier Garcia Alonso
+ */
+public class WMIJoinTest {
+
+    @Test
+    public void testJoinOnProperty() {
+        Map<String, WMIResultSet> results = new HashMap<>();
+        results.put("process", WMIOutputParser.parse("Name : svchost.exe\nProcessId : 812\n\n"
+                + "Name : java.exe\nProcessId : 900\n\nName : svchost.exe\nProcessId : 1020\n"));
+        results.put("service", WMIOutputParser.parse("Name : Spooler\nProcessId : 1020\n\n"
+                + "Name : Dhcp\nProcessId : 812\n\nName : EventLog\nProcessId : 812\n\n"
+                + "Name : Stopped\nProcessId : 0\n"));
+
+        WMI4Java wmi4java = WMI4Java.get();
+        List<WMIJoin.Row> rows = new WMIJoin()
+                .from("process", wmi4java.compile(WMIClass.WIN32_PROCESS))
+                .join("service", wmi4java.compile(WMIClass.WIN32_SERVICE), "process", "ProcessId", "ProcessId")
+                .apply(results);
+
+        assertEquals(3, rows.size());
+        for (WMIJoin.Row row : rows) {
+            assertEquals(row.get("process", "ProcessId"), row.get("service", "ProcessId"));
+        }
+        assertEquals("Spooler", rows.get(0).get("service", "Name"));
+        assertEquals("svchost.exe", rows.get(0).toMap().get("process.Name"));
+        // Columns follow the order of the from and join calls
+        assertEquals(Arrays.asList("process.Name", "process.ProcessId", "service.Name", "service.ProcessId"),
+                new ArrayList<>(rows.get(0).toMap().keySet()));
+    }
+
+    @Test
+    public void testJoinThroughAssociation() {
+        Map<String, WMIResultSet> results = new HashMap<>();
+        results.put("disk", WMIOutputParser.parse("DeviceID : \\\\.\\PHYSICALDRIVE0\n\n"
+                + "DeviceID : \\\\.\\PHYSICALDRIVE1\n"));
+        results.put("link", WMIOutputParser.parse(
+                "Antecedent : \\\\PC\\root\\cimv2:Win32_DiskDrive.DeviceID=\"\\\\\\\\.\\\\PHYSICALDRIVE0\"\n"
+                + "Dependent : \\\\PC\\root\\cimv2:Win32_DiskPartition.DeviceID=\"Disk #0, Partition #0\"\n\n"
+                + "Antecedent : \\\\PC\\root\\cimv2:Win32_DiskDrive.DeviceID=\"\\\\\\\\.\\\\PHYSICALDRIVE0\"\n"
+                + "Dependent : \\\\PC\\root\\cimv2:Win32_DiskPartition.DeviceID=\"Disk #0, Partition #1\"\n"));
+        results.put("partition", WMIOutputParser.parse("DeviceID : Disk #0, Partition #0\n\n"
+                + "DeviceID : Disk #0, Partition #1\n\nDeviceID : Disk #1, Partition #0\n"));
+
+        WMI4Java wmi4java = WMI4Java.get();
+        List<WMIJoin.Row> rows = new WMIJoin()
+                .from("disk", wmi4java.compile("Win32_DiskDrive"))
+                .join("link", wmi4java.compile("Win32_DiskDriveToDiskPartition"),
+                        "disk", WMIJoin.property("DeviceID"), WMIJoin.reference("Antecedent"))
+                .join("partition", wmi4java.compile("Win32_DiskPartition"),
+                        "link", WMIJoin.reference("Dependent"), WMIJoin.property("DeviceID"))
+                .apply(results);
+
+        assertEquals(2, rows.size());
+        assertEquals("\\\\.\\PHYSICALDRIVE0", rows.get(1).get("disk", "DeviceID"));
+        assertEquals("Disk #0, Partition #1", rows.get(1).get("partition", "DeviceID"));
+    }
+
+    @Test
+    public void testReferencedKey() {
+        assertEquals("Spooler", WMIJoin.referencedKey("Win32_Service.Name=\"Spooler\""));
+        assertEquals("3", WMIJoin.referencedKey("\\\\PC.domain\\root\\cimv2:Win32_Test.Index=3"));
+        assertEquals("Domain=\"PC\",Name=\"admin\"",
+                WMIJoin.referencedKey("\\\\PC\\root\\cimv2:Win32_UserAccount.Domain=\"PC\",Name=\"admin\""));
+        assertNull(WMIJoin.referencedKey(null));
+    }
+
+    @Test
+    public void testBatchRendersEveryQuery() {
+        List<WMIQuery> queries = Arrays.asList(WMI4Java.get().compile(WMIClass.WIN32_PROCESS),
+                WMI4Java.get().compile(WMIClass.WIN32_SERVICE));
+
+        String command = WMIPowerShell.renderBatch(queries);
+        assertTrue(command.startsWith("'WMI4JAVA_SECTION 0'; Get-WMIObject Win32_Process"));
+        assertTrue(command.contains("'WMI4JAVA_SECTION 1'; Get-WMIObject Win32_Service"));
+        assertTrue(WMIVBScript.renderBatch(queries).contains("Wscript.Echo \"WMI4JAVA_SECTION 1\""));
+    }
+}
@@ -0,0 +1,121 @@
+package com.profesorfalken.wmi4java;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for WMIManagement
+ *
+ * @author Javier Garcia Alonso
+ */
+public class WMIManagementTest {
+
+    private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+    @After
+    public void unregister() {
+        WMIManagement.unregisterAll();
+    }
+
+    @Test
+    public void testEngineStatistics() throws Exception {
+        WMIManagement.register();
+        // Registering twice keeps the published beans
+        WMIManagement.register();
+        ObjectName engine = new ObjectName("com.profesorfalken.wmi4java:type=Engine,name=RUNSPACE_POOL");
+        server.invoke(engine, "resetStatistics", null, null);
+
+        WMIQueryStatistics statistics = WMIQueryStatistics.of(WMIEngine.RUNSPACE_POOL);
+        for (int i = 1; i <= 100; i++) {
+            statistics.record(TimeUnit.MILLISECONDS.toNanos(i), null);
+        }
+        statistics.record(TimeUnit.SECONDS.toNanos(2), new WMITimeoutException("timed out"));
+        statistics.record(0, new WMICancelledException("cancelled"));
+        statistics.record(0, new WMIException("failed"));
+
+        assertEquals(103L, server.getAttribute(engine, "QueryCount"));
+        assertEquals(1L, server.getAttribute(engine, "TimedOutCount"));
+        assertEquals(1L, server.getAttribute(engine, "CancelledCount"));
+        assertEquals(1L, server.getAttribute(engine, "FailedCount"));
+        assertEquals(103 / 60.0, (Double) server.getAttribute(engine, "QueriesPerSecond"), 0.001);
+        // Percentiles are known within a histogram bucket
+        assertEquals(50, (Double) server.getAttribute(engine, "LatencyP50"), 50 * 0.2);
+        assertEquals(99, (Double) server.getAttribute(engine, "LatencyP99"), 99 * 0.2);
+        assertEquals(2000.0, (Double) server.getAttribute(engine, "MaxLatency"), 0.001);
+
+        ObjectName processes = new ObjectName("com.profesorfalken.wmi4java:type=Processes");
+        assertEquals(WMIProcessSupervisor.getSpawnedProcessCount(), server.getAttribute(processes, "SpawnedProcessCount"));
+        assertEquals(WMIPowerShell.getOpenSessionCount(), server.getAttribute(processes, "PowerShellSessionCount"));
+
+        server.invoke(engine, "resetStatistics", null, null);
+        assertEquals(0L, server.getAttribute(engine, "QueryCount"));
+        assertEquals(0.0, (Double) server.getAttribute(engine, "LatencyP50"), 0);
+    }
+
+    @Test
+    public void testPoolIsTunedLive() throws Exception {
+        ObjectName other;
+        try (WMIConnectionPool pool = new WMIConnectionPool(WMI4Java.get().VBSEngine(), 2, 10)) {
+            ObjectName name = WMIManagement.register(pool, "inventory");
+            assertEquals("com.profesorfalken.wmi4java:type=ConnectionPool,name=inventory", name.toString());
+            assertEquals(2, server.getAttribute(name, "SessionCount"));
+            // Sessions are only opened by their first request
+            assertEquals(0, server.getAttribute(name, "IdleSessionCount"));
+            assertEquals(0, server.getAttribute(name, "QueueDepth"));
+            assertEquals(10, server.getAttribute(name, "QueueCapacity"));
+
+            // The VBS engine opens no process until a script is run
+            pool.execute(new WMIConnectionPool.Operation<Void>() {
+                @Override
+                public Void run(WMI4Java.WMIConnection connection, WMICancellationToken token) {
+                    return null;
+                }
+            });
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (pool.getIdleSessionCount() == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, server.getAttribute(name, "IdleSessionCount"));
+            assertEquals(1, server.getAttribute(name, "OpenSessionCount"));
+            // Idle sessions are closed right away
+            server.invoke(name, "resetSessions", null, null);
+            assertEquals(0, server.getAttribute(name, "OpenSessionCount"));
+            assertEquals(0, server.getAttribute(name, "IdleSessionCount"));
+
+            server.setAttribute(name, new Attribute("SessionCount", 3));
+            assertEquals(3, pool.getSessionCount());
+            assertEquals(0, server.invoke(name, "drain", null, null));
+
+            try {
+                WMIManagement.register(pool, "inventory");
+                fail("A name can only be used once");
+            } catch (WMIException ex) {
+                // Expected
+            }
+            WMIManagement.unregister(name);
+            assertFalse(server.isRegistered(name));
+            other = WMIManagement.register(pool, "other");
+        }
+        // Closing the pool removes its beans
+        assertFalse(server.isRegistered(other));
+    }
+
+    @Test
+    public void testCacheAndSingleFlight() throws Exception {
+        ObjectName cache = WMIManagement.register(new WMIResultCache(1000), "queries");
+        ObjectName singleFlight = WMIManagement.register(new WMISingleFlight(), "queries");
+        assertEquals(0, server.getAttribute(cache, "Size"));
+        assertEquals(1000L, server.getAttribute(cache, "MaxWeight"));
+        assertEquals(0L, server.getAttribute(cache, "HitCount"));
+        assertEquals(0L, server.getAttribute(singleFlight, "SharedCount"));
+        assertEquals(2, server.queryNames(new ObjectName(WMIManagement.DOMAIN + ":name=queries,*"), null).size());
+    }
+}
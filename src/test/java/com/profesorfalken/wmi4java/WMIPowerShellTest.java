@@ -0,0 +1,92 @@
+package com.profesorfalken.wmi4java;
+
+import com.profesorfalken.jpowershell.PowerShell;
+import com.profesorfalken.jpowershell.PowerShellResponse;
+import org.junit.Test;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for WMIPowerShell
+ *
+ * @author Javier Garcia Alonso
+ */
+public class WMIPowerShellTest {
+
+    /**
+     * Engine whose sessions are never started. Its first command times out
+     */
+    private static final class TimingOutPowerShell extends WMIPowerShell {
+
+        private final List<PowerShell> used = new ArrayList<>();
+        private final List<PowerShell> closed = Collections.synchronizedList(new ArrayList<PowerShell>());
+
+        TimingOutPowerShell() throws Exception {
+            super(newPowerShell());
+        }
+
+        @Override
+        PowerShell newSession() {
+            try {
+                return newPowerShell();
+            } catch (Exception ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        @Override
+        PowerShellResponse execute(PowerShell session, String command) {
+            boolean timeout = used.isEmpty();
+            used.add(session);
+            return newResponse(false, timeout ? "" : "Name : " + command, timeout);
+        }
+
+        @Override
+        void closeSession(PowerShell session) {
+            closed.add(session);
+        }
+    }
+
+    private static PowerShell newPowerShell() throws Exception {
+        Constructor<PowerShell> constructor = PowerShell.class.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        return constructor.newInstance();
+    }
+
+    private static PowerShellResponse newResponse(boolean error, String output, boolean timeout) {
+        try {
+            Constructor<PowerShellResponse> constructor = PowerShellResponse.class.getDeclaredConstructor(
+                    boolean.class, String.class, boolean.class);
+            constructor.setAccessible(true);
+            return constructor.newInstance(error, output, timeout);
+        } catch (Exception ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    @Test
+    public void testTimedOutSessionIsReplaced() throws Exception {
+        TimingOutPowerShell powerShell = new TimingOutPowerShell();
+        try {
+            powerShell.executeCommand("first", null);
+            fail("The first command should time out");
+        } catch (WMITimeoutException ex) {
+            // Expected
+        }
+        // The timed-out command may still write to its session, so the next command runs in a fresh one
+        assertEquals("Name : second", powerShell.executeCommand("second", null));
+        assertEquals(2, powerShell.used.size());
+        assertNotSame(powerShell.used.get(0), powerShell.used.get(1));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (powerShell.closed.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(Collections.singletonList(powerShell.used.get(0)), powerShell.closed);
+    }
+}
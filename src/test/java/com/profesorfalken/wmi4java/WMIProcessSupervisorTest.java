@@ -0,0 +1,138 @@
+package com.profesorfalken.wmi4java;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for WMIProcessSupervisor. Uses a POSIX shell to simulate the engines
+ *
+ * @author Javier Garcia Alonso
+ */
+public class WMIProcessSupervisorTest {
+
+    private static final WMIProcessSupervisor.OutputConsumer<String> TO_STRING
+            = new WMIProcessSupervisor.OutputConsumer<String>() {
+                @Override
+                public String consume(Reader output) throws IOException {
+                    StringBuilder result = new StringBuilder();
+                    BufferedReader reader = new BufferedReader(output);
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        result.append(line).append('\n');
+                    }
+                    return result.toString();
+                }
+            };
+
+    @Test
+    public void testChattyErrorOutputDoesNotBlock() {
+        if (OSDetector.isUnix()) {
+            // Writes far more than a pipe buffer to stderr before writing to stdout
+            String output = WMIProcessSupervisor.run(new String[]{"sh", "-c",
+                "i=0; while [ $i -lt 5000 ]; do echo 'some error line to fill the pipe' >&2; i=$((i+1)); done; echo done"},
+                    10000, TO_STRING);
+            assertEquals("done\n", output);
+            assertEquals(0, WMIProcessSupervisor.getLiveProcessCount());
+        }
+    }
+
+    @Test
+    public void testTimeoutKillsProcess() {
+        if (OSDetector.isUnix()) {
+            long timedOut = WMIProcessSupervisor.getTimedOutProcessCount();
+            long start = System.currentTimeMillis();
+            try {
+                WMIProcessSupervisor.run(new String[]{"sh", "-c", "sleep 30"}, 300, TO_STRING);
+                fail("Process should have timed out");
+            } catch (WMIException ex) {
+                assertTrue(ex.getMessage().contains("timed out"));
+            }
+            assertTrue(System.currentTimeMillis() - start < 10000);
+            assertEquals(timedOut + 1, WMIProcessSupervisor.getTimedOutProcessCount());
+            assertEquals(0, WMIProcessSupervisor.getLiveProcessCount());
+        }
+    }
+
+    @Test
+    public void testErrorExitCode() {
+        if (OSDetector.isUnix()) {
+            try {
+                WMIProcessSupervisor.run(new String[]{"sh", "-c", "echo 'Invalid class' >&2; exit 1"}, 10000, TO_STRING);
+                fail("Process should have finished in error");
+            } catch (WMIException ex) {
+                assertTrue(ex.getMessage().contains("Invalid class"));
+            }
+        }
+    }
+
+    @Test
+    public void testSilentErrorExitCode() {
+        if (OSDetector.isUnix()) {
+            try {
+                WMIProcessSupervisor.run(new String[]{"sh", "-c", "echo partial; exit 3"}, 10000, TO_STRING);
+                fail("A non-zero exit code should be an error even without error output");
+            } catch (WMIException ex) {
+                assertEquals("WMI operation finished with exit code 3", ex.getMessage());
+                assertFalse(ex instanceof WMITimeoutException);
+            }
+        }
+    }
+
+    @Test
+    public void testErrorOutputHeldByDescendant() {
+        if (OSDetector.isUnix()) {
+            long timedOut = WMIProcessSupervisor.getTimedOutProcessCount();
+            try {
+                // The background sleep keeps the error output open after the shell exits
+                WMIProcessSupervisor.run(new String[]{"sh", "-c", "sleep 8 >/dev/null & exit 2"}, 10000, TO_STRING);
+                fail("Process should have finished in error");
+            } catch (WMIException ex) {
+                assertTrue(ex.getMessage().contains("exit code 2"));
+                assertTrue(ex.getMessage().contains("error output could not be read"));
+                assertFalse(ex instanceof WMITimeoutException);
+            }
+            assertEquals(timedOut, WMIProcessSupervisor.getTimedOutProcessCount());
+        }
+    }
+
+    @Test
+    public void testCancellation() throws Exception {
+        if (OSDetector.isUnix()) {
+            final WMICancellationToken token = new WMICancellationToken();
+            Thread canceller = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(300);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                    token.cancel();
+                }
+            });
+            canceller.start();
+            long start = System.currentTimeMillis();
+            try {
+                WMIProcessSupervisor.run(new String[]{"sh", "-c", "sleep 30; echo done"}, 60000, TO_STRING, token);
+                fail("Process should have been cancelled");
+            } catch (WMICancelledException ex) {
+                // Expected
+            }
+            canceller.join();
+            assertTrue(System.currentTimeMillis() - start < 10000);
+            assertEquals(0, WMIProcessSupervisor.getLiveProcessCount());
+
+            try {
+                WMIProcessSupervisor.run(new String[]{"sh", "-c", "echo never"}, 10000, TO_STRING, token);
+                fail("Cancelled token should not launch new processes");
+            } catch (WMICancelledException ex) {
+                // Expected
+            }
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.profesorfalken.wmi4java;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for WMIQuery
+ *
+ * @author Javier Garcia Alonso
+ */
+public class WMIQueryTest {
+
+    @Test
+    public void testQueryIsImmutable() {
+        List<String> properties = new ArrayList<>(Arrays.asList("Name", "ProcessId"));
+        WMI4Java wmi4java = WMI4Java.get().namespace("root/cimv2").properties(properties);
+
+        WMIQuery query = wmi4java.compile(WMIClass.WIN32_PROCESS);
+        properties.add("CommandLine");
+        wmi4java.namespace("root/WMI");
+
+        assertEquals(Arrays.asList("Name", "ProcessId"), query.getProperties());
+        assertEquals("root/cimv2", query.getNamespace());
+        assertEquals(query, WMI4Java.get().namespace("root/cimv2")
+                .properties(Arrays.asList("Name", "ProcessId")).compile("Win32_Process"));
+    }
+
+    @Test
+    public void testRenderedCommands() {
+        WMIQuery query = WMI4Java.get()
+                .filters(Arrays.asList("$_.Name -eq \"svchost.exe\""))
+                .properties(Arrays.asList("Name", "ProcessId"))
+                .compile(WMIClass.WIN32_PROCESS);
+
+        assertEquals("Get-WMIObject Win32_Process -ComputerName .  | "
+                + "Where-Object -FilterScript {$_.Name -eq \"svchost.exe\"} | "
+                + "Select-Object Name, ProcessId -excludeproperty \"_*\" | Format-List *",
+                query.getPowerShellCommand());
+        assertTrue(query.getVBScript().contains("Wscript.Echo \"ProcessId: \" & element.ProcessId"));
+
+        WMIQuery allProperties = WMI4Java.get().compile(WMIClass.WIN32_BIOS);
+        assertTrue(allProperties.getVBScript().contains("For Each elementProperty In element.Properties_"));
+    }
+
+    @Test
+    public void testFramedCommands() {
+        WMIQuery query = WMI4Java.get()
+                .properties(Arrays.asList("Name", "ProcessId"))
+                .compile(WMIClass.WIN32_PROCESS);
+
+        assertEquals("Get-WMIObject Win32_Process -ComputerName .  | "
+                + "Select-Object Name, ProcessId -excludeproperty \"_*\" | Write-Wmi4JavaFrame",
+                query.getPowerShellFramedCommand());
+        assertTrue(query.getFramedVBScript().contains("Wscript.Echo \"#R2\"\r\n"
+                + "Wmi4JavaWriteField \"Name\", element.Name\r\n"
+                + "Wmi4JavaWriteField \"ProcessId\", element.ProcessId\r\n"
+                + "Wscript.Echo \"#E\""));
+        // The shared snippets are not part of each query, so queries can be concatenated in a batch
+        assertFalse(query.getFramedVBScript().contains("Sub "));
+        assertFalse(WMIPowerShell.renderBatch(Arrays.asList(query, query)).contains("function "));
+    }
+
+    @Test
+    public void testLimitIsPushedDown() {
+        WMIQuery query = WMI4Java.get().limit(5).compile(WMIClass.WIN32_PROCESS);
+
+        assertEquals(5, query.getLimit());
+        assertTrue(query.getPowerShellCommand().contains("| Select-Object -First 5 | "));
+        assertTrue(query.getVBScript().contains("If elementCount >= 5 Then Exit For"));
+        assertNotEquals(query, query.withLimit(0));
+        assertFalse(query.withLimit(0).getPowerShellCommand().contains("-First"));
+    }
+
+    @Test
+    public void testInstanceLookupUsesObjectPath() {
+        Map<String, Object> keys = new LinkedHashMap<>();
+        keys.put("Name", "O'Brien \"quoted\" C:\\dir");
+        keys.put("Index", 3);
+        String path = WMIObjectPath.of("Win32_Test", keys);
+        assertEquals("Win32_Test.Name=\"O'Brien \\\"quoted\\\" C:\\\\dir\",Index=3", path);
+
+        WMIQuery query = WMI4Java.get().properties(Arrays.asList("Name", "State")).compile("Win32_Service");
+        String command = WMIPowerShell.renderGetInstance(query, WMIObjectPath.of("Win32_Service",
+                Collections.singletonMap("Name", "Spooler")));
+        assertTrue(command.startsWith("try { $wmi4javaInstance = [wmi]'\\\\.\\root\\cimv2:Win32_Service.Name=\"Spooler\"' }"));
+        assertTrue(command.endsWith("Select-Object Name, State -excludeproperty \"_*\" | Write-Wmi4JavaFrame }"));
+        assertTrue(WMIPowerShell.renderGetInstance(query, path).contains("Name=\"O''Brien"));
+
+        String script = WMIVBScript.renderGetInstance(query, "Win32_Service.Name=\"Spooler\"");
+        assertTrue(script.contains("root/cimv2:Win32_Service.Name=\"\"Spooler\"\"\")"));
+        assertTrue(script.contains("Wmi4JavaWriteField \"State\", element.State"));
+    }
+
+    @Test
+    public void testRelatedObjectsAreQueriedInOneRoundTrip() {
+        WMIQuery query = WMI4Java.get().properties(Arrays.asList("DeviceID")).compile("Win32_DiskPartition");
+        List<String> disks = Arrays.asList(WMIObjectPath.of("Win32_DiskDrive", "DeviceID", "\\\\.\\PHYSICALDRIVE0"),
+                WMIObjectPath.of("Win32_DiskDrive", "DeviceID", "\\\\.\\PHYSICALDRIVE1"));
+
+        String command = WMIPowerShell.renderRelated(query, disks, false);
+        assertTrue(command.startsWith("$wmi4javaSources = @('Win32_DiskDrive.DeviceID="));
+        assertTrue(command.contains("-Query ('ASSOCIATORS OF {' + $wmi4javaSources[$wmi4javaIndex] + '} "
+                + "WHERE ResultClass = Win32_DiskPartition')"));
+
+        String script = WMIVBScript.renderRelated(query, disks, true);
+        assertTrue(script.contains("Dim sources(1)"));
+        assertTrue(script.contains("REFERENCES OF {\" & sources(sourceIndex) & \"} WHERE ResultClass = Win32_DiskPartition"));
+        assertTrue(script.contains("Wmi4JavaWriteField \"DeviceID\", element.DeviceID"));
+    }
+
+    @Test
+    public void testMethodsAreInvokedInOneRoundTrip() {
+        List<WMIMethodCall> calls = Arrays.asList(
+                WMIMethodCall.of(WMIObjectPath.of("Win32_Service", "Name", "Spooler"), "StartService"),
+                WMIMethodCall.of("Win32_Process", "Create", Collections.singletonMap("CommandLine", "it's.exe")));
+        assertFalse(calls.get(0).isStatic());
+        assertTrue(calls.get(1).isStatic());
+
+        String command = WMIPowerShell.renderInvokeMethods("*", ".", calls);
+        assertTrue(command.startsWith("'WMI4JAVA_SECTION 0'; try { $wmi4javaTarget = "
+                + "[wmi]'\\\\.\\root\\cimv2:Win32_Service.Name=\"Spooler\"'; $wmi4javaParams = $null; "));
+        assertTrue(command.contains("[wmiclass]'\\\\.\\root\\cimv2:Win32_Process'; "
+                + "$wmi4javaParams = $wmi4javaTarget.GetMethodParameters('Create'); "
+                + "$wmi4javaParams['CommandLine'] = 'it''s.exe'; "));
+
+        String script = WMIVBScript.renderInvokeMethods("root/cimv2", ".", calls);
+        assertTrue(script.contains("Set element = objWMIService.Get(\"Win32_Service.Name=\"\"Spooler\"\"\")"));
+        assertTrue(script.contains("inParams.Properties_.Item(\"CommandLine\") = \"it's.exe\""));
+        assertTrue(script.contains("Set outParams = element.ExecMethod_(\"Create\", inParams)"));
+
+        assertTrue(command.contains("if ($wmi4javaReturn.Count -eq 0) { 'Void : True' }"));
+        assertTrue(script.contains("returnValue = outParams.Properties_.Item(\"ReturnValue\").Value"));
+        assertTrue(script.contains("Wscript.Echo \"Void: True\""));
+
+        List<WMIMethodCall> three = Arrays.asList(calls.get(0), calls.get(1), calls.get(0));
+        String output = "WMI4JAVA_SECTION 0\r\nReturnValue : 0\r\nWMI4JAVA_SECTION 1\r\n"
+                + "ReturnValue : -2147217406\r\nWMI4JAVA_SECTION 2\r\nVoid : True\r\n";
+        assertEquals(Arrays.asList(0, -2147217406, 0), WMIMethodCall.returnCodes(three,
+                WMIOutputParser.parseSections(output, WMIOutputParser.SECTION_MARKER, 3)));
+    }
+
+    @Test
+    public void testMissingMethodOutputIsAFailure() {
+        List<WMIMethodCall> calls = Arrays.asList(
+                WMIMethodCall.of(WMIObjectPath.of("Win32_Service", "Name", "Spooler"), "StartService"),
+                WMIMethodCall.of(WMIObjectPath.of("Win32_Service", "Name", "Spooler"), "StopService"));
+        String[] outputs = {
+            // Empty section
+            "WMI4JAVA_SECTION 0\r\nReturnValue : 0\r\nWMI4JAVA_SECTION 1\r\n",
+            // Missing section
+            "WMI4JAVA_SECTION 0\r\nReturnValue : 0\r\n",
+            // Output without return value
+            "WMI4JAVA_SECTION 0\r\nReturnValue : 0\r\nWMI4JAVA_SECTION 1\r\nReturnValue : \r\n"
+        };
+        for (String output : outputs) {
+            try {
+                WMIMethodCall.returnCodes(calls,
+                        WMIOutputParser.parseSections(output, WMIOutputParser.SECTION_MARKER, 2));
+                fail("Missing output should fail: " + output);
+            } catch (WMIException ex) {
+                assertTrue(ex.getMessage(), ex.getMessage().contains("StopService"));
+            }
+        }
+    }
+
+    @Test
+    public void testFailedFrameFunctionDefinitionIsReported() {
+        WMIPowerShell.checkFrameFunctionDefinition(false, false, "");
+        WMIPowerShell.checkFrameFunctionDefinition(false, false, null);
+        String[][] failures = {{"true", "false", "The term 'function' is not recognized"},
+            {"false", "false", "ParserError: Missing closing '}'"}, {"false", "true", ""}};
+        for (String[] failure : failures) {
+            try {
+                WMIPowerShell.checkFrameFunctionDefinition(Boolean.parseBoolean(failure[0]),
+                        Boolean.parseBoolean(failure[1]), failure[2]);
+                fail("The definition should have failed: " + Arrays.toString(failure));
+            } catch (WMIException ex) {
+                assertTrue(ex.getMessage(), ex.getMessage().contains(WMIPowerShell.FRAME_FUNCTION));
+            }
+        }
+    }
+}
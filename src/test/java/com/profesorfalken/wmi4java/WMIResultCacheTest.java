@@ -0,0 +1,121 @@
+package com.profesorfalken.wmi4java;
+
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for WMIResultCache
+ *
+ * @author Javier Garcia Alonso
+ */
+public class WMIResultCacheTest {
+
+    private static WMIQueryKey key(WMIClass wmiClass) {
+        return new WMIQueryKey(WMIEngine.POWERSHELL, WMI4Java.get().compile(wmiClass));
+    }
+
+    private static WMISingleFlight.Execution counting(final AtomicInteger executions) {
+        return new WMISingleFlight.Execution() {
+            @Override
+            public WMIResultSet run() {
+                return WMIOutputParser.parse("Execution : " + executions.incrementAndGet() + "\n");
+            }
+        };
+    }
+
+    @Test
+    public void testOnlyClassesWithTtlAreCached() {
+        WMIResultCache cache = new WMIResultCache(1024 * 1024).ttl(WMIClass.WIN32_BIOS, 1, TimeUnit.HOURS);
+        AtomicInteger executions = new AtomicInteger();
+
+        assertEquals("1", cache.get(key(WMIClass.WIN32_BIOS), counting(executions)).get(0).get("Execution"));
+        assertEquals("1", cache.get(key(WMIClass.WIN32_BIOS), counting(executions)).get(0).get("Execution"));
+        assertEquals("2", cache.get(key(WMIClass.WIN32_PROCESS), counting(executions)).get(0).get("Execution"));
+        assertEquals("3", cache.get(key(WMIClass.WIN32_PROCESS), counting(executions)).get(0).get("Execution"));
+
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testExpiredEntryIsServedWhileRefreshing() throws Exception {
+        WMIResultCache cache = new WMIResultCache(1024 * 1024).defaultTtl(50, TimeUnit.MILLISECONDS);
+        AtomicInteger executions = new AtomicInteger();
+        WMIQueryKey key = key(WMIClass.WIN32_BASEBOARD);
+
+        cache.get(key, counting(executions));
+        Thread.sleep(100);
+
+        assertEquals("1", cache.get(key, counting(executions)).get(0).get("Execution"));
+        assertEquals(1, cache.getStaleHitCount());
+        String refreshed = null;
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!"2".equals(refreshed) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+            refreshed = cache.get(key, counting(executions)).get(0).get("Execution");
+        }
+        assertEquals("2", refreshed);
+        assertEquals(2, executions.get());
+    }
+
+    @Test
+    public void testRefreshIsRetriedAfterAnError() throws Exception {
+        WMIResultCache cache = new WMIResultCache(1024 * 1024).defaultTtl(50, TimeUnit.MILLISECONDS);
+        AtomicInteger executions = new AtomicInteger();
+        WMIQueryKey key = key(WMIClass.WIN32_BASEBOARD);
+
+        cache.get(key, counting(executions));
+        Thread.sleep(100);
+        cache.get(key, new WMISingleFlight.Execution() {
+            @Override
+            public WMIResultSet run() {
+                throw new StackOverflowError("simulated");
+            }
+        });
+
+        String refreshed = null;
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!"2".equals(refreshed) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+            refreshed = cache.get(key, counting(executions)).get(0).get("Execution");
+        }
+        assertEquals("2", refreshed);
+    }
+
+    @Test
+    public void testTtlIgnoresClassCase() {
+        Locale defaultLocale = Locale.getDefault();
+        // Lower case of "I" is a dotless i in Turkish
+        Locale.setDefault(new Locale("tr", "TR"));
+        try {
+            WMIResultCache cache = new WMIResultCache(1024 * 1024).ttl("win32_bios", 1, TimeUnit.HOURS);
+            assertTrue(cache.ttlOf(WMI4Java.get().compile(WMIClass.WIN32_BIOS)) > 0);
+        } finally {
+            Locale.setDefault(defaultLocale);
+        }
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvictedBySize() {
+        WMIResultSet result = WMIOutputParser.parse("Name : value\n");
+        WMIResultCache cache = new WMIResultCache(2 * result.weight()).defaultTtl(1, TimeUnit.HOURS);
+
+        cache.put(key(WMIClass.WIN32_BIOS), result, System.nanoTime());
+        cache.put(key(WMIClass.WIN32_PROCESSOR), result, System.nanoTime());
+        cache.get(key(WMIClass.WIN32_BIOS), counting(new AtomicInteger()));
+        cache.put(key(WMIClass.WIN32_OPERATINGSYSTEM), result, System.nanoTime());
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(1, cache.getHitCount());
+        AtomicInteger executions = new AtomicInteger();
+        cache.get(key(WMIClass.WIN32_PROCESSOR), counting(executions));
+        assertEquals(1, executions.get());
+    }
+}
@@ -0,0 +1,150 @@
+package com.profesorfalken.wmi4java;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for WMIResultSet and its parser
+ *
+ * @author Javier Garcia Alonso
+ */
+public class WMIResultSetTest {
+
+    private static final String RAW_OUTPUT = "Name        : svchost.exe\r\n"
+            + "CommandLine : C:\\Windows\\system32\\svchost.exe -k netsvcs\r\n"
+            + "ProcessId   : 1044\r\n"
+            + "\r\n"
+            + "Name        : explorer.exe\r\n"
+            + "ProcessId   : 2210\r\n"
+            + "Caption     :\r\n"
+            + "\r\n"
+            + "\r\n"
+            + "Name        : System\r\n"
+            + "CommandLine : \r\n"
+            + "ProcessId   : 4";
+
+    @Test
+    public void testParseRows() {
+        WMIResultSet resultSet = WMIOutputParser.parse(RAW_OUTPUT);
+
+        assertEquals(3, resultSet.size());
+        assertEquals(4, resultSet.getSchema().size());
+        assertEquals("svchost.exe", resultSet.get(0).get("Name"));
+        assertEquals("C:\\Windows\\system32\\svchost.exe -k netsvcs", resultSet.get(0).get("CommandLine"));
+        assertEquals("2210", resultSet.get(1).get("ProcessId"));
+        assertNull(resultSet.get(1).get("CommandLine"));
+        assertEquals("", resultSet.get(1).get("Caption"));
+        assertNull(resultSet.get(0).get("Caption"));
+        assertEquals("", resultSet.get(2).get("CommandLine"));
+        assertEquals("4", resultSet.get(2).get("ProcessId"));
+        assertNull(resultSet.get(2).get("Unknown"));
+    }
+
+    @Test
+    public void testMapAdapters() {
+        WMIResultSet resultSet = WMIOutputParser.parse(RAW_OUTPUT);
+
+        Map<String, String> view = resultSet.get(1).asMap();
+        assertEquals(3, view.size());
+        assertTrue(view.containsKey("Caption"));
+        assertFalse(view.containsKey("CommandLine"));
+        assertEquals("explorer.exe", view.get("Name"));
+
+        List<Map<String, String>> copies = resultSet.toMapList();
+        assertEquals(3, copies.size());
+        assertEquals(view, copies.get(1));
+        copies.get(0).put("Name", "changed");
+        assertEquals("svchost.exe", resultSet.get(0).get("Name"));
+    }
+
+    @Test
+    public void testParseFromReader() throws IOException {
+        // Deliver the output in tiny chunks so lines are split between reads
+        Reader slowReader = new StringReader(RAW_OUTPUT) {
+            @Override
+            public int read(char[] cbuf, int off, int len) throws IOException {
+                return super.read(cbuf, off, Math.min(len, 3));
+            }
+        };
+        WMIResultSet resultSet = WMIOutputParser.parse(slowReader);
+
+        assertEquals(3, resultSet.size());
+        assertEquals(WMIOutputParser.parse(RAW_OUTPUT).toMapList(), resultSet.toMapList());
+        // The last value ends the output. Spare capacity of the read buffer is not counted
+        assertEquals(RAW_OUTPUT.length() * 2L, resultSet.outputBytes());
+        assertEquals(RAW_OUTPUT.length() * 2L, WMIOutputParser.parse(RAW_OUTPUT).outputBytes());
+    }
+
+    @Test
+    public void testEmptyOutput() {
+        assertTrue(WMIOutputParser.parse("").isEmpty());
+        assertEquals(0, WMIOutputParser.parse("\r\n\r\n").size());
+    }
+
+    @Test
+    public void testFramedRecordFieldCountIsBounded() {
+        try {
+            WMIOutputParser.parse("#R2000000000\r\n#F4,1:NameA\r\n#E\r\n");
+            fail("A huge field count should be rejected before sizing the row");
+        } catch (WMIException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("2000000000"));
+        }
+        assertEquals("A", WMIOutputParser.parse("#R" + WMIOutputParser.MAX_FRAME_FIELDS
+                + "\r\n#F4,1:NameA\r\n").get(0).get("Name"));
+    }
+
+    @Test
+    public void testParseSections() {
+        List<WMIResultSet> sections = WMIOutputParser.parseSections(
+                "WMI4JAVA_SECTION 0\r\n\r\nName : C:\r\n\r\nName : D:\r\n\r\n"
+                + "WMI4JAVA_SECTION 1\r\n"
+                + "WMI4JAVA_SECTION 2\r\nName : E:\r\n", WMIOutputParser.SECTION_MARKER, 4);
+
+        assertEquals(4, sections.size());
+        assertEquals(2, sections.get(0).size());
+        assertEquals("D:", sections.get(0).get(1).get("Name"));
+        assertTrue(sections.get(1).isEmpty());
+        assertEquals("E:", sections.get(2).get(0).get("Name"));
+        assertTrue(sections.get(3).isEmpty());
+    }
+
+    @Test
+    public void testParseFramedRecords() throws IOException {
+        String framed = "#R3\r\n"
+                + "#F4,11:Namesvchost.exe\r\n"
+                + "#F11,29:CommandLinefirst line\\r\\n\\r\\nName : x\\\\y\r\n"
+                + "#F9,0:ProcessId\r\n"
+                + "#E\r\n"
+                + "#R1\r\n"
+                + "#F4,2:Name :\r\n"
+                + "#E\r\n";
+        WMIResultSet resultSet = WMIOutputParser.parse(framed);
+
+        assertEquals(2, resultSet.size());
+        assertEquals("svchost.exe", resultSet.get(0).get("Name"));
+        assertEquals("first line\r\n\r\nName : x\\y", resultSet.get(0).get("CommandLine"));
+        assertEquals("", resultSet.get(0).get("ProcessId"));
+        assertEquals(" :", resultSet.get(1).get("Name"));
+        assertNull(resultSet.get(1).get("CommandLine"));
+
+        Reader slowReader = new StringReader(framed) {
+            @Override
+            public int read(char[] cbuf, int off, int len) throws IOException {
+                return super.read(cbuf, off, Math.min(len, 5));
+            }
+        };
+        assertEquals(resultSet.toMapList(), WMIOutputParser.parse(slowReader).toMapList());
+    }
+
+    @Test(expected = WMIException.class)
+    public void testMalformedFrame() {
+        WMIOutputParser.parse("#R1\r\n#F4,20:Nameshort\r\n#E\r\n");
+    }
+}
@@ -0,0 +1,129 @@
+package com.profesorfalken.wmi4java;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for WMIRunspacePool
+ *
+ * @author Javier Garcia Alonso
+ */
+public class WMIRunspacePoolTest {
+
+    @Test
+    public void testHostScript() {
+        String script = WMIRunspacePool.renderHostScript(4);
+
+        assertTrue(script.contains("SessionStateFunctionEntry 'Write-Wmi4JavaFrame', 'process { "));
+        // Single quotes of the function body are doubled inside the literal
+        assertTrue(script.contains("''#R'' + $fields.Count"));
+        assertTrue(script.contains("[void]$pool.SetMaxRunspaces(4)\n"));
+        assertTrue(script.contains("[Console]::Out.WriteLine('#WMI4JAVA ' + $id + ' ' + $status"));
+        // Waits on the pending handles instead of polling
+        assertTrue(script.contains("[System.Threading.WaitHandle]::WaitAny("));
+        assertFalse(script.contains("Start-Sleep"));
+    }
+
+    private static String base64(String text) {
+        return Base64.getEncoder().encodeToString(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Future<String> execute(ExecutorService callers, final WMIRunspacePool host, final String command,
+            final WMICancellationToken token) {
+        return callers.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return host.execute(command, token);
+            }
+        });
+    }
+
+    /**
+     * Test the request protocol against a host simulated with a shell script:
+     * responses out of order, a malformed line, STOP of a cancelled request
+     * and the end of the host failing the pending request
+     */
+    @Test
+    public void testRequestProtocol() throws Exception {
+        if (!OSDetector.isUnix()) {
+            return;
+        }
+        String script = "read a; read b; set -- $a; first=$2; set -- $b; second=$2\n"
+                + "echo '#WMI4JAVA not-an-id OK eA=='\n"
+                + "echo \"#WMI4JAVA $second OK " + base64("second") + "\"\n"
+                + "echo \"#WMI4JAVA $first ERROR " + base64("Access denied") + "\"\n"
+                + "read c; read d; read e; set -- $e\n"
+                + "echo \"#WMI4JAVA $2 OK $(printf '%s' \"$d\" | base64)\"\n"
+                + "read f; echo 'host crashed' >&2; exit 3\n";
+        WMIRunspacePool host = new WMIRunspacePool(new String[]{"sh", "-c", script});
+        ExecutorService callers = Executors.newCachedThreadPool();
+        try {
+            Future<String> first = execute(callers, host, "first", null);
+            Thread.sleep(100);
+            Future<String> second = execute(callers, host, "second", null);
+
+            assertEquals("second", second.get(5, TimeUnit.SECONDS));
+            try {
+                first.get(5, TimeUnit.SECONDS);
+                fail("The first request ended in error");
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause().getMessage(), ex.getCause().getMessage().contains("Access denied"));
+            }
+
+            WMICancellationToken token = new WMICancellationToken();
+            Future<String> cancelled = execute(callers, host, "cancelled", token);
+            Thread.sleep(100);
+            token.cancel();
+            try {
+                cancelled.get(5, TimeUnit.SECONDS);
+                fail("The request was cancelled");
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof WMICancelledException);
+            }
+            // The host answers with the STOP line it received
+            assertEquals("STOP 3", host.execute("echo", null));
+
+            try {
+                host.execute("last", null);
+                fail("The host ended");
+            } catch (WMIException ex) {
+                assertTrue(ex.getMessage(), ex.getMessage().contains("host crashed"));
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testEngineSelection() {
+        WMI4Java wmi4java = WMI4Java.get().RunspacePoolEngine(3);
+        assertEquals(WMIEngine.RUNSPACE_POOL, wmi4java.getEngine());
+        assertEquals(WMIEngine.POWERSHELL, wmi4java.PowerShellEngine().getEngine());
+    }
+
+    @Test(expected = WMIException.class)
+    public void testRunspaceCountMustBePositive() {
+        WMI4Java.get().RunspacePoolEngine(0);
+    }
+
+    @Test
+    public void testResultSlices() {
+        WMIResultSet resultSet = WMIOutputParser.parse("#R1\n#F4,1:Namea\n#E\n#R1\n#F4,1:Nameb\n#E\n#R1\n#F4,1:Namec\n#E");
+        WMIResultSet slice = resultSet.slice(1, 3);
+
+        assertEquals(2, slice.size());
+        assertEquals("b", slice.get(0).get("Name"));
+        assertEquals("c", slice.get(1).get("Name"));
+        assertTrue(resultSet.slice(3, 3).isEmpty());
+    }
+}
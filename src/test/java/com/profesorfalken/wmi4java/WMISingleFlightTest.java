@@ -0,0 +1,217 @@
+package com.profesorfalken.wmi4java;
+
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for WMISingleFlight
+ *
+ * @author Javier Garcia Alonso
+ */
+public class WMISingleFlightTest {
+
+    @Test
+    public void testConcurrentIdenticalQueriesShareExecution() throws Exception {
+        final WMISingleFlight singleFlight = new WMISingleFlight();
+        final WMIQueryKey key = new WMIQueryKey(WMIEngine.POWERSHELL, WMI4Java.get().compile(WMIClass.WIN32_BIOS));
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final WMIResultSet result = WMIOutputParser.parse("Name : BIOS\n");
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<WMIResultSet> leader = executor.submit(new Callable<WMIResultSet>() {
+                @Override
+                public WMIResultSet call() throws Exception {
+                    return singleFlight.execute(key, new WMISingleFlight.Execution() {
+                        @Override
+                        public WMIResultSet run() {
+                            started.countDown();
+                            try {
+                                release.await();
+                            } catch (InterruptedException ex) {
+                                throw new WMIException(ex);
+                            }
+                            return result;
+                        }
+                    });
+                }
+            });
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+
+            Future<WMIResultSet> follower = executor.submit(new Callable<WMIResultSet>() {
+                @Override
+                public WMIResultSet call() throws Exception {
+                    return singleFlight.execute(key, new WMISingleFlight.Execution() {
+                        @Override
+                        public WMIResultSet run() {
+                            throw new AssertionError("Query executed twice");
+                        }
+                    });
+                }
+            });
+            while (singleFlight.getSharedCount() == 0) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+
+            assertSame(result, leader.get(10, TimeUnit.SECONDS));
+            assertSame(result, follower.get(10, TimeUnit.SECONDS));
+            assertEquals(1, singleFlight.getExecutedCount());
+            assertEquals(0, singleFlight.getInFlightCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFailureIsNotRemembered() {
+        WMISingleFlight singleFlight = new WMISingleFlight();
+        WMIQueryKey key = new WMIQueryKey(WMIEngine.VBSCRIPT, WMI4Java.get().compile(WMIClass.WIN32_BIOS));
+        try {
+            singleFlight.execute(key, new WMISingleFlight.Execution() {
+                @Override
+                public WMIResultSet run() {
+                    throw new WMIException("failed");
+                }
+            });
+            fail("Exception expected");
+        } catch (WMIException ex) {
+            assertEquals("failed", ex.getMessage());
+        }
+
+        final WMIResultSet result = WMIOutputParser.parse("");
+        assertSame(result, singleFlight.execute(key, new WMISingleFlight.Execution() {
+            @Override
+            public WMIResultSet run() {
+                return result;
+            }
+        }));
+        assertEquals(2, singleFlight.getExecutedCount());
+    }
+
+    @Test
+    public void testLeaderErrorReachesWaiters() throws Exception {
+        final WMISingleFlight singleFlight = new WMISingleFlight();
+        final WMIQueryKey key = new WMIQueryKey(WMIEngine.POWERSHELL, WMI4Java.get().compile(WMIClass.WIN32_BIOS));
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<WMIResultSet> leader = executor.submit(new Callable<WMIResultSet>() {
+                @Override
+                public WMIResultSet call() throws Exception {
+                    return singleFlight.execute(key, new WMISingleFlight.Execution() {
+                        @Override
+                        public WMIResultSet run() {
+                            started.countDown();
+                            try {
+                                release.await();
+                            } catch (InterruptedException ex) {
+                                throw new WMIException(ex);
+                            }
+                            throw new OutOfMemoryError("simulated");
+                        }
+                    });
+                }
+            });
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            Future<WMIResultSet> follower = executor.submit(new Callable<WMIResultSet>() {
+                @Override
+                public WMIResultSet call() throws Exception {
+                    return singleFlight.execute(key, null);
+                }
+            });
+            while (singleFlight.getSharedCount() == 0) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+
+            try {
+                follower.get(10, TimeUnit.SECONDS);
+                fail("The error of the leader should reach the waiter");
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof WMIException);
+                assertTrue(ex.getCause().getCause() instanceof OutOfMemoryError);
+            }
+            try {
+                leader.get(10, TimeUnit.SECONDS);
+                fail("The leader should get its own error");
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof OutOfMemoryError);
+            }
+            assertEquals(0, singleFlight.getInFlightCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testLeaderCancellationIsNotShared() throws Exception {
+        final WMISingleFlight singleFlight = new WMISingleFlight();
+        final WMIQueryKey key = new WMIQueryKey(WMIEngine.POWERSHELL, WMI4Java.get().compile(WMIClass.WIN32_BIOS));
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final WMIResultSet result = WMIOutputParser.parse("Name : BIOS\n");
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<WMIResultSet> leader = executor.submit(new Callable<WMIResultSet>() {
+                @Override
+                public WMIResultSet call() throws Exception {
+                    return singleFlight.execute(key, new WMISingleFlight.Execution() {
+                        @Override
+                        public WMIResultSet run() {
+                            started.countDown();
+                            try {
+                                release.await();
+                            } catch (InterruptedException ex) {
+                                throw new WMIException(ex);
+                            }
+                            throw new WMICancelledException("WMI operation cancelled");
+                        }
+                    });
+                }
+            });
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            Future<WMIResultSet> follower = executor.submit(new Callable<WMIResultSet>() {
+                @Override
+                public WMIResultSet call() throws Exception {
+                    return singleFlight.execute(key, new WMISingleFlight.Execution() {
+                        @Override
+                        public WMIResultSet run() {
+                            return result;
+                        }
+                    });
+                }
+            });
+            while (singleFlight.getSharedCount() == 0) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+
+            // The waiter runs the query itself
+            assertSame(result, follower.get(10, TimeUnit.SECONDS));
+            try {
+                leader.get(10, TimeUnit.SECONDS);
+                fail("The leader should be cancelled");
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof WMICancelledException);
+            }
+            assertEquals(2, singleFlight.getExecutedCount());
+            assertEquals(0, singleFlight.getSharedCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
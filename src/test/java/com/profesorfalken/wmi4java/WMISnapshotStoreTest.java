@@ -0,0 +1,131 @@
+package com.profesorfalken.wmi4java;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for WMISnapshotStore
+ *
+ * @author Javier Garcia Alonso
+ */
+public class WMISnapshotStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testManifestIsRead() {
+        WMISnapshotManifest manifest = WMISnapshotManifest.read(WMI4Java.get().namespace("root/cimv2"),
+                new StringReader("# Inventory\nWin32_BIOS\n\nWin32_Processor Name, NumberOfCores\n"));
+
+        assertEquals(2, manifest.getQueries().size());
+        assertNull(manifest.getQueries().get(0).getProperties());
+        assertEquals(Arrays.asList("Name", "NumberOfCores"), manifest.getQueries().get(1).getProperties());
+        assertEquals("root/cimv2", manifest.getQueries().get(1).getNamespace());
+    }
+
+    @Test
+    public void testSnapshotIsReloadedAsExpired() throws Exception {
+        WMI4Java wmi4java = WMI4Java.get();
+        WMIQuery bios = wmi4java.compile(WMIClass.WIN32_BIOS);
+        WMIQuery processor = wmi4java.properties(Arrays.asList("Name", "NumberOfCores"))
+                .compile(WMIClass.WIN32_PROCESSOR);
+        WMISnapshotManifest manifest = new WMISnapshotManifest().add(bios).add(processor);
+        File file = new File(folder.getRoot(), "inventory.snapshot");
+
+        WMIResultCache cache = new WMIResultCache(1024 * 1024).defaultTtl(1, TimeUnit.HOURS);
+        cache.put(wmi4java, bios, WMIOutputParser.parse("Manufacturer : LENOVO\nVersion : LENOVO - 1\n"));
+        cache.put(wmi4java, processor, WMIOutputParser.parse("Name : CPU 0\nNumberOfCores : 4\n\n"
+                + "Name : CPU 1\n"));
+        assertEquals(2, new WMISnapshotStore(file, cache).save(wmi4java, manifest));
+
+        WMIResultCache restarted = new WMIResultCache(1024 * 1024).defaultTtl(1, TimeUnit.HOURS);
+        assertEquals(2, new WMISnapshotStore(file, restarted).load());
+
+        WMIResultSet processors = restarted.peek(new WMIQueryKey(wmi4java.getEngine(), processor));
+        assertEquals(2, processors.size());
+        assertEquals("4", processors.get(0).get("NumberOfCores"));
+        assertNull(processors.get(1).get("NumberOfCores"));
+        assertEquals("LENOVO - 1",
+                restarted.peek(new WMIQueryKey(wmi4java.getEngine(), bios)).get(0).get("Version"));
+
+        restarted.get(new WMIQueryKey(wmi4java.getEngine(), bios), new WMISingleFlight.Execution() {
+            @Override
+            public WMIResultSet run() {
+                return WMIOutputParser.parse("Manufacturer : LENOVO\n");
+            }
+        });
+        assertEquals(1, restarted.getStaleHitCount());
+    }
+
+    @Test
+    public void testMissingSnapshotLoadsNothing() {
+        WMIResultCache cache = new WMIResultCache(1024).defaultTtl(1, TimeUnit.HOURS);
+        assertEquals(0, new WMISnapshotStore(new File(folder.getRoot(), "missing"), cache).load());
+    }
+
+    private File savedSnapshot(WMIResultCache cache) {
+        WMI4Java wmi4java = WMI4Java.get();
+        WMIQuery processes = wmi4java.properties(Arrays.asList("Name", "ProcessId")).compile(WMIClass.WIN32_PROCESS);
+        StringBuilder output = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            output.append("Name : svchost.exe\nProcessId : ").append(1000 + i).append("\n\n");
+        }
+        cache.put(wmi4java, processes, WMIOutputParser.parse(output.toString()));
+        File file = new File(folder.getRoot(), "inventory.snapshot");
+        new WMISnapshotStore(file, cache).save(wmi4java, new WMISnapshotManifest().add(processes));
+        return file;
+    }
+
+    @Test
+    public void testSnapshotIsCompactAndCanBeReplaced() {
+        WMIResultCache cache = new WMIResultCache(1024 * 1024).defaultTtl(1, TimeUnit.HOURS);
+        File file = savedSnapshot(cache);
+        // Repeated names are stored once and numbers as variable length integers
+        assertTrue("Snapshot too large: " + file.length(), file.length() < 1000);
+
+        WMISnapshotStore store = new WMISnapshotStore(file, cache);
+        assertEquals(1, store.load());
+        // The file is not held open after loading
+        assertEquals(1, store.save(WMI4Java.get(), new WMISnapshotManifest()
+                .add(WMI4Java.get().properties(Arrays.asList("Name", "ProcessId")).compile(WMIClass.WIN32_PROCESS))));
+        assertEquals(1, store.load());
+    }
+
+    @Test
+    public void testCorruptSnapshotIsALoadError() throws Exception {
+        WMIResultCache cache = new WMIResultCache(1024 * 1024).defaultTtl(1, TimeUnit.HOURS);
+        File file = savedSnapshot(cache);
+        byte[] valid = Files.readAllBytes(file.toPath());
+        Random random = new Random(42);
+
+        for (int i = 0; i < 500; i++) {
+            byte[] corrupt = Arrays.copyOf(valid, i < valid.length ? i : valid.length);
+            if (i >= valid.length) {
+                for (int j = 0; j < 1 + random.nextInt(4); j++) {
+                    corrupt[random.nextInt(corrupt.length)] = (byte) random.nextInt(256);
+                }
+            }
+            Files.write(file.toPath(), corrupt);
+            try {
+                new WMISnapshotStore(file, new WMIResultCache(1024 * 1024).defaultTtl(1, TimeUnit.HOURS)).load();
+            } catch (WMIException ex) {
+                // Expected for most of them. Any other exception fails the test
+            }
+        }
+
+        Files.write(file.toPath(), new byte[]{0x57, 0x4D, 0x49, 0x53, 0, 0, 0, 2, 0x7F, 0, 0, 0});
+        WMIResultCache empty = new WMIResultCache(1024 * 1024);
+        assertEquals(0, new WMISnapshotStore(file, empty).preload(WMI4Java.get(), new WMISnapshotManifest()));
+    }
+}
@@ -0,0 +1,71 @@
+package com.profesorfalken.wmi4java;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for WMIFlightRecorder
+ *
+ * @author Javier Garcia Alonso
+ */
+public class WMIFlightRecorderTest {
+
+    @Test
+    public void testRecordedEvents() throws Exception {
+        WMIQuery query = WMI4Java.get().namespace("root/cimv2").properties(Arrays.asList("Name"))
+                .compile(WMIClass.WIN32_PROCESS);
+        Path file = Files.createTempFile("wmi4java", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("wmi4java.Query");
+            recording.enable("wmi4java.SessionOpened");
+            recording.enable("wmi4java.SessionClosed");
+            recording.enable("wmi4java.ProcessTimedOut");
+            recording.start();
+
+            Object event = WMIEvents.beginQuery();
+            assertNotNull(event);
+            WMIEvents.endQuery(event, WMIEngine.VBSCRIPT, query, 3, 128, new WMIException("access denied"));
+            WMIEvents.processTimedOut("cscript.exe", 500);
+            // The VBS engine opens no process until a script is run
+            WMI4Java.get().VBSEngine().computerName("server").openConnection().close();
+
+            recording.stop();
+            recording.dump(file);
+        }
+
+        List<String> names = new ArrayList<>();
+        try {
+            for (RecordedEvent recorded : RecordingFile.readAllEvents(file)) {
+                String name = recorded.getEventType().getName();
+                names.add(name);
+                if (name.equals("wmi4java.Query")) {
+                    assertEquals("Win32_Process", recorded.getString("wmiClass"));
+                    assertEquals("root/cimv2", recorded.getString("namespace"));
+                    assertEquals("VBSCRIPT", recorded.getString("engine"));
+                    assertEquals(3, recorded.getLong("rows"));
+                    assertEquals(128, recorded.getLong("bytes"));
+                    assertEquals("access denied", recorded.getString("error"));
+                } else if (name.equals("wmi4java.ProcessTimedOut")) {
+                    assertEquals("cscript.exe", recorded.getString("executable"));
+                    assertEquals(500, recorded.getDuration("timeout").toMillis());
+                } else {
+                    assertEquals("server", recorded.getString("host"));
+                }
+            }
+        } finally {
+            Files.delete(file);
+        }
+        assertTrue(names.containsAll(Arrays.asList("wmi4java.Query", "wmi4java.ProcessTimedOut",
+                "wmi4java.SessionOpened", "wmi4java.SessionClosed")));
+    }
+}